@@ -25,7 +25,9 @@ import android.content.Intent
 import android.content.ServiceConnection
 import android.os.IBinder
 import android.util.Log
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionDataRing
 import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionDataUpdate
 import pan.alexander.tordnscrypt.utils.logger.Logger.logi
 import pan.alexander.tordnscrypt.utils.logger.Logger.logw
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPN
@@ -57,20 +59,44 @@ class ConnectionRecordsGetter @Inject constructor(
     @Volatile
     private var serviceVPN: WeakReference<ServiceVPN?>? = null
 
-    fun getConnectionRawRecords(): Map<ConnectionData, Boolean> {
+    private var savedRawRecords: ConnectionDataRing? = null
+    private var cursor = ConnectionDataRing.Cursor()
+
+    @Volatile
+    private var onNewRecordsListener: (() -> Unit)? = null
+
+    fun getNewConnectionRawRecords(): ConnectionDataUpdate {
         if (bound.compareAndSet(false, true)) {
             logi("ConnectionRecordsGetter bind to VPN service")
             bindToVPNService()
         }
 
         val rawRecords = try {
-            serviceVPN?.get()?.dnsQueryRawRecords ?: emptyMap<ConnectionData, Boolean>()
+            serviceVPN?.get()?.dnsQueryRawRecords
         } catch (e: Exception) {
-            logw("ConnectionRecordsGetter getConnectionRawRecords", e)
-            emptyMap<ConnectionData, Boolean>()
+            logw("ConnectionRecordsGetter getNewConnectionRawRecords", e)
+            null
+        } ?: return ConnectionDataUpdate(emptyList(), false)
+
+        //VPN service was recreated, so records should be read from the beginning
+        var reset = false
+        if (rawRecords !== savedRawRecords) {
+            savedRawRecords?.setOnRecordAddedListener(null)
+            rawRecords.setOnRecordAddedListener(onNewRecordsListener)
+            savedRawRecords = rawRecords
+            cursor = ConnectionDataRing.Cursor()
+            reset = true
         }
 
-        return rawRecords
+        val records = mutableListOf<ConnectionData>()
+        reset = rawRecords.readNew(cursor) { records.add(it) } || reset
+
+        return ConnectionDataUpdate(records, reset)
+    }
+
+    fun setOnNewRecordsListener(listener: (() -> Unit)?) {
+        onNewRecordsListener = listener
+        savedRawRecords?.setOnRecordAddedListener(listener)
     }
 
     fun clearConnectionRawRecords() {
@@ -82,6 +108,8 @@ class ConnectionRecordsGetter @Inject constructor(
     }
 
     fun connectionRawRecordsNoMoreRequired() {
+        savedRawRecords?.setOnRecordAddedListener(null)
+        savedRawRecords = null
         unbindVPNService()
     }
 
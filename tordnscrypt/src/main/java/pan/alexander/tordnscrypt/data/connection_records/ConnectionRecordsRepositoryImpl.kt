@@ -21,7 +21,7 @@ package pan.alexander.tordnscrypt.data.connection_records
 
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import pan.alexander.tordnscrypt.domain.connection_records.ConnectionRecordsRepository
-import pan.alexander.tordnscrypt.domain.connection_records.ConnectionRecord
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionRecordsUpdate
 import pan.alexander.tordnscrypt.domain.connection_records.RawConnectionRecordsMapper
 import pan.alexander.tordnscrypt.domain.connection_records.entities.DnsRecord
 import pan.alexander.tordnscrypt.domain.connection_records.entities.PacketRecord
@@ -42,37 +42,53 @@ class ConnectionRecordsRepositoryImpl @Inject constructor(
     @Volatile
     private var savedMode = modulesStatus.mode
 
-    override fun getRawConnectionRecords(): List<ConnectionRecord?> =
+    override fun getNewRawConnectionRecords(): ConnectionRecordsUpdate =
         if (isVpnMode()) {
 
+            var modeChanged = false
             if (modulesStatus.mode != savedMode) {
                 stopNflogRecordsGetter()
                 savedMode = modulesStatus.mode
+                modeChanged = true
             }
 
-            rawConnectionRecordsMapper.map(connectionRecordsGetter.getConnectionRawRecords())
+            val update = connectionRecordsGetter.getNewConnectionRawRecords()
+            ConnectionRecordsUpdate(
+                rawConnectionRecordsMapper.map(update.records),
+                update.reset || modeChanged
+            )
 
         } else if (isFixTTL()) {
-            rawConnectionRecordsMapper.map(
-                connectionRecordsGetter.getConnectionRawRecords()
-                        + nflogRecordsGetter.getConnectionRawRecords().filter {
-                    when (val record = it.key) {
-                        is PacketRecord -> record.uid != SPECIAL_UID_KERNEL
-                        is DnsRecord -> true
-                    }
-                }
+            val vpnUpdate = connectionRecordsGetter.getNewConnectionRawRecords()
+            val nflogUpdate = nflogRecordsGetter.getNewConnectionRawRecords()
+            ConnectionRecordsUpdate(
+                rawConnectionRecordsMapper.map(
+                    (vpnUpdate.records + nflogUpdate.records.filter {
+                        when (it) {
+                            is PacketRecord -> it.uid != SPECIAL_UID_KERNEL
+                            is DnsRecord -> true
+                        }
+                    }).sortedBy { it.time }
+                ),
+                vpnUpdate.reset || nflogUpdate.reset
             )
 
         } else if (isRootMode()) {
 
+            var modeChanged = false
             if (modulesStatus.mode != savedMode) {
                 stopConnectionRecordsGetter()
                 savedMode = modulesStatus.mode
+                modeChanged = true
             }
 
-            rawConnectionRecordsMapper.map(nflogRecordsGetter.getConnectionRawRecords())
+            val update = nflogRecordsGetter.getNewConnectionRawRecords()
+            ConnectionRecordsUpdate(
+                rawConnectionRecordsMapper.map(update.records),
+                update.reset || modeChanged
+            )
         } else {
-            emptyList()
+            ConnectionRecordsUpdate(emptyList(), false)
         }
 
     override fun clearConnectionRawRecords() {
@@ -89,6 +105,11 @@ class ConnectionRecordsRepositoryImpl @Inject constructor(
         }
     }
 
+    override fun setOnNewRecordsListener(listener: (() -> Unit)?) {
+        connectionRecordsGetter.setOnNewRecordsListener(listener)
+        nflogRecordsGetter.setOnNewRecordsListener(listener)
+    }
+
     private fun stopConnectionRecordsGetter() = with(connectionRecordsGetter) {
         clearConnectionRawRecords()
         connectionRawRecordsNoMoreRequired()
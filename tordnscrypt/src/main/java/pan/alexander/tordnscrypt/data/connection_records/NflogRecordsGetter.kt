@@ -20,9 +20,10 @@
 package pan.alexander.tordnscrypt.data.connection_records
 
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionDataRing
 import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionDataUpdate
 import pan.alexander.tordnscrypt.nflog.NflogManager
-import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 
 @ExperimentalCoroutinesApi
@@ -30,8 +31,16 @@ class NflogRecordsGetter @Inject constructor(
     private val nflogManager: NflogManager
 ) {
 
-    fun getConnectionRawRecords(): ConcurrentHashMap<ConnectionData, Boolean> =
-        nflogManager.getRealTimeLogs()
+    private val cursor = ConnectionDataRing.Cursor()
+
+    fun getNewConnectionRawRecords(): ConnectionDataUpdate {
+        val records = mutableListOf<ConnectionData>()
+        val reset = nflogManager.getRealTimeLogs().readNew(cursor) { records.add(it) }
+        return ConnectionDataUpdate(records, reset)
+    }
+
+    fun setOnNewRecordsListener(listener: (() -> Unit)?) =
+        nflogManager.getRealTimeLogs().setOnRecordAddedListener(listener)
 
     fun clearConnectionRawRecords() = nflogManager.clearRealTimeLogs()
 }
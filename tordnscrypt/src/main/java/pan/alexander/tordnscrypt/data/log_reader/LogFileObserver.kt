@@ -0,0 +1,62 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.data.log_reader
+
+import android.os.FileObserver
+import java.io.File
+
+private const val EVENTS = FileObserver.MODIFY or
+        FileObserver.CLOSE_WRITE or
+        FileObserver.CREATE or
+        FileObserver.MOVED_TO or
+        FileObserver.DELETE
+
+/**
+ * Watches the modules log directory with inotify and reports changes of the watched files.
+ * Directory is observed instead of the files, so that recreated logs are still followed.
+ */
+@Suppress("DEPRECATION")
+class LogFileObserver(
+    private val logsDir: String,
+    private val fileNames: Set<String>,
+    private val onLogChanged: () -> Unit
+) : FileObserver(logsDir, EVENTS) {
+
+    override fun onEvent(event: Int, path: String?) {
+        if (path != null && fileNames.contains(path)) {
+            onLogChanged()
+        }
+    }
+
+    /**
+     * Returns false if the directory does not exist, so changes cannot be observed.
+     */
+    fun start(): Boolean {
+        if (!File(logsDir).isDirectory) {
+            return false
+        }
+        startWatching()
+        return true
+    }
+
+    fun stop() {
+        stopWatching()
+    }
+}
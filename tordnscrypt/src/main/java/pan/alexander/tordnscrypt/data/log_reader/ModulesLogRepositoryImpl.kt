@@ -34,13 +34,17 @@ class ModulesLogRepositoryImpl @Inject constructor(
     private var torLogFileReader: OwnFileReader? = null
     private var itpdLogFileReader: OwnFileReader? = null
     private var itpdHtmlFileReader: HtmlReader? = null
+    private var logFileObserver: LogFileObserver? = null
 
     override fun getDNSCryptLog(): List<String> {
         dnsCryptLogFileReader = dnsCryptLogFileReader ?: OwnFileReader(
             applicationContext,
             "$appDataDir/logs/DnsCrypt.log"
         )
-        return dnsCryptLogFileReader?.readLastLines() ?: emptyList()
+        return dnsCryptLogFileReader?.let {
+            it.readNewLines()
+            it.lastLines
+        } ?: emptyList()
     }
 
     override fun getTorLog(): List<String> {
@@ -48,7 +52,10 @@ class ModulesLogRepositoryImpl @Inject constructor(
             applicationContext,
             "$appDataDir/logs/Tor.log"
         )
-        return torLogFileReader?.readLastLines() ?: emptyList()
+        return torLogFileReader?.let {
+            it.readNewLines()
+            it.lastLines
+        } ?: emptyList()
     }
 
     override fun getITPDLog(): List<String> {
@@ -56,7 +63,27 @@ class ModulesLogRepositoryImpl @Inject constructor(
             applicationContext,
             "$appDataDir/logs/i2pd.log"
         )
-        return itpdLogFileReader?.readLastLines() ?: emptyList()
+        return itpdLogFileReader?.let {
+            it.readNewLines()
+            it.lastLines
+        } ?: emptyList()
+    }
+
+    @Synchronized
+    override fun observeLogs(onLogChanged: () -> Unit): Boolean {
+        logFileObserver?.stop()
+        logFileObserver = LogFileObserver(
+            "$appDataDir/logs",
+            setOf("DnsCrypt.log", "Tor.log", "i2pd.log"),
+            onLogChanged
+        )
+        return logFileObserver?.start() ?: false
+    }
+
+    @Synchronized
+    override fun stopObservingLogs() {
+        logFileObserver?.stop()
+        logFileObserver = null
     }
 
     override fun getITPDHtmlData(): List<String> {
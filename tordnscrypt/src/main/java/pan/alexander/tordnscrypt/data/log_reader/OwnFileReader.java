@@ -20,45 +20,61 @@
 package pan.alexander.tordnscrypt.data.log_reader;
 
 import android.content.Context;
+import android.os.Build;
+import android.system.Os;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 import pan.alexander.tordnscrypt.utils.filemanager.FileShortener;
 import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
 
+import static pan.alexander.tordnscrypt.utils.filemanager.FileShortener.TOO_TOO_LONG_FILE_LENGTH;
 import static pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG;
 
+/*
+ * Follows the module log like tail -f. Only bytes appended since the previous read are read,
+ * the file is reread from its tail when it is truncated, shortened or replaced.
+ */
 public class OwnFileReader {
-    //private final static long TOO_LONG_FILE_LENGTH = 1024 * 100;
     private final static int MAX_LINES_QUANTITY = 80;
-    private final static int MAX_LINES_HYSTERESIS = 50;
-
+    //Read no more than this from the end of a file that was not read before
+    private final static int MAX_TAIL_LENGTH = 1024 * 32;
+    private final static int READ_BUFFER_SIZE = 1024 * 8;
 
     private static final ReentrantLock reentrantLock = new ReentrantLock();
 
     private final Context context;
     private final String filePath;
 
+    private final ArrayDeque<String> lastLines = new ArrayDeque<>(MAX_LINES_QUANTITY);
+    private List<String> lastLinesSnapshot = Collections.emptyList();
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private long position = -1;
+    private long inode = -1;
+    private boolean skipFirstLine = false;
+
     public OwnFileReader(Context context, String filePath) {
         this.context = context;
         this.filePath = filePath;
     }
 
-    public List<String> readLastLines() {
+    /*
+     * Returns complete lines appended since the previous call.
+     */
+    public List<String> readNewLines() {
 
-        List<String> lines = new LinkedList<>();
-
-        boolean fileIsTooLong = false;
+        List<String> newLines = new ArrayList<>();
 
         try {
             reentrantLock.lockInterruptibly();
@@ -66,6 +82,9 @@ public class OwnFileReader {
             File file = new File(filePath);
 
             if (!file.exists()) {
+                if (position > 0) {
+                    resetPosition(0, -1);
+                }
                 return Collections.emptyList();
             }
 
@@ -84,52 +103,106 @@ public class OwnFileReader {
                 }
             }
 
-            FileShortener.shortenTooTooLongFile(filePath);
+            long length = file.length();
+            if (length > TOO_TOO_LONG_FILE_LENGTH) {
+                FileShortener.shortenTooTooLongFile(filePath);
+                length = file.length();
+            }
 
-            try (FileInputStream fstream = new FileInputStream(filePath);
-                 InputStreamReader reader = new InputStreamReader(fstream);
-                 BufferedReader br = new BufferedReader(reader)) {
+            long fileInode = getInode();
+            if (position < 0 || fileInode != inode || length < position) {
+                resetPosition(length, fileInode);
+            }
 
-                for (String line; (line = br.readLine()) != null; ) {
-                    lines.add(line);
-                    if (lines.size() > MAX_LINES_QUANTITY + MAX_LINES_HYSTERESIS) {
-                        lines.remove(0);
-                        fileIsTooLong = true;
-                    }
+            if (length == position) {
+                return Collections.emptyList();
+            }
+
+            try (FileInputStream fstream = new FileInputStream(file);
+                 FileChannel channel = fstream.getChannel()) {
+
+                channel.position(position);
+
+                readBuffer.clear();
+                while (channel.read(readBuffer) > 0) {
+                    readBuffer.flip();
+                    splitLines(readBuffer, newLines);
+                    readBuffer.clear();
                 }
+
+                position = channel.position();
             }
 
-            if (fileIsTooLong) {
-                lines = lines.subList(lines.size() - MAX_LINES_QUANTITY, lines.size());
-                shortenTooLongFile(lines);
+            if (!newLines.isEmpty()) {
+                lastLinesSnapshot = Collections.unmodifiableList(new ArrayList<>(lastLines));
             }
 
-        }  catch (Exception e) {
+        } catch (Exception e) {
             Log.e(LOG_TAG, "Impossible to read file " + filePath + " " + e.getMessage() + " " + e.getCause());
         } finally {
-            reentrantLock.unlock();
+            if (reentrantLock.isHeldByCurrentThread()) {
+                reentrantLock.unlock();
+            }
         }
 
-        return lines;
+        return newLines;
     }
 
-    private void shortenTooLongFile(List<String> lines) {
-        File file = new File(filePath);
-        if (!file.isFile()) {
-            return;
+    /*
+     * Returns the last lines of the file. The same list is returned until new lines are read.
+     */
+    public List<String> getLastLines() {
+        return lastLinesSnapshot;
+    }
+
+    private void splitLines(ByteBuffer buffer, List<String> newLines) throws Exception {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b != '\n') {
+                partialLine.write(b);
+                continue;
+            }
+
+            String line = partialLine.toString("UTF-8");
+            partialLine.reset();
+
+            if (skipFirstLine) {
+                skipFirstLine = false;
+                continue;
+            }
+
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+
+            newLines.add(line);
+
+            if (lastLines.size() >= MAX_LINES_QUANTITY) {
+                lastLines.pollFirst();
+            }
+            lastLines.addLast(line);
         }
+    }
 
-        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
-            if (lines != null && lines.size() != 0) {
-                StringBuilder buffer = new StringBuilder();
-                for (String line : lines) {
-                    buffer.append(line).append("\n");
-                }
-                writer.println(buffer);
+    private void resetPosition(long length, long fileInode) {
+        position = Math.max(0, length - MAX_TAIL_LENGTH);
+        //Tail starts in the middle of a line
+        skipFirstLine = position > 0;
+        inode = fileInode;
+        partialLine.reset();
+        lastLines.clear();
+        lastLinesSnapshot = Collections.emptyList();
+    }
+
+    private long getInode() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                return Os.stat(filePath).st_ino;
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Unable to get inode of " + filePath + " " + e.getMessage());
             }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Unable to rewrite too long file" + filePath + e.getMessage() + " " + e.getCause());
         }
+        return 0;
     }
 
 }
@@ -35,6 +35,7 @@ import pan.alexander.tordnscrypt.dialogs.*
 
 import pan.alexander.tordnscrypt.dnscrypt_fragment.DNSCryptFragmentReceiver
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
+import pan.alexander.tordnscrypt.domain.tor_ips.DomainIpBindings
 import pan.alexander.tordnscrypt.help.HelpActivity
 import pan.alexander.tordnscrypt.help.HelpActivityReceiver
 import pan.alexander.tordnscrypt.installer.Installer
@@ -83,6 +84,7 @@ interface AppComponent {
     fun getPathVars(): dagger.Lazy<PathVars>
     fun getPreferenceRepository(): dagger.Lazy<PreferenceRepository>
     fun getCachedExecutor(): CachedExecutor
+    fun getDomainIpBindings(): dagger.Lazy<DomainIpBindings>
 
     @Component.Builder
     interface Builder {
@@ -0,0 +1,168 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.connection_records
+
+import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Fixed capacity connection log ordered by insertion.
+ * Each record gets a sequence number, the oldest records are overwritten when the ring is full.
+ * Re-adding an equal record moves it to the end, the older copy is skipped by readers.
+ * The older copy still occupies a slot until it is overwritten, so when records are repeated
+ * the ring holds fewer unique records than its capacity.
+ * Writers, readers and clear() do not block each other. clear() only moves the first sequence,
+ * records reserved before it are skipped by readers even if they are written later.
+ */
+class ConnectionDataRing(capacity: Int) {
+
+    private val capacity = Integer.highestOneBit(capacity.coerceAtLeast(2) * 2 - 1)
+    private val mask = this.capacity - 1L
+
+    private val slots = AtomicReferenceArray<Slot?>(this.capacity)
+    //The slot of the latest copy of each record, so readers skip the older copies
+    private val latestSlots = ConcurrentHashMap<ConnectionData, Slot>(this.capacity * 2)
+    private val nextSequence = AtomicLong()
+
+    @Volatile
+    private var firstSequence = 0L
+
+    @Volatile
+    private var clearsCount = 0
+
+    @Volatile
+    private var onRecordAddedListener: (() -> Unit)? = null
+
+    fun add(record: ConnectionData) {
+        addRecord(record)
+        onRecordAddedListener?.invoke()
+    }
+
+    private fun addRecord(record: ConnectionData) {
+        val sequence = nextSequence.getAndIncrement()
+        val slot = Slot(sequence, record)
+        val index = (sequence and mask).toInt()
+
+        while (true) {
+            val saved = latestSlots.putIfAbsent(record, slot) ?: break
+            if (saved.sequence > sequence || latestSlots.replace(record, saved, slot)) {
+                break
+            }
+        }
+
+        while (true) {
+            val evicted = slots.get(index)
+            if (evicted != null && evicted.sequence > sequence) {
+                //A concurrent writer has already overwritten this slot with a newer record
+                latestSlots.remove(record, slot)
+                return
+            }
+            if (slots.compareAndSet(index, evicted, slot)) {
+                evicted?.let { latestSlots.remove(it.data, it) }
+                break
+            }
+        }
+
+        //The ring was cleared after the sequence was reserved, readers will skip the record
+        if (sequence < firstSequence) {
+            latestSlots.remove(record, slot)
+        }
+    }
+
+    /**
+     * Passes records added after the cursor to the consumer in the insertion order.
+     * Returns the cursor for the next call, use 0 to read all records.
+     * Reading stops at the first sequence that is reserved by a writer but not yet written,
+     * so that record and the following ones are passed by the next call.
+     */
+    fun readSince(cursor: Long, consumer: (ConnectionData) -> Unit): Long {
+        val end = nextSequence.get()
+        var sequence = maxOf(cursor, firstSequence, end - capacity)
+        while (sequence < end) {
+            val slot = slots.get((sequence and mask).toInt())
+            if (slot == null || slot.sequence < sequence) {
+                break
+            }
+            //A slot with a newer sequence means the record was overwritten before it was read
+            if (slot.sequence == sequence && isLatest(slot)) {
+                consumer(slot.data)
+            }
+            sequence++
+        }
+        return sequence
+    }
+
+    /**
+     * Passes records added since the previous call with the same cursor to the consumer.
+     * Returns true if the ring was cleared in between, so the reader should drop what it has.
+     */
+    fun readNew(cursor: Cursor, consumer: (ConnectionData) -> Unit): Boolean {
+        val clears = clearsCount
+        val reset = cursor.clears != clears
+        cursor.clears = clears
+        cursor.sequence = readSince(if (reset) 0 else cursor.sequence, consumer)
+        return reset
+    }
+
+    /**
+     * The listener is called on the writer thread, so it should only schedule the reading.
+     */
+    fun setOnRecordAddedListener(listener: (() -> Unit)?) {
+        onRecordAddedListener = listener
+    }
+
+    fun toList(): List<ConnectionData> {
+        val records = ArrayList<ConnectionData>(size())
+        readSince(0) { records.add(it) }
+        return records
+    }
+
+    /**
+     * Sequence number of the oldest record that was not cleared.
+     * A cursor smaller than it means some records were dropped or cleared.
+     */
+    fun getFirstSequence(): Long = maxOf(firstSequence, nextSequence.get() - capacity)
+
+    fun size(): Int {
+        val first = firstSequence
+        return latestSlots.values.count { it.sequence >= first }
+    }
+
+    fun isEmpty(): Boolean = size() == 0
+
+    //Synchronized only against other clear() calls, so the first sequence does not move back
+    @Synchronized
+    fun clear() {
+        firstSequence = nextSequence.get()
+        clearsCount++
+    }
+
+    private fun isLatest(slot: Slot): Boolean =
+        slot.sequence >= firstSequence && latestSlots[slot.data] === slot
+
+    private class Slot(val sequence: Long, val data: ConnectionData)
+
+    class Cursor {
+        internal var sequence = 0L
+        internal var clears = 0
+    }
+}
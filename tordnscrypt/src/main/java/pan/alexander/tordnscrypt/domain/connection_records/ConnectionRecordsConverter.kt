@@ -39,12 +39,15 @@ import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.*
 import pan.alexander.tordnscrypt.vpn.VpnUtils
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPN.LINES_IN_DNS_QUERY_RAW_RECORDS
 import pan.alexander.tordnscrypt.vpn.service.VpnBuilder
+import java.util.ArrayDeque
+import java.util.IdentityHashMap
 import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.Future
 import javax.inject.Inject
 
 private const val REVERSE_LOOKUP_QUEUE_CAPACITY = 32
 private const val IP_TO_HOST_ADDRESS_MAP_SIZE = LINES_IN_DNS_QUERY_RAW_RECORDS
+private const val MAX_CONVERTED_RECORDS = LINES_IN_DNS_QUERY_RAW_RECORDS * 2
 private const val DNS_REVERSE_LOOKUP_SUFFIX = ".in-addr.arpa"
 
 class ConnectionRecordsConverter @Inject constructor(
@@ -67,8 +70,17 @@ class ConnectionRecordsConverter @Inject constructor(
             || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
             && modulesStatus.mode == OperationMode.VPN_MODE
 
-    private val dnsQueryLogRecords = ArrayList<ConnectionRecord>()
+    //Converted records in the display order, each record gets a new id when it is moved to the end
+    private val dnsQueryLogRecords = LinkedHashMap<Long, ConnectionRecord>()
+    private val dnsQueryLogRecordIds = IdentityHashMap<ConnectionRecord, Long>()
+    private var nextRecordId = 0L
     private val dnsQueryLogRecordsSublist = ArrayList<ConnectionRecord>()
+
+    //Indexes of converted records. Ids of removed records are skipped and purged lazily
+    private val sameRecordIds = HashMap<RecordKey, MutableList<Long>>()
+    private val dnsRecordIdsByIp = HashMap<String, ArrayDeque<Long>>()
+    private val dnsRecordIdsByCName = HashMap<String, ArrayDeque<Long>>()
+    private val dnsRecordIdsByQuery = HashMap<QueryKey, ArrayDeque<Long>>()
     private val reverseLookupQueue = ArrayBlockingQueue<String>(REVERSE_LOOKUP_QUEUE_CAPACITY, true)
     private val ipToHostAddressMap = mutableMapOf<IpToTime, String>()
     private var futureTask: Future<*>? = null
@@ -95,17 +107,29 @@ class ConnectionRecordsConverter @Inject constructor(
         }
     }
 
-    fun convertRecords(dnsQueryRawRecords: List<ConnectionRecord?>): List<ConnectionRecord> {
+    /**
+     * Converts only the records received since the previous call.
+     * Returns true if converted records were changed.
+     */
+    fun convertRecords(update: ConnectionRecordsUpdate): Boolean {
 
-        dnsQueryLogRecords.clear()
+        if (update.reset) {
+            clearRecords()
+        }
 
         startReverseLookupQueue()
 
-        dnsQueryRawRecords.forEach { addRecord(it) }
+        update.records.forEach { addRecord(it) }
 
-        return dnsQueryLogRecords
+        while (dnsQueryLogRecords.size > MAX_CONVERTED_RECORDS) {
+            removeRecord(dnsQueryLogRecords.keys.first())
+        }
+
+        return update.reset || update.records.isNotEmpty()
     }
 
+    fun getRecords(): List<ConnectionRecord> = ArrayList(dnsQueryLogRecords.values)
+
     private fun addRecord(dnsQueryRawRecord: ConnectionRecord?) {
 
         if (dnsQueryRawRecord == null) {
@@ -126,35 +150,27 @@ class ConnectionRecordsConverter @Inject constructor(
         setQueryBlocked(dnsQueryRawRecord)
 
         if (dnsQueryRawRecord.blocked) {
-            dnsQueryLogRecords.removeAll { it == dnsQueryRawRecord }
+            removeSameRecords(dnsQueryRawRecord)
         }
 
-        dnsQueryLogRecords.add(dnsQueryRawRecord)
+        appendRecord(dnsQueryRawRecord)
     }
 
     private fun isIdenticalRecord(dnsQueryRawRecord: ConnectionRecord): Boolean {
 
-        for (i in dnsQueryLogRecords.size - 1 downTo 0) {
-            val record = dnsQueryLogRecords[i]
+        if (dnsQueryRawRecord.daddr.isEmpty()) {
+            return false
+        }
 
-            if (dnsQueryRawRecord.aName == record.aName
-                && dnsQueryRawRecord.qName == record.qName
-                && dnsQueryRawRecord.hInfo == record.hInfo
-                && dnsQueryRawRecord.rCode == record.rCode
-                && dnsQueryRawRecord.saddr == record.saddr
-            ) {
+        val record = getLatestRecord(dnsRecordIdsByQuery[QueryKey(dnsQueryRawRecord)])
+            ?: return false
 
-                if (dnsQueryRawRecord.daddr.isNotEmpty() && record.daddr.isNotEmpty()) {
-                    if (!record.daddr.contains(dnsQueryRawRecord.daddr.trim())) {
-                        dnsQueryLogRecords[i] =
-                            record.apply { daddr = daddr + ", " + dnsQueryRawRecord.daddr.trim() }
-                    }
-                    return true
-                }
-            }
+        val daddr = dnsQueryRawRecord.daddr.trim()
+        if (!record.daddr.contains(daddr)) {
+            addDestinationAddress(record, daddr)
         }
 
-        return false
+        return true
     }
 
     private fun isRootMode() =
@@ -164,7 +180,6 @@ class ConnectionRecordsConverter @Inject constructor(
         dnsQueryRawRecord.aName.endsWith(DNS_REVERSE_LOOKUP_SUFFIX)
 
     private fun addUID(dnsQueryRawRecord: ConnectionRecord) {
-        var savedRecord: ConnectionRecord? = null
         dnsQueryLogRecordsSublist.clear()
 
         val uidBlocked = if (firewallEnabled) {
@@ -184,22 +199,22 @@ class ConnectionRecordsConverter @Inject constructor(
             false
         }
 
-        for (index in dnsQueryLogRecords.size - 1 downTo 0) {
-            val record = dnsQueryLogRecords[index]
-            if (savedRecord == null && record.daddr.contains(dnsQueryRawRecord.daddr) && record.uid == -1000) {
-                record.blocked = uidBlocked
-                record.unused = false
-                dnsQueryLogRecordsSublist.add(record)
-                savedRecord = record
-            } else if (savedRecord != null && savedRecord.aName == record.cName) {
-                record.blocked = uidBlocked
-                record.unused = false
-                dnsQueryLogRecordsSublist.add(record)
-                savedRecord = record
-            } else if (savedRecord != null && savedRecord.aName != record.cName) {
+        var savedRecord: ConnectionRecord? =
+            getLatestRecord(dnsRecordIdsByIp[dnsQueryRawRecord.daddr])
+        while (savedRecord != null) {
+            savedRecord.blocked = uidBlocked
+            savedRecord.unused = false
+            dnsQueryLogRecordsSublist.add(savedRecord)
+            val savedId = dnsQueryLogRecordIds[savedRecord] ?: break
+
+            //Follow aName -> cName chain to the original query
+            val cNameRecord = getLatestRecord(dnsRecordIdsByCName[savedRecord.aName], savedId)
+            if (cNameRecord == null || dnsQueryLogRecordsSublist.any { it === cNameRecord }) {
                 break
             }
+            savedRecord = cNameRecord
         }
+        savedRecord = dnsQueryLogRecordsSublist.lastOrNull()
 
         if (savedRecord != null) {
 
@@ -228,16 +243,102 @@ class ConnectionRecordsConverter @Inject constructor(
 
             dnsQueryRawRecord.unused = false
 
-            dnsQueryLogRecords.removeAll { it == dnsQueryRawRecord }
-            dnsQueryLogRecords.add(dnsQueryRawRecord)
+            removeSameRecords(dnsQueryRawRecord)
+            appendRecord(dnsQueryRawRecord)
         }
 
         if (dnsQueryLogRecordsSublist.isNotEmpty()) {
-            dnsQueryLogRecords.removeAll(dnsQueryLogRecordsSublist.toSet())
-            dnsQueryLogRecords.addAll(dnsQueryLogRecordsSublist.reversed())
+            dnsQueryLogRecordsSublist.forEach { removeSameRecords(it) }
+            for (i in dnsQueryLogRecordsSublist.size - 1 downTo 0) {
+                appendRecord(dnsQueryLogRecordsSublist[i])
+            }
+        }
+    }
+
+    private fun appendRecord(record: ConnectionRecord) {
+        attachRecord(record, nextRecordId++)
+    }
+
+    private fun attachRecord(record: ConnectionRecord, id: Long) {
+        dnsQueryLogRecords[id] = record
+        dnsQueryLogRecordIds[record] = id
+        sameRecordIds.getOrPut(RecordKey(record)) { ArrayList(1) }.add(id)
+
+        if (record.uid != -1000) {
+            return
+        }
+
+        if (record.daddr.isNotEmpty()) {
+            record.daddr.split(", ").forEach { ip ->
+                dnsRecordIdsByIp.getOrPut(ip.trim()) { ArrayDeque() }.add(id)
+            }
+            dnsRecordIdsByQuery.getOrPut(QueryKey(record)) { ArrayDeque() }.add(id)
+        }
+        if (record.cName.isNotBlank()) {
+            dnsRecordIdsByCName.getOrPut(record.cName) { ArrayDeque() }.add(id)
+        }
+    }
+
+    //The record keeps its position, only the indexes are updated
+    private fun addDestinationAddress(record: ConnectionRecord, daddr: String) {
+        val id = dnsQueryLogRecordIds[record] ?: return
+        removeSameRecordId(record, id)
+        record.daddr = record.daddr + ", " + daddr
+        sameRecordIds.getOrPut(RecordKey(record)) { ArrayList(1) }.add(id)
+        dnsRecordIdsByIp.getOrPut(daddr) { ArrayDeque() }.add(id)
+    }
+
+    private fun removeRecord(id: Long) {
+        val record = dnsQueryLogRecords.remove(id) ?: return
+        dnsQueryLogRecordIds.remove(record)
+        removeSameRecordId(record, id)
+    }
+
+    private fun removeSameRecordId(record: ConnectionRecord, id: Long) {
+        val key = RecordKey(record)
+        sameRecordIds[key]?.let { ids ->
+            ids.remove(id)
+            if (ids.isEmpty()) {
+                sameRecordIds.remove(key)
+            }
         }
     }
 
+    private fun removeSameRecords(record: ConnectionRecord) {
+        sameRecordIds[RecordKey(record)]?.toList()?.forEach { removeRecord(it) }
+    }
+
+    private fun getLatestRecord(ids: ArrayDeque<Long>?, beforeId: Long = Long.MAX_VALUE): ConnectionRecord? {
+        if (ids == null) {
+            return null
+        }
+
+        while (ids.isNotEmpty() && !dnsQueryLogRecords.containsKey(ids.first)) {
+            ids.removeFirst()
+        }
+        while (ids.isNotEmpty() && !dnsQueryLogRecords.containsKey(ids.last)) {
+            ids.removeLast()
+        }
+
+        val iterator = ids.descendingIterator()
+        while (iterator.hasNext()) {
+            val id = iterator.next()
+            if (id < beforeId) {
+                dnsQueryLogRecords[id]?.let { return it }
+            }
+        }
+        return null
+    }
+
+    private fun clearRecords() {
+        dnsQueryLogRecords.clear()
+        dnsQueryLogRecordIds.clear()
+        sameRecordIds.clear()
+        dnsRecordIdsByIp.clear()
+        dnsRecordIdsByCName.clear()
+        dnsRecordIdsByQuery.clear()
+    }
+
     private fun makeReverseLookup(ip: String) {
         if (!reverseLookupQueue.contains(ip)) {
             reverseLookupQueue.offer(ip)
@@ -323,12 +424,35 @@ class ConnectionRecordsConverter @Inject constructor(
             return false
         }
 
-        for (address in VpnUtils.nonTorList) {
-            if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                return true
-            }
-        }
-        return false
+        return VpnUtils.nonTorRanges.contains(destAddress)
+    }
+
+    private data class RecordKey(
+        val qName: String,
+        val aName: String,
+        val cName: String,
+        val hInfo: String,
+        val rCode: Int,
+        val saddr: String,
+        val daddr: String,
+        val uid: Int
+    ) {
+        constructor(record: ConnectionRecord) : this(
+            record.qName, record.aName, record.cName, record.hInfo,
+            record.rCode, record.saddr, record.daddr, record.uid
+        )
+    }
+
+    private data class QueryKey(
+        val aName: String,
+        val qName: String,
+        val hInfo: String,
+        val rCode: Int,
+        val saddr: String
+    ) {
+        constructor(record: ConnectionRecord) : this(
+            record.aName, record.qName, record.hInfo, record.rCode, record.saddr
+        )
     }
 
     private class IpToTime(
@@ -43,8 +43,15 @@ class ConnectionRecordsInteractor @Inject constructor(
     private val listeners: HashMap<Class<*>, WeakReference<OnConnectionRecordsUpdatedListener>> =
         hashMapOf()
 
+    //New listeners should receive all records even if nothing was added since the previous update
+    @Volatile
+    private var listenersChanged = false
+
     fun <T : OnConnectionRecordsUpdatedListener> addListener(listener: T?) {
-        listener?.let { listeners[it.javaClass] = WeakReference(it) }
+        listener?.let {
+            listeners[it.javaClass] = WeakReference(it)
+            listenersChanged = true
+        }
     }
 
     fun <T : OnConnectionRecordsUpdatedListener> removeListener(listener: T?) {
@@ -71,6 +78,10 @@ class ConnectionRecordsInteractor @Inject constructor(
         connectionRecordsRepository.clearConnectionRawRecords()
     }
 
+    fun setOnNewRecordsListener(listener: (() -> Unit)?) {
+        connectionRecordsRepository.setOnNewRecordsListener(listener)
+    }
+
     fun stopConverter(forceStop: Boolean = false) {
         if (listeners.isEmpty() || forceStop) {
             connectionRecordsRepository.connectionRawRecordsNoMoreRequired()
@@ -85,25 +96,25 @@ class ConnectionRecordsInteractor @Inject constructor(
             return
         }
 
-        var rawConnections: List<ConnectionRecord?> = emptyList()
-
-        try {
-            rawConnections = connectionRecordsRepository.getRawConnectionRecords()
+        val update = try {
+            connectionRecordsRepository.getNewRawConnectionRecords()
         } catch (e: Exception) {
             Log.e(
                 LOG_TAG,
-                "ConnectionRecordsInteractor getRawConnectionRecords exception ${e.message} ${e.cause}"
+                "ConnectionRecordsInteractor getNewRawConnectionRecords exception ${e.message} ${e.cause}"
             )
-        }
-
-        if (rawConnections.isEmpty()) {
             return
         }
 
-        var connectionRecords: List<ConnectionRecord>? = emptyList()
+        var connectionRecords: List<ConnectionRecord> = emptyList()
 
         try {
-            connectionRecords = converter.get().convertRecords(rawConnections)
+            val changed = converter.get().convertRecords(update)
+            if (!changed && !listenersChanged) {
+                return
+            }
+            listenersChanged = false
+            connectionRecords = converter.get().getRecords()
         } catch (e: Exception) {
             Log.e(
                 LOG_TAG,
@@ -111,13 +122,13 @@ class ConnectionRecordsInteractor @Inject constructor(
             )
         }
 
-        if (connectionRecords?.isEmpty() == true) {
+        if (connectionRecords.isEmpty()) {
             return
         }
 
         var records: String? = ""
         try {
-            records = parser.formatLines(connectionRecords ?: emptyList())
+            records = parser.formatLines(connectionRecords)
         } catch (e: Exception) {
             Log.e(
                 LOG_TAG,
@@ -20,7 +20,8 @@
 package pan.alexander.tordnscrypt.domain.connection_records
 
 interface ConnectionRecordsRepository {
-    fun getRawConnectionRecords(): List<ConnectionRecord?>
+    fun getNewRawConnectionRecords(): ConnectionRecordsUpdate
     fun clearConnectionRawRecords()
     fun connectionRawRecordsNoMoreRequired()
+    fun setOnNewRecordsListener(listener: (() -> Unit)?)
 }
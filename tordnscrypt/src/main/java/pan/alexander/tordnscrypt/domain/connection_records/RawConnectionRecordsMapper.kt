@@ -25,8 +25,8 @@ import pan.alexander.tordnscrypt.domain.connection_records.entities.PacketRecord
 import javax.inject.Inject
 
 class RawConnectionRecordsMapper @Inject constructor() {
-    fun map(connectionDataRecords: Map<ConnectionData, Boolean>): List<ConnectionRecord> =
-        connectionDataRecords.keys.sortedBy { it.time }.map {
+    fun map(connectionDataRecords: List<ConnectionData>): List<ConnectionRecord> =
+        connectionDataRecords.map {
             when (it) {
                 is DnsRecord -> {
                     ConnectionRecord(
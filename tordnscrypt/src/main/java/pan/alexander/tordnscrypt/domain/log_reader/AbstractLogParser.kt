@@ -19,16 +19,35 @@
 
 package pan.alexander.tordnscrypt.domain.log_reader
 
+import android.os.SystemClock
 import android.text.TextUtils
 import android.util.Log
 import pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG
 import java.lang.StringBuilder
 import java.util.*
 
+//Slightly shorter than the fastest timer period, so that timer ticks are not skipped
+private const val COUNT_DOWN_TICK_MILLIS = 900L
+
 abstract class AbstractLogParser {
 
+    private var lastCountDownTickTime = 0L
+
     abstract fun parseLog(): LogDataModel
 
+    /**
+     * Logs are also parsed when they change, so error count downs
+     * should not go faster than the log reader timer.
+     */
+    protected fun isCountDownTick(): Boolean {
+        val time = SystemClock.elapsedRealtime()
+        if (time - lastCountDownTickTime < COUNT_DOWN_TICK_MILLIS) {
+            return false
+        }
+        lastCountDownTickTime = time
+        return true
+    }
+
     fun formatLines(lines: List<String>): String {
         val stringBuilder = StringBuilder()
 
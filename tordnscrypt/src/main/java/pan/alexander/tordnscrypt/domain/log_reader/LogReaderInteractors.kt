@@ -49,6 +49,7 @@ class LogReaderInteractors @Inject constructor(
     private val itpdHtmlInteractor = ITPDHtmlInteractor(modulesLogRepository)
 
     private val logReaderLoop = LogReaderLoop(
+        modulesLogRepository,
         dnsCryptInteractor,
         torInteractor,
         itpdInteractor,
@@ -29,19 +29,25 @@ import pan.alexander.tordnscrypt.domain.log_reader.tor.TorInteractor
 import pan.alexander.tordnscrypt.utils.logger.Logger.loge
 import pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG
 import java.lang.Exception
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.locks.ReentrantLock
 
 private const val TIMER_INITIAL_DELAY = 1L
 private const val TIMER_INITIAL_PERIOD = 1L
 private const val TIMER_MAIN_PERIOD = 5L
+//Logs and connection records are observed, so the timer is only a fallback
+private const val TIMER_IDLE_PERIOD = 30L
+//Coalesce change events to at most one parsing per frame
+private const val CHANGES_PARSING_DELAY_MILLIS = 16L
 private const val COUNTER_STARTING = 30
 private const val COUNTER_STOPPING = 5
 
 class LogReaderLoop(
+    private val modulesLogRepository: ModulesLogRepository,
     dnsCryptInteractor: DNSCryptInteractor,
     torInteractor: TorInteractor,
     itpdInteractor: ITPDInteractor,
-    itpdHtmlInteractor: ITPDHtmlInteractor,
+    private val itpdHtmlInteractor: ITPDHtmlInteractor,
     private val connectionRecordsInteractor: ConnectionRecordsInteractor
 ) {
     private val reentrantLock = ReentrantLock()
@@ -54,12 +60,17 @@ class LogReaderLoop(
         connectionRecordsInteractor
     )
 
+    @Volatile
     private var timer: ScheduledExecutor? = null
     private var displayPeriod: Long = 0
 
     private var counterStarting = COUNTER_STARTING
     private var counterStopping = COUNTER_STOPPING
 
+    @Volatile
+    private var logsObserved = false
+    private val changesParsingScheduled = AtomicBoolean(false)
+
     fun startLogsParser(period: Long = TIMER_INITIAL_PERIOD) {
 
         if (!reentrantLock.tryLock()) {
@@ -94,6 +105,24 @@ class LogReaderLoop(
         timer = ScheduledExecutor(TIMER_INITIAL_DELAY, period)
 
         timer?.execute { parseLogs() }
+
+        if (!logsObserved) {
+            logsObserved = modulesLogRepository.observeLogs { onDataChanged() }
+            connectionRecordsInteractor.setOnNewRecordsListener { onDataChanged() }
+        }
+    }
+
+    private fun onDataChanged() {
+        if (changesParsingScheduled.compareAndSet(false, true)) {
+            val scheduled = timer?.executeOnce(CHANGES_PARSING_DELAY_MILLIS) {
+                changesParsingScheduled.set(false)
+                parseChanges()
+            } ?: false
+
+            if (!scheduled) {
+                changesParsingScheduled.set(false)
+            }
+        }
     }
 
     private fun stopLogsParser() {
@@ -101,6 +130,10 @@ class LogReaderLoop(
         try {
             timer?.stopExecutor()
             timer = null
+            modulesLogRepository.stopObservingLogs()
+            connectionRecordsInteractor.setOnNewRecordsListener(null)
+            logsObserved = false
+            changesParsingScheduled.set(false)
             connectionRecordsInteractor.stopConverter(true)
             App.instance.subcomponentsManager.releaseLogReaderScope()
             Log.i(LOG_TAG, "LogReaderLoop stopLogsParser")
@@ -140,8 +173,37 @@ class LogReaderLoop(
         }
 
         if (counterStarting == 0) {
-            startLogsParser(TIMER_MAIN_PERIOD)
+            startLogsParser(getNextPeriod())
             counterStarting = COUNTER_STARTING
         }
     }
+
+    //Logs and connection records were changed, the loop is still responsible for the rest
+    private fun parseChanges() {
+        if (counterStopping <= 0) {
+            return
+        }
+
+        logReaderFacade.parseDNSCryptLog()
+
+        logReaderFacade.parseTorLog()
+
+        logReaderFacade.parseITPDLog()
+
+        logReaderFacade.convertConnectionRecords()
+
+        //Module is starting or stopping, so its state should be checked more often
+        if (displayPeriod > TIMER_INITIAL_PERIOD && !logReaderFacade.isModulesStateNotChanging()) {
+            counterStarting = COUNTER_STARTING
+            startLogsParser(TIMER_INITIAL_PERIOD)
+        }
+    }
+
+    //I2P web console cannot be observed, so it is polled with the main period
+    private fun getNextPeriod(): Long =
+        if (displayPeriod >= TIMER_MAIN_PERIOD && logsObserved && !itpdHtmlInteractor.hasAnyListener()) {
+            TIMER_IDLE_PERIOD
+        } else {
+            TIMER_MAIN_PERIOD
+        }
 }
\ No newline at end of file
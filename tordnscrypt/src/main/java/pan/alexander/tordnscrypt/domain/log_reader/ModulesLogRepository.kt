@@ -19,9 +19,20 @@
 
 package pan.alexander.tordnscrypt.domain.log_reader
 
+/**
+ * Module log getters return the last lines of the log.
+ * The same list instance is returned while nothing was appended to the log.
+ */
 interface ModulesLogRepository {
     fun getDNSCryptLog(): List<String>
     fun getTorLog(): List<String>
     fun getITPDLog(): List<String>
     fun getITPDHtmlData(): List<String>
+
+    /**
+     * Calls onLogChanged when any module log is modified.
+     * Returns false if the logs cannot be observed, so they should be polled.
+     */
+    fun observeLogs(onLogChanged: () -> Unit): Boolean
+    fun stopObservingLogs()
 }
\ No newline at end of file
@@ -20,6 +20,7 @@
 package pan.alexander.tordnscrypt.domain.log_reader
 
 import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
 
@@ -47,6 +48,28 @@ class ScheduledExecutor(private val initialDelay: Long, private val period: Long
         }, initialDelay, period, TimeUnit.SECONDS)
     }
 
+    /**
+     * Returns false if the executor is stopped.
+     */
+    fun executeOnce(delayMillis: Long, execute: () -> Unit): Boolean {
+        val executor = timer ?: return false
+        if (stopTimer || executor.isShutdown) {
+            return false
+        }
+
+        return try {
+            executor.schedule({
+                if (!stopTimer) {
+                    execute()
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS)
+            true
+        } catch (ignored: RejectedExecutionException) {
+            //Executor was stopped in between
+            false
+        }
+    }
+
     fun stopExecutor() {
         stopTimer = true
     }
@@ -25,37 +25,42 @@ import pan.alexander.tordnscrypt.domain.log_reader.ModulesLogRepository
 
 private const val COUNT_DOWN_TIMER = 5
 
+private const val LINE_NONE = 0
+private const val LINE_OK = 1
+private const val LINE_STOPPED = 2
+private const val LINE_ERROR = 3
+
 class DNSCryptLogParser(private val modulesLogRepository: ModulesLogRepository) : AbstractLogParser() {
 
     private var startedSuccessfully = false
     private var startedWithError = false
     private var linesSaved = listOf<String>()
+    private var formattedLinesSaved = ""
+    private var lastStateLine = LINE_NONE
     private var errorCountDownCounter = COUNT_DOWN_TIMER
 
     override fun parseLog(): LogDataModel {
         val lines = modulesLogRepository.getDNSCryptLog()
 
-        if (lines.size != linesSaved.size) {
+        //The repository returns the same list until new lines are appended
+        if (lines !== linesSaved) {
             linesSaved = lines
+            formattedLinesSaved = formatLines(lines)
+            lastStateLine = findLastStateLine(lines)
         }
 
         if (!startedSuccessfully) {
-            for (i in lines.size - 1 downTo 0) {
-                val line = lines[i]
-                if (line.contains(" OK ")) {
+            when (lastStateLine) {
+                LINE_OK -> {
                     startedSuccessfully = true
                     startedWithError = false
                     errorCountDownCounter = COUNT_DOWN_TIMER
-                    break
-                } else if (line.contains("Stopped.")) {
+                }
+                LINE_STOPPED -> {
                     startedSuccessfully = false
                     startedWithError = false
-                    break
-                } else if (line.contains("connect: connection refused")
-                    || (line.contains("ERROR") && !line.contains("Unable to resolve"))
-                    || line.contains("[CRITICAL]")
-                    || line.contains("[FATAL]")
-                ) {
+                }
+                LINE_ERROR -> if (isCountDownTick()) {
                     if (errorCountDownCounter <= 0) {
                         startedSuccessfully = false
                         startedWithError = true
@@ -63,8 +68,6 @@ class DNSCryptLogParser(private val modulesLogRepository: ModulesLogRepository)
                     } else {
                         errorCountDownCounter--
                     }
-
-                    break
                 }
             }
         }
@@ -73,8 +76,26 @@ class DNSCryptLogParser(private val modulesLogRepository: ModulesLogRepository)
             startedSuccessfully,
             startedWithError,
             -1,
-            formatLines(linesSaved),
+            formattedLinesSaved,
             linesSaved.size
         )
     }
+
+    private fun findLastStateLine(lines: List<String>): Int {
+        for (i in lines.size - 1 downTo 0) {
+            val line = lines[i]
+            if (line.contains(" OK ")) {
+                return LINE_OK
+            } else if (line.contains("Stopped.")) {
+                return LINE_STOPPED
+            } else if (line.contains("connect: connection refused")
+                || (line.contains("ERROR") && !line.contains("Unable to resolve"))
+                || line.contains("[CRITICAL]")
+                || line.contains("[FATAL]")
+            ) {
+                return LINE_ERROR
+            }
+        }
+        return LINE_NONE
+    }
 }
@@ -27,12 +27,15 @@ class ITPDLogParser(private val modulesLogRepository: ModulesLogRepository) : Ab
     private var startedSuccessfully = false
     private var startedWithError = false
     private var linesSaved = listOf<String>()
+    private var formattedLinesSaved = ""
 
     override fun parseLog(): LogDataModel {
         val lines = modulesLogRepository.getITPDLog()
 
-        if (lines.size != linesSaved.size) {
+        //The repository returns the same list until new lines are appended
+        if (lines !== linesSaved) {
             linesSaved = lines
+            formattedLinesSaved = formatLines(lines)
         }
 
         if (!startedSuccessfully && linesSaved.isNotEmpty()) {
@@ -44,7 +47,7 @@ class ITPDLogParser(private val modulesLogRepository: ModulesLogRepository) : Ab
             startedSuccessfully,
             startedWithError,
             -1,
-            formatLines(linesSaved),
+            formattedLinesSaved,
             linesSaved.size
         )
     }
@@ -32,58 +32,54 @@ class TorLogParser(private val modulesLogRepository: ModulesLogRepository) : Abs
     private var startedWithError = false
     private var percentsSaved = -1
     private var linesSaved = listOf<String>()
+    private var formattedLinesSaved = ""
     private var errorCountDownCounter = COUNT_DOWN_TIMER
 
+    //Result of the last scan of the saved lines, from the end to the last state line
+    private var errorLinesAfterStateLine = 0
+    private var lastBootstrappedPercents = -1
+    private var lastTermFound = false
+
     override fun parseLog(): LogDataModel {
 
         val lines = modulesLogRepository.getTorLog()
 
-        if (lines.size != linesSaved.size) {
+        //The repository returns the same list until new lines are appended
+        if (lines !== linesSaved) {
             linesSaved = lines
+            formattedLinesSaved = formatLines(lines)
+            scanLines(lines)
         }
 
-        if (!startedSuccessfully) {
+        if (!startedSuccessfully && (errorLinesAfterStateLine == 0 || isCountDownTick())) {
 
             var errorFound = false
 
-            for (i in lines.size - 1 downTo 0) {
-                val line = lines[i]
-
-                val matcher = patternBootstrappedPercents.matcher(line)
-
-                if (matcher.find()) {
-                    percentsSaved = matcher.group(1)?.toInt() ?: percentsSaved
+            repeat(errorLinesAfterStateLine) {
+                if (errorCountDownCounter <= 0) {
+                    startedSuccessfully = false
+                    startedWithError = true
+                    errorCountDownCounter = COUNT_DOWN_TIMER
+                    errorFound = true
+                } else {
+                    errorCountDownCounter--
+                }
+            }
 
-                    if (percentsSaved == 100) {
-                        percentsSaved = -1
-                        startedSuccessfully = true
-                        startedWithError = false
-                        errorCountDownCounter = COUNT_DOWN_TIMER
-                    } else if (!errorFound) {
-                        startedWithError = false
-                    }
+            if (lastBootstrappedPercents >= 0) {
+                percentsSaved = lastBootstrappedPercents
 
-                    break
-                } else if (line.contains("Catching signal TERM")) {
-                    startedSuccessfully = false
+                if (percentsSaved == 100) {
+                    percentsSaved = -1
+                    startedSuccessfully = true
+                    startedWithError = false
+                    errorCountDownCounter = COUNT_DOWN_TIMER
+                } else if (!errorFound) {
                     startedWithError = false
-                    break
-                } else if (
-                    line.contains("No running bridges")
-                    || line.contains("Network unreachable")
-                    || line.contains("Problem bootstrapping")
-                    || line.contains("Stuck at")
-                ) {
-                    if (errorCountDownCounter <= 0) {
-                        startedSuccessfully = false
-                        startedWithError = true
-                        errorCountDownCounter = COUNT_DOWN_TIMER
-                        errorFound = true
-                    } else {
-                        errorCountDownCounter--
-                    }
                 }
-
+            } else if (lastTermFound) {
+                startedSuccessfully = false
+                startedWithError = false
             }
         }
 
@@ -91,8 +87,35 @@ class TorLogParser(private val modulesLogRepository: ModulesLogRepository) : Abs
             startedSuccessfully,
             startedWithError,
             percentsSaved,
-            formatLines(linesSaved),
+            formattedLinesSaved,
             linesSaved.size
         )
     }
-}
\ No newline at end of file
+
+    private fun scanLines(lines: List<String>) {
+        errorLinesAfterStateLine = 0
+        lastBootstrappedPercents = -1
+        lastTermFound = false
+
+        for (i in lines.size - 1 downTo 0) {
+            val line = lines[i]
+
+            val matcher = patternBootstrappedPercents.matcher(line)
+
+            if (matcher.find()) {
+                lastBootstrappedPercents = matcher.group(1)?.toInt() ?: percentsSaved
+                break
+            } else if (line.contains("Catching signal TERM")) {
+                lastTermFound = true
+                break
+            } else if (
+                line.contains("No running bridges")
+                || line.contains("Network unreachable")
+                || line.contains("Problem bootstrapping")
+                || line.contains("Stuck at")
+            ) {
+                errorLinesAfterStateLine++
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.tor_ips
+
+import android.content.SharedPreferences
+import pan.alexander.tordnscrypt.di.SharedPreferencesModule.Companion.DEFAULT_PREFERENCES_NAME
+import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
+import pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS
+import pan.alexander.tordnscrypt.utils.Constants.META_ADDRESS
+import pan.alexander.tordnscrypt.utils.logger.Logger.logi
+import pan.alexander.tordnscrypt.utils.logger.Logger.logw
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.ALL_THROUGH_TOR
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_FOR_CLEARNET
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_FOR_CLEARNET_TETHER
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_TO_UNLOCK
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_TO_UNLOCK_TETHER
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.TOR_TETHERING
+import java.net.IDN
+import java.util.Locale
+import javax.inject.Inject
+import javax.inject.Named
+import javax.inject.Singleton
+
+private const val HOSTS_CHECK_INTERVAL_MSEC = 10_000L
+private const val MIN_BINDING_TTL_SEC = 300
+private const val MAX_BINDING_TTL_SEC = 24 * 60 * 60
+private const val DEFAULT_BINDING_TTL_SEC = 1800
+private const val MAX_BINDINGS = 4096
+
+/*
+ * Binds the Tor unlock and clearnet hosts to the IPs seen in DNS answers,
+ * from the native events in VPN mode and from nflog in root mode.
+ * In VPN mode the hosts are also passed to native code with the redirect rules,
+ * so a new IP of a host is routed correctly on the first connection
+ * before it is added to the rules here.
+ * Hosts are kept in a trie of reversed labels, *.example.com matches example.com
+ * and all its subdomains. A binding lives for the answer TTL, but not less than
+ * MIN_BINDING_TTL_SEC, because applications keep using an address after its TTL.
+ */
+@Singleton
+class DomainIpBindings @Inject constructor(
+    private val preferenceRepository: dagger.Lazy<PreferenceRepository>,
+    @Named(DEFAULT_PREFERENCES_NAME)
+    private val defaultPreferences: dagger.Lazy<SharedPreferences>
+) {
+
+    private var root = HostNode()
+    private var hostsByIpsKey: Map<String, Set<String>> = emptyMap()
+    private var hostsCheckTime = 0L
+
+    //IPs of the hosts with their expiry time
+    private val bindings = hashMapOf<String, HashMap<String, Long>>()
+    private var bindingsCount = 0
+    private var nextExpiryTime = Long.MAX_VALUE
+    private var limitReported = false
+
+    private var changed = false
+
+    //ttlSec is unknown if it is 0
+    @Synchronized
+    fun bind(qName: String, aName: String, ip: String, rCode: Int, ttlSec: Int) {
+        val now = System.currentTimeMillis()
+        updateHosts(now)
+
+        val address = ip.trim()
+        if (hostsByIpsKey.isEmpty() || rCode != 0 || !isRoutableAddress(address)) {
+            return
+        }
+
+        val host = match(qName) ?: match(aName) ?: return
+
+        val ttl = if (ttlSec > 0) {
+            ttlSec.coerceIn(MIN_BINDING_TTL_SEC, MAX_BINDING_TTL_SEC)
+        } else {
+            DEFAULT_BINDING_TTL_SEC
+        }
+        val expiryTime = now + ttl * 1000L
+
+        val previousExpiryTime = bindings[host]?.get(address)
+        if (previousExpiryTime == null) {
+            if (bindingsCount >= MAX_BINDINGS) {
+                if (!limitReported) {
+                    limitReported = true
+                    logw("DomainIpBindings limit of $MAX_BINDINGS IPs is reached")
+                }
+                return
+            }
+            bindingsCount++
+            changed = true
+            logi("DomainIpBindings $host is bound to $address for $ttl sec")
+        } else if (previousExpiryTime >= expiryTime) {
+            return
+        }
+
+        bindings.getOrPut(host) { hashMapOf() }[address] = expiryTime
+        if (expiryTime < nextExpiryTime) {
+            nextExpiryTime = expiryTime
+        }
+    }
+
+    //Returns true once after IPs were bound or expired
+    @Synchronized
+    fun takeChanges(): Boolean {
+        val now = System.currentTimeMillis()
+        updateHosts(now)
+        if (now >= nextExpiryTime) {
+            expire(now)
+        }
+        return changed.also { changed = false }
+    }
+
+    //IPs bound to the hosts that extend the IPs saved with ipsKey, such as IPS_TO_UNLOCK
+    @Synchronized
+    fun getIps(ipsKey: String): Set<String> {
+        val hosts = hostsByIpsKey[ipsKey] ?: return emptySet()
+        val now = System.currentTimeMillis()
+        val ips = hashSetOf<String>()
+        for (host in hosts) {
+            bindings[host]?.forEach { (ip, expiryTime) ->
+                if (expiryTime > now) {
+                    ips.add(ip)
+                }
+            }
+        }
+        return ips
+    }
+
+    //Normalized hosts saved with ipsKey, *.example.com for wildcards
+    @Synchronized
+    fun getHosts(ipsKey: String): Set<String> {
+        updateHosts(System.currentTimeMillis())
+        return hostsByIpsKey[ipsKey] ?: emptySet()
+    }
+
+    //IPs bound to the host as it is saved in preferences, such as https://example.com
+    @Synchronized
+    fun getHostIps(host: String): Set<String> {
+        val ips = bindings[normalizeHost(host) ?: return emptySet()] ?: return emptySet()
+        val now = System.currentTimeMillis()
+        return ips.filterValues { it > now }.keys.toSet()
+    }
+
+    private fun expire(now: Long) {
+        var nextExpiry = Long.MAX_VALUE
+        val hostIterator = bindings.values.iterator()
+        while (hostIterator.hasNext()) {
+            val ips = hostIterator.next()
+            val ipIterator = ips.values.iterator()
+            while (ipIterator.hasNext()) {
+                val expiryTime = ipIterator.next()
+                if (expiryTime <= now) {
+                    ipIterator.remove()
+                    bindingsCount--
+                    changed = true
+                } else if (expiryTime < nextExpiry) {
+                    nextExpiry = expiryTime
+                }
+            }
+            if (ips.isEmpty()) {
+                hostIterator.remove()
+            }
+        }
+        nextExpiryTime = nextExpiry
+        limitReported = false
+    }
+
+    private fun updateHosts(now: Long) {
+        if (now - hostsCheckTime < HOSTS_CHECK_INTERVAL_MSEC) {
+            return
+        }
+        hostsCheckTime = now
+
+        val hosts = readHosts()
+        if (hosts == hostsByIpsKey) {
+            return
+        }
+
+        val newRoot = HostNode()
+        hosts.values.forEach { set -> set.forEach { newRoot.insert(it) } }
+        root = newRoot
+        hostsByIpsKey = hosts
+
+        val configured = hosts.values.flatten().toSet()
+        val iterator = bindings.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.key !in configured) {
+                bindingsCount -= entry.value.size
+                iterator.remove()
+            }
+        }
+        changed = true
+
+        logi("DomainIpBindings hosts ${configured.size}")
+    }
+
+    private fun readHosts(): Map<String, Set<String>> {
+        val preferences = preferenceRepository.get()
+        val sharedPreferences = defaultPreferences.get()
+        val hosts = hashMapOf<String, Set<String>>()
+
+        if (sharedPreferences.getBoolean(ALL_THROUGH_TOR, true)) {
+            hosts[IPS_FOR_CLEARNET] = normalizeHosts(preferences.getStringSetPreference("clearnetHosts"))
+        } else {
+            hosts[IPS_TO_UNLOCK] = normalizeHosts(preferences.getStringSetPreference("unlockHosts"))
+        }
+
+        if (sharedPreferences.getBoolean(TOR_TETHERING, false)) {
+            if (sharedPreferences.getBoolean("pref_common_tor_route_all", false)) {
+                hosts[IPS_FOR_CLEARNET_TETHER] =
+                    normalizeHosts(preferences.getStringSetPreference("clearnetHostsTether"))
+            } else {
+                hosts[IPS_TO_UNLOCK_TETHER] =
+                    normalizeHosts(preferences.getStringSetPreference("unlockHostsTether"))
+            }
+        }
+
+        return hosts.filterValues { it.isNotEmpty() }
+    }
+
+    private fun normalizeHosts(hosts: Set<String>): Set<String> =
+        hosts.mapNotNullTo(hashSetOf()) { normalizeHost(it) }
+
+    private fun match(name: String): String? {
+        val domain = name.trim().trimEnd('.').lowercase(Locale.ROOT)
+        if (domain.isEmpty()) {
+            return null
+        }
+
+        var node = root
+        var wildcard: String? = null
+        var end = domain.length
+        while (true) {
+            val dot = domain.lastIndexOf('.', end - 1)
+            node = node.children[domain.substring(dot + 1, end)] ?: return wildcard
+            node.wildcard?.let { wildcard = it }
+            if (dot < 0) {
+                return node.exact ?: wildcard
+            }
+            end = dot
+        }
+    }
+
+    private class HostNode {
+        val children = hashMapOf<String, HostNode>()
+        var exact: String? = null
+        var wildcard: String? = null
+
+        fun insert(host: String) {
+            val isWildcard = host.startsWith(WILDCARD_PREFIX)
+            val domain = if (isWildcard) host.substring(WILDCARD_PREFIX.length) else host
+            var node = this
+            for (label in domain.split('.').asReversed()) {
+                node = node.children.getOrPut(label) { HostNode() }
+            }
+            if (isWildcard) {
+                node.wildcard = host
+            } else {
+                node.exact = host
+            }
+        }
+    }
+
+    companion object {
+        private const val WILDCARD_PREFIX = "*."
+
+        @JvmStatic
+        fun isWildcardHost(host: String) =
+            host.substringAfter("://").startsWith(WILDCARD_PREFIX)
+
+        //Hosts are saved as https://example.com, hosts that start with # are disabled
+        private fun normalizeHost(host: String): String? {
+            if (host.startsWith("#")) {
+                return null
+            }
+
+            val domain = host.trim()
+                .substringAfter("://")
+                .substringBefore('/')
+                .substringBefore(':')
+                .trimEnd('.')
+                .lowercase(Locale.ROOT)
+
+            val isWildcard = domain.startsWith(WILDCARD_PREFIX)
+            val name = if (isWildcard) domain.substring(WILDCARD_PREFIX.length) else domain
+            if (name.isEmpty() || name.contains('*')) {
+                return null
+            }
+
+            return try {
+                val ascii = IDN.toASCII(name, IDN.ALLOW_UNASSIGNED).lowercase(Locale.ROOT)
+                if (isWildcard) WILDCARD_PREFIX + ascii else ascii
+            } catch (e: IllegalArgumentException) {
+                null
+            }
+        }
+
+        private fun isRoutableAddress(address: String) =
+            (address.contains('.') || address.contains(':'))
+                    && address != META_ADDRESS
+                    && address != LOOPBACK_ADDRESS
+                    && address != "::"
+                    && address != "::1"
+    }
+}
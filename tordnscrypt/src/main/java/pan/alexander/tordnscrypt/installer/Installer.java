@@ -43,6 +43,8 @@ import pan.alexander.tordnscrypt.MainActivity;
 import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.TopFragment;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.iptables.IptablesIpSets;
+import pan.alexander.tordnscrypt.iptables.IptablesRestoreBatcher;
 import pan.alexander.tordnscrypt.modules.ModulesAux;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.modules.ModulesVersions;
@@ -456,6 +458,9 @@ public class Installer implements TopFragment.OnActivityChangeListener {
                 busyboxNative + "echo 'checkModulesRunning' 2> /dev/null"
         ));
 
+        IptablesRestoreBatcher.invalidate();
+        IptablesIpSets.invalidate();
+
         RootCommands.execute(activity, commandsInstall, INSTALLER_MARK);
     }
 
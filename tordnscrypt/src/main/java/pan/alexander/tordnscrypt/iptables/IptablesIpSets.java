@@ -0,0 +1,241 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.iptables;
+
+import static pan.alexander.tordnscrypt.utils.Constants.IPv4_REGEX;
+import static pan.alexander.tordnscrypt.utils.enums.OperationMode.ROOT_MODE;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.loge;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_FOR_CLEARNET;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_FOR_CLEARNET_TETHER;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_TO_UNLOCK;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_TO_UNLOCK_TETHER;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPTABLES_IPSET;
+import static pan.alexander.tordnscrypt.utils.root.RootCommandsMark.IPTABLES_MARK;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import pan.alexander.tordnscrypt.App;
+import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.domain.tor_ips.DomainIpBindings;
+import pan.alexander.tordnscrypt.modules.ModulesStatus;
+import pan.alexander.tordnscrypt.utils.root.RootCommands;
+
+/*
+ * Keeps the Tor unlock and clearnet IPs in ipset hash:net sets, so a single rule per set
+ * replaces a rule per IP and the kernel matches a destination with one hash lookup.
+ * A set is loaded completely once and then changed with the difference to the applied content,
+ * so when only the IPs change the chains stay equal and IptablesRestoreBatcher skips them.
+ * Only IPv4 sets are used, IPv6 is not redirected in root mode.
+ */
+public final class IptablesIpSets {
+
+    static final String CLEARNET_SET = "invizible_clearnet";
+    static final String UNLOCK_SET = "invizible_unlock";
+    static final String CLEARNET_TETHER_SET = "invizible_clearnet_tether";
+    static final String UNLOCK_TETHER_SET = "invizible_unlock_tether";
+
+    private static final String IPSET = "ipset ";
+    private static final String SET_TYPE = " hash:net family inet";
+    private static final String TEMPORARY_SET_SUFFIX = "_tmp";
+    private static final String[] IPSET_PATHS = {
+            "/system/bin/ipset", "/system/xbin/ipset", "/vendor/bin/ipset"
+    };
+
+    //Preferences with the IPs of each set
+    private static final Map<String, String> SET_IPS_KEYS = new HashMap<>();
+
+    static {
+        SET_IPS_KEYS.put(CLEARNET_SET, IPS_FOR_CLEARNET);
+        SET_IPS_KEYS.put(UNLOCK_SET, IPS_TO_UNLOCK);
+        SET_IPS_KEYS.put(CLEARNET_TETHER_SET, IPS_FOR_CLEARNET_TETHER);
+        SET_IPS_KEYS.put(UNLOCK_TETHER_SET, IPS_TO_UNLOCK_TETHER);
+    }
+
+    //IPs that are in the kernel sets, by set name
+    private static final Map<String, Set<String>> appliedSets = new HashMap<>();
+
+    private final Context context;
+    private final DomainIpBindings domainIpBindings;
+
+    IptablesIpSets(Context context) {
+        this.context = context;
+        this.domainIpBindings = App.getInstance().getDaggerComponent().getDomainIpBindings().get();
+    }
+
+    static boolean isEnabled(SharedPreferences preferences) {
+        if (!preferences.getBoolean(IPTABLES_IPSET, false)) {
+            return false;
+        }
+
+        for (String path : IPSET_PATHS) {
+            if (new File(path).isFile()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public static synchronized void invalidate() {
+        appliedSets.clear();
+    }
+
+    static String matchSet(String set) {
+        return "-m set --match-set " + set + " dst";
+    }
+
+    /*
+     * Returns commands that make the set equal to the IPv4 addresses of ips
+     * and of the live DomainIpBindings, an empty list if the set is up to date.
+     */
+    List<String> update(String set, Set<String> ips) {
+        synchronized (IptablesIpSets.class) {
+            return updateSet(set, ips);
+        }
+    }
+
+    private List<String> updateSet(String set, Set<String> ips) {
+        Set<String> ipv4 = new HashSet<>();
+        for (String ip : ips) {
+            if (ip.matches(IPv4_REGEX)) {
+                ipv4.add(ip);
+            }
+        }
+        for (String ip : domainIpBindings.getIps(SET_IPS_KEYS.get(set))) {
+            if (ip.matches(IPv4_REGEX)) {
+                ipv4.add(ip);
+            }
+        }
+
+        Set<String> applied = appliedSets.get(set);
+
+        StringBuilder payload = new StringBuilder();
+        int changes = 0;
+        if (applied == null) {
+            //Fill a temporary set and swap it with the referenced one
+            String temporary = set + TEMPORARY_SET_SUFFIX;
+            payload.append("create ").append(set).append(SET_TYPE).append("\n");
+            payload.append("create ").append(temporary).append(SET_TYPE).append("\n");
+            payload.append("flush ").append(temporary).append("\n");
+            for (String ip : ipv4) {
+                payload.append("add ").append(temporary).append(" ").append(ip).append("\n");
+            }
+            payload.append("swap ").append(temporary).append(" ").append(set).append("\n");
+            payload.append("destroy ").append(temporary).append("\n");
+            changes = ipv4.size();
+        } else {
+            for (String ip : applied) {
+                if (!ipv4.contains(ip)) {
+                    payload.append("del ").append(set).append(" ").append(ip).append("\n");
+                    changes++;
+                }
+            }
+            for (String ip : ipv4) {
+                if (!applied.contains(ip)) {
+                    payload.append("add ").append(set).append(" ").append(ip).append("\n");
+                    changes++;
+                }
+            }
+            if (changes == 0) {
+                return Collections.emptyList();
+            }
+        }
+
+        try {
+            //Each update has its own file, so a pending update is never overwritten or coalesced.
+            //The file is removed by the separate command to keep it for the retries of the restore,
+            //every change is idempotent with -exist
+            File file = File.createTempFile(set + "_", ".ipset", context.getCacheDir());
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                writer.write(payload.toString());
+            }
+
+            appliedSets.put(set, ipv4);
+
+            logi("Iptables ipset " + set + (applied == null ? " loaded " : " updated ")
+                    + changes + " IPs");
+
+            List<String> commands = new ArrayList<>();
+            commands.add(IPSET + "-exist restore < " + file.getAbsolutePath());
+            commands.add("rm -f " + file.getAbsolutePath());
+            return commands;
+        } catch (Exception e) {
+            loge("IptablesIpSets update", e);
+            appliedSets.remove(set);
+            List<String> commands = new ArrayList<>();
+            commands.add(IPSET + "create " + set + SET_TYPE + " -exist");
+            for (String ip : ipv4) {
+                commands.add(IPSET + "add " + set + " " + ip + " -exist");
+            }
+            return commands;
+        }
+    }
+
+    /*
+     * Applies the refreshed or bound Tor unlock and clearnet IPs to the sets that rules already reference.
+     * Returns false if the rules have to be rebuilt instead.
+     */
+    public static boolean refresh(Context context, PreferenceRepository preferences,
+                                  SharedPreferences defaultPreferences) {
+        ModulesStatus modulesStatus = ModulesStatus.getInstance();
+        if (modulesStatus.getMode() != ROOT_MODE || modulesStatus.isFixTTL()
+                || !isEnabled(defaultPreferences)) {
+            return false;
+        }
+
+        IptablesIpSets ipSets = new IptablesIpSets(context);
+        List<String> commands = new ArrayList<>();
+        synchronized (IptablesIpSets.class) {
+            if (appliedSets.isEmpty()) {
+                return false;
+            }
+
+            for (Map.Entry<String, String> set : SET_IPS_KEYS.entrySet()) {
+                if (appliedSets.containsKey(set.getKey())) {
+                    commands.addAll(ipSets.update(
+                            set.getKey(),
+                            preferences.getStringSetPreference(set.getValue())
+                    ));
+                }
+            }
+        }
+
+        if (!commands.isEmpty()) {
+            RootCommands.execute(context, commands, IPTABLES_MARK);
+        }
+
+        return true;
+    }
+}
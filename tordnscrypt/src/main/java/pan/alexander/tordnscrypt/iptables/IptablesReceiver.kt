@@ -95,6 +95,12 @@ class IptablesReceiver : BroadcastReceiver() {
             if (resultStr.contains("unknown option \"-w\"")) {
                 sharedPreferences.edit().putBoolean(WAIT_IPTABLES, false).apply()
                 it.postDelayed({ ModulesStatus.getInstance().setIptablesRulesUpdateRequested(context, true) }, 1000)
+            } else if (sharedPreferences.getBoolean(IPTABLES_IPSET, false)
+                && (resultStr.contains("ipset") || resultStr.contains("match `set'")
+                        || resultStr.contains("match-set"))) {
+                //Kernel or binary without ipset support, fall back to a rule per IP
+                sharedPreferences.edit().putBoolean(IPTABLES_IPSET, false).apply()
+                it.postDelayed({ ModulesStatus.getInstance().setIptablesRulesUpdateRequested(context, true) }, 1000)
             } else if (refreshRules
                 && (resultStr.contains(" -w ")
                 || resultStr.contains("Exit code=4")
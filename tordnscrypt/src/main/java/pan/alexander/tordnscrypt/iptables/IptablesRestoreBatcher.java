@@ -0,0 +1,628 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.iptables;
+
+import static pan.alexander.tordnscrypt.utils.logger.Logger.loge;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Replaces chain rebuilds like "-F chain", "-A chain ...", "-A chain ..." with a single
+ * iptables-restore --noflush call per address family, so each chain is swapped atomically
+ * and the xtables lock is taken once instead of once per rule.
+ * Chains whose rules are equal to the previously applied ones are skipped.
+ * Rules are remembered as applied only when the restore has succeeded, which is detected by
+ * the marker file that the restore command removes.
+ * Only the system iptables is supported, everything that cannot be parsed is sent unchanged.
+ */
+public final class IptablesRestoreBatcher {
+
+    private static final String COMMANDS_DELIMITER = "; ";
+    private static final String SUFFIX_IGNORE_ERRORS = " || true";
+    private static final String SUFFIX_NO_STDERR = " 2> /dev/null";
+    private static final String UNSAFE_SHELL_SYMBOLS = "$`|;&<>()\\*?\"";
+
+    private static final Set<String> BINARIES = new HashSet<>(Arrays.asList("iptables", "ip6tables"));
+    private static final Set<String> CHAIN_OPERATIONS = new HashSet<>(Arrays.asList(
+            "-A", "-I", "-D", "-R", "-F", "-X", "-N", "-Z", "-E", "-P"
+    ));
+    private static final Set<String> BUILT_IN_CHAINS = new HashSet<>(Arrays.asList(
+            "INPUT", "OUTPUT", "FORWARD", "PREROUTING", "POSTROUTING"
+    ));
+    private static final String PENDING_SUFFIX = ".pending";
+
+    //Rules that were applied by the last restore, by binary, table and chain
+    private static final Map<String, String> appliedChains = new HashMap<>();
+    //Restores that were sent but are not known to have succeeded yet
+    private static final List<PendingRestore> pendingRestores = new ArrayList<>();
+
+    private final Context context;
+
+    IptablesRestoreBatcher(Context context) {
+        this.context = context;
+    }
+
+    //Must be called when the app chains are changed without the batcher
+    public static synchronized void invalidate() {
+        appliedChains.clear();
+        for (PendingRestore pending : pendingRestores) {
+            pending.deleteMarker();
+        }
+        pendingRestores.clear();
+    }
+
+    List<String> batch(List<String> commands) {
+        try {
+            synchronized (IptablesRestoreBatcher.class) {
+                return batchCommands(commands);
+            }
+        } catch (Exception e) {
+            loge("IptablesRestoreBatcher batch", e);
+            invalidate();
+            return commands;
+        }
+    }
+
+    private List<String> batchCommands(List<String> commands) throws Exception {
+
+        confirmPendingRestores();
+
+        List<Step> steps = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            addSteps(steps, commands.get(i), i);
+        }
+
+        Map<String, Unit> units = findUnits(steps);
+        if (units.isEmpty()) {
+            invalidateTouchedChains(steps);
+            return commands;
+        }
+
+        for (Unit unit : units.values()) {
+            for (Step member : unit.members) {
+                member.removed = true;
+            }
+            unit.flush.removed = true;
+        }
+
+        //Chains changed by the remaining commands are not known to match the cache
+        invalidateTouchedChains(steps);
+
+        List<Unit> changedUnits = new ArrayList<>();
+        for (Unit unit : units.values()) {
+            if (!unit.getRules().equals(appliedChains.get(unit.key))) {
+                changedUnits.add(unit);
+            }
+        }
+
+        List<Group> groups = groupUnits(steps, changedUnits);
+
+        Map<Integer, List<String>> restoreCommands = new HashMap<>();
+        for (Group group : groups) {
+            File payload = group.writePayload(context.getCacheDir());
+            File marker = new File(payload.getPath() + PENDING_SUFFIX);
+            if (!marker.createNewFile()) {
+                throw new IllegalStateException("Unable to create " + marker);
+            }
+
+            List<String> restore = restoreCommands.get(group.lastElement);
+            if (restore == null) {
+                restore = new ArrayList<>();
+                restoreCommands.put(group.lastElement, restore);
+            }
+            restore.addAll(group.getRestoreCommands(payload, marker));
+
+            PendingRestore pending = new PendingRestore(payload, marker);
+            for (Unit unit : group.units) {
+                pending.chains.put(unit.key, unit.getRules());
+            }
+            pendingRestores.add(pending);
+        }
+
+        List<String> batched = new ArrayList<>(commands.size());
+        int stepIndex = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            List<String> parts = new ArrayList<>();
+            while (stepIndex < steps.size() && steps.get(stepIndex).element == i) {
+                Step step = steps.get(stepIndex++);
+                if (!step.removed) {
+                    parts.add(step.text);
+                }
+            }
+            if (!parts.isEmpty()) {
+                batched.add(TextUtils.join(COMMANDS_DELIMITER, parts));
+            }
+            List<String> restore = restoreCommands.get(i);
+            if (restore != null) {
+                batched.addAll(restore);
+            }
+        }
+
+        logi("Iptables restore batched " + commands.size() + " commands into " + batched.size());
+
+        return batched;
+    }
+
+    private void addSteps(List<Step> steps, String command, int element) {
+        if (command == null || command.trim().isEmpty()) {
+            return;
+        }
+
+        String[] parts = command.split(COMMANDS_DELIMITER);
+        List<Step> parsed = new ArrayList<>(parts.length);
+        for (String part : parts) {
+            Rule rule = parseRule(part.trim());
+            if (rule == null) {
+                steps.add(new Step(element, command, null));
+                return;
+            }
+            parsed.add(new Step(element, part.trim(), rule));
+        }
+        steps.addAll(parsed);
+    }
+
+    /*
+     * A unit is a user chain that is flushed once and then only appended.
+     * Any other change of the chain after the flush leaves it to the per command execution.
+     */
+    private Map<String, Unit> findUnits(List<Step> steps) {
+        Map<String, Unit> units = new LinkedHashMap<>();
+        Set<String> excluded = new HashSet<>();
+
+        for (Step step : steps) {
+            Rule rule = step.rule;
+
+            if (rule == null) {
+                for (String chain : getOpaqueChains(step.text)) {
+                    for (Unit unit : units.values()) {
+                        if (unit.chain.equals(chain)) {
+                            excluded.add(unit.key);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            if (rule.chain == null) {
+                for (Unit unit : units.values()) {
+                    if (unit.tableKey.equals(rule.getTableKey())) {
+                        excluded.add(unit.key);
+                    }
+                }
+                continue;
+            }
+
+            String key = rule.getChainKey();
+            Unit unit = units.get(key);
+
+            if (rule.operation.equals("-F")) {
+                if (unit != null) {
+                    excluded.add(key);
+                } else if (isUserChain(rule.chain)) {
+                    units.put(key, new Unit(step));
+                }
+            } else if (rule.operation.equals("-A")) {
+                if (unit != null) {
+                    unit.members.add(step);
+                }
+            } else if (!rule.operation.equals("-N") && unit != null) {
+                excluded.add(key);
+            }
+        }
+
+        Iterator<Unit> iterator = units.values().iterator();
+        while (iterator.hasNext()) {
+            Unit unit = iterator.next();
+            if (excluded.contains(unit.key) || unit.members.isEmpty()) {
+                iterator.remove();
+            }
+        }
+
+        return units;
+    }
+
+    /*
+     * Units are restored in one call where the last of them was built.
+     * A group is closed before a command that uses its chains, e.g. to insert the jump to the chain,
+     * so the chains are filled in the same order as with the original commands.
+     */
+    private List<Group> groupUnits(List<Step> steps, List<Unit> units) {
+        List<Unit> sortedUnits = new ArrayList<>(units);
+        Collections.sort(sortedUnits, (first, second) ->
+                Integer.compare(first.getLastElement(), second.getLastElement()));
+
+        List<Group> groups = new ArrayList<>();
+        Map<String, Group> openGroups = new HashMap<>();
+        for (Unit unit : sortedUnits) {
+            String binary = unit.flush.rule.binary;
+            Group group = openGroups.get(binary);
+            if (group != null && isChainsUsed(steps, group, unit.getLastElement())) {
+                group = null;
+            }
+            if (group == null) {
+                group = new Group(binary);
+                groups.add(group);
+                openGroups.put(binary, group);
+            }
+            group.add(unit);
+        }
+
+        return groups;
+    }
+
+    private boolean isChainsUsed(List<Step> steps, Group group, int untilElement) {
+        for (Step step : steps) {
+            if (step.removed || step.element <= group.lastElement || step.element > untilElement) {
+                continue;
+            }
+            for (String token : step.text.split("[\\s;\"']+")) {
+                if (group.chains.contains(token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * A restore has succeeded if its marker was removed. If the marker is still there
+     * when the payload is already removed, the restore has failed and the original commands were used.
+     * Otherwise the restore has not run yet.
+     */
+    private void confirmPendingRestores() {
+        Iterator<PendingRestore> iterator = pendingRestores.iterator();
+        while (iterator.hasNext()) {
+            PendingRestore pending = iterator.next();
+            if (!pending.marker.exists()) {
+                appliedChains.putAll(pending.chains);
+                iterator.remove();
+            } else if (!pending.payload.exists()) {
+                pending.deleteMarker();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void invalidateTouchedChains(List<Step> steps) {
+        List<Map<String, String>> cachedChains = new ArrayList<>();
+        cachedChains.add(appliedChains);
+        for (PendingRestore pending : pendingRestores) {
+            cachedChains.add(pending.chains);
+        }
+
+        for (Step step : steps) {
+            if (step.removed) {
+                continue;
+            }
+
+            Rule rule = step.rule;
+            for (Map<String, String> chains : cachedChains) {
+                if (rule == null) {
+                    for (String chain : getOpaqueChains(step.text)) {
+                        Iterator<String> keys = chains.keySet().iterator();
+                        while (keys.hasNext()) {
+                            if (keys.next().endsWith("/" + chain)) {
+                                keys.remove();
+                            }
+                        }
+                    }
+                } else if (rule.chain == null) {
+                    Iterator<String> keys = chains.keySet().iterator();
+                    while (keys.hasNext()) {
+                        if (keys.next().startsWith(rule.getTableKey() + "/")) {
+                            keys.remove();
+                        }
+                    }
+                } else if (!rule.operation.equals("-N")) {
+                    chains.remove(rule.getChainKey());
+                }
+            }
+        }
+    }
+
+    private static Set<String> getOpaqueChains(String command) {
+        Set<String> chains = new HashSet<>();
+        String[] tokens = command.split("[\\s;\"']+");
+        for (int i = 0; i < tokens.length - 1; i++) {
+            if (CHAIN_OPERATIONS.contains(tokens[i])) {
+                chains.add(tokens[i + 1]);
+            }
+        }
+        return chains;
+    }
+
+    private static boolean isUserChain(String chain) {
+        return !BUILT_IN_CHAINS.contains(chain);
+    }
+
+    /*
+     * Parses commands like "iptables -w -t nat -A chain -p tcp -j RETURN 2> /dev/null || true".
+     * Returns null for anything else, such as shell loops or other binaries.
+     */
+    static Rule parseRule(String command) {
+        String rest = command;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            if (rest.endsWith(SUFFIX_IGNORE_ERRORS)) {
+                rest = rest.substring(0, rest.length() - SUFFIX_IGNORE_ERRORS.length()).trim();
+                changed = true;
+            }
+            if (rest.endsWith(SUFFIX_NO_STDERR)) {
+                rest = rest.substring(0, rest.length() - SUFFIX_NO_STDERR.length()).trim();
+                changed = true;
+            }
+        }
+
+        List<String> tokens = tokenize(rest);
+        if (tokens == null || tokens.size() < 2 || !BINARIES.contains(tokens.get(0))) {
+            return null;
+        }
+
+        int position = 1;
+        boolean wait = false;
+        if (tokens.get(position).equals("-w")) {
+            wait = true;
+            position++;
+        }
+
+        String table = "filter";
+        if (position + 1 < tokens.size() && tokens.get(position).equals("-t")) {
+            table = tokens.get(position + 1);
+            position += 2;
+        }
+
+        if (position >= tokens.size() || !CHAIN_OPERATIONS.contains(tokens.get(position))) {
+            return null;
+        }
+        String operation = tokens.get(position++);
+
+        String chain = null;
+        if (position < tokens.size() && !tokens.get(position).startsWith("-")) {
+            chain = tokens.get(position++);
+        }
+
+        String arguments = TextUtils.join(" ", tokens.subList(position, tokens.size()));
+
+        return new Rule(tokens.get(0), wait, table, operation, chain, arguments);
+    }
+
+    /*
+     * Splits the command by spaces. Single quoted tokens are converted to the double quoted ones
+     * that iptables-restore understands. Returns null if the command relies on the shell.
+     */
+    private static List<String> tokenize(String command) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+                token.append('"');
+            } else if (quoted) {
+                if (c == '"' || c == '\\') {
+                    return null;
+                }
+                token.append(c);
+            } else if (c == ' ') {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+            } else if (UNSAFE_SHELL_SYMBOLS.indexOf(c) >= 0 || Character.isWhitespace(c)) {
+                return null;
+            } else {
+                token.append(c);
+            }
+        }
+
+        if (quoted) {
+            return null;
+        }
+
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+
+        return tokens;
+    }
+
+    private static final class PendingRestore {
+        final File payload;
+        final File marker;
+        //Rules of the restored chains, by binary, table and chain
+        final Map<String, String> chains = new HashMap<>();
+
+        PendingRestore(File payload, File marker) {
+            this.payload = payload;
+            this.marker = marker;
+        }
+
+        void deleteMarker() {
+            if (marker.exists() && !marker.delete()) {
+                logw("IptablesRestoreBatcher unable to delete " + marker);
+            }
+        }
+    }
+
+    static final class Rule {
+        final String binary;
+        final boolean wait;
+        final String table;
+        final String operation;
+        final String chain;
+        final String arguments;
+
+        Rule(String binary, boolean wait, String table, String operation, String chain, String arguments) {
+            this.binary = binary;
+            this.wait = wait;
+            this.table = table;
+            this.operation = operation;
+            this.chain = chain;
+            this.arguments = arguments;
+        }
+
+        String getTableKey() {
+            return binary + "/" + table;
+        }
+
+        String getChainKey() {
+            return getTableKey() + "/" + chain;
+        }
+    }
+
+    private static final class Step {
+        final int element;
+        final String text;
+        final Rule rule;
+        boolean removed;
+
+        Step(int element, String text, Rule rule) {
+            this.element = element;
+            this.text = text;
+            this.rule = rule;
+        }
+    }
+
+    private static final class Unit {
+        final String key;
+        final String tableKey;
+        final String chain;
+        final Step flush;
+        final List<Step> members = new ArrayList<>();
+
+        Unit(Step flush) {
+            this.flush = flush;
+            key = flush.rule.getChainKey();
+            tableKey = flush.rule.getTableKey();
+            chain = flush.rule.chain;
+        }
+
+        String getRules() {
+            StringBuilder rules = new StringBuilder();
+            for (Step member : members) {
+                rules.append("-A ").append(chain);
+                if (!member.rule.arguments.isEmpty()) {
+                    rules.append(" ").append(member.rule.arguments);
+                }
+                rules.append("\n");
+            }
+            return rules.toString();
+        }
+
+        int getLastElement() {
+            return members.get(members.size() - 1).element;
+        }
+    }
+
+    private static final class Group {
+        final String binary;
+        final List<Unit> units = new ArrayList<>();
+        final Set<String> chains = new HashSet<>();
+        int lastElement;
+        boolean wait;
+
+        Group(String binary) {
+            this.binary = binary;
+        }
+
+        void add(Unit unit) {
+            units.add(unit);
+            chains.add(unit.chain);
+            lastElement = Math.max(lastElement, unit.getLastElement());
+            wait |= unit.flush.rule.wait;
+        }
+
+        File writePayload(File directory) throws Exception {
+            Map<String, List<Unit>> tables = new LinkedHashMap<>();
+            for (Unit unit : units) {
+                List<Unit> tableUnits = tables.get(unit.flush.rule.table);
+                if (tableUnits == null) {
+                    tableUnits = new ArrayList<>();
+                    tables.put(unit.flush.rule.table, tableUnits);
+                }
+                tableUnits.add(unit);
+            }
+
+            StringBuilder payload = new StringBuilder();
+            for (Map.Entry<String, List<Unit>> table : tables.entrySet()) {
+                payload.append("*").append(table.getKey()).append("\n");
+                for (Unit unit : table.getValue()) {
+                    //With --noflush a declared chain is created or flushed within the same commit
+                    payload.append(":").append(unit.chain).append(" - [0:0]\n");
+                }
+                for (Unit unit : table.getValue()) {
+                    payload.append(unit.getRules());
+                }
+                payload.append("COMMIT\n");
+            }
+
+            File file = File.createTempFile(binary + "_restore", ".rules", directory);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                writer.write(payload.toString());
+            }
+            return file;
+        }
+
+        /*
+         * The restore applies all chains or nothing, so on failure the original commands are used.
+         * The marker is removed only when the restore has succeeded.
+         * The file is removed by the separate command to keep it for the retries of the restore.
+         */
+        List<String> getRestoreCommands(File payload, File marker) {
+            List<String> fallback = new ArrayList<>();
+            for (Unit unit : units) {
+                fallback.add(unit.flush.text);
+                for (Step member : unit.members) {
+                    fallback.add(member.text);
+                }
+            }
+
+            String path = payload.getAbsolutePath();
+            return Arrays.asList(
+                    binary + "-restore " + (wait ? "-w " : "") + "--noflush < " + path + SUFFIX_NO_STDERR
+                            + " && rm -f " + marker.getAbsolutePath()
+                            + " || { " + TextUtils.join(COMMANDS_DELIMITER, fallback) + COMMANDS_DELIMITER + "}",
+                    "rm -f " + path
+            );
+        }
+    }
+}
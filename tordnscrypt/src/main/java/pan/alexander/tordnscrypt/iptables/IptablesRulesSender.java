@@ -43,6 +43,8 @@ abstract class IptablesRulesSender implements IptablesRules {
     boolean runModulesWithRoot;
     Tethering tethering;
     IptablesReceiver receiver;
+    IptablesRestoreBatcher restoreBatcher;
+    IptablesIpSets ipSets;
     boolean routeAllThroughTor;
     boolean blockHttp;
     boolean ignoreSystemDNS;
@@ -58,6 +60,8 @@ abstract class IptablesRulesSender implements IptablesRules {
         rejectAddress = pathVars.getRejectAddress();
 
         tethering = new Tethering(context);
+        restoreBatcher = new IptablesRestoreBatcher(context);
+        ipSets = new IptablesIpSets(context);
 
         registerReceiver();
     }
@@ -98,6 +102,10 @@ abstract class IptablesRulesSender implements IptablesRules {
 
     @Override
     public void sendToRootExecService(List<String> commands) {
-        RootCommands.execute(context, commands, IPTABLES_MARK);
+        if (isLastIptablesCommandsReturnError()) {
+            IptablesRestoreBatcher.invalidate();
+            IptablesIpSets.invalidate();
+        }
+        RootCommands.execute(context, restoreBatcher.batch(commands), IPTABLES_MARK);
     }
 }
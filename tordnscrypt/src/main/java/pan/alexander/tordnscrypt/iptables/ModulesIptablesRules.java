@@ -50,6 +50,9 @@ import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_OUTPUT
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_OUTPUT_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.NAT_OUTPUT_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.NAT_PREROUTING_CORE;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.CLEARNET_SET;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.UNLOCK_SET;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.matchSet;
 import static pan.alexander.tordnscrypt.iptables.Tethering.usbModemAddressesRange;
 import static pan.alexander.tordnscrypt.iptables.Tethering.vpnInterfaceName;
 import static pan.alexander.tordnscrypt.iptables.Tethering.wifiAPAddressesRange;
@@ -191,6 +194,10 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             kernelRejectNonTCPFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " ! -p tcp -m owner ! --uid-owner 0:999999999 -j REJECT || true";
         }
 
+        //With ipset the sets are filled before the rules that reference them are added
+        boolean useIpSets = IptablesIpSets.isEnabled(shPref);
+        List<String> ipSetCommands = new ArrayList<>();
+
         String torSitesBypassNat = "";
         String torSitesBypassFilter = "";
         String torAppsBypassNat = "";
@@ -208,10 +215,16 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             StringBuilder torAppsBypassNatBuilder = new StringBuilder();
             StringBuilder torAppsBypassFilterBuilder = new StringBuilder();
 
-            for (String torClearnetIP : clearnetIPs) {
-                if (torClearnetIP.matches(IPv4_REGEX)) {
-                    torSitesBypassNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p all -d ").append(torClearnetIP).append(" -j RETURN; ");
-                    torSitesBypassFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " -p all -d ").append(torClearnetIP).append(" -j RETURN; ");
+            if (useIpSets) {
+                ipSetCommands.addAll(ipSets.update(CLEARNET_SET, clearnetIPs));
+                torSitesBypassNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p all ").append(matchSet(CLEARNET_SET)).append(" -j RETURN; ");
+                torSitesBypassFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " -p all ").append(matchSet(CLEARNET_SET)).append(" -j RETURN; ");
+            } else {
+                for (String torClearnetIP : clearnetIPs) {
+                    if (torClearnetIP.matches(IPv4_REGEX)) {
+                        torSitesBypassNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p all -d ").append(torClearnetIP).append(" -j RETURN; ");
+                        torSitesBypassFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " -p all -d ").append(torClearnetIP).append(" -j RETURN; ");
+                    }
                 }
             }
 
@@ -232,10 +245,16 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             StringBuilder torAppsRedirectNatBuilder = new StringBuilder();
             StringBuilder torAppsRejectNonTCPFilterBuilder = new StringBuilder();
 
-            for (String unlockIP : unlockIPs) {
-                if (unlockIP.matches(IPv4_REGEX)) {
-                    torSitesRedirectNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d ").append(unlockIP).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append("; ");
-                    torSitesRejectNonTCPFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " ! -p tcp -d ").append(unlockIP).append(" -j REJECT; ");
+            if (useIpSets) {
+                ipSetCommands.addAll(ipSets.update(UNLOCK_SET, unlockIPs));
+                torSitesRedirectNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p tcp ").append(matchSet(UNLOCK_SET)).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append("; ");
+                torSitesRejectNonTCPFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " ! -p tcp ").append(matchSet(UNLOCK_SET)).append(" -j REJECT; ");
+            } else {
+                for (String unlockIP : unlockIPs) {
+                    if (unlockIP.matches(IPv4_REGEX)) {
+                        torSitesRedirectNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d ").append(unlockIP).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append("; ");
+                        torSitesRejectNonTCPFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " ! -p tcp -d ").append(unlockIP).append(" -j REJECT; ");
+                    }
                 }
             }
 
@@ -754,6 +773,10 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             commands.add(iptables + "-D OUTPUT -j " + FILTER_OUTPUT_BLOCKING + " 2> /dev/null || true");
         }
 
+        if (!ipSetCommands.isEmpty()) {
+            commands.addAll(0, ipSetCommands);
+        }
+
         return commands;
     }
 
@@ -976,34 +999,19 @@ public class ModulesIptablesRules extends IptablesRulesSender {
     }
 
     private Pair<String, String> getBypassLanRules() {
-        String bypassLanNat;
-        String bypassLanFilter;
-        StringBuilder nonTorRanges = new StringBuilder();
+        List<String> bypassLanNat = new ArrayList<>();
+        List<String> bypassLanFilter = new ArrayList<>();
         for (String address : VpnUtils.nonTorList) {
-            nonTorRanges.append(address).append(" ");
-        }
-        if (lan) {
-            nonTorRanges.deleteCharAt(nonTorRanges.lastIndexOf(" "));
-
-            bypassLanNat = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -d $_lan -j RETURN; " +
-                    "done";
-            bypassLanFilter = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -d $_lan -j RETURN; " +
-                    "done";
-        } else {
-            bypassLanNat = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -m owner --uid-owner " + NETWORK_STACK_DEFAULT_UID + " -d $_lan -j RETURN; " +
-                    "done";
-            bypassLanFilter = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -m owner --uid-owner " + NETWORK_STACK_DEFAULT_UID + " -d $_lan -j RETURN; " +
-                    "done";
+            if (lan) {
+                bypassLanNat.add(iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -d " + address + " -j RETURN");
+                bypassLanFilter.add(iptables + "-A " + FILTER_OUTPUT_CORE + " -d " + address + " -j RETURN");
+            } else {
+                bypassLanNat.add(iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -m owner --uid-owner " + NETWORK_STACK_DEFAULT_UID + " -d " + address + " -j RETURN");
+                bypassLanFilter.add(iptables + "-A " + FILTER_OUTPUT_CORE + " -m owner --uid-owner " + NETWORK_STACK_DEFAULT_UID + " -d " + address + " -j RETURN");
+            }
         }
-        return new Pair<>(bypassLanNat, bypassLanFilter);
+
+        return new Pair<>(TextUtils.join("; ", bypassLanNat), TextUtils.join("; ", bypassLanFilter));
     }
 
     private String getCriticalUidsAllowedRules() {
@@ -1026,7 +1034,10 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         return criticalUidsAllowedBuilder + iptables + "-A " + FILTER_OUTPUT_BLOCKING + " -p all -m owner ! --uid-owner 0:999999999 -j RETURN || true";
     }
 
+    //These commands change the app chains without IptablesRestoreBatcher
     private static void executeCommands(Context context, List<String> commands) {
+        IptablesRestoreBatcher.invalidate();
+        IptablesIpSets.invalidate();
         RootCommands.execute(context, commands, NULL_MARK);
     }
 
@@ -21,6 +21,7 @@ package pan.alexander.tordnscrypt.iptables;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
@@ -45,6 +46,9 @@ import static pan.alexander.tordnscrypt.di.SharedPreferencesModule.DEFAULT_PREFE
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_FORWARD_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_OUTPUT_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.NAT_PREROUTING_CORE;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.CLEARNET_TETHER_SET;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.UNLOCK_TETHER_SET;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.matchSet;
 import static pan.alexander.tordnscrypt.utils.Constants.HTTP_PORT;
 import static pan.alexander.tordnscrypt.utils.Constants.IPv4_REGEX;
 import static pan.alexander.tordnscrypt.utils.Constants.QUAD_DNS_41;
@@ -89,10 +93,12 @@ public class Tethering {
     private String iptables = "iptables ";
 
     private final ModulesStatus modulesStatus = ModulesStatus.getInstance();
+    private final IptablesIpSets ipSets;
 
     Tethering(Context context) {
         App.getInstance().getDaggerComponent().inject(this);
         this.context = context;
+        this.ipSets = new IptablesIpSets(context);
     }
 
     @NonNull
@@ -129,23 +135,21 @@ public class Tethering {
 
         setInterfaceNames();
 
+        //With ipset the sets are filled before the rules that reference them are added
+        boolean useIpSets = torTethering && isTetheringActive() && IptablesIpSets.isEnabled(shPref);
+        List<String> ipSetCommands = new ArrayList<>();
+
         String bypassLanPrerouting = "";
         String bypassLanForward = "";
         if (lan) {
-            StringBuilder nonTorRanges = new StringBuilder();
+            List<String> bypassLanPreroutingRules = new ArrayList<>();
+            List<String> bypassLanForwardRules = new ArrayList<>();
             for (String address : VpnUtils.nonTorList) {
-                nonTorRanges.append(address).append(" ");
+                bypassLanPreroutingRules.add(iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -d " + address + " -j ACCEPT");
+                bypassLanForwardRules.add(iptables + "-A " + FILTER_FORWARD_CORE + " -d " + address + " -j ACCEPT");
             }
-            nonTorRanges.deleteCharAt(nonTorRanges.lastIndexOf(" "));
-
-            bypassLanPrerouting = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -d $_lan -j ACCEPT; " +
-                    "done";
-            bypassLanForward = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-A " + FILTER_FORWARD_CORE + " -d $_lan -j ACCEPT; " +
-                    "done";
+            bypassLanPrerouting = TextUtils.join("; ", bypassLanPreroutingRules);
+            bypassLanForward = TextUtils.join("; ", bypassLanForwardRules);
         }
 
         String torSitesBypassPrerouting = "";
@@ -163,9 +167,15 @@ public class Tethering {
             StringBuilder torSitesBypassPreroutingBuilder = new StringBuilder();
             StringBuilder torSitesBypassForwardBuilder = new StringBuilder();
 
+            if (useIpSets) {
+                ipSetCommands.addAll(ipSets.update(CLEARNET_TETHER_SET, ipsForClearNetTether));
+                torSitesBypassPreroutingBuilder.append(iptables).append("-t nat -A " + NAT_PREROUTING_CORE + " -p all ").append(matchSet(CLEARNET_TETHER_SET)).append(" -j ACCEPT; ");
+                torSitesBypassForwardBuilder.append(iptables).append("-A " + FILTER_FORWARD_CORE + " -p all ").append(matchSet(CLEARNET_TETHER_SET)).append(" -j ACCEPT; ");
+            }
+
             for (String ipForClearNetTether : ipsForClearNetTether) {
 
-                if (!ipForClearNetTether.matches(IPv4_REGEX)) {
+                if (useIpSets || !ipForClearNetTether.matches(IPv4_REGEX)) {
                     continue;
                 }
 
@@ -188,9 +198,22 @@ public class Tethering {
             StringBuilder torSitesRejectNonTCPForwardUSBModemBuilder = new StringBuilder();
             StringBuilder torSitesRejectNonTCPForwardEthernetBuilder = new StringBuilder();
 
+            if (useIpSets) {
+                ipSetCommands.addAll(ipSets.update(UNLOCK_TETHER_SET, ipsToUnlockTether));
+                String unlockTetherSet = matchSet(UNLOCK_TETHER_SET);
+
+                torSitesRedirectPreroutingWiFiBuilder.append(iptables).append("-t nat -A " + NAT_PREROUTING_CORE + " -i ").append(wifiAPInterfaceName).append(" -p tcp ").append(unlockTetherSet).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append(" || true; ");
+                torSitesRedirectPreroutingUSBModemBuilder.append(iptables).append("-t nat -A " + NAT_PREROUTING_CORE + " -i ").append(usbModemInterfaceName).append(" -p tcp ").append(unlockTetherSet).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append(" || true; ");
+                torSitesRedirectPreroutingEthernetBuilder.append(iptables).append("-t nat -A " + NAT_PREROUTING_CORE + " -i ").append(ethernetInterfaceName).append(" -p tcp ").append(unlockTetherSet).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append(" || true; ");
+
+                torSitesRejectNonTCPForwardWiFiBuilder.append(iptables).append("-A " + FILTER_FORWARD_CORE + " -i ").append(wifiAPInterfaceName).append(" ! -p tcp ").append(unlockTetherSet).append(" -j REJECT || true; ");
+                torSitesRejectNonTCPForwardUSBModemBuilder.append(iptables).append("-A " + FILTER_FORWARD_CORE + " -i ").append(usbModemInterfaceName).append(" ! -p tcp ").append(unlockTetherSet).append(" -j REJECT || true; ");
+                torSitesRejectNonTCPForwardEthernetBuilder.append(iptables).append("-A " + FILTER_FORWARD_CORE + " -i ").append(ethernetInterfaceName).append(" ! -p tcp ").append(unlockTetherSet).append(" -j REJECT || true; ");
+            }
+
             for (String ipToUnlockTether : ipsToUnlockTether) {
 
-                if (!ipToUnlockTether.matches(IPv4_REGEX)) {
+                if (useIpSets || !ipToUnlockTether.matches(IPv4_REGEX)) {
                     continue;
                 }
 
@@ -726,7 +749,12 @@ public class Tethering {
 
         }
 
-        return cleanupCommands(tetheringCommands);
+        tetheringCommands = cleanupCommands(tetheringCommands);
+        if (!ipSetCommands.isEmpty()) {
+            tetheringCommands.addAll(0, ipSetCommands);
+        }
+
+        return tetheringCommands;
     }
 
     List<String> fastUpdate() {
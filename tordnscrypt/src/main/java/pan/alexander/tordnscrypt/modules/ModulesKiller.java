@@ -37,6 +37,8 @@ import dagger.Lazy;
 import eu.chainfire.libsuperuser.Shell;
 import pan.alexander.tordnscrypt.App;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.iptables.IptablesIpSets;
+import pan.alexander.tordnscrypt.iptables.IptablesRestoreBatcher;
 import pan.alexander.tordnscrypt.settings.PathVars;
 import pan.alexander.tordnscrypt.utils.root.RootCommands;
 import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
@@ -628,6 +630,9 @@ public class ModulesKiller {
                     busyboxPath + "killall -s SIGKILL libi2pd.so || true"
             };
 
+            IptablesRestoreBatcher.invalidate();
+            IptablesIpSets.invalidate();
+
             new Thread(() -> Shell.SU.run(commands)).start();
         }
     }
@@ -0,0 +1,148 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.modules;
+
+import static pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+//Waits until a module started with root accepts connections on its listen port
+//instead of sleeping for a fixed time before checking that the module is running
+final class ModulesReadinessProbe {
+
+    //The previous fixed delay, so a probe never waits longer than before
+    static final long PROBE_DEADLINE_MSEC = 3000;
+
+    private static final int PROBE_INITIAL_INTERVAL_MSEC = 50;
+    private static final int PROBE_MAX_INTERVAL_MSEC = 800;
+
+    private ModulesReadinessProbe() {
+    }
+
+    //Any response means that DNSCrypt listens, the resolvers may still be loading
+    static boolean awaitDnsListener(String module, String port) {
+        return await(module, port, (address, timeout) -> {
+            byte[] query = makeRootNsQuery();
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.setSoTimeout(timeout);
+                socket.connect(address);
+                socket.send(new DatagramPacket(query, query.length));
+
+                byte[] response = new byte[512];
+                DatagramPacket packet = new DatagramPacket(response, response.length);
+                socket.receive(packet);
+                return packet.getLength() >= 12
+                        && response[0] == query[0] && response[1] == query[1];
+            }
+        });
+    }
+
+    static boolean awaitTcpListener(String module, String port) {
+        return await(module, port, (address, timeout) -> {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, timeout);
+                return true;
+            }
+        });
+    }
+
+    private static boolean await(String module, String portStr, Probe probe) {
+        int port;
+        try {
+            port = Integer.parseInt(portStr.trim());
+        } catch (NumberFormatException e) {
+            logw("ModulesReadinessProbe " + module + " unknown port " + portStr);
+            sleep(PROBE_DEADLINE_MSEC);
+            return false;
+        }
+
+        InetSocketAddress address = new InetSocketAddress(LOOPBACK_ADDRESS, port);
+
+        long start = System.currentTimeMillis();
+        long deadline = start + PROBE_DEADLINE_MSEC;
+        int interval = PROBE_INITIAL_INTERVAL_MSEC;
+        int attempts = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                break;
+            }
+
+            attempts++;
+            long probeStart = now;
+            int timeout = (int) Math.max(1, Math.min(interval, deadline - now));
+            try {
+                if (probe.probe(address, timeout)) {
+                    logi("ModulesReadinessProbe " + module + " is listening on port " + port
+                            + " after " + (System.currentTimeMillis() - start) + " ms, "
+                            + attempts + " attempts");
+                    return true;
+                }
+            } catch (IOException ignored) {
+            }
+
+            //A refused connection returns at once, wait for the rest of the interval
+            long remaining = Math.min(interval - (System.currentTimeMillis() - probeStart),
+                    deadline - System.currentTimeMillis());
+            if (remaining > 0) {
+                sleep(remaining);
+            }
+
+            interval = Math.min(interval * 2, PROBE_MAX_INTERVAL_MSEC);
+        }
+
+        logw("ModulesReadinessProbe " + module + " is not listening on port " + port
+                + " after " + (System.currentTimeMillis() - start) + " ms");
+        return false;
+    }
+
+    private static byte[] makeRootNsQuery() {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        return new byte[]{
+                (byte) (id >> 8), (byte) id,
+                0x01, 0x00, //Recursion desired
+                0x00, 0x01, //Questions
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x00, //Root name
+                0x00, 0x02, //NS
+                0x00, 0x01 //IN
+        };
+    }
+
+    private static void sleep(long msec) {
+        try {
+            Thread.sleep(msec);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Probe {
+        boolean probe(InetSocketAddress address, int timeout) throws IOException;
+    }
+}
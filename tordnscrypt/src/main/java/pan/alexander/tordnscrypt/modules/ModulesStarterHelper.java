@@ -31,6 +31,7 @@ import com.jrummyapps.android.shell.Shell;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import dagger.Lazy;
@@ -112,10 +113,10 @@ public class ModulesStarterHelper {
                         + " -config " + appDataDir
                         + "/app_data/dnscrypt-proxy/dnscrypt-proxy.toml -pidfile " + appDataDir
                         + "/dnscrypt-proxy.pid >/dev/null 2>&1 &";
-                String waitString = busyboxPath + "sleep 3";
                 String checkIfModuleRunning = busyboxPath + "pgrep -l /libdnscrypt-proxy.so";
 
-                shellResult = Shell.SU.run(dnsCmdString, waitString, checkIfModuleRunning);
+                shellResult = startWithRoot(dnsCmdString, checkIfModuleRunning,
+                        () -> ModulesReadinessProbe.awaitDnsListener("DNSCrypt", pathVars.getDNSCryptPort()));
 
                 preferenceRepository.get().setBoolPreference("DNSCryptStartedWithRoot", true);
 
@@ -191,10 +192,10 @@ public class ModulesStarterHelper {
 
                 torCmdString = torPath + " -f "
                         + appDataDir + "/app_data/tor/tor.conf -pidfile " + appDataDir + "/tor.pid";
-                String waitString = busyboxPath + "sleep 3";
                 String checkIfModuleRunning = busyboxPath + "pgrep -l /libtor.so";
 
-                shellResult = Shell.SU.run(torCmdString, waitString, checkIfModuleRunning);
+                shellResult = startWithRoot(torCmdString, checkIfModuleRunning,
+                        () -> ModulesReadinessProbe.awaitTcpListener("Tor", pathVars.getTorSOCKSPort()));
 
                 preferenceRepository.get().setBoolPreference("TorStartedWithRoot", true);
 
@@ -285,13 +286,13 @@ public class ModulesStarterHelper {
                         "cd " + appDataDir + "/app_data/i2pd",
                         busyboxPath + "cp -R certificates " + appDataDir + "/i2pd_data");
 
-                itpdCmdString = itpdPath + " --conf " + appDataDir
+                itpdCmdString = busyboxPath + "nohup " + itpdPath + " --conf " + appDataDir
                         + "/app_data/i2pd/i2pd.conf --datadir " + appDataDir
-                        + "/i2pd_data --pidfile " + appDataDir + "/i2pd.pid &";
-                String waitString = busyboxPath + "sleep 3";
+                        + "/i2pd_data --pidfile " + appDataDir + "/i2pd.pid >/dev/null 2>&1 &";
                 String checkIfModuleRunning = busyboxPath + "pgrep -l /libi2pd.so";
 
-                shellResult = Shell.SU.run(itpdCmdString, waitString, checkIfModuleRunning);
+                shellResult = startWithRoot(itpdCmdString, checkIfModuleRunning,
+                        () -> ModulesReadinessProbe.awaitTcpListener("Purple I2P", pathVars.getITPDHttpProxyPort()));
 
                 preferenceRepository.get().setBoolPreference("ITPDStartedWithRoot", true);
 
@@ -443,6 +444,30 @@ public class ModulesStarterHelper {
         }
     }
 
+    //Starts the module, waits until it is ready and checks that it is running in one su session,
+    //so only one su process is spawned and the launching shell lives until the check
+    private CommandResult startWithRoot(String startCommand, String checkCommand, Runnable awaitReady) {
+        Shell.Console console = null;
+        try {
+            console = Shell.SU.getConsole();
+            console.run(startCommand);
+            awaitReady.run();
+            return console.run(checkCommand);
+        } catch (Exception e) {
+            loge("ModulesStarterHelper startWithRoot", e);
+            return new CommandResult(
+                    Collections.emptyList(),
+                    Collections.singletonList(String.valueOf(e.getMessage())),
+                    1
+            );
+        } finally {
+            if (console != null && !console.isClosed()) {
+                console.run("exit");
+                console.close();
+            }
+        }
+    }
+
     private void sendResultIntent(int moduleMark, String moduleKeyWord, String binaryPath) {
         RootCommands comResult = new RootCommands(new ArrayList<>(Arrays.asList(moduleKeyWord, binaryPath)));
         Intent intent = new Intent(COMMAND_RESULT);
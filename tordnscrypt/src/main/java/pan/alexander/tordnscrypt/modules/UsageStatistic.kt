@@ -33,6 +33,7 @@ import pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG
 import pan.alexander.tordnscrypt.utils.enums.ModuleState
 import pan.alexander.tordnscrypt.utils.enums.OperationMode
 import pan.alexander.tordnscrypt.utils.logger.Logger.loge
+import pan.alexander.tordnscrypt.vpn.service.VpnUsageStore
 import java.text.CharacterIterator
 import java.text.StringCharacterIterator
 import java.util.concurrent.Executors
@@ -57,6 +58,8 @@ class UsageStatistic(private val context: Context) {
     lateinit var connectionCheckerInteractor: dagger.Lazy<ConnectionCheckerInteractor>
     @Inject
     lateinit var pathVars: PathVars
+    @Inject
+    lateinit var vpnUsageStore: dagger.Lazy<VpnUsageStore>
 
     @Volatile var serviceNotification: ModulesServiceNotificationManager? = null
 
@@ -232,7 +235,8 @@ class UsageStatistic(private val context: Context) {
                                 currentTX - savedTX,
                                 timePeriod
                             )
-                        } ${humanReadableByteCountBin(currentTX)}"
+                        } ${humanReadableByteCountBin(currentTX)}" +
+                        getTorTrafficString(mode)
             }
 
             savedRX = currentRX
@@ -247,6 +251,19 @@ class UsageStatistic(private val context: Context) {
         }
     }
 
+    private fun getTorTrafficString(mode: OperationMode): String {
+        if (mode != OperationMode.VPN_MODE) {
+            return ""
+        }
+
+        val torBytes = vpnUsageStore.get().getSessionBytes(VpnUsageStore.ROUTE_TOR)
+        return if (torBytes > 0) {
+            "  Tor ${humanReadableByteCountBin(torBytes)}"
+        } else {
+            ""
+        }
+    }
+
     fun isStatisticAllowed(): Boolean =
         try {
             TrafficStats.getTotalRxBytes() != TrafficStats.UNSUPPORTED.toLong()
@@ -19,6 +19,8 @@
 
 package pan.alexander.tordnscrypt.nflog
 
+import android.content.Context
+import android.content.SharedPreferences
 import android.os.HandlerThread
 import com.jrummyapps.android.shell.Shell
 import kotlinx.coroutines.*
@@ -27,10 +29,15 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.launchIn
 import kotlinx.coroutines.flow.onEach
 import pan.alexander.tordnscrypt.di.CoroutinesModule
+import pan.alexander.tordnscrypt.di.SharedPreferencesModule.Companion.DEFAULT_PREFERENCES_NAME
 import pan.alexander.tordnscrypt.di.modulesservice.ModulesServiceScope
 import pan.alexander.tordnscrypt.domain.connection_checker.ConnectionCheckerInteractor
 import pan.alexander.tordnscrypt.domain.connection_checker.OnInternetConnectionCheckedListener
-import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionDataRing
+import pan.alexander.tordnscrypt.domain.connection_records.entities.DnsRecord
+import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
+import pan.alexander.tordnscrypt.domain.tor_ips.DomainIpBindings
+import pan.alexander.tordnscrypt.iptables.IptablesIpSets
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.utils.Constants.NFLOG_GROUP
 import pan.alexander.tordnscrypt.utils.Constants.NFLOG_PREFIX
@@ -39,7 +46,7 @@ import pan.alexander.tordnscrypt.utils.logger.Logger.logi
 import pan.alexander.tordnscrypt.utils.logger.Logger.logw
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPN.LINES_IN_DNS_QUERY_RAW_RECORDS
 import java.io.File
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
 import javax.inject.Named
 import kotlin.Exception
@@ -48,11 +55,17 @@ private const val ATTEMPTS_TO_OPEN_NFLOG = 5
 private const val ATTEMPTS_TO_CLOSE_NFLOG = 3
 private const val TIMEOUT_TO_CLOSE_NFLOG_SEC = 5
 private const val NFLOG_PID_FILE_NAME = "nflog.pid"
+private const val IPSETS_REFRESH_DELAY_MSEC = 300L
 
 @ModulesServiceScope
 @ExperimentalCoroutinesApi
 class NflogManager @Inject constructor(
+    private val context: Context,
     private val pathVars: dagger.Lazy<PathVars>,
+    private val preferenceRepository: dagger.Lazy<PreferenceRepository>,
+    @Named(DEFAULT_PREFERENCES_NAME)
+    private val defaultPreferences: dagger.Lazy<SharedPreferences>,
+    private val domainIpBindings: dagger.Lazy<DomainIpBindings>,
     @Named(CoroutinesModule.DISPATCHER_IO)
     dispatcherIo: CoroutineDispatcher,
     private val nflogParser: NflogParser,
@@ -62,11 +75,7 @@ class NflogManager @Inject constructor(
     @Volatile
     private var nfLogStartFailed = false
 
-    private val connectionDataRecords = ConcurrentHashMap<ConnectionData, Boolean>(
-        16,
-        0.75f,
-        2
-    )
+    private val connectionDataRecords = ConnectionDataRing(LINES_IN_DNS_QUERY_RAW_RECORDS)
 
     private val coroutineScope by lazy {
         CoroutineScope(
@@ -103,6 +112,8 @@ class NflogManager @Inject constructor(
     @Volatile
     private var nflogActive = false
 
+    private val ipSetsRefreshPending = AtomicBoolean(false)
+
     fun startNflog() = nflogMutableSharedFlow.tryEmit(NflogCommand.START)
 
     fun stopNflog() = nflogMutableSharedFlow.tryEmit(NflogCommand.STOP)
@@ -342,25 +353,29 @@ class NflogManager @Inject constructor(
     private fun handleConnectionRecordLine(line: String) {
         try {
             nflogParser.parse(line)?.let {
-                connectionDataRecords.remove(it)
-                connectionDataRecords.put(it, true)
-            }
-
-            if (connectionDataRecords.size >= LINES_IN_DNS_QUERY_RAW_RECORDS) {
-                connectionDataRecords.keys()
-                    .toList()
-                    .sortedBy { it.time }
-                    .take(LINES_IN_DNS_QUERY_RAW_RECORDS / 5).let {
-                        for (record in it) {
-                            connectionDataRecords.remove(record)
-                        }
-                    }
+                connectionDataRecords.add(it)
+                if (it is DnsRecord && domainIpBindings.get().takeChanges()) {
+                    refreshIpSets()
+                }
             }
         } catch (e: Exception) {
             loge("NflogManager parseLine $line", e)
         }
     }
 
+    //Answers come in bursts, apply the bound IPs of all of them with one ipset restore
+    private fun refreshIpSets() {
+        if (!ipSetsRefreshPending.compareAndSet(false, true)) {
+            return
+        }
+
+        coroutineScope.launch {
+            delay(IPSETS_REFRESH_DELAY_MSEC)
+            ipSetsRefreshPending.set(false)
+            IptablesIpSets.refresh(context, preferenceRepository.get(), defaultPreferences.get())
+        }
+    }
+
     private enum class NflogCommand {
         START,
         STOP
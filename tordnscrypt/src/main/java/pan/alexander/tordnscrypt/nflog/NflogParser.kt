@@ -22,6 +22,7 @@ package pan.alexander.tordnscrypt.nflog
 import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
 import pan.alexander.tordnscrypt.domain.connection_records.entities.DnsRecord
 import pan.alexander.tordnscrypt.domain.connection_records.entities.PacketRecord
+import pan.alexander.tordnscrypt.domain.tor_ips.DomainIpBindings
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.utils.logger.Logger.loge
 import java.net.IDN
@@ -30,6 +31,7 @@ import javax.inject.Inject
 
 class NflogParser @Inject constructor(
     private val nflogSessionsHolder: NflogSessionsHolder,
+    private val domainIpBindings: dagger.Lazy<DomainIpBindings>,
     pathVars: dagger.Lazy<PathVars>
 ) {
 
@@ -83,13 +85,18 @@ class NflogParser @Inject constructor(
 
         val matcher = dnsPattern.matcher(line)
         if (matcher.find()) {
-            val qName = matcher.group(1)?.toUnicode() ?: ""
-            val aName = matcher.group(2)?.toUnicode() ?: ""
+            val qNameAscii = matcher.group(1) ?: ""
+            val aNameAscii = matcher.group(2) ?: ""
+            val qName = qNameAscii.toUnicode()
+            val aName = aNameAscii.toUnicode()
             val cName = matcher.group(3)?.toUnicode() ?: ""
             val hInfo = matcher.group(4) ?: ""
             val rCode = (matcher.group(5) ?: "0").toInt()
             val ip = matcher.group(6) ?: ""
 
+            //Nflog does not report TTL
+            domainIpBindings.get().bind(qNameAscii, aNameAscii, ip, rCode, 0)
+
             return DnsRecord(
                 time = System.currentTimeMillis(),
                 qName = qName,
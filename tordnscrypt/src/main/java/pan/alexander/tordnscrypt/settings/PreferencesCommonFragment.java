@@ -90,6 +90,7 @@ import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.PROXY_P
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.RUN_MODULES_WITH_ROOT;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.TOR_TETHERING;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.USE_IPTABLES;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPTABLES_IPSET;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.USE_PROXY;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.WAIT_IPTABLES;
 import static pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG;
@@ -407,6 +408,7 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
                 ModulesStatus.getInstance().setIptablesRulesUpdateRequested(context, true);
                 break;
             case "pref_common_local_eth_device_addr":
+            case IPTABLES_IPSET:
             case COMPATIBILITY_MODE:
             case DNS_REBIND_PROTECTION:
             case KILL_SWITCH:
@@ -697,6 +699,7 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
         preferences.add(findPreference("swWakelock"));
         preferences.add(findPreference("pref_common_local_eth_device_addr"));
         preferences.add(findPreference(KILL_SWITCH));
+        preferences.add(findPreference(IPTABLES_IPSET));
 
         for (Preference preference : preferences) {
             if (preference != null) {
@@ -759,6 +762,7 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
         PreferenceCategory categoryOther = findPreference("common_other");
         Preference selectIptables = findPreference(USE_IPTABLES);
         Preference waitIptables = findPreference(WAIT_IPTABLES);
+        Preference ipsetIptables = findPreference(IPTABLES_IPSET);
         Preference selectBusybox = findPreference("pref_common_use_busybox");
         Preference killSwitch = findPreference(KILL_SWITCH);
 
@@ -768,6 +772,9 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
         if (categoryOther != null && waitIptables != null) {
             categoryOther.removePreference(waitIptables);
         }
+        if (categoryOther != null && ipsetIptables != null) {
+            categoryOther.removePreference(ipsetIptables);
+        }
         if (categoryOther != null && selectBusybox != null) {
             categoryOther.removePreference(selectBusybox);
         }
@@ -51,6 +51,7 @@ import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.dialogs.progressDialogs.PleaseWaitProgressDialog;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
 import pan.alexander.tordnscrypt.proxy.ProxyFragment;
+import pan.alexander.tordnscrypt.settings.dnscrypt_servers.ResolversCatalog;
 import pan.alexander.tordnscrypt.settings.dnscrypt_settings.PreferencesDNSFragment;
 import pan.alexander.tordnscrypt.settings.firewall.FirewallFragment;
 import pan.alexander.tordnscrypt.settings.tor_bridges.PreferencesTorBridges;
@@ -59,6 +60,7 @@ import pan.alexander.tordnscrypt.settings.tor_apps.UnlockTorAppsFragment;
 import pan.alexander.tordnscrypt.settings.tor_ips.UnlockTorIpsFragment;
 import pan.alexander.tordnscrypt.settings.tor_preferences.PreferencesTorFragment;
 import pan.alexander.tordnscrypt.utils.enums.DNSCryptRulesVariant;
+import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
 import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
 
 import static pan.alexander.tordnscrypt.settings.tor_ips.UnlockTorIpsFragment.DeviceOrTether.DEVICE;
@@ -81,6 +83,8 @@ public class SettingsActivity extends LangAppCompatActivity {
     public Lazy<PreferenceRepository> preferenceRepository;
     @Inject
     public Lazy<PathVars> pathVars;
+    @Inject
+    public CachedExecutor cachedExecutor;
 
     public DialogFragment dialogFragment;
     public PreferencesTorFragment preferencesTorFragment;
@@ -137,7 +141,7 @@ public class SettingsActivity extends LangAppCompatActivity {
             dialogFragment = PleaseWaitProgressDialog.getInstance();
             dialogFragment.show(getSupportFragmentManager(), "PleaseWaitProgressDialog");
             FileManager.readTextFile(this, appDataDir + "/app_data/dnscrypt-proxy/dnscrypt-proxy.toml", public_resolvers_md_tag);
-            FileManager.readTextFile(this, appDataDir + "/app_data/dnscrypt-proxy/public-resolvers.md", public_resolvers_md_tag);
+            loadPublicResolversCatalog(appDataDir + "/app_data/dnscrypt-proxy/public-resolvers.md");
         } else if (Objects.equals(intent.getAction(), "open_qery_log")) {
             Bundle bundle = new Bundle();
             String path = appDataDir + "/cache/query.log";
@@ -224,6 +228,17 @@ public class SettingsActivity extends LangAppCompatActivity {
 
     }
 
+    private void loadPublicResolversCatalog(String path) {
+        cachedExecutor.submit(() -> {
+            ResolversCatalog.load(this, path);
+            runOnUiThread(() -> {
+                if (settingsParser != null && !isFinishing()) {
+                    settingsParser.onPublicResolversCatalogLoaded();
+                }
+            });
+        });
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -449,65 +449,42 @@ public class SettingsParser implements OnTextFileOperationsCompleteListener {
         }
     }
 
-    private void readPublicResolversMd(String path, List<String> lines) {
-        StringBuilder sb = new StringBuilder();
-        boolean lockServer = false;
-        boolean lockMD = false;
-        boolean lockTOML = false;
+    private void readPublicResolversMd(List<String> lines) {
         boolean lockRoutes = false;
-        ArrayList<String> dnsServerNames = new ArrayList<>();
-        ArrayList<String> dnsServerDescr = new ArrayList<>();
-        ArrayList<String> dnsServerSDNS = new ArrayList<>();
         ArrayList<String> dnscrypt_proxy_toml = new ArrayList<>();
         ArrayList<String> dnscrypt_servers = new ArrayList<>();
         ArrayList<DNSServerRelays> routes = new ArrayList<>();
 
         if (lines != null) {
             for (String line : lines) {
-
-                if (path.contains("public-resolvers.md")) {
-                    lockMD = true;
-                    lockTOML = false;
-                }
-                if (path.contains("dnscrypt-proxy.toml")) {
-                    lockMD = false;
-                    lockTOML = true;
-                }
-
-                if ((line.contains("##") || lockServer) && lockMD && !line.trim().isEmpty()) {
-                    lockServer = fillDNSServersLists(line, dnsServerNames, dnsServerDescr, dnsServerSDNS, sb, lockServer);
-                }
-
-                if (lockTOML && !line.isEmpty()) {
+                if (!line.isEmpty()) {
                     dnscrypt_proxy_toml.add(line);
                     lockRoutes = parseCurrentDNSServersAndRoutes(line, dnscrypt_servers, routes, lockRoutes);
                 }
-
             }
 
-            checkEqualsServerNames(dnsServerNames);
-
-            openDNSServersFragmentIfDataReady(dnsServerNames, dnsServerDescr, dnsServerSDNS, dnscrypt_proxy_toml, dnscrypt_servers, routes);
+            openDNSServersFragmentIfDataReady(dnscrypt_proxy_toml, dnscrypt_servers, routes);
+        }
+    }
 
+    //Called on the main thread when ResolversCatalog has loaded public-resolvers.md
+    public void onPublicResolversCatalogLoaded() {
+        if (bundleForReadPublicResolversMdFunction == null) {
+            bundleForReadPublicResolversMdFunction = new Bundle();
         }
+
+        bundleForReadPublicResolversMdFunction.putBoolean("publicResolversCatalogLoaded", true);
+
+        openDNSServersFragmentIfDataReady(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
     }
 
-    private void openDNSServersFragmentIfDataReady(ArrayList<String> dnsServerNames,
-                                                      ArrayList<String> dnsServerDescr,
-                                                      ArrayList<String> dnsServerSDNS,
-                                                      ArrayList<String> dnscrypt_proxy_toml,
+    private void openDNSServersFragmentIfDataReady(ArrayList<String> dnscrypt_proxy_toml,
                                                       ArrayList<String> dnscrypt_servers,
                                                       ArrayList<DNSServerRelays> routes) {
         if (bundleForReadPublicResolversMdFunction == null) {
             bundleForReadPublicResolversMdFunction = new Bundle();
         }
 
-        if (!dnsServerNames.isEmpty())
-            bundleForReadPublicResolversMdFunction.putStringArrayList("dnsServerNames", dnsServerNames);
-        if (!dnsServerDescr.isEmpty())
-            bundleForReadPublicResolversMdFunction.putStringArrayList("dnsServerDescr", dnsServerDescr);
-        if (!dnsServerSDNS.isEmpty())
-            bundleForReadPublicResolversMdFunction.putStringArrayList("dnsServerSDNS", dnsServerSDNS);
         if (!dnscrypt_proxy_toml.isEmpty())
             bundleForReadPublicResolversMdFunction.putStringArrayList("dnscrypt_proxy_toml", dnscrypt_proxy_toml);
         if (!dnscrypt_servers.isEmpty())
@@ -515,9 +492,7 @@ public class SettingsParser implements OnTextFileOperationsCompleteListener {
         if (!routes.isEmpty())
             bundleForReadPublicResolversMdFunction.putSerializable("routes", routes);
 
-        if (bundleForReadPublicResolversMdFunction.get("dnsServerNames") != null
-                && bundleForReadPublicResolversMdFunction.get("dnsServerDescr") != null
-                && bundleForReadPublicResolversMdFunction.get("dnsServerSDNS") != null
+        if (bundleForReadPublicResolversMdFunction.getBoolean("publicResolversCatalogLoaded")
                 && bundleForReadPublicResolversMdFunction.get("dnscrypt_proxy_toml") != null
                 && bundleForReadPublicResolversMdFunction.get("dnscrypt_servers") != null) {
             PreferencesDNSCryptServers frag = new PreferencesDNSCryptServers();
@@ -568,39 +543,6 @@ public class SettingsParser implements OnTextFileOperationsCompleteListener {
         return lockRoutes;
     }
 
-    private boolean fillDNSServersLists(String line,
-                                        ArrayList<String> dnsServerNames,
-                                        ArrayList<String> dnsServerDescr,
-                                        ArrayList<String> dnsServerSDNS,
-                                        StringBuilder sb, boolean lockServer) {
-        if (line.contains("##")) {
-            lockServer = true;
-            dnsServerNames.add(line.substring(2).replaceAll("\\s+", "").trim());
-        } else if (line.contains("sdns")) {
-            dnsServerSDNS.add(line.replace("sdns://", "").trim());
-            lockServer = false;
-            dnsServerDescr.add(sb.toString().replaceAll("\\s", " "));
-            sb.setLength(0);
-        } else if (!line.contains("##") || lockServer) {
-            sb.append(line).append((char) 10);
-        }
-
-        return lockServer;
-    }
-
-    private void checkEqualsServerNames(ArrayList<String> dnsServerNames) {
-        if (!dnsServerNames.isEmpty()) {
-            for (int i = 0; i < dnsServerNames.size(); i++) {
-                for (int j = 0; j < dnsServerNames.size(); j++) {
-                    String dnsServerName = dnsServerNames.get(i);
-                    if (dnsServerName.equals(dnsServerNames.get(j)) && j != i) {
-                        dnsServerNames.set(j, dnsServerName + "_repeat_server" + j);
-                    }
-                }
-            }
-        }
-    }
-
     private void readRules(String path, List<String> lines) {
         ArrayList<String> rules_file = new ArrayList<>();
         if (lines != null) {
@@ -655,7 +597,7 @@ public class SettingsParser implements OnTextFileOperationsCompleteListener {
                         readITPDconf(lines);
                         break;
                     case SettingsActivity.public_resolvers_md_tag:
-                        readPublicResolversMd(path, lines);
+                        readPublicResolversMd(lines);
                         break;
                     case SettingsActivity.rules_tag:
                         readRules(path, lines);
@@ -34,7 +34,6 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import dagger.Lazy;
@@ -42,9 +41,8 @@ import pan.alexander.tordnscrypt.App;
 import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.dialogs.progressDialogs.PleaseWaitProgressDialog;
 import pan.alexander.tordnscrypt.settings.PathVars;
-import pan.alexander.tordnscrypt.utils.enums.FileOperationsVariants;
-import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
-import pan.alexander.tordnscrypt.utils.filemanager.OnTextFileOperationsCompleteListener;
+import pan.alexander.tordnscrypt.settings.dnscrypt_servers.ResolversCatalog;
+import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
 
 import static pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG;
 
@@ -53,10 +51,12 @@ import javax.inject.Inject;
 /**
  * A simple {@link Fragment} subclass.
  */
-public class PreferencesDNSCryptRelays extends Fragment implements OnTextFileOperationsCompleteListener {
+public class PreferencesDNSCryptRelays extends Fragment {
 
     @Inject
     public Lazy<PathVars> pathVars;
+    @Inject
+    public CachedExecutor cachedExecutor;
 
     private String dnsServerName;
     private final ArrayList<DNSRelayItem> dnsRelayItems = new ArrayList<>();
@@ -119,31 +119,13 @@ public class PreferencesDNSCryptRelays extends Fragment implements OnTextFileOpe
     public void onResume() {
         super.onResume();
 
-        FileManager.setOnFileOperationCompleteListener(this);
-
         if (dnsRelayItems.isEmpty()) {
-            FileManager.readTextFile(
-                    requireContext(),
-                    pathVars.get().getAppDataDir() + "/app_data/dnscrypt-proxy/relays.md", "relays.md"
-            );
-        }
-    }
-
-    @Override
-    public void OnFileOperationComplete(FileOperationsVariants currentFileOperation, boolean fileOperationResult, String path, String tag, List<String> lines) {
-        closePleaseWaitDialog();
-        if (currentFileOperation == FileOperationsVariants.readTextFile && fileOperationResult && tag.equals("relays.md")) {
-            fillDnsRelaysList(new ArrayList<>(lines));
+            loadDnsRelays();
+        } else {
+            closePleaseWaitDialog();
         }
     }
 
-    @Override
-    public void onPause() {
-        super.onPause();
-
-        FileManager.deleteOnFileOperationCompleteListener(this);
-    }
-
     @Override
     public void onStop() {
         super.onStop();
@@ -187,56 +169,45 @@ public class PreferencesDNSCryptRelays extends Fragment implements OnTextFileOpe
         }
     }
 
-    private void fillDnsRelaysList(List<String> lines) {
-        String name = "";
-        String description = "";
-        boolean lockRelay = false;
-
-        for (String line : lines) {
-            if (line.isEmpty()) {
-                continue;
-            }
-
-            if (line.contains("##")) {
-                name = line.replace("##", "").trim();
-                lockRelay = true;
-            } else if (lockRelay && line.contains("sdns://")) {
-                lockRelay = false;
-            } else if (lockRelay) {
-                description = line.replaceAll("\\s", " ").trim();
-            }
-
-            if (!name.isEmpty() && !description.isEmpty() && !lockRelay) {
-                DNSRelayItem dnsRelayItem = new DNSRelayItem(name, description);
-
-                dnsRelayItem.setChecked(isDnsRelaySelected(name));
+    private void loadDnsRelays() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
 
-                boolean addServer;
+        String relaysPath = pathVars.get().getAppDataDir() + "/app_data/dnscrypt-proxy/relays.md";
 
-                boolean relayIPv6 = false;
-                if (name.contains("ipv6")) {
-                    relayIPv6 = true;
+        cachedExecutor.submit(() -> {
+            ResolversCatalog catalog = ResolversCatalog.load(activity, relaysPath);
+            activity.runOnUiThread(() -> {
+                closePleaseWaitDialog();
+                if (isAdded() && dnsRelayItems.isEmpty()) {
+                    fillDnsRelaysList(catalog);
                 }
+            });
+        });
+    }
 
-                if (serverIPv6) {
-                    addServer = relayIPv6;
-                } else {
-                    addServer = !relayIPv6;
-                }
+    private void fillDnsRelaysList(ResolversCatalog catalog) {
+        for (int i = 0; i < catalog.size(); i++) {
+            String name = catalog.getName(i);
+            String description = catalog.getDescription(i).trim();
 
-                if (addServer) {
-                    dnsRelayItems.add(dnsRelayItem);
-                }
+            if (description.isEmpty()) {
+                continue;
+            }
 
+            boolean relayIPv6 = name.contains("ipv6");
 
-                name = "";
-                description = "";
+            if (serverIPv6 == relayIPv6) {
+                DNSRelayItem dnsRelayItem = new DNSRelayItem(name, description);
+                dnsRelayItem.setChecked(isDnsRelaySelected(name));
+                dnsRelayItems.add(dnsRelayItem);
             }
         }
 
-        Activity activity = getActivity();
-        if (activity != null) {
-            activity.runOnUiThread(() -> adapter.notifyDataSetChanged());
+        if (adapter != null) {
+            adapter.notifyDataSetChanged();
         }
     }
 
@@ -19,20 +19,13 @@
 
 package pan.alexander.tordnscrypt.settings.dnscrypt_servers;
 
-import static pan.alexander.tordnscrypt.assistance.AccelerateDevelop.accelerated;
-
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.util.Base64;
 
 import androidx.annotation.NonNull;
-import androidx.preference.PreferenceManager;
 
 import java.util.ArrayList;
 import java.util.Objects;
 
-import pan.alexander.tordnscrypt.R;
-
 public class DNSServerItem implements Comparable<DNSServerItem> {
     private boolean checked = false;
     private boolean dnssec = false;
@@ -45,71 +38,35 @@ public class DNSServerItem implements Comparable<DNSServerItem> {
     private String name;
     private final String description;
     private final String sdns;
+    private final int flags;
     private boolean ownServer = false;
+    //Median latency in milliseconds measured by ResolversBenchmark, -1 if unknown
+    private int latency = -1;
     private final ArrayList<String> routes = new ArrayList<>();
 
     public DNSServerItem(Context context, String name, String description, String sdns) throws Exception {
-        this.name = name;
-        this.description = description;
-        this.sdns = sdns;
-
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
-
-        boolean require_dnssec = sp.getBoolean("require_dnssec", false);
-        boolean require_nofilter = sp.getBoolean("require_nofilter", false);
-        boolean require_nolog = sp.getBoolean("require_nolog", false);
-        boolean use_dns_servers = sp.getBoolean("dnscrypt_servers", true);
-        boolean use_doh_servers = sp.getBoolean("doh_servers", true);
-        boolean use_ipv4_servers = sp.getBoolean("ipv4_servers", true);
-        boolean use_ipv6_servers = sp.getBoolean("ipv6_servers", false);
+        this(name, description, sdns, ResolversCatalog.decodeFlags(name, sdns));
 
-        if (!accelerated && context.getText(R.string.package_name).toString().contains(".gp")) {
-            require_nofilter = true;
-        }
-
-        byte[] bin = Base64.decode(sdns.substring(0, 7).getBytes(), 16);
-        if (bin[0] == 0x01) {
-            protoDNSCrypt = true;
-        } else if (bin[0] == 0x02) {
-            protoDoH = true;
-        } else {
+        if (!protoDNSCrypt && !protoDoH) {
             throw new Exception("Wrong sever type");
         }
 
-        if (((bin[1]) & 1) == 1) {
-            this.dnssec = true;
-        }
-        if (((bin[1] >> 1) & 1) == 1) {
-            this.nolog = true;
-        }
-        if (((bin[1] >> 2) & 1) == 1) {
-            this.nofilter = true;
-        }
-
-        if (name.contains("v6") || name.contains("ip6")) {
-            ipv6 = true;
-        }
-
-        if (require_dnssec)
-            this.visibility = this.dnssec;
-
-        if (require_nofilter)
-            this.visibility = this.visibility && this.nofilter;
-
-        if (require_nolog)
-            this.visibility = this.visibility && this.nolog;
-
-        if (!use_dns_servers)
-            this.visibility = this.visibility && !this.protoDNSCrypt;
-
-        if (!use_doh_servers)
-            this.visibility = this.visibility && !this.protoDoH;
+        this.visibility = ResolversCatalog.Filter.fromPreferences(context).accept(flags);
+    }
 
-        if (!use_ipv4_servers)
-            this.visibility = this.visibility && ipv6;
+    //For entries of ResolversCatalog that were already filtered
+    DNSServerItem(String name, String description, String sdns, int flags) {
+        this.name = name;
+        this.description = description;
+        this.sdns = sdns;
+        this.flags = flags;
 
-        if (!use_ipv6_servers)
-            this.visibility = this.visibility && !ipv6;
+        this.protoDNSCrypt = (flags & ResolversCatalog.FLAG_DNSCRYPT) != 0;
+        this.protoDoH = (flags & ResolversCatalog.FLAG_DOH) != 0;
+        this.dnssec = (flags & ResolversCatalog.FLAG_DNSSEC) != 0;
+        this.nolog = (flags & ResolversCatalog.FLAG_NOLOG) != 0;
+        this.nofilter = (flags & ResolversCatalog.FLAG_NOFILTER) != 0;
+        this.ipv6 = (flags & ResolversCatalog.FLAG_IPV6) != 0;
     }
 
     public boolean isChecked() {
@@ -168,6 +125,14 @@ public class DNSServerItem implements Comparable<DNSServerItem> {
         return sdns;
     }
 
+    int getLatency() {
+        return latency;
+    }
+
+    void setLatency(int latency) {
+        this.latency = latency;
+    }
+
     ArrayList<String> getRoutes() {
         return routes;
     }
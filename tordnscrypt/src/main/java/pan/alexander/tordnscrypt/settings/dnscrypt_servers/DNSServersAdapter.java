@@ -231,6 +231,10 @@ class DNSServersAdapter extends RecyclerView.Adapter<DNSServersAdapter.DNSServer
                 sb.append("<font color='#4E387E'>DNSSEC</font>");
             }
 
+            if (dnsServer.getLatency() >= 0) {
+                sb.append("<font color='#347C17'> ").append(dnsServer.getLatency()).append(" ms</font>");
+            }
+
             tvDNSServerFlags.setText(Html.fromHtml(sb.toString()));
 
             chbDNSServer.setChecked(dnsServer.isChecked());
@@ -0,0 +1,150 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_servers;
+
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+
+//https://dnscrypt.info/stamps-specifications
+final class DnsStamp {
+
+    static final int PROTOCOL_DNSCRYPT = 0x01;
+    static final int PROTOCOL_DOH = 0x02;
+
+    private static final int DEFAULT_PORT = 443;
+    //Properties are 8 bytes after the protocol byte
+    private static final int ADDRESS_OFFSET = 9;
+
+    final int protocol;
+    //Server IP for DNSCrypt, optional for DoH
+    final String host;
+    final int port;
+    //Provider name for DNSCrypt, such as 2.dnscrypt-cert.example.com
+    final String providerName;
+    //Host name and path for DoH, such as doh.example.com and /dns-query
+    final String hostName;
+    final String path;
+
+    DnsStamp(int protocol, String host, int port,
+                     String providerName, String hostName, String path) {
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.providerName = providerName;
+        this.hostName = hostName;
+        this.path = path;
+    }
+
+    //Parses a stamp without sdns://, returns null for relays and malformed stamps
+    @Nullable
+    static DnsStamp parse(String stamp) {
+        byte[] bin;
+        try {
+            bin = Base64.decode(stamp.trim(), Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (bin.length <= ADDRESS_OFFSET) {
+            return null;
+        }
+
+        Reader reader = new Reader(bin, ADDRESS_OFFSET);
+        try {
+            int protocol = bin[0] & 0xff;
+            String address = reader.readString();
+            if (protocol == PROTOCOL_DNSCRYPT) {
+                reader.readString(); //Public key
+                String providerName = reader.readString();
+                String host = getHost(address);
+                if (host.isEmpty() || providerName.isEmpty()) {
+                    return null;
+                }
+                return new DnsStamp(protocol, host, getPort(address), providerName, "", "");
+            } else if (protocol == PROTOCOL_DOH) {
+                reader.skipVariableStrings(); //Certificate hashes
+                String hostName = reader.readString();
+                String path = reader.readString();
+                if (hostName.isEmpty()) {
+                    return null;
+                }
+                return new DnsStamp(protocol, getHost(address), getPort(address), "", hostName,
+                        path.isEmpty() ? "/dns-query" : path);
+            }
+        } catch (ArrayIndexOutOfBoundsException ignored) {
+        }
+
+        return null;
+    }
+
+    //1.2.3.4, 1.2.3.4:443, [2001:db8::1] or [2001:db8::1]:443
+    private static String getHost(String address) {
+        if (address.startsWith("[")) {
+            int end = address.indexOf(']');
+            return end > 0 ? address.substring(1, end) : "";
+        }
+        int colon = address.indexOf(':');
+        return colon >= 0 ? address.substring(0, colon) : address;
+    }
+
+    private static int getPort(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0 || address.startsWith("[") && colon < address.indexOf(']')) {
+            return DEFAULT_PORT;
+        }
+        try {
+            return Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return DEFAULT_PORT;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bin;
+        private int position;
+
+        Reader(byte[] bin, int position) {
+            this.bin = bin;
+            this.position = position;
+        }
+
+        String readString() {
+            int length = bin[position++] & 0xff;
+            if (position + length > bin.length) {
+                throw new ArrayIndexOutOfBoundsException(position + length);
+            }
+            String value = new String(bin, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        //A set of strings, the high bit of a length means that another string follows
+        void skipVariableStrings() {
+            int length;
+            do {
+                length = bin[position++] & 0xff;
+                position += length & 0x7f;
+            } while ((length & 0x80) != 0);
+        }
+    }
+}
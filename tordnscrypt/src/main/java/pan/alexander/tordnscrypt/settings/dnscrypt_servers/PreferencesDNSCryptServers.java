@@ -25,6 +25,7 @@ import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -36,8 +37,10 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.widget.SearchView;
 import androidx.cardview.widget.CardView;
+import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -45,8 +48,11 @@ import androidx.recyclerview.widget.RecyclerView;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import dagger.Lazy;
@@ -55,6 +61,7 @@ import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.settings.SettingsActivity;
 import pan.alexander.tordnscrypt.dialogs.AddDNSCryptServerDialogFragment;
 import pan.alexander.tordnscrypt.dialogs.NotificationHelper;
+import pan.alexander.tordnscrypt.dialogs.progressDialogs.PleaseWaitProgressDialog;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
 import pan.alexander.tordnscrypt.modules.ModulesAux;
 import pan.alexander.tordnscrypt.modules.ModulesRestarter;
@@ -63,9 +70,7 @@ import pan.alexander.tordnscrypt.settings.dnscrypt_relays.DNSServerRelays;
 import pan.alexander.tordnscrypt.settings.dnscrypt_relays.PreferencesDNSCryptRelays;
 import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
 import pan.alexander.tordnscrypt.utils.integrity.Verifier;
-import pan.alexander.tordnscrypt.utils.enums.FileOperationsVariants;
 import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
-import pan.alexander.tordnscrypt.utils.filemanager.OnTextFileOperationsCompleteListener;
 
 import static pan.alexander.tordnscrypt.TopFragment.TOP_BROADCAST;
 import static pan.alexander.tordnscrypt.TopFragment.wrongSign;
@@ -74,7 +79,7 @@ import static pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG;
 import javax.inject.Inject;
 
 public class PreferencesDNSCryptServers extends Fragment implements View.OnClickListener,
-        PreferencesDNSCryptRelays.OnRoutesChangeListener, OnTextFileOperationsCompleteListener,
+        PreferencesDNSCryptRelays.OnRoutesChangeListener,
         AddDNSCryptServerDialogFragment.OnServerAddedListener, SearchView.OnQueryTextListener {
 
     @Inject
@@ -83,11 +88,12 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
     public Lazy<PathVars> pathVars;
     @Inject
     public CachedExecutor cachedExecutor;
+    @Inject
+    public Lazy<ResolversBenchmark> resolversBenchmark;
+
+    private static final int BENCHMARK_SELECTED_SERVERS = 3;
 
     private RecyclerView.Adapter<DNSServersAdapter.DNSServersViewHolder> dNSServersAdapter;
-    private ArrayList<String> dnsServerNames;
-    private ArrayList<String> dnsServerDescr;
-    private ArrayList<String> dnsServerSDNS;
     private ArrayList<String> dnscrypt_proxy_toml;
     private CopyOnWriteArrayList<String> dnscrypt_servers_current;
     private CopyOnWriteArrayList<DNSServerRelays> routes_current;
@@ -101,6 +107,8 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
     private SearchView searchDNSServer;
     private String searchQuery = "";
     private Parcelable rvViewState;
+    private DialogFragment benchmarkDialog;
+    private boolean benchmarkRunning;
 
 
     public PreferencesDNSCryptServers() {
@@ -157,6 +165,9 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
         ImageButton ibAddOwnServer = view.findViewById(R.id.ibAddOwnServer);
         ibAddOwnServer.setOnClickListener(this);
 
+        ImageButton ibBenchmarkServers = view.findViewById(R.id.ibBenchmarkServers);
+        ibBenchmarkServers.setOnClickListener(this);
+
         cardSearchDNSServer = view.findViewById(R.id.cardSearchDNSServer);
         cardSearchDNSServer.setOnClickListener(this);
 
@@ -180,8 +191,6 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
 
         appDataDir = pathVars.get().getAppDataDir();
 
-        FileManager.setOnFileOperationCompleteListener(this);
-
         fillDNSServersList(activity);
 
         createAndFillRecyclerView(activity);
@@ -223,8 +232,6 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
             rvViewState = rvDNSServers.getLayoutManager().onSaveInstanceState();
         }
 
-        FileManager.deleteOnFileOperationCompleteListener(this);
-
         Context context = getActivity();
         if (context == null) {
             return;
@@ -266,10 +273,6 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
     @SuppressWarnings("unchecked")
     private void takeArguments() {
         if (getArguments() != null) {
-            dnsServerNames = getArguments().getStringArrayList("dnsServerNames");
-            dnsServerDescr = getArguments().getStringArrayList("dnsServerDescr");
-            dnsServerSDNS = getArguments().getStringArrayList("dnsServerSDNS");
-
             if (dnscrypt_proxy_toml == null) {
                 dnscrypt_proxy_toml = getArguments().getStringArrayList("dnscrypt_proxy_toml");
             }
@@ -296,20 +299,19 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
 
         list_dns_servers = new CopyOnWriteArrayList<>();
 
-        for (int i = 0; i < dnsServerNames.size(); i++) {
-            try {
-                DNSServerItem dnsServer = new DNSServerItem(context, dnsServerNames.get(i), dnsServerDescr.get(i), dnsServerSDNS.get(i));
-                setDnsServerChecked(dnsServer);
-                setRoutes(dnsServer);
-
-                if (dnsServer.isVisibility() && !dnsServerNames.get(i).contains("repeat_server"))
-                    list_dns_servers.add(dnsServer);
-            } catch (Exception e) {
-                Log.w(LOG_TAG, "Trying to add wrong DNSCrypt server " + e.getMessage() + " "
-                        + dnsServerNames.get(i) + " " + dnsServerDescr.get(i)
-                        + " " + dnsServerSDNS);
-            }
+        //SettingsActivity has loaded the catalog before opening this fragment
+        ResolversCatalog catalog = ResolversCatalog.load(context,
+                appDataDir + "/app_data/dnscrypt-proxy/public-resolvers.md");
+        BitSet visible = catalog.select(ResolversCatalog.Filter.fromPreferences(context));
+        Map<String, ResolversBenchmark.Result> latencies = resolversBenchmark.get().getSavedResults();
 
+        for (int i = visible.nextSetBit(0); i >= 0; i = visible.nextSetBit(i + 1)) {
+            DNSServerItem dnsServer = new DNSServerItem(catalog.getName(i), catalog.getDescription(i),
+                    catalog.getStamp(i), catalog.getFlags(i));
+            setDnsServerChecked(dnsServer);
+            setRoutes(dnsServer);
+            setLatency(dnsServer, latencies);
+            list_dns_servers.add(dnsServer);
         }
 
         if (list_dns_servers.size() > 1) {
@@ -325,9 +327,24 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
     private void readOwnServers(Context context) {
         ownServersFilePath = appDataDir + "/app_data/dnscrypt-proxy/own-resolvers.md";
 
-        if (new File(ownServersFilePath).isFile()) {
-            FileManager.readTextFile(context, ownServersFilePath, "own-resolvers.md");
+        if (!new File(ownServersFilePath).isFile()) {
+            return;
+        }
+
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
         }
+
+        cachedExecutor.submit(() -> {
+            ArrayList<DNSServerItem> ownDNSCryptServers = getOwnDNSCryptServers(
+                    ResolversCatalog.load(context, ownServersFilePath));
+            activity.runOnUiThread(() -> {
+                if (isAdded()) {
+                    addOwnDNSCryptServers(ownDNSCryptServers);
+                }
+            });
+        });
     }
 
     private void setRoutes(DNSServerItem dnsServer) {
@@ -341,6 +358,11 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
         }
     }
 
+    private void setLatency(DNSServerItem dnsServer, Map<String, ResolversBenchmark.Result> latencies) {
+        ResolversBenchmark.Result result = latencies.get(dnsServer.getName());
+        dnsServer.setLatency(result != null ? result.median : -1);
+    }
+
     private void setDnsServerChecked(DNSServerItem dnsServer) {
         for (int i = 0; i < dnscrypt_servers_current.size(); i++) {
             if (!dnsServer.getName().isEmpty() && dnsServer.getName().equals(dnscrypt_servers_current.get(i).trim()))
@@ -575,84 +597,155 @@ public class PreferencesDNSCryptServers extends Fragment implements View.OnClick
                 addServer.setOnServerAddListener(this);
                 addServer.show(getParentFragmentManager(), "AddDNSCryptServerDialogFragment");
             }
+        } else if (v.getId() == R.id.ibBenchmarkServers) {
+            benchmarkServers();
         } else if (v.getId() == R.id.cardSearchDNSServer) {
             searchDNSServer.setIconified(false);
         }
     }
 
-    @Override
-    public void OnFileOperationComplete(FileOperationsVariants currentFileOperation, boolean fileOperationResult, String path, String tag, List<String> lines) {
-
-        Context context = getActivity();
-        if (context == null) {
+    private void benchmarkServers() {
+        Activity activity = getActivity();
+        if (activity == null || benchmarkRunning
+                || list_dns_servers_saved == null || list_dns_servers_saved.isEmpty()) {
             return;
         }
 
-        if (currentFileOperation == FileOperationsVariants.readTextFile && tag.equals("own-resolvers.md")) {
+        if (resolversBenchmark.get().isRoutedThroughTor()) {
+            startBenchmark(activity, false);
+        } else {
+            showDirectBenchmarkWarning(activity);
+        }
+    }
 
-            ArrayList<DNSServerItem> ownDNSCryptServers = parseOwnDNSCryptServers(context, lines);
+    //Without Tor the servers see the user IP, so the direct probes need a confirmation
+    private void showDirectBenchmarkWarning(Activity activity) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(activity, R.style.CustomAlertDialogTheme);
+        builder.setTitle(R.string.pref_dnscrypt_benchmark_servers);
+        builder.setMessage(R.string.pref_dnscrypt_benchmark_direct_warning);
+        builder.setPositiveButton(R.string.ok, (dialog, which) -> {
+            if (isAdded() && !benchmarkRunning) {
+                startBenchmark(activity, true);
+            }
+        });
+        builder.setNegativeButton(getText(R.string.cancel), (dialog, i) -> dialog.cancel());
+        builder.show();
+    }
 
-            savedOwnDNSCryptServers = new ArrayList<>();
-            savedOwnDNSCryptServers.addAll(ownDNSCryptServers);
+    private void startBenchmark(Activity activity, boolean allowDirect) {
+        benchmarkRunning = true;
+        openBenchmarkDialog();
 
+        List<DNSServerItem> servers = new ArrayList<>(list_dns_servers_saved);
+        cachedExecutor.submit(() -> {
+            List<ResolversBenchmark.Result> results = resolversBenchmark.get().run(servers, allowDirect);
+            activity.runOnUiThread(() -> {
+                benchmarkRunning = false;
+                closeBenchmarkDialog();
+                if (isAdded()) {
+                    selectFastestServers(activity, results);
+                }
+            });
+        });
+    }
 
-            if (!ownDNSCryptServers.isEmpty()) {
-                int newItemCount = ownDNSCryptServers.size();
-                ownDNSCryptServers.addAll(list_dns_servers);
-                list_dns_servers.clear();
-                list_dns_servers.addAll(ownDNSCryptServers);
-                list_dns_servers_saved.clear();
-                list_dns_servers_saved.addAll(ownDNSCryptServers);
-                dNSServersAdapter.notifyItemRangeChanged(0, newItemCount);
+    private void selectFastestServers(Context context, List<ResolversBenchmark.Result> results) {
+        Map<String, ResolversBenchmark.Result> resultsByName = new HashMap<>();
+        List<String> fastest = new ArrayList<>();
+        for (ResolversBenchmark.Result result : results) {
+            resultsByName.put(result.name, result);
+            if (result.isResponding() && fastest.size() < BENCHMARK_SELECTED_SERVERS) {
+                fastest.add(result.name);
             }
         }
+
+        if (fastest.isEmpty()) {
+            Toast.makeText(context, R.string.pref_dnscrypt_benchmark_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        for (DNSServerItem dnsServer : list_dns_servers_saved) {
+            setLatency(dnsServer, resultsByName);
+            dnsServer.setChecked(fastest.contains(dnsServer.getName()));
+        }
+
+        //Checked servers first, then from the fastest to the slowest
+        ArrayList<DNSServerItem> tmpList = new ArrayList<>(list_dns_servers_saved);
+        Collections.sort(tmpList, (first, second) -> {
+            int checked = first.compareTo(second);
+            if (checked != 0) {
+                return checked;
+            }
+            return Integer.compare(
+                    first.getLatency() >= 0 ? first.getLatency() : Integer.MAX_VALUE,
+                    second.getLatency() >= 0 ? second.getLatency() : Integer.MAX_VALUE
+            );
+        });
+        list_dns_servers_saved.clear();
+        list_dns_servers_saved.addAll(tmpList);
+
+        searchServer(searchQuery);
+
+        Toast.makeText(context, getString(R.string.pref_dnscrypt_benchmark_selected,
+                TextUtils.join(", ", fastest)), Toast.LENGTH_LONG).show();
     }
 
-    private ArrayList<DNSServerItem> parseOwnDNSCryptServers(Context context, List<String> lines) {
-        ArrayList<DNSServerItem> dnsServerItemsOwn = new ArrayList<>();
+    private void openBenchmarkDialog() {
+        if (isAdded()) {
+            benchmarkDialog = PleaseWaitProgressDialog.getInstance();
+            benchmarkDialog.show(getParentFragmentManager(), "PleaseWaitProgressDialog");
+        }
+    }
 
-        if (lines == null) {
-            return dnsServerItemsOwn;
-        }
-
-        boolean lockServer = false;
-        String name = "";
-        String description;
-        String sdns;
-        StringBuilder sb = new StringBuilder();
-
-        ArrayList<String> linesReady = new ArrayList<>(lines);
-
-        for (String line : linesReady) {
-            if ((line.contains("##") || lockServer) && line.trim().length() > 2) {
-                if (line.contains("##")) {
-                    lockServer = true;
-                    name = line.substring(2).replaceAll("\\s+", "").trim();
-                } else if (line.contains("sdns")) {
-                    sdns = line.replace("sdns://", "").trim();
-                    lockServer = false;
-                    description = sb.toString().replaceAll("\\s", " ");
-                    sb.setLength(0);
-
-                    try {
-                        DNSServerItem item = new DNSServerItem(context, name, description, sdns);
-                        setDnsServerChecked(item);
-                        setRoutes(item);
-                        item.setOwnServer(true);
-
-                        dnsServerItemsOwn.add(item);
-                    } catch (Exception e) {
-                        Log.w(LOG_TAG, "Trying to add wrong DNSCrypt server " + e.getMessage() + " "
-                                + name + " " + description
-                                + " " + sdns);
-                    }
+    private void closeBenchmarkDialog() {
+        if (benchmarkDialog != null) {
+            try {
+                benchmarkDialog.dismiss();
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "PreferencesDNSCryptServers closeBenchmarkDialog Exception: " + e.getMessage() + " " + e.getCause());
+            }
+            benchmarkDialog = null;
+        }
+    }
 
+    private void addOwnDNSCryptServers(ArrayList<DNSServerItem> ownDNSCryptServers) {
+        savedOwnDNSCryptServers = new ArrayList<>();
+        savedOwnDNSCryptServers.addAll(ownDNSCryptServers);
 
-                } else if (!line.contains("##") || lockServer) {
-                    sb.append(line).append((char) 10);
-                }
+        if (!ownDNSCryptServers.isEmpty()) {
+            int newItemCount = ownDNSCryptServers.size();
+            ownDNSCryptServers.addAll(list_dns_servers);
+            list_dns_servers.clear();
+            list_dns_servers.addAll(ownDNSCryptServers);
+            list_dns_servers_saved.clear();
+            list_dns_servers_saved.addAll(ownDNSCryptServers);
+            dNSServersAdapter.notifyItemRangeChanged(0, newItemCount);
+        }
+    }
+
+    private ArrayList<DNSServerItem> getOwnDNSCryptServers(ResolversCatalog catalog) {
+        ArrayList<DNSServerItem> dnsServerItemsOwn = new ArrayList<>();
+        Map<String, ResolversBenchmark.Result> latencies = resolversBenchmark.get().getSavedResults();
+
+        for (int i = 0; i < catalog.size(); i++) {
+            int flags = catalog.getFlags(i);
+            if ((flags & (ResolversCatalog.FLAG_DNSCRYPT | ResolversCatalog.FLAG_DOH)) == 0) {
+                Log.w(LOG_TAG, "Trying to add wrong DNSCrypt server "
+                        + catalog.getName(i) + " " + catalog.getDescription(i)
+                        + " " + catalog.getStamp(i));
+                continue;
             }
+
+            DNSServerItem item = new DNSServerItem(catalog.getName(i), catalog.getDescription(i),
+                    catalog.getStamp(i), flags);
+            setDnsServerChecked(item);
+            setRoutes(item);
+            setLatency(item, latencies);
+            item.setOwnServer(true);
+
+            dnsServerItemsOwn.add(item);
         }
+
         return dnsServerItemsOwn;
     }
 
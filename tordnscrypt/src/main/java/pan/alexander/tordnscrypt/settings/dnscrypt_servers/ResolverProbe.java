@@ -0,0 +1,420 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_servers;
+
+import android.os.Build;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import pan.alexander.tordnscrypt.utils.dns.DnsRequest;
+import pan.alexander.tordnscrypt.utils.dns.Record;
+import pan.alexander.tordnscrypt.utils.web.TLSSocketFactory;
+
+/*
+ * Sends one query to a DNSCrypt or DoH server from its stamp and checks that the server answered.
+ * Without a proxy DNSCrypt servers are queried over UDP and DoH servers are connected
+ * by the address from the stamp, host names are never passed to the system resolver.
+ * With a SOCKS5 proxy, such as Tor, DNSCrypt servers are queried over TCP
+ * and DoH host names are resolved by the proxy.
+ */
+final class ResolverProbe {
+
+    private static final int DNS_HEADER_LENGTH = 12;
+    private static final int MAX_UDP_RESPONSE_LENGTH = 1500;
+    private static final int MAX_HTTP_LINE_LENGTH = 8192;
+    private static final int MAX_HTTP_BODY_LENGTH = 64 * 1024;
+
+    private static final int SOCKS_VERSION = 0x05;
+    private static final int SOCKS_NO_AUTHENTICATION = 0x00;
+    private static final int SOCKS_CONNECT = 0x01;
+    private static final int SOCKS_ADDRESS_IPV4 = 0x01;
+    private static final int SOCKS_ADDRESS_DOMAIN = 0x03;
+    private static final int SOCKS_ADDRESS_IPV6 = 0x04;
+
+    @Nullable
+    private final InetSocketAddress socksProxy;
+    private final int timeoutMs;
+    //Plain HTTP is only used to probe local stub servers
+    private final boolean tls;
+
+    ResolverProbe(@Nullable InetSocketAddress socksProxy, int timeoutMs) {
+        this(socksProxy, timeoutMs, true);
+    }
+
+    ResolverProbe(@Nullable InetSocketAddress socksProxy, int timeoutMs, boolean tls) {
+        this.socksProxy = socksProxy;
+        this.timeoutMs = timeoutMs;
+        this.tls = tls;
+    }
+
+    void probe(DnsStamp stamp) throws IOException {
+        if (stamp.protocol == DnsStamp.PROTOCOL_DNSCRYPT) {
+            probeDnsCrypt(stamp);
+        } else {
+            probeDoh(stamp);
+        }
+    }
+
+    //DNSCrypt servers answer the unencrypted certificate query for the provider name
+    private void probeDnsCrypt(DnsStamp stamp) throws IOException {
+        short messageId = newMessageId();
+        byte[] query = new DnsRequest(messageId, Record.TYPE_TXT, stamp.providerName).toDnsQuestionData();
+
+        if (socksProxy == null) {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.setSoTimeout(timeoutMs);
+                socket.connect(toAddress(stamp.host), stamp.port);
+                socket.send(new DatagramPacket(query, query.length));
+                DatagramPacket packet = new DatagramPacket(
+                        new byte[MAX_UDP_RESPONSE_LENGTH], MAX_UDP_RESPONSE_LENGTH
+                );
+                socket.receive(packet);
+                checkResponse(messageId, packet.getData(), packet.getLength());
+            }
+        } else {
+            try (Socket socket = connect(stamp.host, stamp.port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeShort(query.length);
+                out.write(query);
+                out.flush();
+
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] response = new byte[in.readUnsignedShort()];
+                in.readFully(response);
+                checkResponse(messageId, response, response.length);
+            }
+        }
+    }
+
+    //DoH servers are asked for their own host name, so no other domain is sent to them
+    private void probeDoh(DnsStamp stamp) throws IOException {
+        String domain = stamp.hostName;
+        int port = stamp.port;
+        int colon = domain.lastIndexOf(':');
+        if (colon > 0 && !domain.endsWith("]")) {
+            try {
+                port = Integer.parseInt(domain.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("ResolverProbe wrong DoH host " + domain);
+            }
+            domain = domain.substring(0, colon);
+        }
+
+        short messageId = newMessageId();
+        byte[] query = new DnsRequest(messageId, Record.TYPE_A, domain).toDnsQuestionData();
+
+        try (Socket socket = socksProxy == null ? connect(stamp.host, stamp.port) : connect(domain, port);
+             Socket stream = tls ? startTls(socket, domain, port) : socket) {
+
+            String request = "POST " + stamp.path + " HTTP/1.1\r\n"
+                    + "Host: " + stamp.hostName + "\r\n"
+                    + "Content-Type: application/dns-message\r\n"
+                    + "Accept: application/dns-message\r\n"
+                    + "Content-Length: " + query.length + "\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n";
+            OutputStream out = stream.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.write(query);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream.getInputStream()));
+            String statusLine = readLine(in);
+            String[] status = statusLine.split(" ");
+            if (status.length < 2 || !status[0].startsWith("HTTP/1.") || !status[1].equals("200")) {
+                throw new IOException("ResolverProbe " + domain + " response " + statusLine);
+            }
+
+            int contentLength = -1;
+            String header;
+            while (!(header = readLine(in)).isEmpty()) {
+                int separator = header.indexOf(':');
+                if (separator > 0 && header.substring(0, separator).trim().equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Integer.parseInt(header.substring(separator + 1).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("ResolverProbe " + domain + " wrong " + header);
+                    }
+                }
+            }
+
+            //A chunked response is accepted by its status, the latency is measured anyway
+            if (contentLength >= 0) {
+                if (contentLength > MAX_HTTP_BODY_LENGTH) {
+                    throw new IOException("ResolverProbe " + domain + " response is too long");
+                }
+                byte[] response = new byte[contentLength];
+                in.readFully(response);
+                checkResponse(messageId, response, response.length);
+            }
+        }
+    }
+
+    //Connects directly to an IP address or through the proxy, which resolves a host name itself
+    private Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(timeoutMs);
+            if (socksProxy == null) {
+                socket.connect(new InetSocketAddress(toAddress(host), port), timeoutMs);
+            } else {
+                socket.connect(socksProxy, timeoutMs);
+                socksConnect(socket, host, port);
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    //RFC 1928 CONNECT without authentication, the host is always sent as a domain name
+    private static void socksConnect(Socket socket, String host, int port) throws IOException {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        if (name.length == 0 || name.length > 255) {
+            throw new IOException("ResolverProbe wrong host " + host);
+        }
+
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        out.write(new byte[]{SOCKS_VERSION, 1, SOCKS_NO_AUTHENTICATION});
+        out.flush();
+        if (in.readUnsignedByte() != SOCKS_VERSION || in.readUnsignedByte() != SOCKS_NO_AUTHENTICATION) {
+            throw new IOException("ResolverProbe SOCKS proxy requires authentication");
+        }
+
+        out.write(new byte[]{SOCKS_VERSION, SOCKS_CONNECT, 0, SOCKS_ADDRESS_DOMAIN, (byte) name.length});
+        out.write(name);
+        out.writeShort(port);
+        out.flush();
+
+        int version = in.readUnsignedByte();
+        int reply = in.readUnsignedByte();
+        if (version != SOCKS_VERSION || reply != 0) {
+            throw new IOException("ResolverProbe SOCKS proxy failed to connect " + host + " reply " + reply);
+        }
+        in.readUnsignedByte(); //Reserved
+
+        int addressType = in.readUnsignedByte();
+        int addressLength;
+        if (addressType == SOCKS_ADDRESS_IPV4) {
+            addressLength = 4;
+        } else if (addressType == SOCKS_ADDRESS_IPV6) {
+            addressLength = 16;
+        } else if (addressType == SOCKS_ADDRESS_DOMAIN) {
+            addressLength = in.readUnsignedByte();
+        } else {
+            throw new IOException("ResolverProbe SOCKS proxy wrong address type " + addressType);
+        }
+        in.readFully(new byte[addressLength + 2]); //Bound address and port
+    }
+
+    private static Socket startTls(Socket socket, String host, int port) throws IOException {
+        SSLSocketFactory factory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                factory = new TLSSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+        sslSocket.startHandshake();
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+            sslSocket.close();
+            throw new SSLPeerUnverifiedException("ResolverProbe certificate does not match " + host);
+        }
+        return sslSocket;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("ResolverProbe connection closed");
+            } else if (line.size() >= MAX_HTTP_LINE_LENGTH) {
+                throw new IOException("ResolverProbe HTTP line is too long");
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static void checkResponse(short messageId, byte[] response, int length) throws IOException {
+        if (length < DNS_HEADER_LENGTH
+                || ((response[0] & 0xff) << 8 | response[1] & 0xff) != (messageId & 0xffff)
+                || (response[2] & 0x80) == 0) {
+            throw new IOException("ResolverProbe wrong DNS response");
+        }
+    }
+
+    private static short newMessageId() {
+        return (short) (Math.random() * 0xFFFF);
+    }
+
+    private static InetAddress toAddress(String host) throws UnknownHostException {
+        InetAddress address = parseAddress(host);
+        if (address == null) {
+            throw new UnknownHostException("ResolverProbe " + host + " is not an IP address");
+        }
+        return address;
+    }
+
+    //Parses 1.2.3.4 or 2001:db8::1 without the system resolver, returns null for host names
+    @Nullable
+    static InetAddress parseAddress(String host) {
+        byte[] address = host.indexOf(':') >= 0 ? parseIpv6(host) : parseIpv4(host);
+        if (address == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static byte[] parseIpv4(String host) {
+        String[] parts = host.split("\\.", -1);
+        if (parts.length != 4) {
+            return null;
+        }
+
+        byte[] address = new byte[4];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            if (part.isEmpty() || part.length() > 3) {
+                return null;
+            }
+            int value = 0;
+            for (int j = 0; j < part.length(); j++) {
+                char c = part.charAt(j);
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+                value = value * 10 + c - '0';
+            }
+            if (value > 255) {
+                return null;
+            }
+            address[i] = (byte) value;
+        }
+        return address;
+    }
+
+    @Nullable
+    private static byte[] parseIpv6(String host) {
+        int gap = host.indexOf("::");
+        if (gap >= 0 && host.indexOf("::", gap + 1) >= 0) {
+            return null;
+        }
+
+        byte[] head = parseIpv6Groups(gap >= 0 ? host.substring(0, gap) : host);
+        byte[] tail = gap >= 0 ? parseIpv6Groups(host.substring(gap + 2)) : new byte[0];
+        if (head == null || tail == null) {
+            return null;
+        }
+
+        //:: replaces at least one group
+        int length = head.length + tail.length;
+        if (gap >= 0 ? length > 14 : length != 16) {
+            return null;
+        }
+
+        byte[] address = new byte[16];
+        System.arraycopy(head, 0, address, 0, head.length);
+        System.arraycopy(tail, 0, address, address.length - tail.length, tail.length);
+        return address;
+    }
+
+    //Colon separated groups of up to 4 hex digits, the last one can be an IPv4 address
+    @Nullable
+    private static byte[] parseIpv6Groups(String groups) {
+        if (groups.isEmpty()) {
+            return new byte[0];
+        }
+
+        String[] parts = groups.split(":", -1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            if (i == parts.length - 1 && part.indexOf('.') >= 0) {
+                byte[] ipv4 = parseIpv4(part);
+                if (ipv4 == null) {
+                    return null;
+                }
+                bytes.write(ipv4, 0, ipv4.length);
+                continue;
+            }
+
+            if (part.isEmpty() || part.length() > 4) {
+                return null;
+            }
+            int value = 0;
+            for (int j = 0; j < part.length(); j++) {
+                int digit = hexDigit(part.charAt(j));
+                if (digit < 0) {
+                    return null;
+                }
+                value = value * 16 + digit;
+            }
+            bytes.write(value >> 8);
+            bytes.write(value & 0xff);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
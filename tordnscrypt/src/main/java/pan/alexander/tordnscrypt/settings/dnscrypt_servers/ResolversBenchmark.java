@@ -0,0 +1,282 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_servers;
+
+import static pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.DNSCRYPT_SERVERS_LATENCY;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+
+import dagger.Lazy;
+import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.modules.ModulesStatus;
+import pan.alexander.tordnscrypt.settings.PathVars;
+import pan.alexander.tordnscrypt.utils.enums.ModuleState;
+
+/*
+ * Measures the latency of DNSCrypt and DoH servers, ranks them and saves the results.
+ * DNSCrypt servers are probed with the unencrypted certificate query for the provider name,
+ * DoH servers with a query for their own host name, so no other domain is sent to the servers.
+ * All servers are probed concurrently in each round, a server that did not respond
+ * in the first round is not probed again.
+ * The probes go through Tor when it is ready, direct probes reveal the user IP to the servers
+ * and must be allowed explicitly.
+ */
+public class ResolversBenchmark {
+
+    static final int ROUNDS = 5;
+    private static final int PARALLELISM = 16;
+    private static final int PROBE_TIMEOUT_SEC = 2;
+    private static final int TOR_PROBE_TIMEOUT_SEC = 10;
+
+    private final Lazy<PreferenceRepository> preferenceRepository;
+    private final Lazy<PathVars> pathVars;
+
+    @Inject
+    public ResolversBenchmark(
+            Lazy<PreferenceRepository> preferenceRepository,
+            Lazy<PathVars> pathVars
+    ) {
+        this.preferenceRepository = preferenceRepository;
+        this.pathVars = pathVars;
+    }
+
+    public boolean isRoutedThroughTor() {
+        return getTorProxy() != null;
+    }
+
+    /*
+     * Probes the servers and returns the results from the fastest to the slowest,
+     * servers that never responded are at the end. Blocks for several seconds.
+     * Returns an empty list if Tor is not ready and direct probes are not allowed.
+     */
+    public List<Result> run(List<DNSServerItem> servers, boolean allowDirect) {
+        InetSocketAddress torProxy = getTorProxy();
+        if (torProxy == null && !allowDirect) {
+            logw("ResolversBenchmark Tor is not ready, direct probes are not allowed");
+            return Collections.emptyList();
+        }
+
+        ResolverProbe probe = torProxy == null
+                ? new ResolverProbe(null, PROBE_TIMEOUT_SEC * 1000)
+                : new ResolverProbe(torProxy, TOR_PROBE_TIMEOUT_SEC * 1000);
+
+        List<Target> targets = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (DNSServerItem server : servers) {
+            DnsStamp stamp = DnsStamp.parse(server.getSDNS());
+            if (stamp != null && names.add(server.getName())) {
+                targets.add(new Target(server.getName(), stamp));
+            }
+        }
+
+        if (targets.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        long start = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARALLELISM, targets.size()));
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                List<Callable<Void>> probes = new ArrayList<>();
+                for (Target target : targets) {
+                    if (round == 0 || !target.samples.isEmpty()) {
+                        probes.add(() -> {
+                            measure(probe, target);
+                            return null;
+                        });
+                    }
+                }
+                executor.invokeAll(probes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logw("ResolversBenchmark interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Target target : targets) {
+            results.add(target.toResult());
+        }
+        Collections.sort(results);
+
+        saveResults(results);
+
+        logi("ResolversBenchmark " + targets.size() + " servers"
+                + (torProxy == null ? " directly" : " through Tor") + " in "
+                + (System.currentTimeMillis() - start) + " ms"
+                + (results.get(0).isResponding() ? ", the fastest " + results.get(0) : ""));
+
+        return results;
+    }
+
+    //Results of the last run by server name
+    public Map<String, Result> getSavedResults() {
+        Map<String, Result> results = new HashMap<>();
+        for (String line : preferenceRepository.get().getStringSetPreference(DNSCRYPT_SERVERS_LATENCY)) {
+            Result result = Result.fromString(line);
+            if (result != null) {
+                results.put(result.name, result);
+            }
+        }
+        return results;
+    }
+
+    @Nullable
+    private InetSocketAddress getTorProxy() {
+        ModulesStatus modulesStatus = ModulesStatus.getInstance();
+        if (modulesStatus.getTorState() != ModuleState.RUNNING || !modulesStatus.isTorReady()) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(LOOPBACK_ADDRESS, Integer.parseInt(pathVars.get().getTorSOCKSPort()));
+        } catch (IllegalArgumentException e) {
+            logw("ResolversBenchmark wrong Tor SOCKS port " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void measure(ResolverProbe probe, Target target) {
+        long start = System.nanoTime();
+        try {
+            probe.probe(target.stamp);
+            int latency = (int) ((System.nanoTime() - start) / 1_000_000);
+            synchronized (target) {
+                target.samples.add(latency);
+            }
+        } catch (Exception e) {
+            synchronized (target) {
+                target.failures++;
+            }
+        }
+    }
+
+    private void saveResults(List<Result> results) {
+        Set<String> lines = new HashSet<>();
+        for (Result result : results) {
+            if (result.isResponding()) {
+                lines.add(result.toString());
+            }
+        }
+        preferenceRepository.get().setStringSetPreference(DNSCRYPT_SERVERS_LATENCY, lines);
+    }
+
+    private static final class Target {
+        final String name;
+        final DnsStamp stamp;
+        final List<Integer> samples = new ArrayList<>();
+        int failures;
+
+        Target(String name, DnsStamp stamp) {
+            this.name = name;
+            this.stamp = stamp;
+        }
+
+        synchronized Result toResult() {
+            if (samples.isEmpty()) {
+                return new Result(name, -1, -1, failures);
+            }
+
+            List<Integer> sorted = new ArrayList<>(samples);
+            Collections.sort(sorted);
+            return new Result(name, percentile(sorted, 50), percentile(sorted, 95), failures);
+        }
+
+        //Nearest-rank percentile of sorted values
+        private static int percentile(List<Integer> sorted, int percent) {
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+            return sorted.get(Math.max(rank, 1) - 1);
+        }
+    }
+
+    public static final class Result implements Comparable<Result> {
+        public final String name;
+        //Milliseconds, -1 if the server did not respond
+        public final int median;
+        public final int p95;
+        public final int failures;
+
+        Result(String name, int median, int p95, int failures) {
+            this.name = name;
+            this.median = median;
+            this.p95 = p95;
+            this.failures = failures;
+        }
+
+        public boolean isResponding() {
+            return median >= 0;
+        }
+
+        //Responding servers first, then fewer failures, lower median and lower p95
+        @Override
+        public int compareTo(Result other) {
+            if (isResponding() != other.isResponding()) {
+                return isResponding() ? -1 : 1;
+            }
+            if (failures != other.failures) {
+                return Integer.compare(failures, other.failures);
+            }
+            if (median != other.median) {
+                return Integer.compare(median, other.median);
+            }
+            return Integer.compare(p95, other.p95);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name + " " + median + " " + p95 + " " + failures;
+        }
+
+        @Nullable
+        static Result fromString(String line) {
+            String[] parts = line.split(" ");
+            if (parts.length != 4) {
+                return null;
+            }
+            try {
+                return new Result(parts[0], Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
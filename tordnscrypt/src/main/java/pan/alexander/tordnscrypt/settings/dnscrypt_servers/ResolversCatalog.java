@@ -0,0 +1,428 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_servers;
+
+import static pan.alexander.tordnscrypt.assistance.AccelerateDevelop.accelerated;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+import androidx.preference.PreferenceManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import pan.alexander.tordnscrypt.R;
+import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
+
+/*
+ * Compiles a resolvers list, such as public-resolvers.md, relays.md or own-resolvers.md,
+ * into an index of names, descriptions, stamps and decoded stamp properties.
+ * The index is kept in memory and in the cache dir, and is compiled again only when the size
+ * or the modification time of the list changes, so the screens do not parse the markdown on each visit.
+ */
+public final class ResolversCatalog {
+
+    public static final int FLAG_DNSCRYPT = 1;
+    public static final int FLAG_DOH = 1 << 1;
+    public static final int FLAG_RELAY = 1 << 2;
+    public static final int FLAG_DNSSEC = 1 << 3;
+    public static final int FLAG_NOLOG = 1 << 4;
+    public static final int FLAG_NOFILTER = 1 << 5;
+    public static final int FLAG_IPV6 = 1 << 6;
+    private static final int FLAGS_COUNT = 7;
+
+    private static final int INDEX_MAGIC = 0x49524331;
+    private static final int INDEX_VERSION = 1;
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    //A list changed within the modification time granularity may change again unnoticed
+    private static final long SOURCE_MIN_AGE_MSEC = 2000;
+
+    private static final String STAMP_PREFIX = "sdns://";
+    private static final int STAMP_DNSCRYPT = 0x01;
+    private static final int STAMP_DOH = 0x02;
+    private static final int STAMP_RELAY = 0x81;
+
+    //Catalogs by list path
+    private static final Map<String, ResolversCatalog> catalogs = new HashMap<>();
+
+    private final long sourceSize;
+    private final long sourceLastModified;
+    private final String[] names;
+    private final String[] descriptions;
+    private final String[] stamps;
+    private final int[] flags;
+    //Entries that have the flag, by flag bit
+    private final BitSet[] flagBitmaps = new BitSet[FLAGS_COUNT];
+
+    private ResolversCatalog(long sourceSize, long sourceLastModified,
+                             String[] names, String[] descriptions, String[] stamps, int[] flags) {
+        this.sourceSize = sourceSize;
+        this.sourceLastModified = sourceLastModified;
+        this.names = names;
+        this.descriptions = descriptions;
+        this.stamps = stamps;
+        this.flags = flags;
+
+        for (int bit = 0; bit < FLAGS_COUNT; bit++) {
+            flagBitmaps[bit] = new BitSet(flags.length);
+        }
+        for (int i = 0; i < flags.length; i++) {
+            for (int bit = 0; bit < FLAGS_COUNT; bit++) {
+                if ((flags[i] & (1 << bit)) != 0) {
+                    flagBitmaps[bit].set(i);
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the catalog of the list at path, compiles it if the list has changed.
+     * Reads files, so do not call it on the main thread unless the catalog was loaded before.
+     */
+    public static ResolversCatalog load(Context context, String path) {
+        File source = new File(path);
+        if (!source.isFile()) {
+            return empty();
+        }
+
+        long size = source.length();
+        long lastModified = source.lastModified();
+
+        synchronized (catalogs) {
+            ResolversCatalog catalog = catalogs.get(path);
+            if (catalog != null && catalog.isCompiledFrom(size, lastModified)) {
+                return catalog;
+            }
+        }
+
+        boolean keep = System.currentTimeMillis() - lastModified >= SOURCE_MIN_AGE_MSEC;
+        File index = new File(context.getCacheDir(), source.getName() + INDEX_SUFFIX);
+
+        ResolversCatalog catalog = readIndex(index, size, lastModified);
+        if (catalog == null) {
+            long start = System.currentTimeMillis();
+            catalog = compile(FileManager.readTextFileSynchronous(context, path), size, lastModified);
+            logi("ResolversCatalog compiled " + source.getName() + " " + catalog.size() + " entries in "
+                    + (System.currentTimeMillis() - start) + " ms");
+
+            if (keep) {
+                writeIndex(index, catalog);
+            }
+        }
+
+        if (keep) {
+            synchronized (catalogs) {
+                catalogs.put(path, catalog);
+            }
+        }
+
+        return catalog;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    public String getDescription(int i) {
+        return descriptions[i];
+    }
+
+    public String getStamp(int i) {
+        return stamps[i];
+    }
+
+    public int getFlags(int i) {
+        return flags[i];
+    }
+
+    //Indexes of the servers that the filter accepts, relays are never accepted
+    public BitSet select(Filter filter) {
+        BitSet selected = new BitSet(size());
+        if (filter.useDnsCryptServers) {
+            selected.or(bitmap(FLAG_DNSCRYPT));
+        }
+        if (filter.useDohServers) {
+            selected.or(bitmap(FLAG_DOH));
+        }
+        if (filter.requireDnssec) {
+            selected.and(bitmap(FLAG_DNSSEC));
+        }
+        if (filter.requireNofilter) {
+            selected.and(bitmap(FLAG_NOFILTER));
+        }
+        if (filter.requireNolog) {
+            selected.and(bitmap(FLAG_NOLOG));
+        }
+        if (!filter.useIpv4Servers) {
+            selected.and(bitmap(FLAG_IPV6));
+        }
+        if (!filter.useIpv6Servers) {
+            selected.andNot(bitmap(FLAG_IPV6));
+        }
+        return selected;
+    }
+
+    //Decodes the protocol and properties from the beginning of a stamp without sdns://
+    static int decodeFlags(String name, String stamp) {
+        int flags = 0;
+
+        if (name.contains("v6") || name.contains("ip6")) {
+            flags |= FLAG_IPV6;
+        }
+
+        if (stamp.length() < 7) {
+            return flags;
+        }
+
+        byte[] bin;
+        try {
+            bin = Base64.decode(stamp.substring(0, 7), Base64.URL_SAFE);
+        } catch (IllegalArgumentException e) {
+            return flags;
+        }
+
+        if (bin.length < 2) {
+            return flags;
+        }
+
+        switch (bin[0] & 0xff) {
+            case STAMP_DNSCRYPT:
+                flags |= FLAG_DNSCRYPT;
+                break;
+            case STAMP_DOH:
+                flags |= FLAG_DOH;
+                break;
+            case STAMP_RELAY:
+                return flags | FLAG_RELAY;
+            default:
+                return flags;
+        }
+
+        if ((bin[1] & 1) == 1) {
+            flags |= FLAG_DNSSEC;
+        }
+        if (((bin[1] >> 1) & 1) == 1) {
+            flags |= FLAG_NOLOG;
+        }
+        if (((bin[1] >> 2) & 1) == 1) {
+            flags |= FLAG_NOFILTER;
+        }
+
+        return flags;
+    }
+
+    private BitSet bitmap(int flag) {
+        return flagBitmaps[Integer.numberOfTrailingZeros(flag)];
+    }
+
+    private boolean isCompiledFrom(long size, long lastModified) {
+        return sourceSize == size && sourceLastModified == lastModified;
+    }
+
+    private static ResolversCatalog empty() {
+        return new ResolversCatalog(0, 0, new String[0], new String[0], new String[0], new int[0]);
+    }
+
+    /*
+     * An entry is a "## name" line, description lines and a "sdns://" stamp line.
+     * Entries with a name that was already used are skipped.
+     */
+    private static ResolversCatalog compile(@Nullable List<String> lines, long size, long lastModified) {
+        List<String> names = new ArrayList<>();
+        List<String> descriptions = new ArrayList<>();
+        List<String> stamps = new ArrayList<>();
+        Set<String> usedNames = new HashSet<>();
+
+        if (lines != null) {
+            String name = null;
+            StringBuilder description = new StringBuilder();
+            for (String line : lines) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+
+                if (trimmed.startsWith("##")) {
+                    name = trimmed.substring(2).replaceAll("\\s+", "");
+                    description.setLength(0);
+                } else if (name != null && trimmed.startsWith(STAMP_PREFIX)) {
+                    if (!name.isEmpty() && usedNames.add(name)) {
+                        names.add(name);
+                        descriptions.add(description.toString().replaceAll("\\s", " "));
+                        stamps.add(trimmed.substring(STAMP_PREFIX.length()));
+                    }
+                    name = null;
+                } else if (name != null) {
+                    description.append(line).append('\n');
+                }
+            }
+        }
+
+        int[] flags = new int[names.size()];
+        for (int i = 0; i < flags.length; i++) {
+            flags[i] = decodeFlags(names.get(i), stamps.get(i));
+        }
+
+        return new ResolversCatalog(
+                size,
+                lastModified,
+                names.toArray(new String[0]),
+                descriptions.toArray(new String[0]),
+                stamps.toArray(new String[0]),
+                flags
+        );
+    }
+
+    @Nullable
+    private static ResolversCatalog readIndex(File index, long size, long lastModified) {
+        if (!index.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || in.readLong() != size || in.readLong() != lastModified) {
+                return null;
+            }
+
+            int count = in.readInt();
+            String[] names = new String[count];
+            String[] descriptions = new String[count];
+            String[] stamps = new String[count];
+            int[] flags = new int[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = in.readUTF();
+                descriptions[i] = in.readUTF();
+                stamps[i] = in.readUTF();
+                flags[i] = in.readUnsignedByte();
+            }
+
+            return new ResolversCatalog(size, lastModified, names, descriptions, stamps, flags);
+        } catch (IOException | RuntimeException e) {
+            logw("ResolversCatalog read index " + index.getName(), e);
+            return null;
+        }
+    }
+
+    private static void writeIndex(File index, ResolversCatalog catalog) {
+        File temporary = new File(index.getPath() + TEMPORARY_FILE_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(catalog.sourceSize);
+            out.writeLong(catalog.sourceLastModified);
+            out.writeInt(catalog.size());
+            for (int i = 0; i < catalog.size(); i++) {
+                out.writeUTF(catalog.names[i]);
+                out.writeUTF(catalog.descriptions[i]);
+                out.writeUTF(catalog.stamps[i]);
+                out.writeByte(catalog.flags[i]);
+            }
+        } catch (IOException e) {
+            logw("ResolversCatalog write index " + index.getName(), e);
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            return;
+        }
+
+        if (!temporary.renameTo(index)) {
+            logw("ResolversCatalog unable to rename index " + temporary.getName());
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+        }
+    }
+
+    //Server preferences, read once for all entries
+    public static final class Filter {
+        final boolean requireDnssec;
+        final boolean requireNofilter;
+        final boolean requireNolog;
+        final boolean useDnsCryptServers;
+        final boolean useDohServers;
+        final boolean useIpv4Servers;
+        final boolean useIpv6Servers;
+
+        private Filter(boolean requireDnssec, boolean requireNofilter, boolean requireNolog,
+                       boolean useDnsCryptServers, boolean useDohServers,
+                       boolean useIpv4Servers, boolean useIpv6Servers) {
+            this.requireDnssec = requireDnssec;
+            this.requireNofilter = requireNofilter;
+            this.requireNolog = requireNolog;
+            this.useDnsCryptServers = useDnsCryptServers;
+            this.useDohServers = useDohServers;
+            this.useIpv4Servers = useIpv4Servers;
+            this.useIpv6Servers = useIpv6Servers;
+        }
+
+        public static Filter fromPreferences(Context context) {
+            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+
+            boolean requireNofilter = sp.getBoolean("require_nofilter", false);
+            if (!accelerated && context.getText(R.string.package_name).toString().contains(".gp")) {
+                requireNofilter = true;
+            }
+
+            return new Filter(
+                    sp.getBoolean("require_dnssec", false),
+                    requireNofilter,
+                    sp.getBoolean("require_nolog", false),
+                    sp.getBoolean("dnscrypt_servers", true),
+                    sp.getBoolean("doh_servers", true),
+                    sp.getBoolean("ipv4_servers", true),
+                    sp.getBoolean("ipv6_servers", false)
+            );
+        }
+
+        boolean accept(int flags) {
+            boolean dnsCrypt = (flags & FLAG_DNSCRYPT) != 0;
+            boolean doh = (flags & FLAG_DOH) != 0;
+            boolean ipv6 = (flags & FLAG_IPV6) != 0;
+            return (dnsCrypt && useDnsCryptServers || doh && useDohServers)
+                    && (!requireDnssec || (flags & FLAG_DNSSEC) != 0)
+                    && (!requireNofilter || (flags & FLAG_NOFILTER) != 0)
+                    && (!requireNolog || (flags & FLAG_NOLOG) != 0)
+                    && (useIpv4Servers || ipv6)
+                    && (useIpv6Servers || !ipv6);
+        }
+    }
+}
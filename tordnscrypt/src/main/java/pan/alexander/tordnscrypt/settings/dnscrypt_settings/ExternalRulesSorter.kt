@@ -0,0 +1,208 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_settings
+
+import java.io.BufferedReader
+import java.io.Closeable
+import java.io.File
+import java.io.PrintWriter
+import java.util.PriorityQueue
+
+//Bounds the memory used by the lines that are not yet written to a run file
+private const val MAX_RUN_LINES = 100_000
+private const val MAX_RUN_CHARS = 4 * 1024 * 1024
+
+//Zero padded insertion number that precedes a line when the order is kept
+private const val SEQUENCE_LENGTH = 19
+
+/**
+ * Exact deduplication of large rule lists in bounded memory.
+ * Added lines are sorted in runs that are saved to temporary files when the run is full,
+ * then the runs are merged, so each unique line is written once in sorted order.
+ *
+ * With [keepOrder] the first copy of each line is written in the insertion order instead,
+ * for rules where the first match wins, such as forwarding rules. Lines are then prefixed
+ * with their insertion number, deduplicated by a merge ordered by line
+ * and sorted back by the insertion number with a second merge.
+ */
+class ExternalRulesSorter(
+    private val tempDir: File,
+    private val keepOrder: Boolean = false
+) : Closeable {
+
+    private val runs = SortedRuns(if (keepOrder) LINE_THEN_SEQUENCE else naturalOrder())
+    private var sequence = 0L
+
+    fun add(line: String) {
+        if (keepOrder) {
+            runs.add(sequence++.toString().padStart(SEQUENCE_LENGTH, '0') + line)
+        } else {
+            runs.add(line)
+        }
+    }
+
+    /**
+     * Writes unique lines and returns their quantity.
+     * Stops when the thread is interrupted.
+     */
+    fun mergeTo(printWriter: PrintWriter): Int {
+        var count = 0
+
+        if (!keepOrder) {
+            var lastLine: String? = null
+            runs.merge { line ->
+                if (line != lastLine) {
+                    printWriter.println(line)
+                    lastLine = line
+                    count++
+                }
+            }
+            return count
+        }
+
+        SortedRuns(naturalOrder()).use { firstCopies ->
+            var lastEntry: String? = null
+            runs.merge { entry ->
+                val previous = lastEntry
+                if (previous == null || compareLines(entry, previous) != 0) {
+                    firstCopies.add(entry)
+                    lastEntry = entry
+                }
+            }
+
+            firstCopies.merge { entry ->
+                printWriter.println(entry.substring(SEQUENCE_LENGTH))
+                count++
+            }
+        }
+
+        return count
+    }
+
+    override fun close() {
+        runs.close()
+    }
+
+    private inner class SortedRuns(private val comparator: Comparator<String>) : Closeable {
+
+        private val runFiles = mutableListOf<File>()
+        private var run = ArrayList<String>()
+        private var runChars = 0
+
+        fun add(entry: String) {
+            run.add(entry)
+            runChars += entry.length
+
+            if (run.size >= MAX_RUN_LINES || runChars >= MAX_RUN_CHARS) {
+                saveRun()
+            }
+        }
+
+        //Passes all entries to the consumer in the comparator order
+        fun merge(consumer: (String) -> Unit) {
+            if (runFiles.isEmpty()) {
+                run.sortWith(comparator)
+                for (entry in run) {
+                    if (Thread.currentThread().isInterrupted) {
+                        break
+                    }
+                    consumer(entry)
+                }
+                clearRun()
+                return
+            }
+
+            if (run.isNotEmpty()) {
+                saveRun()
+            }
+
+            val readers = runFiles.map { RunReader(it.bufferedReader()) }
+            try {
+                val queue = PriorityQueue<RunReader>(readers.size) { first, second ->
+                    comparator.compare(first.line.orEmpty(), second.line.orEmpty())
+                }
+                readers.filter { it.next() }.forEach { queue.add(it) }
+
+                while (queue.isNotEmpty() && !Thread.currentThread().isInterrupted) {
+                    val reader = queue.poll() ?: break
+                    consumer(reader.line.orEmpty())
+
+                    if (reader.next()) {
+                        queue.add(reader)
+                    }
+                }
+            } finally {
+                readers.forEach { it.close() }
+            }
+        }
+
+        override fun close() {
+            clearRun()
+            runFiles.forEach { it.delete() }
+            runFiles.clear()
+        }
+
+        private fun saveRun() {
+            val file = File.createTempFile("rules_run", ".tmp", tempDir)
+            runFiles.add(file)
+            run.sortWith(comparator)
+            file.printWriter().use { writer ->
+                run.forEach { writer.println(it) }
+            }
+            clearRun()
+        }
+
+        private fun clearRun() {
+            run = ArrayList()
+            runChars = 0
+        }
+    }
+
+    private class RunReader(private val reader: BufferedReader) : Closeable {
+        var line: String? = null
+            private set
+
+        fun next(): Boolean {
+            line = reader.readLine()
+            return line != null
+        }
+
+        override fun close() = reader.close()
+    }
+
+    private companion object {
+        //Orders entries by the line after the insertion number, then by the insertion number
+        val LINE_THEN_SEQUENCE = Comparator<String> { first, second ->
+            val lines = compareLines(first, second)
+            if (lines != 0) lines else first.compareTo(second)
+        }
+
+        fun compareLines(first: String, second: String): Int {
+            val length = minOf(first.length, second.length)
+            for (i in SEQUENCE_LENGTH until length) {
+                val difference = first[i] - second[i]
+                if (difference != 0) {
+                    return difference
+                }
+            }
+            return first.length - second.length
+        }
+    }
+}
@@ -35,17 +35,13 @@ import java.io.BufferedReader
 import java.io.File
 import java.io.InputStreamReader
 import java.io.PrintWriter
-import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executors
 import java.util.concurrent.locks.ReentrantLock
-import kotlin.collections.ArrayList
-
-private val blackListHostRulesRegex = Regex("^[a-zA-Z\\d-.=_*\\[\\]?,]+$")
-private val blacklistIPRulesRegex = Regex("^(?:[0-9*]{1,3}\\.){1,3}[0-9*]{1,3}(?:/\\d+)*$")
-private val cloakingRulesRegex = Regex("^[a-zA-Z\\d-.=_*]+[ \\t]+[a-zA-Z\\d-.=_*]+$")
-private val forwardingRulesRegex =
-    Regex("^[a-zA-Z\\d-._]+[ \\t]+(?:[0-9*]{1,3}\\.){3}[0-9*]{1,3}(?:, ?(?:[0-9*]{1,3}\\.){3}[0-9*]{1,3})*$")
-private val whiteListHostRulesRegex = Regex("^[a-zA-Z\\d-.=_*\\[\\]?]+$")
-private val hostFileRegex = Regex("^(?:0.0.0.0|127.0.0.1)[ \\t]+[a-zA-Z\\d-._]+$")
+
+private const val LINES_IN_BATCH = 4096
+private const val MAX_QUEUED_BATCHES = 16
+private val END_OF_SOURCE = emptyList<String>()
 private const val itpdRedirectAddress = "*i2p 10.191.0.1"
 private val excludeFromHost = listOf("localhost", "localhost.localdomain", "local", META_ADDRESS)
 private val reentrantLock = ReentrantLock()
@@ -84,13 +80,9 @@ class ImportRules(
 
     private var powerLocked = false
 
-    private var blackListFileIsHost = false
-
     private val contentResolver = context.applicationContext.contentResolver
 
     private var linesCount = 0
-    private var hash = 0
-    private var hashes = IntArray(0)
     private var savedTime = System.currentTimeMillis()
 
     interface OnDNSCryptRuleAddLineListener {
@@ -110,7 +102,7 @@ class ImportRules(
                 blackListHostRulesPath,
                 blackListHostRulesLocalPath,
                 blackListHostRulesRemotePath,
-                blackListHostRulesRegex,
+                RulesLineValidator::isBlackListHostRule,
                 filePathToImport
             )
 
@@ -118,7 +110,7 @@ class ImportRules(
                 whiteListHostRulesPath,
                 whiteListHostRulesLocalPath,
                 whiteListHostRulesRemotePath,
-                whiteListHostRulesRegex,
+                RulesLineValidator::isWhiteListHostRule,
                 filePathToImport
             )
 
@@ -126,7 +118,7 @@ class ImportRules(
                 blackListIPRulesPath,
                 blackListIPRulesLocalPath,
                 blackListIPRulesRemotePath,
-                blacklistIPRulesRegex,
+                RulesLineValidator::isBlackListIPRule,
                 filePathToImport
             )
 
@@ -134,7 +126,7 @@ class ImportRules(
                 cloakingRulesPath,
                 cloakingRulesLocalPath,
                 cloakingRulesRemotePath,
-                cloakingRulesRegex,
+                RulesLineValidator::isCloakingRule,
                 filePathToImport
             )
 
@@ -142,7 +134,7 @@ class ImportRules(
                 forwardingRulesPath,
                 forwardingRulesLocalPath,
                 forwardingRulesRemotePath,
-                forwardingRulesRegex,
+                RulesLineValidator::isForwardingRule,
                 filePathToImport
             )
 
@@ -155,7 +147,7 @@ class ImportRules(
         rulesFilePath: String,
         localRulesFilePath: String,
         remoteRulesFilePath: String,
-        rulesRegex: Regex,
+        isRuleValid: (String) -> Boolean,
         filesToImport: Array<*>
     ) {
 
@@ -172,12 +164,11 @@ class ImportRules(
         try {
             if (filesToImport.isNotEmpty()) {
                 File(rulesFilePath).printWriter().use {
-                    addDefaultLinesIfRequired(it)
                     mixFiles(
                         it,
                         localRulesFilePath,
                         remoteRulesFilePath,
-                        rulesRegex,
+                        isRuleValid,
                         filesToImport.toMutableList()
                     )
                 }
@@ -209,7 +200,7 @@ class ImportRules(
         printWriter: PrintWriter,
         localRulesFilePath: String,
         remoteRulesFilePath: String,
-        rulesRegex: Regex,
+        isRuleValid: (String) -> Boolean,
         filesToImport: MutableList<Any?>
     ) {
 
@@ -224,136 +215,154 @@ class ImportRules(
             filesToImport.add(addFile)
         }
 
-        val hashIsRequired = filesToImport.size > 1
+        //dnscrypt-proxy uses the first matching forwarding rule, so their order is kept
+        val keepOrder = DNSCryptRulesVariant.FORWARDING == rulesVariant
+
+        //Default lines are written first and skipped in the rules, as the merged file may already contain them
+        val defaultLines = getDefaultLines()
+        defaultLines.forEach { printWriter.println(it) }
+
+        ExternalRulesSorter(context.cacheDir, keepOrder).use { sorter ->
 
-        filesToImport.forEachIndexed { index, file ->
+            readSources(filesToImport.filterNotNull(), isRuleValid, keepOrder) { lines ->
+                lines.forEach {
+                    if (it !in defaultLines) {
+                        sorter.add(it)
+                    }
+                }
 
-            if (file is String) {
-                mixFilesWithPass(index, file, rulesRegex, hashIsRequired, printWriter)
-            } else if (file is Uri) {
-                mixFilesWithUri(index, file, rulesRegex, hashIsRequired, printWriter)
+                //Lines are deduplicated when all files are read, so this count includes duplicates
+                linesCount += lines.size
+                if (System.currentTimeMillis() - savedTime > 500) {
+                    onDNSCryptRuleAddLineListener?.onDNSCryptRuleLineAdded(linesCount)
+                    savedTime = System.currentTimeMillis()
+                }
             }
+
+            linesCount = defaultLines.size + sorter.mergeTo(printWriter)
         }
 
         onDNSCryptRuleAddLineListener?.onDNSCryptRuleLineAdded(linesCount)
 
-        if (linesCount > 0) {
+        if (linesCount > defaultLines.size) {
             restartDNSCryptIfRequired()
         }
     }
 
-    private fun mixFilesWithPass(
-        index: Int, file: String,
-        rulesRegex: Regex, hashIsRequired: Boolean, printWriter: PrintWriter
+    /*
+     * Each source is decoded and validated by its own worker,
+     * the batches of valid lines are passed to the consumer on the current thread.
+     * To keep the order, the sources are read one after another by a single worker.
+     */
+    private fun readSources(
+        sources: List<Any>,
+        isRuleValid: (String) -> Boolean,
+        keepOrder: Boolean,
+        consumer: (List<String>) -> Unit
     ) {
+        if (sources.isEmpty()) {
+            return
+        }
 
-        if (file.isNotEmpty()) {
-            val inputFile = File(file)
-
-            if (inputFile.isFile) {
-                try {
-                    if (DNSCryptRulesVariant.BLACKLIST_HOSTS == rulesVariant) {
-                        blackListFileIsHost = isInputFileFormatCorrect(inputFile, hostFileRegex)
-                    }
+        val batches = ArrayBlockingQueue<List<String>>(MAX_QUEUED_BATCHES)
+        val workers = Executors.newFixedThreadPool(
+            if (keepOrder) {
+                1
+            } else {
+                sources.size.coerceAtMost(Runtime.getRuntime().availableProcessors().coerceAtLeast(1))
+            }
+        )
 
-                    val hashesNew = ArrayList<Int>()
-
-                    if (blackListFileIsHost || isInputFileFormatCorrect(inputFile, rulesRegex)) {
-                        inputFile.bufferedReader().use { reader ->
-                            mixFilesCommonPart(
-                                printWriter,
-                                reader,
-                                rulesRegex,
-                                hashIsRequired,
-                                index,
-                                hashesNew
-                            )
+        try {
+            sources.forEach { source ->
+                workers.execute {
+                    try {
+                        readSource(source, isRuleValid) { batches.put(it) }
+                    } catch (ignored: InterruptedException) {
+                        //Import was cancelled
+                    } catch (e: Exception) {
+                        Log.e(LOG_TAG, "ImportRules Exception " + e.message + " " + e.cause)
+                    } finally {
+                        try {
+                            batches.put(END_OF_SOURCE)
+                        } catch (ignored: InterruptedException) {
+                            //Import was cancelled
                         }
                     }
-                } catch (e: Exception) {
-                    Log.e(LOG_TAG, "ImportRules Exception " + e.message + " " + e.cause)
                 }
             }
-        }
-    }
-
-    private fun mixFilesWithUri(
-        index: Int, uri: Uri,
-        rulesRegex: Regex, hashIsRequired: Boolean, printWriter: PrintWriter
-    ) {
-        try {
-            if (DNSCryptRulesVariant.BLACKLIST_HOSTS == rulesVariant) {
-                blackListFileIsHost = isInputFileFormatCorrect(uri, hostFileRegex)
-            }
 
-            val hashesNew = ArrayList<Int>()
-
-            if (blackListFileIsHost || isInputFileFormatCorrect(uri, rulesRegex)) {
-                contentResolver.openInputStream(uri)?.use { inputStream ->
-                    BufferedReader(InputStreamReader(inputStream)).use { reader ->
-                        mixFilesCommonPart(
-                            printWriter,
-                            reader,
-                            rulesRegex,
-                            hashIsRequired,
-                            index,
-                            hashesNew
-                        )
-                    }
+            var sourcesInProgress = sources.size
+            while (sourcesInProgress > 0) {
+                val batch = batches.take()
+                if (batch === END_OF_SOURCE) {
+                    sourcesInProgress--
+                } else {
+                    consumer(batch)
                 }
             }
-        } catch (e: Exception) {
-            Log.e(LOG_TAG, "ImportRules Exception " + e.message + " " + e.cause)
+        } catch (e: InterruptedException) {
+            currentThread().interrupt()
+        } finally {
+            workers.shutdownNow()
         }
     }
 
-    private fun mixFilesCommonPart(
-        printWriter: PrintWriter, reader: BufferedReader,
-        rulesRegex: Regex, hashIsRequired: Boolean,
-        index: Int, hashesNew: ArrayList<Int>
+    private fun readSource(
+        source: Any,
+        isRuleValid: (String) -> Boolean,
+        batchConsumer: (List<String>) -> Unit
     ) {
-        var line = reader.readLine()?.trim()
-        while (line != null && !currentThread().isInterrupted) {
-            val lineReady = if (blackListFileIsHost) {
-                hostToBlackList(line)
-            } else {
-                cleanRule(line, rulesRegex)
-            }
+        val sourceIsHost = DNSCryptRulesVariant.BLACKLIST_HOSTS == rulesVariant
+                && isInputFileFormatCorrect(source, RulesLineValidator::isHostFileLine)
 
-            if (hashIsRequired) {
-                hash = lineReady.hashCode()
-            }
+        if (!sourceIsHost && !isInputFileFormatCorrect(source, isRuleValid)) {
+            return
+        }
 
-            if (lineReady.isNotEmpty() && (!hashIsRequired || index < 1 || Arrays.binarySearch(
-                    hashes,
-                    hash
-                ) < 0)
-            ) {
+        openReader(source)?.use { reader ->
+            var batch = ArrayList<String>(LINES_IN_BATCH)
+            val worker = currentThread()
 
-                if (hashIsRequired) {
-                    hashesNew += hash
+            var line = reader.readLine()
+            while (line != null && !worker.isInterrupted) {
+                val lineReady = if (sourceIsHost) {
+                    hostToBlackList(line.trim())
+                } else {
+                    cleanRule(line.trim(), isRuleValid)
                 }
 
-                printWriter.println(lineReady)
-                linesCount++
-                if (System.currentTimeMillis() - savedTime > 500) {
-                    onDNSCryptRuleAddLineListener?.onDNSCryptRuleLineAdded(linesCount)
-                    savedTime = System.currentTimeMillis()
+                if (lineReady.isNotEmpty()) {
+                    batch.add(lineReady)
+                    if (batch.size >= LINES_IN_BATCH) {
+                        batchConsumer(batch)
+                        batch = ArrayList(LINES_IN_BATCH)
+                    }
                 }
+
+                line = reader.readLine()
             }
-            line = reader.readLine()?.trim()
-        }
 
-        val arrNew = IntArray(hashes.size + hashesNew.size)
-        System.arraycopy(hashes, 0, arrNew, 0, hashes.size)
-        System.arraycopy(hashesNew.toIntArray(), 0, arrNew, hashes.size, hashesNew.size)
-        hashes = arrNew
-        hashes.sort()
+            if (batch.isNotEmpty()) {
+                batchConsumer(batch)
+            }
+        }
     }
 
-    private fun cleanRule(line: String, regExp: Regex): String {
+    private fun openReader(source: Any): BufferedReader? =
+        when (source) {
+            is String -> source.takeIf { it.isNotEmpty() }?.let { File(it) }
+                ?.takeIf { it.isFile }?.bufferedReader()
+            is File -> source.takeIf { it.isFile }?.bufferedReader()
+            is Uri -> contentResolver.openInputStream(source)?.let {
+                BufferedReader(InputStreamReader(it))
+            }
+            else -> null
+        }
+
+    private fun cleanRule(line: String, isRuleValid: (String) -> Boolean): String {
 
-        if (line.startsWith("#") || !line.matches(regExp)) {
+        if (line.startsWith("#") || !isRuleValid(line)) {
             return ""
         }
 
@@ -363,7 +372,7 @@ class ImportRules(
     private fun hostToBlackList(line: String): String {
         var output = ""
 
-        if (line.startsWith("#") || !line.matches(hostFileRegex)) {
+        if (line.startsWith("#") || !RulesLineValidator.isHostFileLine(line)) {
             return ""
         }
 
@@ -379,18 +388,15 @@ class ImportRules(
         return output
     }
 
-    private fun addDefaultLinesIfRequired(printWriter: PrintWriter) {
-        if (DNSCryptRulesVariant.CLOAKING == rulesVariant) {
-            printWriter.println(itpdRedirectAddress)
-        } else if (DNSCryptRulesVariant.FORWARDING == rulesVariant) {
-            printWriter.println(
-                "onion 127.0.0.1:" + App.instance.daggerComponent.getPathVars().get().torDNSPort
-            )
+    private fun getDefaultLines(): List<String> =
+        when (rulesVariant) {
+            DNSCryptRulesVariant.CLOAKING -> listOf(itpdRedirectAddress)
+            DNSCryptRulesVariant.FORWARDING -> listOf("onion 127.0.0.1:" + pathVars.torDNSPort)
+            else -> emptyList()
         }
-    }
 
-    private fun isInputFileFormatCorrect(file: File, regExp: Regex): Boolean {
-        file.bufferedReader().use {
+    private fun isInputFileFormatCorrect(source: Any, isRuleValid: (String) -> Boolean): Boolean {
+        openReader(source)?.use {
             var line = it.readLine()?.trim()
             while (line != null) {
 
@@ -399,7 +405,7 @@ class ImportRules(
                 }
 
                 if (line.isNotEmpty() && !line.contains("#") && !line.contains("!")) {
-                    return line.matches(regExp)
+                    return isRuleValid(line)
                 }
 
                 line = it.readLine()?.trim()
@@ -408,28 +414,6 @@ class ImportRules(
         return false
     }
 
-    private fun isInputFileFormatCorrect(uri: Uri, regExp: Regex): Boolean {
-        contentResolver.openInputStream(uri)?.use { inputStream ->
-            BufferedReader(InputStreamReader(inputStream)).use { reader ->
-                var line: String? = reader.readLine().trim()
-                while (line != null) {
-
-                    if (currentThread().isInterrupted) {
-                        return false
-                    }
-
-                    if (line.isNotEmpty() && !line.contains("#") && !line.contains("!")) {
-                        return line.matches(regExp)
-                    }
-
-                    line = reader.readLine().trim()
-                }
-            }
-        }
-
-        return false
-    }
-
     private fun restartDNSCryptIfRequired() {
         if (ModulesStatus.getInstance().dnsCryptState == ModuleState.RUNNING) {
             ModulesRestarter.restartDNSCrypt(context)
@@ -0,0 +1,192 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_settings
+
+/**
+ * Validators of the imported DNSCrypt rules lines.
+ * They accept the same lines as the regular expressions they replace,
+ * but do not allocate and pass each line only once.
+ * Lines should be trimmed.
+ */
+object RulesLineValidator {
+
+    //^[a-zA-Z\d-.=_*\[\]?,]+$
+    @JvmStatic
+    fun isBlackListHostRule(line: String): Boolean =
+        line.isNotEmpty() && line.all { isHostChar(it) || it == '[' || it == ']' || it == '?' || it == ',' }
+
+    //^[a-zA-Z\d-.=_*\[\]?]+$
+    @JvmStatic
+    fun isWhiteListHostRule(line: String): Boolean =
+        line.isNotEmpty() && line.all { isHostChar(it) || it == '[' || it == ']' || it == '?' }
+
+    //^(?:[0-9*]{1,3}\.){1,3}[0-9*]{1,3}(?:/\d+)*$
+    @JvmStatic
+    fun isBlackListIPRule(line: String): Boolean {
+        val end = skipIpMask(line, 0, 2, 4)
+        if (end < 0) {
+            return false
+        }
+
+        var position = end
+        while (position < line.length) {
+            if (line[position] != '/') {
+                return false
+            }
+            val start = ++position
+            while (position < line.length && isDigit(line[position])) {
+                position++
+            }
+            if (position == start) {
+                return false
+            }
+        }
+        return true
+    }
+
+    //^[a-zA-Z\d-.=_*]+[ \t]+[a-zA-Z\d-.=_*]+$
+    @JvmStatic
+    fun isCloakingRule(line: String): Boolean {
+        var position = skipChars(line, 0) { isHostChar(it) }
+        if (position == 0) {
+            return false
+        }
+        val spaceStart = position
+        position = skipChars(line, position) { isSpaceOrTab(it) }
+        if (position == spaceStart) {
+            return false
+        }
+        val end = skipChars(line, position) { isHostChar(it) }
+        return end > position && end == line.length
+    }
+
+    //^[a-zA-Z\d-._]+[ \t]+(?:[0-9*]{1,3}\.){3}[0-9*]{1,3}(?:, ?(?:[0-9*]{1,3}\.){3}[0-9*]{1,3})*$
+    @JvmStatic
+    fun isForwardingRule(line: String): Boolean {
+        var position = skipChars(line, 0) { isDomainChar(it) }
+        if (position == 0) {
+            return false
+        }
+        val spaceStart = position
+        position = skipChars(line, position) { isSpaceOrTab(it) }
+        if (position == spaceStart) {
+            return false
+        }
+
+        position = skipIpMask(line, position, 4, 4)
+        while (position > 0 && position < line.length) {
+            if (line[position] != ',') {
+                return false
+            }
+            position++
+            if (position < line.length && line[position] == ' ') {
+                position++
+            }
+            position = skipIpMask(line, position, 4, 4)
+        }
+        return position == line.length
+    }
+
+    //^(?:0.0.0.0|127.0.0.1)[ \t]+[a-zA-Z\d-._]+$
+    //The dots of the addresses are not escaped in the pattern, so they match any char
+    @JvmStatic
+    fun isHostFileLine(line: String): Boolean {
+        val position = when {
+            startsWithAddress(line, "0.0.0.0") -> 7
+            startsWithAddress(line, "127.0.0.1") -> 9
+            else -> return false
+        }
+        val hostStart = skipChars(line, position) { isSpaceOrTab(it) }
+        if (hostStart == position) {
+            return false
+        }
+        val end = skipChars(line, hostStart) { isDomainChar(it) }
+        return end > hostStart && end == line.length
+    }
+
+    private fun startsWithAddress(line: String, address: String): Boolean {
+        if (line.length < address.length) {
+            return false
+        }
+        for (i in address.indices) {
+            val matches = if (address[i] == '.') {
+                !isLineTerminator(line[i])
+            } else {
+                line[i] == address[i]
+            }
+            if (!matches) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Skips minParts to maxParts groups of one to three [0-9*] chars separated by dots.
+     * Returns the position after the mask or -1.
+     */
+    private fun skipIpMask(line: String, start: Int, minParts: Int, maxParts: Int): Int {
+        var position = start
+        var parts = 0
+        while (parts < maxParts) {
+            val partStart = position
+            while (position < line.length && position - partStart < 3
+                && (isDigit(line[position]) || line[position] == '*')
+            ) {
+                position++
+            }
+            if (position == partStart) {
+                return -1
+            }
+            parts++
+
+            if (parts < maxParts && position + 1 < line.length && line[position] == '.') {
+                position++
+            } else {
+                break
+            }
+        }
+        return if (parts >= minParts) position else -1
+    }
+
+    private inline fun skipChars(line: String, start: Int, predicate: (Char) -> Boolean): Int {
+        var position = start
+        while (position < line.length && predicate(line[position])) {
+            position++
+        }
+        return position
+    }
+
+    //[a-zA-Z\d-._]
+    private fun isDomainChar(char: Char): Boolean =
+        char in 'a'..'z' || char in 'A'..'Z' || isDigit(char) || char == '-' || char == '.' || char == '_'
+
+    //[a-zA-Z\d-.=_*]
+    private fun isHostChar(char: Char): Boolean =
+        isDomainChar(char) || char == '=' || char == '*'
+
+    private fun isDigit(char: Char): Boolean = char in '0'..'9'
+
+    private fun isSpaceOrTab(char: Char): Boolean = char == ' ' || char == '\t'
+
+    //Chars that are not matched by . in a pattern
+    private fun isLineTerminator(char: Char): Boolean =
+        char == '\n' || char == '\r' || char == '\u0085' || char == '\u2028' || char == '\u2029'
+}
@@ -26,7 +26,9 @@ data class FirewallAppModel(val applicationData: ApplicationData,
                             var allowWifi: Boolean,
                             var allowGsm: Boolean,
                             var allowRoaming: Boolean,
-                            var allowVPN: Boolean): Comparable<FirewallAppModel> {
+                            var allowVPN: Boolean,
+                            val traffic: Long = 0,
+                            val torTraffic: Long = 0): Comparable<FirewallAppModel> {
 
     override fun compareTo(other: FirewallAppModel): Int {
         return applicationData.uid.compareTo(other.applicationData.uid)
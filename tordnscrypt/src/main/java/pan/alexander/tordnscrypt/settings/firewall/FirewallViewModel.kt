@@ -35,7 +35,9 @@ import pan.alexander.tordnscrypt.utils.Utils
 import pan.alexander.tordnscrypt.utils.apps.InstalledApplicationsManager
 import pan.alexander.tordnscrypt.utils.logger.Logger.loge
 import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.*
+import pan.alexander.tordnscrypt.vpn.service.VpnUsageStore
 import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 import javax.inject.Named
 
@@ -43,7 +45,8 @@ class FirewallViewModel @Inject constructor(
     private val preferenceRepository: dagger.Lazy<PreferenceRepository>,
     @Named(DISPATCHER_COMPUTATION)
     private val dispatcherComputation: CoroutineDispatcher,
-    private val pathVars: dagger.Lazy<PathVars>
+    private val pathVars: dagger.Lazy<PathVars>,
+    private val vpnUsageStore: dagger.Lazy<VpnUsageStore>
 ) : ViewModel(), InstalledApplicationsManager.OnAppAddListener {
 
     private val firewallStateMutableLiveData = MutableLiveData<FirewallState>()
@@ -61,6 +64,9 @@ class FirewallViewModel @Inject constructor(
 
     val criticalSystemUids = hashSetOf<Int>()
 
+    private val appsTraffic = hashMapOf<Int, Long>()
+    private val appsTorTraffic = hashMapOf<Int, Long>()
+
     fun getDeviceApps() {
         viewModelScope.launch(dispatcherComputation) {
             tryGetDeviceApps()
@@ -101,6 +107,8 @@ class FirewallViewModel @Inject constructor(
             Utils.getCriticalSystemUids(pathVars.get().appUid)
                 .also { criticalSystemUids.addAll(it) }
 
+            fillAppsTraffic()
+
             appsCompleteSet.clear()
 
             for (applicationData: ApplicationData in installedApps) {
@@ -112,7 +120,9 @@ class FirewallViewModel @Inject constructor(
                         appsAllowWifi.contains(uid),
                         appsAllowGsm.contains(uid),
                         appsAllowRoaming.contains(uid),
-                        appsAllowVpn.contains(uid)
+                        appsAllowVpn.contains(uid),
+                        appsTraffic[uid] ?: 0,
+                        appsTorTraffic[uid] ?: 0
                     )
                 )
             }
@@ -124,6 +134,20 @@ class FirewallViewModel @Inject constructor(
         }
     }
 
+    private fun fillAppsTraffic() {
+        appsTraffic.clear()
+        appsTorTraffic.clear()
+
+        val since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)
+        for (usage in vpnUsageStore.get().getUsage(since)) {
+            val bytes = usage.Sent + usage.Received
+            appsTraffic[usage.Uid] = (appsTraffic[usage.Uid] ?: 0) + bytes
+            if (usage.Route == VpnUsageStore.ROUTE_TOR) {
+                appsTorTraffic[usage.Uid] = (appsTorTraffic[usage.Uid] ?: 0) + bytes
+            }
+        }
+    }
+
     override fun onAppAdded(application: ApplicationData) {
         val uid = application.uid
         appsCompleteSet.add(
@@ -133,7 +157,9 @@ class FirewallViewModel @Inject constructor(
                 appsAllowWifi.contains(uid),
                 appsAllowGsm.contains(uid),
                 appsAllowRoaming.contains(uid),
-                appsAllowVpn.contains(uid)
+                appsAllowVpn.contains(uid),
+                appsTraffic[uid] ?: 0,
+                appsTorTraffic[uid] ?: 0
             )
         )
         firewallStateMutableLiveData.postValue(FirewallState.Preparing)
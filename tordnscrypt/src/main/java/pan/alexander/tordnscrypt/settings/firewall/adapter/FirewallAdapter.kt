@@ -24,6 +24,7 @@ import android.content.Context
 import android.content.SharedPreferences
 import android.graphics.drawable.Drawable
 import android.text.Html
+import android.text.format.Formatter
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
@@ -95,7 +96,9 @@ class FirewallAdapter(
                     gsm = it.allowGsm,
                     roaming = it.allowRoaming,
                     vpn = it.allowVPN,
-                    newlyInstalled = appsNewlyInstalledSavedSet.contains(it.applicationData.uid)
+                    newlyInstalled = appsNewlyInstalledSavedSet.contains(it.applicationData.uid),
+                    traffic = it.traffic,
+                    torTraffic = it.torTraffic
                 )
             }.filter {
                 if (showAllApps) {
@@ -204,6 +207,15 @@ class FirewallAdapter(
                     append(" ").append("\u00B7").append(" ")
                     append("UID").append(" ").append(appFirewall.uid)
                 }
+                if (appFirewall.traffic > 0) {
+                    append(" ").append("\u00B7").append(" ")
+                    append(Formatter.formatShortFileSize(context, appFirewall.traffic))
+                    if (appFirewall.torTraffic > 0) {
+                        append(" (Tor ")
+                        append(Formatter.formatShortFileSize(context, appFirewall.torTraffic))
+                        append(")")
+                    }
+                }
             }
             if (android.os.Build.VERSION.SDK_INT > android.os.Build.VERSION_CODES.M) {
                 tvAppName.text = Html.fromHtml(description.toString(), Html.FROM_HTML_MODE_COMPACT)
@@ -312,6 +324,8 @@ class FirewallAdapter(
         var gsm: Boolean,
         var roaming: Boolean,
         var vpn: Boolean,
-        val newlyInstalled: Boolean
+        val newlyInstalled: Boolean,
+        val traffic: Long,
+        val torTraffic: Long
     )
 }
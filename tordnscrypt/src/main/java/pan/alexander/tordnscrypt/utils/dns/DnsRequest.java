@@ -24,7 +24,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.IDN;
 
-class DnsRequest extends DnsMessage {
+public class DnsRequest extends DnsMessage {
 
     final private int recordType;
     final private String host;
@@ -37,7 +37,7 @@ class DnsRequest extends DnsMessage {
         return host;
     }
 
-    DnsRequest(short messageId, int recordType, String host) {
+    public DnsRequest(short messageId, int recordType, String host) {
         this(messageId, 0, 1, recordType, host);
     }
 
@@ -49,7 +49,7 @@ class DnsRequest extends DnsMessage {
         this.host = host;
     }
 
-    byte[] toDnsQuestionData() throws IOException {
+    public byte[] toDnsQuestionData() throws IOException {
         if (host == null || host.length() == 0) {
             throw new IOException("host can not empty");
         }
@@ -24,32 +24,44 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import dagger.Lazy;
 import kotlin.jvm.JvmStatic;
@@ -75,12 +87,36 @@ public class FileManager {
     @Inject
     public Lazy<PreferenceRepository> preferenceRepository;
 
+    private static final int FILE_LOCK_STRIPES = 8;
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int MAX_CACHED_FILES = 16;
+    private static final long MAX_CACHED_FILE_SIZE = 256 * 1024;
+    //Modification time can have a resolution of a second, so a recently changed file is read again
+    private static final long CACHED_FILE_MIN_AGE_MSEC = 2000;
+
     private CountDownLatch latch;
-    private static final Map<String, List<String>> linesListMap = new HashMap<>();
-    private static final ReentrantLock reentrantLock = new ReentrantLock();
     private static OnFileOperationsCompleteListener callback;
     private static CopyOnWriteArrayList<OnFileOperationsCompleteListener> stackCallbacks;
-    private static ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    //Text files are locked by path, binary files and dirs operations lock all files
+    private static final ReentrantReadWriteLock allFilesLock = new ReentrantReadWriteLock();
+    private static final ReentrantLock[] fileLocks = new ReentrantLock[FILE_LOCK_STRIPES];
+    //Operations with the same file are executed in the order they were requested
+    private static final ExecutorService[] executors = new ExecutorService[FILE_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < FILE_LOCK_STRIPES; i++) {
+            fileLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private static final Map<String, CachedLines> linesCache =
+            new LinkedHashMap<String, CachedLines>(MAX_CACHED_FILES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedLines> eldest) {
+                    return size() > MAX_CACHED_FILES;
+                }
+            };
 
     public FileManager() {
         App.getInstance().getDaggerComponent().inject(this);
@@ -112,7 +148,7 @@ public class FileManager {
 
         @SuppressLint("SetWorldReadable") Runnable runnable = () -> {
 
-            reentrantLock.lock();
+            lockAllFiles();
 
             try {
                 File dir = new File(outputPath);
@@ -205,21 +241,18 @@ public class FileManager {
                     }
                 }
             } finally {
-                reentrantLock.unlock();
+                unlockAllFiles();
             }
         };
 
-        if (executorService == null || executorService.isShutdown()) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        executorService.execute(runnable);
+        execute(outputPath + "/" + inputFile, runnable);
     }
 
     public static void copyBinaryFile(final Context context, final String inputPath, final String inputFile, final String outputPath, final String tag) {
 
         Runnable runnable = () -> {
 
-            reentrantLock.lock();
+            lockAllFiles();
 
             try {
                 File dir = new File(outputPath);
@@ -303,21 +336,18 @@ public class FileManager {
                 }
                 Log.e(LOG_TAG, "copyBinaryFile function fault " + e.getMessage() + " " + e.getCause());
             } finally {
-                reentrantLock.unlock();
+                unlockAllFiles();
             }
 
         };
 
-        if (executorService == null || executorService.isShutdown()) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        executorService.execute(runnable);
+        execute(outputPath + "/" + inputFile, runnable);
     }
 
     private static void copyBinaryFileSynchronous(final Context context, final String inputPath,
                                                   final String inputFile, final String outputPath) {
 
-        reentrantLock.lock();
+        lockAllFiles();
 
         try {
             File dir = new File(outputPath);
@@ -382,14 +412,14 @@ public class FileManager {
         } catch (Exception e) {
             Log.e(LOG_TAG, "copyBinaryFileSynchronous function fault " + e.getMessage() + " " + e.getCause());
         } finally {
-            reentrantLock.unlock();
+            unlockAllFiles();
         }
 
     }
 
     public static void copyFolderSynchronous(final Context context, final String inputPath, final String outputPath) {
 
-        reentrantLock.lock();
+        lockAllFiles();
 
         try {
             File inDir = null;
@@ -443,13 +473,13 @@ public class FileManager {
         } catch (Exception e) {
             Log.e(LOG_TAG, "copyFolderSynchronous function fault " + e.getMessage() + " " + e.getCause());
         } finally {
-            reentrantLock.unlock();
+            unlockAllFiles();
         }
     }
 
     public static boolean deleteFileSynchronous(final Context context, final String inputPath, final String inputFile) {
 
-        reentrantLock.lock();
+        lockFile(inputPath + "/" + inputFile);
 
         try {
             File usedFile = null;
@@ -502,7 +532,7 @@ public class FileManager {
             Log.e(LOG_TAG, "deleteFileSynchronous function fault " + e.getMessage());
             return true;
         } finally {
-            reentrantLock.unlock();
+            unlockFile(inputPath + "/" + inputFile);
         }
 
         return false;
@@ -510,7 +540,7 @@ public class FileManager {
 
     public static void deleteFile(final Context context, final String inputPath, final String inputFile, final String tag) {
         Runnable runnable = () -> {
-            reentrantLock.lock();
+            lockFile(inputPath + "/" + inputFile);
 
             try {
                 File usedFile = null;
@@ -575,19 +605,16 @@ public class FileManager {
                     fileManager.restoreAccess(context, inputPath + "/" + inputFile);
                 }
             } finally {
-                reentrantLock.unlock();
+                unlockFile(inputPath + "/" + inputFile);
             }
         };
 
-        if (executorService == null || executorService.isShutdown()) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        executorService.execute(runnable);
+        execute(inputPath + "/" + inputFile, runnable);
     }
 
     @JvmStatic
     public static boolean deleteDirSynchronous(final Context context, final String inputPath) {
-        reentrantLock.lock();
+        lockAllFiles();
 
         boolean result = false;
         File usedDir = null;
@@ -656,7 +683,7 @@ public class FileManager {
                 fileManager.restoreAccess(context, inputPath);
             }
         } finally {
-            reentrantLock.unlock();
+            unlockAllFiles();
         }
 
         return result;
@@ -666,12 +693,10 @@ public class FileManager {
     public static void readTextFile(final Context context, final String filePath, final String tag) {
         Runnable runnable = () -> {
 
-            reentrantLock.lock();
+            lockFile(filePath);
 
             try {
 
-                linesListMap.remove(filePath);
-
                 File f = null;
 
                 try {
@@ -703,39 +728,18 @@ public class FileManager {
                     throw new IllegalStateException("readTextFile no file " + filePath);
                 }
 
-                List<String> linesList = new ArrayList<>();
-
-                try (FileInputStream fstream = new FileInputStream(filePath);
-                     BufferedReader br = new BufferedReader(new InputStreamReader(fstream))) {
-
-                    for (String tmp; (tmp = br.readLine()) != null; ) {
-                        linesList.add(tmp.trim());
-                    }
-                } catch (Exception ex) {
-                    if (ex.getMessage() != null && ex.getMessage().contains("Permission denied")) {
-                        FileManager fileManager = new FileManager();
-                        fileManager.restoreAccess(context, filePath);
-
-                        try (FileInputStream fstream = new FileInputStream(filePath);
-                             BufferedReader br = new BufferedReader(new InputStreamReader(fstream))) {
-
-                            for (String tmp; (tmp = br.readLine()) != null; ) {
-                                linesList.add(tmp.trim());
-                            }
-                        }
-
-                    } else {
-                        throw new IllegalStateException("readTextFile input stream exception " + ex.getMessage() + " " + ex.getCause());
-                    }
+                List<String> linesList = getCachedLines(f);
+                if (linesList == null) {
+                    long size = f.length();
+                    long lastModified = f.lastModified();
+                    linesList = readLines(context, filePath, "readTextFile");
+                    cacheLines(f, size, lastModified, linesList);
                 }
 
-
-                linesListMap.put(filePath, linesList);
-
                 if (callback != null) {
                     if (callback instanceof OnTextFileOperationsCompleteListener) {
                         ((OnTextFileOperationsCompleteListener) callback).OnFileOperationComplete(
-                                readTextFile, true, filePath, tag, linesListMap.get(filePath));
+                                readTextFile, true, filePath, tag, linesList);
                     } else {
                         throw new ClassCastException("Wrong File operations type. Choose text type.");
                     }
@@ -757,21 +761,18 @@ public class FileManager {
                     fileManager.restoreAccess(context, filePath);
                 }
             } finally {
-                reentrantLock.unlock();
+                unlockFile(filePath);
             }
         };
 
-        if (executorService == null || executorService.isShutdown()) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        executorService.execute(runnable);
+        execute(filePath, runnable);
     }
 
     @SuppressLint("SetWorldReadable")
     public static void writeToTextFile(final Context context, final String filePath, final List<String> lines, final String tag) {
         Runnable runnable = () -> {
 
-            reentrantLock.lock();
+            lockFile(filePath);
 
             try {
 
@@ -804,15 +805,7 @@ public class FileManager {
                     }
                 }
 
-                try (PrintWriter writer = new PrintWriter(filePath)) {
-
-                    for (String line : lines) {
-                        writer.println(line);
-                    }
-
-                }
-
-                linesListMap.remove(filePath);
+                writeLines(filePath, lines);
 
                 if (callback != null && !tag.contains("ignored")) {
                     if (callback instanceof OnTextFileOperationsCompleteListener) {
@@ -838,21 +831,18 @@ public class FileManager {
                     fileManager.restoreAccess(context, filePath);
                 }
             } finally {
-                reentrantLock.unlock();
+                unlockFile(filePath);
             }
         };
 
-        if (executorService == null || executorService.isShutdown()) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        executorService.execute(runnable);
+        execute(filePath, runnable);
     }
 
     @SuppressLint("SetWorldReadable")
     @NotNull
     public static List<String> readTextFileSynchronous(final Context context, final String filePath) {
 
-        reentrantLock.lock();
+        lockFile(filePath);
 
         List<String> lines = new ArrayList<>();
 
@@ -889,28 +879,14 @@ public class FileManager {
                 throw new IllegalStateException("readTextFileSynchronous no file " + filePath);
             }
 
-            try (FileInputStream fstream = new FileInputStream(filePath);
-                 BufferedReader br = new BufferedReader(new InputStreamReader(fstream))) {
-
-                for (String tmp; (tmp = br.readLine()) != null; ) {
-                    lines.add(tmp.trim());
-                }
-            } catch (Exception ex) {
-                if (ex.getMessage() != null && ex.getMessage().contains("Permission denied")) {
-                    FileManager fileManager = new FileManager();
-                    fileManager.restoreAccess(context, filePath);
-
-                    try (FileInputStream fstream = new FileInputStream(filePath);
-                         BufferedReader br = new BufferedReader(new InputStreamReader(fstream))) {
-
-                        for (String tmp; (tmp = br.readLine()) != null; ) {
-                            lines.add(tmp.trim());
-                        }
-                    }
-
-                } else {
-                    throw new IllegalStateException("readTextFile synchronous input stream exception " + ex.getMessage() + " " + ex.getCause());
-                }
+            List<String> cachedLines = getCachedLines(f);
+            if (cachedLines != null) {
+                lines = cachedLines;
+            } else {
+                long size = f.length();
+                long lastModified = f.lastModified();
+                lines = readLines(context, filePath, "readTextFileSynchronous");
+                cacheLines(f, size, lastModified, lines);
             }
 
         } catch (Exception e) {
@@ -921,7 +897,7 @@ public class FileManager {
                 fileManager.restoreAccess(context, filePath);
             }
         } finally {
-            reentrantLock.unlock();
+            unlockFile(filePath);
         }
 
         return lines;
@@ -930,7 +906,7 @@ public class FileManager {
     @SuppressLint("SetWorldReadable")
     public static boolean writeTextFileSynchronous(final Context context, final String filePath, final List<String> lines) {
         
-        reentrantLock.lock();
+        lockFile(filePath);
 
         boolean result = true;
         try {
@@ -964,13 +940,7 @@ public class FileManager {
                 }
             }
 
-            try (PrintWriter writer = new PrintWriter(filePath)) {
-
-                for (String line : lines) {
-                    writer.println(line);
-                }
-
-            }
+            writeLines(filePath, lines);
         } catch (Exception e) {
             Log.e(LOG_TAG, "writeTextFileSynchronous Exception " + e.getMessage() + " " + e.getCause());
             result = false;
@@ -980,7 +950,7 @@ public class FileManager {
                 fileManager.restoreAccess(context, filePath);
             }
         } finally {
-            reentrantLock.unlock();
+            unlockFile(filePath);
         }
 
         return result;
@@ -1043,19 +1013,198 @@ public class FileManager {
             FileManager.stackCallbacks.clear();
 
         new Thread(() -> {
-            if (executorService != null && !executorService.isShutdown()) {
-                executorService.shutdown();
+            List<ExecutorService> runningExecutors = new ArrayList<>();
+            synchronized (executors) {
+                for (ExecutorService executor : executors) {
+                    if (executor != null && !executor.isShutdown()) {
+                        executor.shutdown();
+                        runningExecutors.add(executor);
+                    }
+                }
+            }
+
+            for (ExecutorService executor : runningExecutors) {
                 try {
-                    executorService.awaitTermination(10, TimeUnit.SECONDS);
+                    executor.awaitTermination(10, TimeUnit.SECONDS);
                 } catch (InterruptedException e) {
-                    executorService.shutdownNow();
+                    executor.shutdownNow();
                     Log.w(LOG_TAG, "FileOperations executorService awaitTermination has interrupted " + e.getMessage());
                 }
-
             }
         }).start();
     }
 
+    private static int getStripe(String path) {
+        return (new File(path).getPath().hashCode() & Integer.MAX_VALUE) % FILE_LOCK_STRIPES;
+    }
+
+    private static void lockFile(String path) {
+        allFilesLock.readLock().lock();
+        fileLocks[getStripe(path)].lock();
+    }
+
+    private static void unlockFile(String path) {
+        fileLocks[getStripe(path)].unlock();
+        allFilesLock.readLock().unlock();
+    }
+
+    private static void lockAllFiles() {
+        allFilesLock.writeLock().lock();
+    }
+
+    private static void unlockAllFiles() {
+        allFilesLock.writeLock().unlock();
+    }
+
+    private static void execute(String path, Runnable runnable) {
+        int stripe = getStripe(path);
+        ExecutorService executor;
+        synchronized (executors) {
+            executor = executors[stripe];
+            if (executor == null || executor.isShutdown()) {
+                ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                        1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>()
+                );
+                threadPoolExecutor.allowCoreThreadTimeOut(true);
+                executor = threadPoolExecutor;
+                executors[stripe] = executor;
+            }
+        }
+        executor.execute(runnable);
+    }
+
+    private static List<String> readLines(Context context, String filePath, String operation) throws IOException {
+        List<String> lines = new ArrayList<>();
+
+        try (FileInputStream fstream = new FileInputStream(filePath);
+             BufferedReader br = new BufferedReader(new InputStreamReader(fstream))) {
+
+            for (String tmp; (tmp = br.readLine()) != null; ) {
+                lines.add(tmp.trim());
+            }
+        } catch (Exception ex) {
+            if (ex.getMessage() != null && ex.getMessage().contains("Permission denied")) {
+                FileManager fileManager = new FileManager();
+                fileManager.restoreAccess(context, filePath);
+
+                lines.clear();
+                try (FileInputStream fstream = new FileInputStream(filePath);
+                     BufferedReader br = new BufferedReader(new InputStreamReader(fstream))) {
+
+                    for (String tmp; (tmp = br.readLine()) != null; ) {
+                        lines.add(tmp.trim());
+                    }
+                }
+
+            } else {
+                throw new IllegalStateException(operation + " input stream exception " + ex.getMessage() + " " + ex.getCause());
+            }
+        }
+
+        return lines;
+    }
+
+    //Lines are written to a temporary file that replaces the file after fsync,
+    //so an interrupted write leaves the previous content
+    private static void writeLines(String filePath, List<String> lines) throws IOException {
+        invalidateCachedLines(filePath);
+
+        File file = new File(filePath);
+        File temporary = new File(filePath + TEMPORARY_FILE_SUFFIX);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temporary)) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out));
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+
+            copyAccess(file, temporary);
+
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Unable to rename " + temporary + " to " + file);
+            }
+        } catch (IOException e) {
+            if (temporary.exists() && !temporary.delete()) {
+                Log.w(LOG_TAG, "Unable to delete file " + temporary);
+            }
+
+            //The dir can be not writable, then the file is rewritten in place
+            Log.w(LOG_TAG, "FileManager atomic write " + filePath + " failed " + e.getMessage());
+            try (PrintWriter writer = new PrintWriter(filePath)) {
+                for (String line : lines) {
+                    writer.println(line);
+                }
+            }
+        }
+    }
+
+    //The replaced file keeps its mode, a file of another owner is rewritten in place
+    private static void copyAccess(File file, File temporary) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            throw new IOException("Unable to get mode of " + file);
+        }
+
+        try {
+            StructStat stat = Os.stat(file.getPath());
+            if (stat.st_uid != Os.getuid()) {
+                throw new IOException("File " + file + " has owner " + stat.st_uid);
+            }
+            Os.chmod(temporary.getPath(), stat.st_mode & 07777);
+        } catch (ErrnoException e) {
+            throw new IOException("Unable to copy mode of " + file + " " + e.getMessage());
+        }
+    }
+
+    @Nullable
+    private static List<String> getCachedLines(File file) {
+        synchronized (linesCache) {
+            CachedLines cachedLines = linesCache.get(file.getPath());
+            if (cachedLines != null
+                    && cachedLines.size == file.length()
+                    && cachedLines.lastModified == file.lastModified()) {
+                return new ArrayList<>(cachedLines.lines);
+            }
+        }
+        return null;
+    }
+
+    private static void cacheLines(File file, long size, long lastModified, List<String> lines) {
+        if (size > MAX_CACHED_FILE_SIZE
+                || System.currentTimeMillis() - lastModified < CACHED_FILE_MIN_AGE_MSEC) {
+            return;
+        }
+
+        synchronized (linesCache) {
+            linesCache.put(file.getPath(), new CachedLines(size, lastModified, lines));
+        }
+    }
+
+    private static void invalidateCachedLines(String filePath) {
+        synchronized (linesCache) {
+            linesCache.remove(new File(filePath).getPath());
+        }
+    }
+
+    private static final class CachedLines {
+        private final long size;
+        private final long lastModified;
+        private final List<String> lines;
+
+        private CachedLines(long size, long lastModified, List<String> lines) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+        }
+    }
+
     private void waitRestoreAccessWithRoot() {
         latch = new CountDownLatch(1);
         try {
@@ -47,6 +47,8 @@ public interface PreferenceKeys {
     String IPS_TO_UNLOCK_TETHER = "ipsToUnlockTether";
     String IPS_FOR_CLEARNET_TETHER = "ipsForClearNetTether";
 
+    String DNSCRYPT_SERVERS_LATENCY = "dnsCryptServersLatency";
+
     String TILES_LIMIT_DIALOG_NOT_SHOW = "tilesLimitDialogNotShow";
 
     String ARP_SPOOFING_NOT_SUPPORTED = "arpSpoofingNotSupported";
@@ -73,6 +75,12 @@ public interface PreferenceKeys {
 
     //VPN
     String VPN_SERVICE_ENABLED = "VPNServiceEnabled";
+    String VPN_PCAP = "pref_vpn_pcap";
+    String VPN_PCAP_SNAPLEN = "pref_vpn_pcap_snaplen";
+    String VPN_PCAP_FILE_SIZE = "pref_vpn_pcap_file_size";
+    String VPN_PCAP_UIDS = "pref_vpn_pcap_uids";
+    String VPN_DNS_CACHE = "pref_vpn_dns_cache";
+    String VPN_DNS_CACHE_SIZE = "pref_vpn_dns_cache_size";
 
     //Fast Settings
     String SITES_IPS_REFRESH_INTERVAL = "pref_fast_site_refresh_interval";
@@ -100,6 +108,7 @@ public interface PreferenceKeys {
     String KILL_SWITCH = "swKillSwitch";
     String USE_IPTABLES = "pref_common_use_iptables";
     String WAIT_IPTABLES = "pref_common_wait_iptables";
+    String IPTABLES_IPSET = "pref_common_iptables_ipset";
 
     //DNSCrypt Settings
     String DNSCRYPT_BLOCK_IPv6 = "block_ipv6";
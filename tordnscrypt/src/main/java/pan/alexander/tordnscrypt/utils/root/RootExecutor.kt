@@ -22,23 +22,25 @@ package pan.alexander.tordnscrypt.utils.root
 import android.content.SharedPreferences
 import com.jrummyapps.android.shell.Shell
 import kotlinx.coroutines.*
-import kotlinx.coroutines.channels.BufferOverflow
-import kotlinx.coroutines.flow.*
+import kotlinx.coroutines.channels.Channel
 import pan.alexander.tordnscrypt.di.CoroutinesModule
 import pan.alexander.tordnscrypt.di.SharedPreferencesModule
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.utils.logger.Logger.loge
+import pan.alexander.tordnscrypt.utils.logger.Logger.logi
 import pan.alexander.tordnscrypt.utils.logger.Logger.logw
 import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.AUTO_START_DELAY
 import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.SAVE_ROOT_LOGS
 import pan.alexander.tordnscrypt.utils.root.RootCommandsMark.BOOT_BROADCAST_MARK
 import pan.alexander.tordnscrypt.utils.root.RootCommandsMark.IPTABLES_MARK
+import pan.alexander.tordnscrypt.utils.root.RootCommandsMark.NULL_MARK
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
 import java.lang.Exception
 import java.lang.IllegalStateException
+import java.util.UUID
 import javax.inject.Inject
 import javax.inject.Named
 import kotlin.math.roundToInt
@@ -47,6 +49,11 @@ private const val ATTEMPTS_TO_OPEN_ROOT_CONSOLE = 3
 private const val ATTEMPTS_TO_EXECUTE_COMMAND = 3
 private const val NOTIFICATION_UPDATE_INTERVAL_MSEC = 200L
 private const val MAX_EXECUTION_TIME_SEC = 300
+private val COALESCED_MARKS = setOf(IPTABLES_MARK, NULL_MARK)
+// iptables could not take the lock, either without -w or after waiting too long.
+// The waiting message ends with "lock; still ...", the command is not failed then
+private const val XTABLES_LOCK_ERROR = "holding the xtables lock."
+private const val XTABLES_LOCK_EXIT_CODE = 4
 
 @ExperimentalCoroutinesApi
 class RootExecutor @Inject constructor(
@@ -74,32 +81,21 @@ class RootExecutor @Inject constructor(
         }
     )
 
-    private val commandsInProgress = MutableSharedFlow<CommandsWithMark>(
-        10,
-        0,
-        BufferOverflow.DROP_OLDEST
-    ).apply {
-        onEach {
-            try {
-                withTimeout(MAX_EXECUTION_TIME_SEC * 1000L) {
-                    executeCommands(it.commands, it.mark)
+    // Batches waiting for the root shell. A new batch is appended to the last waiting batch
+    // if both have the same coalesced mark, so bursts of iptables updates keep their order
+    private val pendingBatches = ArrayDeque<CommandsWithMark>()
+    private val batchesSignal = Channel<Unit>(Channel.CONFLATED)
+
+    init {
+        coroutineScope.launch {
+            while (isActive) {
+                batchesSignal.receive()
+                while (isActive) {
+                    val batch = pollBatch() ?: break
+                    executeBatch(batch)
                 }
-            } catch (e: CancellationException) {
-                loge("RootExecutor commands take too long", e)
-                commandsDone(
-                    listOf("Commands take too long, more than $MAX_EXECUTION_TIME_SEC seconds"),
-                    it.mark
-                )
-            } catch (e: Exception) {
-                loge("RootExecutor execute", e)
-                commandsDone(
-                    listOf(e.message ?: ""),
-                    it.mark
-                )
             }
-        }.catch {
-            loge("RootExecutor collect exception", it, true)
-        }.launchIn(coroutineScope)
+        }
     }
 
     @Volatile
@@ -109,7 +105,43 @@ class RootExecutor @Inject constructor(
         commands: List<String>,
         @RootCommandsMark mark: Int
     ) {
-        commandsInProgress.tryEmit(CommandsWithMark(commands, mark))
+        synchronized(pendingBatches) {
+            val last = pendingBatches.lastOrNull()
+            if (mark in COALESCED_MARKS && last?.mark == mark) {
+                pendingBatches[pendingBatches.lastIndex] =
+                    CommandsWithMark(last.commands + commands, mark)
+                logi("RootExecutor coalesced commands with mark $mark")
+            } else {
+                pendingBatches.addLast(CommandsWithMark(commands, mark))
+            }
+        }
+        batchesSignal.trySend(Unit)
+    }
+
+    private fun pollBatch(): CommandsWithMark? = synchronized(pendingBatches) {
+        pendingBatches.removeFirstOrNull()
+    }
+
+    private suspend fun executeBatch(batch: CommandsWithMark) {
+        try {
+            withTimeout(MAX_EXECUTION_TIME_SEC * 1000L) {
+                executeCommands(batch.commands, batch.mark)
+            }
+        } catch (e: TimeoutCancellationException) {
+            loge("RootExecutor commands take too long", e)
+            commandsDone(
+                listOf("Commands take too long, more than $MAX_EXECUTION_TIME_SEC seconds"),
+                batch.mark
+            )
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            loge("RootExecutor execute", e)
+            commandsDone(
+                listOf(e.message ?: ""),
+                batch.mark
+            )
+        }
     }
 
     fun stopExecutor() = coroutineScope.launch {
@@ -132,41 +164,56 @@ class RootExecutor @Inject constructor(
             it.contains(wordRegex)
         }
 
-        val results = commandsFiltered.mapIndexed { index, command ->
-            var result: String
-            var attempts = 0
-            do {
-
-                if (!currentCoroutineContext().isActive) {
-                    throw CancellationException("Commands take too long. Next command $command")
-                }
+        val results = MutableList(commandsFiltered.size) { "Root console error" }
+        val attempts = IntArray(commandsFiltered.size)
+        // An iptables batch stops at a failed command, which is retried before the next one
+        val stopOnError = mark == IPTABLES_MARK
+        var position = 0
+        while (position < commandsFiltered.size) {
 
-                if (attempts > 0) {
-                    delay(attempts * 100L)
-                }
+            if (!currentCoroutineContext().isActive) {
+                throw CancellationException(
+                    "Commands take too long. Next command ${commandsFiltered[position]}"
+                )
+            }
 
-                result = executeCommand(command)?.let {
-                    getResult(command, it)
-                } ?: "Root console error"
+            if (attempts[position] > 0) {
+                delay(attempts[position] * 100L)
+            }
 
-                attempts++
-            } while (
-                result.isNotBlank()
-                && attempts < ATTEMPTS_TO_EXECUTE_COMMAND
-                && mark == IPTABLES_MARK
-            )
+            val commandsToRun = commandsFiltered.subList(position, commandsFiltered.size)
+            val executionResults = executePipeline(commandsToRun, stopOnError)
+
+            // A command without an exit status did not run because the shell was lost,
+            // the commands after a failed iptables command were skipped by the shell
+            var next = commandsFiltered.size
+            for (pipelineIndex in commandsToRun.indices) {
+                val commandIndex = position + pipelineIndex
+                val executionResult = executionResults?.get(pipelineIndex)
+                executionResult?.let {
+                    results[commandIndex] = getResult(commandsFiltered[commandIndex], it)
+                }
 
+                if (executionResult == null || stopOnError && executionResult.exitCode != 0) {
+                    val retry = stopOnError
+                            && results[commandIndex].isNotBlank()
+                            && ++attempts[commandIndex] < ATTEMPTS_TO_EXECUTE_COMMAND
+                    next = if (retry) commandIndex else commandIndex + 1
+                    break
+                }
+            }
+            position = next
 
             val currentTime = System.currentTimeMillis()
             if (currentTime - startTime > NOTIFICATION_UPDATE_INTERVAL_MSEC) {
                 startTime = currentTime
                 updateNotificationProgress(
-                    ((index + 1) / commandsFiltered.size.toFloat() * 100).roundToInt()
+                    (position / commandsFiltered.size.toFloat() * 100).roundToInt()
                 )
             }
+        }
 
-            return@mapIndexed result
-        }.filter {
+        val resultsFiltered = results.filter {
             it.contains(wordRegex)
         }
 
@@ -175,10 +222,10 @@ class RootExecutor @Inject constructor(
         delay(NOTIFICATION_UPDATE_INTERVAL_MSEC)
 
         if (preferenceRepository.get().getBoolPreference(SAVE_ROOT_LOGS)) {
-            saveToFile(commandsFiltered, results)
+            saveToFile(commandsFiltered, resultsFiltered)
         }
 
-        commandsDone(results, mark)
+        commandsDone(resultsFiltered, mark)
 
     }
 
@@ -205,7 +252,16 @@ class RootExecutor @Inject constructor(
         }
     }
 
-    private suspend fun executeCommand(command: String): ExecutionResult? {
+    // Streams the whole batch into the root shell in one round trip.
+    // Every command is followed by a marker with its index and exit status on stdout
+    // and with its index on stderr, the output between markers belongs to the command.
+    // Returns null for commands whose marker was not reached.
+    // With stopOnError the commands after one with a non-zero exit status are skipped,
+    // a command that reports the held xtables lock on stderr is treated as failed.
+    private suspend fun executePipeline(
+        commands: List<String>,
+        stopOnError: Boolean
+    ): List<ExecutionResult?>? {
 
         if (console?.isClosed != false) {
             openCommandShell()
@@ -218,19 +274,81 @@ class RootExecutor @Inject constructor(
                 throw IllegalStateException("Root console is closed")
             }
 
-            val commandResult = console.run(command)
+            val marker = "InviZible-${UUID.randomUUID()}"
+            val script = ArrayList<String>(commands.size * 6 + 1)
+            if (stopOnError) {
+                script.add("invizible_stop=")
+            }
+            commands.forEachIndexed { index, command ->
+                if (stopOnError) {
+                    script.add("if [ -z \"\$invizible_stop\" ]; then")
+                    // Commands like "iptables ... || true" exit with 0 when the xtables lock
+                    // is held, so the captured stderr also fails the command to retry it in place
+                    script.add("{ invizible_err=\$( { $command\n} 2>&1 1>&3 ); invizible_status=\$?; } 3>&1")
+                    script.add("[ -z \"\$invizible_err\" ] || echo \"\$invizible_err\" >&2")
+                    script.add("case \"\$invizible_err\" in *\"$XTABLES_LOCK_ERROR\"*) [ \$invizible_status -ne 0 ] || invizible_status=$XTABLES_LOCK_EXIT_CODE;; esac")
+                } else {
+                    script.add(command)
+                    script.add("invizible_status=\$?")
+                }
+                script.add("echo \"$marker $index \$invizible_status\"; echo \"$marker $index\" >&2")
+                if (stopOnError) {
+                    script.add("[ \$invizible_status -eq 0 ] || invizible_stop=1; fi")
+                }
+            }
 
-            ExecutionResult(
-                commandResult.exitCode,
-                commandResult.stdout,
-                commandResult.stderr
-            )
+            val commandResult = console.run(*script.toTypedArray())
+
+            val exitCodes = arrayOfNulls<Int>(commands.size)
+            val stdOut = List(commands.size) { mutableListOf<String>() }
+            val stdErr = List(commands.size) { mutableListOf<String>() }
+            splitByMarker(commandResult.stdout, marker, stdOut) { index, exitCode ->
+                exitCodes[index] = exitCode
+            }
+            splitByMarker(commandResult.stderr, marker, stdErr) { _, _ -> }
+
+            List(commands.size) { index ->
+                exitCodes[index]?.let { ExecutionResult(it, stdOut[index], stdErr[index]) }
+            }
         } catch (e: Exception) {
-            loge("RootExecutor executeCommand", e)
+            loge("RootExecutor executePipeline", e)
             null
         }
     }
 
+    private inline fun splitByMarker(
+        lines: List<String>,
+        marker: String,
+        outputs: List<MutableList<String>>,
+        onMarker: (index: Int, exitCode: Int) -> Unit
+    ) {
+        var index = 0
+        for (line in lines) {
+            if (index >= outputs.size) {
+                break
+            }
+
+            val position = line.indexOf(marker)
+            if (position < 0) {
+                outputs[index].add(line)
+                continue
+            }
+
+            // Output of the command without a trailing newline
+            if (position > 0) {
+                outputs[index].add(line.substring(0, position))
+            }
+
+            val fields = line.substring(position + marker.length).trim().split(" ")
+            val markerIndex = fields[0].toIntOrNull()
+            if (markerIndex == null || markerIndex !in outputs.indices) {
+                continue
+            }
+            onMarker(markerIndex, fields.getOrNull(1)?.toIntOrNull() ?: -1)
+            index = markerIndex + 1
+        }
+    }
+
     private suspend fun openCommandShell() {
         closeRootCommandShell()
 
@@ -36,6 +36,8 @@ import dagger.Lazy;
 import pan.alexander.tordnscrypt.App;
 import pan.alexander.tordnscrypt.domain.dns_resolver.DnsInteractor;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.domain.tor_ips.DomainIpBindings;
+import pan.alexander.tordnscrypt.iptables.IptablesIpSets;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
 
@@ -72,6 +74,8 @@ public class TorRefreshIPsWork {
     public Lazy<Handler> handler;
     @Inject
     public CachedExecutor cachedExecutor;
+    @Inject
+    public Lazy<DomainIpBindings> domainIpBindings;
 
     private final Pattern ipv4Pattern = Pattern.compile(IPv4_REGEX);
     private final Pattern ipv6Pattern = Pattern.compile(IPv6_REGEX);
@@ -118,7 +122,8 @@ public class TorRefreshIPsWork {
             settingsChanged = true;
         }
 
-        if (settingsChanged) {
+        if (settingsChanged
+                && !IptablesIpSets.refresh(context, preferenceRepository.get(), shPref)) {
             ModulesStatus.getInstance().setIptablesRulesUpdateRequested(context, true);
         }
 
@@ -213,9 +218,16 @@ public class TorRefreshIPsWork {
 
         if (hosts != null) {
             for (String host : hosts) {
-                if (!host.startsWith("#")) {
-                    ArrayList<String> preparedIPs = handleActionGetIP(host, includeIPv6);
-                    unlockIPsPrepared.addAll(preparedIPs);
+                if (host.startsWith("#") || DomainIpBindings.isWildcardHost(host)) {
+                    continue;
+                }
+
+                //IPs seen in DNS answers within their TTL do not need another query
+                Set<String> boundIPs = domainIpBindings.get().getHostIps(host);
+                if (!boundIPs.isEmpty()) {
+                    unlockIPsPrepared.addAll(boundIPs);
+                } else {
+                    unlockIPsPrepared.addAll(handleActionGetIP(host, includeIPv6));
                 }
             }
 
@@ -0,0 +1,428 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn;
+
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/*
+ * Immutable binary prefix trie for IPv4 and IPv6 networks.
+ * It is built once from a list of addresses or CIDR ranges like 10.0.0.0/8 or [FC00::]/7
+ * and answers containment in O(prefix length) without locks and allocations.
+ * IPv4-mapped IPv6 addresses like ::ffff:10.1.2.3 are treated as IPv4.
+ */
+public final class IpPrefixTrie {
+
+    public static final IpPrefixTrie EMPTY = new IpPrefixTrie(new Builder());
+
+    private static final long INVALID_IPV4 = -1;
+
+    private final int[] children4;
+    private final boolean[] terminal4;
+    private final int[] children6;
+    private final boolean[] terminal6;
+    private final int size;
+
+    //Nodes are copied, so the builder can be used again after build()
+    private IpPrefixTrie(Builder builder) {
+        int nodes4 = builder.size == 0 ? 0 : builder.nodes4;
+        int nodes6 = builder.size == 0 ? 0 : builder.nodes6;
+        children4 = Arrays.copyOf(builder.children4, nodes4 * 2);
+        terminal4 = Arrays.copyOf(builder.terminal4, nodes4);
+        children6 = Arrays.copyOf(builder.children6, nodes6 * 2);
+        terminal6 = Arrays.copyOf(builder.terminal6, nodes6);
+        size = builder.size;
+    }
+
+    public static IpPrefixTrie from(Collection<String> ranges) {
+        Builder builder = new Builder();
+        for (String range : ranges) {
+            if (!builder.add(range)) {
+                logw("IpPrefixTrie unable to parse " + range);
+            }
+        }
+        return builder.build();
+    }
+
+    public boolean contains(String address) {
+        if (address == null || address.isEmpty()) {
+            return false;
+        }
+
+        if (address.indexOf(':') >= 0) {
+            return containsIPv6(address);
+        }
+
+        long ip = parseIPv4(address, 0, address.length());
+        return ip != INVALID_IPV4 && containsIPv4((int) ip);
+    }
+
+    public boolean containsIPv4(int ip) {
+        if (terminal4.length == 0) {
+            return false;
+        }
+
+        int node = 0;
+        for (int bit = 31; bit >= 0; bit--) {
+            if (terminal4[node]) {
+                return true;
+            }
+            node = children4[node * 2 + ((ip >>> bit) & 1)];
+            if (node == 0) {
+                return false;
+            }
+        }
+        return terminal4[node];
+    }
+
+    private boolean containsIPv6(String address) {
+        int start = 0;
+        int end = address.length();
+        if (address.charAt(0) == '[') {
+            start = 1;
+            int bracket = address.indexOf(']');
+            end = bracket > 0 ? bracket : end;
+        }
+        int zone = address.indexOf('%', start);
+        if (zone >= 0 && zone < end) {
+            end = zone;
+        }
+
+        long mapped = parseMappedIPv4(address, start, end);
+        if (mapped != INVALID_IPV4) {
+            return containsIPv4((int) mapped);
+        }
+
+        if (terminal6.length == 0 || !isValidIPv6(address, start, end)) {
+            return false;
+        }
+
+        long high = parseIPv6Half(address, start, end, true);
+        long low = parseIPv6Half(address, start, end, false);
+        return containsIPv6(high, low);
+    }
+
+    public boolean containsIPv6(long high, long low) {
+        if (high == 0 && (low >>> 32) == 0xffffL) {
+            return containsIPv4((int) low);
+        }
+
+        if (terminal6.length == 0) {
+            return false;
+        }
+
+        int node = 0;
+        for (int bit = 127; bit >= 0; bit--) {
+            if (terminal6[node]) {
+                return true;
+            }
+            long half = bit >= 64 ? high : low;
+            node = children6[node * 2 + (int) ((half >>> (bit & 63)) & 1)];
+            if (node == 0) {
+                return false;
+            }
+        }
+        return terminal6[node];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "IpPrefixTrie ranges=" + size + " nodes=" + (terminal4.length + terminal6.length);
+    }
+
+    /*
+     * Dotted quad parser without allocations. Returns the address as unsigned int or -1.
+     */
+    public static long parseIPv4(String address, int start, int end) {
+        int length = end - start;
+        if (length < 7 || length > 15) {
+            return INVALID_IPV4;
+        }
+
+        long result = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return INVALID_IPV4;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return INVALID_IPV4;
+                }
+                result = (result << 8) | octet;
+                octet = 0;
+                digits = 0;
+            } else {
+                return INVALID_IPV4;
+            }
+        }
+
+        if (dots != 3 || digits == 0) {
+            return INVALID_IPV4;
+        }
+
+        return (result << 8) | octet;
+    }
+
+    /*
+     * Returns the IPv4 part of ::ffff:1.2.3.4 or 0:0:0:0:0:ffff:1.2.3.4 as unsigned int or -1.
+     */
+    private static long parseMappedIPv4(String address, int start, int end) {
+        int colon = address.lastIndexOf(':', end - 1);
+        if (colon < start) {
+            return INVALID_IPV4;
+        }
+
+        int prefixLength = colon - start;
+        if (!(prefixLength == 6 && address.regionMatches(true, start, "::ffff", 0, 6)
+                || prefixLength == 14 && address.regionMatches(true, start, "0:0:0:0:0:ffff", 0, 14))) {
+            return INVALID_IPV4;
+        }
+
+        return parseIPv4(address, colon + 1, end);
+    }
+
+    private static boolean isValidIPv6(String address, int start, int end) {
+        if (end - start < 2 || end - start > 39) {
+            return false;
+        }
+
+        int groups = 0;
+        int digits = 0;
+        boolean compressed = false;
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c == ':') {
+                if (i + 1 < end && address.charAt(i + 1) == ':') {
+                    if (compressed) {
+                        return false;
+                    }
+                    compressed = true;
+                    if (digits > 0) {
+                        groups++;
+                    }
+                    digits = 0;
+                    i++;
+                } else if (digits == 0) {
+                    return false;
+                } else {
+                    groups++;
+                    digits = 0;
+                }
+            } else if (Character.digit(c, 16) >= 0) {
+                if (++digits > 4) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+
+        if (digits > 0) {
+            groups++;
+        } else if (!compressed || address.charAt(end - 1) != ':') {
+            return false;
+        }
+
+        return compressed ? groups < 8 : groups == 8;
+    }
+
+    /*
+     * Returns the upper or lower 64 bits of a validated IPv6 address.
+     */
+    private static long parseIPv6Half(String address, int start, int end, boolean upper) {
+        int compression = address.indexOf("::", start);
+        if (compression >= end) {
+            compression = -1;
+        }
+
+        int tailGroups = 0;
+        if (compression >= 0) {
+            for (int i = compression + 2; i < end; i++) {
+                if (i == compression + 2 || address.charAt(i - 1) == ':') {
+                    tailGroups++;
+                }
+            }
+        }
+
+        long result = 0;
+        int group = 0;
+        int value = 0;
+        boolean inGroup = false;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? address.charAt(i) : ':';
+            if (c == ':') {
+                if (inGroup) {
+                    result = putGroup(result, group++, value, upper);
+                    value = 0;
+                    inGroup = false;
+                }
+                if (i == compression) {
+                    group = 8 - tailGroups;
+                    i++;
+                }
+            } else {
+                value = (value << 4) | Character.digit(c, 16);
+                inGroup = true;
+            }
+        }
+
+        return result;
+    }
+
+    private static long putGroup(long result, int group, int value, boolean upper) {
+        if (upper && group < 4) {
+            return result | ((long) value << ((3 - group) * 16));
+        } else if (!upper && group >= 4 && group < 8) {
+            return result | ((long) value << ((7 - group) * 16));
+        }
+        return result;
+    }
+
+    public static final class Builder {
+        private int[] children4 = new int[64];
+        private boolean[] terminal4 = new boolean[32];
+        private int nodes4 = 1;
+        private int[] children6 = new int[64];
+        private boolean[] terminal6 = new boolean[32];
+        private int nodes6 = 1;
+        private int size;
+
+        public boolean add(String range) {
+            if (range == null) {
+                return false;
+            }
+
+            String cidr = range.trim();
+            if (cidr.isEmpty()) {
+                return false;
+            }
+
+            int slash = cidr.indexOf('/');
+            String address = slash >= 0 ? cidr.substring(0, slash) : cidr;
+            if (address.startsWith("[") && address.endsWith("]")) {
+                address = address.substring(1, address.length() - 1);
+            }
+            int zone = address.indexOf('%');
+            if (zone >= 0) {
+                address = address.substring(0, zone);
+            }
+
+            boolean ipv6 = address.indexOf(':') >= 0;
+            int prefix = ipv6 ? 128 : 32;
+            if (slash >= 0) {
+                try {
+                    prefix = Integer.parseInt(cidr.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+
+            long mapped = ipv6 ? parseMappedIPv4(address, 0, address.length()) : INVALID_IPV4;
+            if (mapped != INVALID_IPV4) {
+                if (slash >= 0 && (prefix < 96 || prefix > 128)) {
+                    return false;
+                }
+                addIPv4((int) mapped, slash >= 0 ? prefix - 96 : 32);
+            } else if (ipv6) {
+                if (prefix < 0 || prefix > 128 || !isValidIPv6(address, 0, address.length())) {
+                    return false;
+                }
+                addIPv6(
+                        parseIPv6Half(address, 0, address.length(), true),
+                        parseIPv6Half(address, 0, address.length(), false),
+                        prefix
+                );
+            } else {
+                long ip = parseIPv4(address, 0, address.length());
+                if (ip == INVALID_IPV4 || prefix < 0 || prefix > 32) {
+                    return false;
+                }
+                addIPv4((int) ip, prefix);
+            }
+
+            size++;
+            return true;
+        }
+
+        private void addIPv4(int ip, int prefix) {
+            int node = 0;
+            for (int i = 0; i < prefix; i++) {
+                int index = node * 2 + ((ip >>> (31 - i)) & 1);
+                if (children4[index] == 0) {
+                    ensureCapacity4();
+                    children4[index] = nodes4++;
+                }
+                node = children4[index];
+            }
+            terminal4[node] = true;
+        }
+
+        private void addIPv6(long high, long low, int prefix) {
+            int node = 0;
+            for (int i = 0; i < prefix; i++) {
+                long half = i < 64 ? high : low;
+                int index = node * 2 + (int) ((half >>> (63 - (i & 63))) & 1);
+                if (children6[index] == 0) {
+                    ensureCapacity6();
+                    children6[index] = nodes6++;
+                }
+                node = children6[index];
+            }
+            terminal6[node] = true;
+        }
+
+        private void ensureCapacity4() {
+            if (nodes4 >= terminal4.length) {
+                terminal4 = Arrays.copyOf(terminal4, terminal4.length * 2);
+                children4 = Arrays.copyOf(children4, children4.length * 2);
+            }
+        }
+
+        private void ensureCapacity6() {
+            if (nodes6 >= terminal6.length) {
+                terminal6 = Arrays.copyOf(terminal6, terminal6.length * 2);
+                children6 = Arrays.copyOf(children6, children6.length * 2);
+            }
+        }
+
+        public IpPrefixTrie build() {
+            return new IpPrefixTrie(this);
+        }
+    }
+}
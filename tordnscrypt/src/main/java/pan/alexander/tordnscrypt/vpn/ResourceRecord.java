@@ -42,6 +42,7 @@ public class ResourceRecord implements Serializable {
     public String HInfo = "";
     public String Resource = "";
     public int Rcode;
+    public int TTL;
     private static final long serialVersionUID = 1L;
 
     private static final DateFormat formatter = SimpleDateFormat.getDateTimeInstance();
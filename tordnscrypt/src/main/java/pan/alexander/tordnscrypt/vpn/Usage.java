@@ -19,23 +19,21 @@
 
 package pan.alexander.tordnscrypt.vpn;
 
-import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-@Keep
 public class Usage {
     public long Time;
-    public int Version;
-    public int Protocol;
-    public String DAddr;
-    public int DPort;
     public int Uid;
+    public int Protocol;
+    public int Route;
     public long Sent;
     public long Received;
+    public long SentPackets;
+    public long ReceivedPackets;
 
     private static final DateFormat formatter = SimpleDateFormat.getDateTimeInstance();
 
@@ -43,9 +41,10 @@ public class Usage {
     @Override
     public String toString() {
         return formatter.format(new Date(Time).getTime()) +
-                " v" + Version + " p" + Protocol +
-                " " + DAddr + "/" + DPort +
+                " p" + Protocol +
+                " route " + Route +
                 " uid " + Uid +
-                " out " + Sent + " in " + Received;
+                " out " + Sent + "/" + SentPackets +
+                " in " + Received + "/" + ReceivedPackets;
     }
 }
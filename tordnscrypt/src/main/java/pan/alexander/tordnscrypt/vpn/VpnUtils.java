@@ -70,9 +70,15 @@ public class VpnUtils {
             "10.0.0.0/8",
             "172.16.0.0/12",
             "192.168.0.0/16",
-            "100.64.0.0/10"
+            "100.64.0.0/10",
+            "fc00::/7",
+            "fe80::/10"
     ));
 
+    public static final IpPrefixTrie nonTorRanges = IpPrefixTrie.from(nonTorList);
+
+    public static final IpPrefixTrie dnsRebindRanges = IpPrefixTrie.from(dnsRebindList);
+
     @Keep
     private static native String jni_getprop(String name);
 
@@ -221,7 +227,7 @@ public class VpnUtils {
         return (!"off".equals(dns_mode));
     }
 
-    public synchronized static boolean isIpInSubnet(final String ip, final String network) {
+    public static boolean isIpInSubnet(final String ip, final String network) {
         boolean result = false;
 
         try {
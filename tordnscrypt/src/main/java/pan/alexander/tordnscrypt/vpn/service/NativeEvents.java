@@ -0,0 +1,86 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn.service;
+
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import pan.alexander.tordnscrypt.vpn.ResourceRecord;
+
+/*
+ * Parses the records written by jni_read_events in jni/invizible/events.c.
+ * Keep the layout in sync with events.c.
+ *
+ * Record, in native byte order:
+ * int32 type, int32 rcode, int64 time in milliseconds, int32 ttl in seconds,
+ * then qname, aname, cname, hinfo and resource, each as uint16 length and UTF-8 bytes.
+ */
+final class NativeEvents {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final int EVENT_DNS_RESOLVED = 1;
+
+    private NativeEvents() {
+    }
+
+    static List<ResourceRecord> parse(ByteBuffer buffer, int length) {
+        List<ResourceRecord> records = new ArrayList<>();
+
+        buffer.position(0);
+        buffer.limit(length);
+        while (buffer.remaining() >= 20) {
+            int type = buffer.getInt();
+            int rcode = buffer.getInt();
+            long time = buffer.getLong();
+            int ttl = buffer.getInt();
+
+            if (type != EVENT_DNS_RESOLVED) {
+                logw("NativeEvents unknown event type " + type);
+                break;
+            }
+
+            ResourceRecord rr = new ResourceRecord();
+            rr.Time = time;
+            rr.Rcode = rcode;
+            rr.TTL = ttl;
+            rr.QName = getString(buffer);
+            rr.AName = getString(buffer);
+            rr.CName = getString(buffer);
+            rr.HInfo = getString(buffer);
+            rr.Resource = getString(buffer);
+            records.add(rr);
+        }
+        buffer.clear();
+
+        return records;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
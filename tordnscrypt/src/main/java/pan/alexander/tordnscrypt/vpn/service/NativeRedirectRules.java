@@ -0,0 +1,321 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn.service;
+
+import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIAL_PORT_NTP;
+import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIAL_UID_NTP;
+import static pan.alexander.tordnscrypt.utils.Constants.NETWORK_STACK_DEFAULT_UID;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import android.os.Process;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import pan.alexander.tordnscrypt.vpn.IpPrefixTrie;
+
+/*
+ * Serializes the Tor and proxy redirect rules into a direct ByteBuffer that is read by
+ * get_redirect_decision in jni/invizible/redirect.c. Keep the layout in sync with redirect.c.
+ *
+ * Header, int32 in native byte order:
+ * magic, version, flags, own uid, network stack uid, NTP uid, NTP port,
+ * itpd redirect IPv4 address (network order bytes),
+ * uids count, Tor virtual networks count, LAN networks count, Tor hosts count, Tor networks count,
+ * bind hosts count, bind wildcards count, bind names size.
+ * Then uid entries {int32 uid, int32 action} sorted by uid
+ * and prefix entries {uint8 version, uint8 prefix, uint8[2] padding, uint8[16] address}.
+ * Tor hosts are single addresses sorted by entry bytes for binary search.
+ * Then int32 offsets of the bind hosts and wildcards followed by their NUL-terminated ASCII names,
+ * each list sorted for binary search, wildcards are stored without *. and also match the domain itself.
+ * IPs from DNS answers for these names are routed natively until they are added to the Tor hosts.
+ * DNS rebind ranges for jni/invizible/dns.c are passed separately as prefix entries only.
+ */
+final class NativeRedirectRules {
+
+    static final int MAGIC = 0x52524e49;
+    static final int VERSION = 3;
+
+    static final int FLAG_FIX_TTL = 1;
+    static final int FLAG_COMPATIBILITY_MODE = 1 << 1;
+    static final int FLAG_BYPASS_LAN = 1 << 2;
+    static final int FLAG_ROUTE_ALL_THROUGH_TOR = 1 << 3;
+    static final int FLAG_USE_PROXY = 1 << 4;
+    static final int FLAG_NTP_ALLOWED = 1 << 5;
+
+    static final int ACTION_TOR_RULE = 1;
+    static final int ACTION_TOR = 1 << 1;
+    static final int ACTION_BYPASS_PROXY = 1 << 2;
+
+    private static final int HEADER_SIZE = 16 * 4;
+    private static final int UID_ENTRY_SIZE = 8;
+    private static final int PREFIX_ENTRY_SIZE = 20;
+    private static final String WILDCARD_PREFIX = "*.";
+
+    private NativeRedirectRules() {
+    }
+
+    static ByteBuffer build(VpnVerdictTable table, VpnPreferenceHolder vpnPreferences,
+                            Collection<String> bindHosts) {
+
+        TreeMap<Integer, Integer> uidActions = new TreeMap<>();
+        for (int i = 0; i < table.getTorRulesCount(); i++) {
+            int action = ACTION_TOR_RULE;
+            if (table.getTorRuleApply(i)) {
+                action |= ACTION_TOR;
+            }
+            uidActions.put(table.getTorRuleUid(i), action);
+        }
+        for (String bypassUid : vpnPreferences.getSetBypassProxy()) {
+            if (bypassUid != null && bypassUid.matches("-?\\d+")) {
+                int uid = Integer.parseInt(bypassUid);
+                Integer action = uidActions.get(uid);
+                uidActions.put(uid, (action == null ? 0 : action) | ACTION_BYPASS_PROXY);
+            }
+        }
+
+        List<byte[]> torVirtualNetworks = toPrefixEntries(table.torVirtualNetworks);
+        List<byte[]> lanNetworks = toPrefixEntries(table.lanRangesList);
+        List<byte[]> torHosts = new ArrayList<>();
+        List<byte[]> torNetworks = new ArrayList<>();
+        for (byte[] entry : toPrefixEntries(table.ipsForTorList)) {
+            int hostPrefix = entry[0] == 4 ? 32 : 128;
+            if ((entry[1] & 0xff) == hostPrefix) {
+                torHosts.add(entry);
+            } else {
+                torNetworks.add(entry);
+            }
+        }
+        Collections.sort(torHosts, NativeRedirectRules::compareEntries);
+
+        List<byte[]> bindNames = new ArrayList<>();
+        List<byte[]> bindWildcards = new ArrayList<>();
+        int bindNamesSize = 0;
+        for (String host : new TreeSet<>(bindHosts)) {
+            if (host.startsWith(WILDCARD_PREFIX)) {
+                continue;
+            }
+            byte[] name = toNameBytes(host);
+            bindNames.add(name);
+            bindNamesSize += name.length;
+        }
+        TreeSet<String> wildcards = new TreeSet<>();
+        for (String host : bindHosts) {
+            if (host.startsWith(WILDCARD_PREFIX)) {
+                wildcards.add(host.substring(WILDCARD_PREFIX.length()));
+            }
+        }
+        for (String wildcard : wildcards) {
+            byte[] name = toNameBytes(wildcard);
+            bindWildcards.add(name);
+            bindNamesSize += name.length;
+        }
+
+        int flags = 0;
+        if (vpnPreferences.getFixTTL()) {
+            flags |= FLAG_FIX_TTL;
+        }
+        if (vpnPreferences.getCompatibilityMode()) {
+            flags |= FLAG_COMPATIBILITY_MODE;
+        }
+        if (vpnPreferences.getLan()) {
+            flags |= FLAG_BYPASS_LAN;
+        }
+        if (vpnPreferences.getRouteAllThroughTor()) {
+            flags |= FLAG_ROUTE_ALL_THROUGH_TOR;
+        }
+        if (vpnPreferences.getUseProxy()) {
+            flags |= FLAG_USE_PROXY;
+        }
+        if (table.isSpecialAllowed(SPECIAL_UID_NTP) || table.uidAllowed.contains(Process.SYSTEM_UID)) {
+            flags |= FLAG_NTP_ALLOWED;
+        }
+
+        int size = HEADER_SIZE
+                + uidActions.size() * UID_ENTRY_SIZE
+                + (torVirtualNetworks.size() + lanNetworks.size()
+                + torHosts.size() + torNetworks.size()) * PREFIX_ENTRY_SIZE
+                + (bindNames.size() + bindWildcards.size()) * 4
+                + bindNamesSize;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(flags);
+        buffer.putInt(vpnPreferences.getOwnUID());
+        buffer.putInt(NETWORK_STACK_DEFAULT_UID);
+        buffer.putInt(Process.SYSTEM_UID);
+        buffer.putInt(SPECIAL_PORT_NTP);
+        buffer.put(toIPv4Bytes(vpnPreferences.getItpdRedirectAddress()));
+        buffer.putInt(uidActions.size());
+        buffer.putInt(torVirtualNetworks.size());
+        buffer.putInt(lanNetworks.size());
+        buffer.putInt(torHosts.size());
+        buffer.putInt(torNetworks.size());
+        buffer.putInt(bindNames.size());
+        buffer.putInt(bindWildcards.size());
+        buffer.putInt(bindNamesSize);
+
+        for (Integer uid : uidActions.keySet()) {
+            buffer.putInt(uid);
+            buffer.putInt(uidActions.get(uid));
+        }
+
+        putEntries(buffer, torVirtualNetworks);
+        putEntries(buffer, lanNetworks);
+        putEntries(buffer, torHosts);
+        putEntries(buffer, torNetworks);
+
+        int offset = 0;
+        for (byte[] name : bindNames) {
+            buffer.putInt(offset);
+            offset += name.length;
+        }
+        for (byte[] name : bindWildcards) {
+            buffer.putInt(offset);
+            offset += name.length;
+        }
+        putEntries(buffer, bindNames);
+        putEntries(buffer, bindWildcards);
+
+        buffer.rewind();
+
+        logi("VPN Native redirect rules uids " + uidActions.size()
+                + " tor hosts " + torHosts.size()
+                + " tor networks " + torNetworks.size()
+                + " bind hosts " + (bindNames.size() + bindWildcards.size())
+                + " size " + size);
+
+        return buffer;
+    }
+
+    static ByteBuffer buildPrefixes(Collection<String> ranges) {
+        List<byte[]> entries = toPrefixEntries(ranges);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(entries.size() * PREFIX_ENTRY_SIZE)
+                .order(ByteOrder.nativeOrder());
+        putEntries(buffer, entries);
+        buffer.rewind();
+
+        return buffer;
+    }
+
+    private static void putEntries(ByteBuffer buffer, List<byte[]> entries) {
+        for (byte[] entry : entries) {
+            buffer.put(entry);
+        }
+    }
+
+    private static List<byte[]> toPrefixEntries(Collection<String> ranges) {
+        List<byte[]> entries = new ArrayList<>(ranges.size());
+        for (String range : ranges) {
+            byte[] entry = toPrefixEntry(range);
+            if (entry != null) {
+                entries.add(entry);
+            } else {
+                logw("VPN Native redirect rules unable to parse " + range);
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] toPrefixEntry(String range) {
+        if (range == null || range.trim().isEmpty()) {
+            return null;
+        }
+
+        String cidr = range.trim();
+        String address = cidr;
+        int prefix = -1;
+        int slash = cidr.indexOf('/');
+        if (slash >= 0) {
+            address = cidr.substring(0, slash);
+            try {
+                prefix = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (address.startsWith("[") && address.endsWith("]")) {
+            address = address.substring(1, address.length() - 1);
+        }
+
+        //Only literal addresses are allowed here to avoid DNS requests
+        boolean ipv6 = address.contains(":");
+        if (!ipv6 && IpPrefixTrie.parseIPv4(address, 0, address.length()) < 0) {
+            return null;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = InetAddress.getByName(address).getAddress();
+        } catch (Exception e) {
+            return null;
+        }
+
+        int maxPrefix = bytes.length * 8;
+        if (prefix < 0) {
+            prefix = maxPrefix;
+        } else if (prefix > maxPrefix) {
+            return null;
+        }
+
+        byte[] entry = new byte[PREFIX_ENTRY_SIZE];
+        entry[0] = (byte) (bytes.length == 4 ? 4 : 6);
+        entry[1] = (byte) prefix;
+        System.arraycopy(bytes, 0, entry, 4, bytes.length);
+        return entry;
+    }
+
+    //Hosts are normalized to lowercase ASCII by DomainIpBindings
+    private static byte[] toNameBytes(String host) {
+        byte[] name = new byte[host.length() + 1];
+        for (int i = 0; i < host.length(); i++) {
+            name[i] = (byte) host.charAt(i);
+        }
+        return name;
+    }
+
+    private static byte[] toIPv4Bytes(String address) {
+        long ip = address == null ? -1 : IpPrefixTrie.parseIPv4(address, 0, address.length());
+        if (ip < 0) {
+            return new byte[4];
+        }
+        return new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+    }
+
+    private static int compareEntries(byte[] first, byte[] second) {
+        for (int i = 0; i < PREFIX_ENTRY_SIZE; i++) {
+            int result = (first[i] & 0xff) - (second[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+}
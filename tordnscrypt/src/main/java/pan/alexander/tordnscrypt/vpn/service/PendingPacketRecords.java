@@ -0,0 +1,90 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import pan.alexander.tordnscrypt.domain.connection_records.entities.PacketRecord;
+
+/*
+ * Connections of the apps that are waiting to be added to the connection records.
+ * The tunnel thread only copies the fields into preallocated arrays,
+ * the records are built by the events thread. New connections are dropped when the queue is full.
+ * There must be one writer and one reader.
+ */
+final class PendingPacketRecords {
+
+    private final int capacity;
+    private final long[] times;
+    private final int[] uids;
+    private final String[] sourceAddresses;
+    private final String[] destinationAddresses;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    PendingPacketRecords(int capacity) {
+        this.capacity = capacity;
+        times = new long[capacity];
+        uids = new int[capacity];
+        sourceAddresses = new String[capacity];
+        destinationAddresses = new String[capacity];
+    }
+
+    boolean offer(long time, int uid, String sourceAddress, String destinationAddress) {
+        long position = tail.get();
+        if (position - head.get() >= capacity) {
+            return false;
+        }
+
+        int index = (int) (position % capacity);
+        times[index] = time;
+        uids[index] = uid;
+        sourceAddresses[index] = sourceAddress;
+        destinationAddresses[index] = destinationAddress;
+        tail.lazySet(position + 1);
+
+        return true;
+    }
+
+    //Returns the number of records passed to the consumer
+    int drainTo(RecordConsumer consumer) {
+        long start = head.get();
+        long end = tail.get();
+        for (long position = start; position < end; position++) {
+            int index = (int) (position % capacity);
+            PacketRecord record = new PacketRecord(
+                    times[index],
+                    uids[index],
+                    sourceAddresses[index],
+                    destinationAddresses[index]
+            );
+            sourceAddresses[index] = null;
+            destinationAddresses[index] = null;
+            head.lazySet(position + 1);
+            consumer.accept(record);
+        }
+        return (int) (end - start);
+    }
+
+    interface RecordConsumer {
+        void accept(PacketRecord record);
+    }
+}
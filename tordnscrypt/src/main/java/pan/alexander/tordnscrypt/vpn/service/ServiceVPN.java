@@ -37,15 +37,15 @@ import android.widget.Toast;
 
 import androidx.annotation.Keep;
 
+import java.io.File;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import dagger.Lazy;
 import pan.alexander.tordnscrypt.App;
@@ -54,11 +54,12 @@ import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.arp.DNSRebindProtection;
 import pan.alexander.tordnscrypt.domain.connection_checker.ConnectionCheckerInteractor;
 import pan.alexander.tordnscrypt.domain.connection_checker.OnInternetConnectionCheckedListener;
-import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData;
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionDataRing;
 import pan.alexander.tordnscrypt.domain.connection_records.entities.DnsRecord;
 import pan.alexander.tordnscrypt.domain.connection_records.entities.PacketRecord;
 import pan.alexander.tordnscrypt.domain.dns_resolver.DnsInteractor;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.domain.tor_ips.DomainIpBindings;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.modules.ModulesServiceNotificationManager;
 import pan.alexander.tordnscrypt.modules.UsageStatistics;
@@ -69,8 +70,6 @@ import pan.alexander.tordnscrypt.utils.enums.VPNCommand;
 import pan.alexander.tordnscrypt.vpn.Allowed;
 import pan.alexander.tordnscrypt.vpn.Packet;
 import pan.alexander.tordnscrypt.vpn.ResourceRecord;
-import pan.alexander.tordnscrypt.vpn.Rule;
-import pan.alexander.tordnscrypt.vpn.Usage;
 import pan.alexander.tordnscrypt.vpn.VpnUtils;
 
 import static java.net.IDN.ALLOW_UNASSIGNED;
@@ -84,16 +83,18 @@ import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIA
 import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIAL_UID_KERNEL;
 import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIAL_UID_NTP;
 import static pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS;
+import static pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS_IPv6;
 import static pan.alexander.tordnscrypt.utils.Constants.META_ADDRESS;
 import static pan.alexander.tordnscrypt.utils.Constants.NETWORK_STACK_DEFAULT_UID;
 import static pan.alexander.tordnscrypt.utils.Constants.PLAINTEXT_DNS_PORT;
-import static pan.alexander.tordnscrypt.utils.Constants.TOR_VIRTUAL_ADDR_NETWORK_IPV6;
 import static pan.alexander.tordnscrypt.utils.bootcomplete.BootCompleteManager.ALWAYS_ON_VPN;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RESTARTING;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STARTING;
 import static pan.alexander.tordnscrypt.utils.logger.Logger.loge;
 import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
 import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_FOR_CLEARNET;
+import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_TO_UNLOCK;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.VPN_SERVICE_ENABLED;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RUNNING;
 import static pan.alexander.tordnscrypt.vpn.service.ServiceVPNHelper.reload;
@@ -116,6 +117,8 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
 
     static final String EXTRA_COMMAND = "Command";
     static final String EXTRA_REASON = "Reason";
+    private static final String PCAP_FILE_NAME = "invizible.pcap";
+    private static final long EVENTS_READ_INTERVAL_MSEC = 100;
 
     @Inject
     public Lazy<PreferenceRepository> preferenceRepository;
@@ -137,9 +140,14 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
     volatile VpnPreferenceHolder vpnPreferences;
     @Inject
     public Lazy<VpnRulesHolder> vpnRulesHolder;
+    @Inject
+    public Lazy<DomainIpBindings> domainIpBindings;
+    @Inject
+    public Lazy<VpnUsageStore> vpnUsageStore;
 
     NotificationManager notificationManager;
     private static final Object jni_lock = new Object();
+    private final Object redirectRulesLock = new Object();
     private static volatile long jni_context = 0;
     private volatile long service_jni_context = 0;
 
@@ -147,23 +155,23 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
 
     volatile ParcelFileDescriptor vpn = null;
 
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
-    private final ConcurrentHashMap<ConnectionData, Boolean> connectionDataRecords = new ConcurrentHashMap<>(
-            16,
-            0.75f,
-            2
-    );
+    private final ConnectionDataRing connectionDataRecords =
+            new ConnectionDataRing(LINES_IN_DNS_QUERY_RAW_RECORDS);
+    private final PendingPacketRecords pendingPacketRecords =
+            new PendingPacketRecords(LINES_IN_DNS_QUERY_RAW_RECORDS);
 
     private volatile Looper commandLooper;
     private volatile ServiceVPNHandler commandHandler;
 
     private volatile Thread tunnelThread = null;
+    private volatile Thread eventsThread = null;
 
     public volatile boolean canFilter = true;
 
     volatile boolean reloading;
 
-    private final Set<String> dnsRebindHosts = new HashSet<>();
+    // Updated by the events thread, checked by the tunnel thread
+    private final Set<String> dnsRebindHosts = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     private final VPNBinder binder = new VPNBinder();
 
@@ -194,6 +202,21 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
     @Keep
     private native void jni_done(long context);
 
+    @Keep
+    private native void jni_set_redirect_rules(ByteBuffer rules);
+
+    @Keep
+    private native void jni_pcap(String name, int snaplen, int fileSize, int[] uids);
+
+    @Keep
+    private native void jni_dns_cache(int size);
+
+    @Keep
+    private native void jni_dns_rebind_protection(ByteBuffer ranges);
+
+    @Keep
+    private native int jni_read_events(ByteBuffer buffer);
+
     synchronized void startNative(final ParcelFileDescriptor vpn, List<String> listAllowed) {
 
         vpnPreferences = vpnPreferenceHolder.get();
@@ -202,6 +225,24 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
         vpnRulesHolder.get().prepareUidAllowed(listAllowed, commandHandler.getAppsList());
         vpnRulesHolder.get().prepareForwarding();
 
+        setNativeRedirectRules();
+
+        if (vpnPreferences.getPcap()) {
+            startPacketCapture(
+                    new File(getCacheDir(), PCAP_FILE_NAME),
+                    vpnPreferences.getPcapSnaplen(),
+                    vpnPreferences.getPcapFileSize(),
+                    vpnPreferences.getPcapUids()
+            );
+        } else {
+            stopPacketCapture();
+        }
+
+        // Cached answers could be stale for the new rules
+        jni_dns_cache(vpnPreferences.getDnsCache() ? vpnPreferences.getDnsCacheSize() : 0);
+        jni_dns_rebind_protection(vpnPreferences.getDnsRebindProtection()
+                ? NativeRedirectRules.buildPrefixes(VpnUtils.dnsRebindList) : null);
+
         ModulesStatus modulesStatus = ModulesStatus.getInstance();
         if ((modulesStatus.getTorState() == RUNNING
                 || modulesStatus.getTorState() == STARTING
@@ -230,6 +271,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
 
         if (tunnelThread == null) {
             logi("VPN Starting tunnel thread context=" + jni_context);
+            vpnUsageStore.get().startSession();
             jni_start(jni_context, vpnPreferences.getNativeLogLevel());
 
             tunnelThread = new Thread(() -> {
@@ -242,12 +284,13 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
                     jni_run(
                             jni_context,
                             vpn.getFd(),
-                            vpnRulesHolder.get().mapForwardPort.containsKey(PLAINTEXT_DNS_PORT),
+                            vpnRulesHolder.get().getVerdictTable().getForwardPortIndex(PLAINTEXT_DNS_PORT) >= 0,
                             vpnPreferences.getDnsBlockedResponseCode(),
                             vpnPreferences.getCompatibilityMode(),
                             canFilterSynchronous
                     );
                     logi("VPN Tunnel exited");
+                    vpnUsageStore.get().saveAsync();
                     tunnelThread = null;
                 } catch (Exception e) {
                     handler.get().post(() ->
@@ -264,6 +307,8 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
             tunnelThread.setName("VPN tunnel thread");
             tunnelThread.start();
 
+            startEventsThread();
+
             logi("VPN Started tunnel thread");
         }
     }
@@ -294,6 +339,120 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
 
             logi("VPN Stopped tunnel thread");
         }
+
+        stopEventsThread();
+
+        stopPacketCapture();
+    }
+
+    /*
+     * Resolved DNS records are copied to a native ring by the tunnel thread
+     * and handled here in batches, so the tunnel thread never waits for the JVM.
+     */
+    private void startEventsThread() {
+        if (eventsThread != null) {
+            return;
+        }
+
+        eventsThread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(NativeEvents.BUFFER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+            while (!Thread.currentThread().isInterrupted()) {
+                if (readEvents(buffer) == 0) {
+                    try {
+                        Thread.sleep(EVENTS_READ_INTERVAL_MSEC);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+
+            // Records left after the tunnel thread stopped
+            int length;
+            do {
+                length = readEvents(buffer);
+            } while (length > 0);
+        });
+
+        eventsThread.setName("VPN events thread");
+        eventsThread.start();
+    }
+
+    private void stopEventsThread() {
+        Thread thread = eventsThread;
+        if (thread == null) {
+            return;
+        }
+
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            logi("VPN Joined events interrupted");
+        }
+        eventsThread = null;
+    }
+
+    private int readEvents(ByteBuffer buffer) {
+        int length = jni_read_events(buffer);
+
+        if (length > 0) {
+            for (ResourceRecord rr : NativeEvents.parse(buffer, length)) {
+                dnsResolved(rr);
+                bindDomainIp(rr);
+            }
+        }
+
+        int packets = pendingPacketRecords.drainTo(connectionDataRecords::add);
+
+        // Native code routes new IPs of the Tor unlock and clearnet hosts from the DNS answers,
+        // here they are added to the rules and expired bindings are removed
+        if (domainIpBindings.get().takeChanges()) {
+            vpnRulesHolder.get().updateBoundIps();
+            setNativeRedirectRules();
+        }
+
+        return Math.max(length, 0) + packets;
+    }
+
+    // Share redirect rules with native code to avoid JNI calls for each new connection
+    // The lock keeps the latest table when the events thread updates rules during startNative
+    private void setNativeRedirectRules() {
+        synchronized (redirectRulesLock) {
+            try {
+                jni_set_redirect_rules(
+                        NativeRedirectRules.build(
+                                vpnRulesHolder.get().getVerdictTable(),
+                                vpnPreferences,
+                                domainIpBindings.get().getHosts(
+                                        vpnPreferences.getRouteAllThroughTor() ? IPS_FOR_CLEARNET : IPS_TO_UNLOCK
+                                )
+                        )
+                );
+            } catch (Exception e) {
+                loge("ServiceVPN set redirect rules", e);
+                jni_set_redirect_rules(null);
+            }
+        }
+    }
+
+    /*
+     * Packets are copied to a native ring and written by a separate thread,
+     * the file is rotated to name.1 when it exceeds maxFileSize.
+     * An empty uids set captures all apps.
+     */
+    synchronized void startPacketCapture(File file, int snaplen, int maxFileSize, Set<Integer> uids) {
+        int[] uidsArray = new int[uids.size()];
+        int i = 0;
+        for (int uid : uids) {
+            uidsArray[i++] = uid;
+        }
+        logi("VPN Start packet capture " + file + " uids " + uids);
+        jni_pcap(file.getAbsolutePath(), snaplen, maxFileSize, uidsArray);
+    }
+
+    synchronized void stopPacketCapture() {
+        jni_pcap(null, 0, 0, null);
     }
 
     // Called from native code
@@ -318,9 +477,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
         //Log.i(LOG_TAG, "VPN Log packet " + packet.toString());
     }
 
-    // Called from native code
-    @Keep
-    public void dnsResolved(ResourceRecord rr) {
+    private void dnsResolved(ResourceRecord rr) {
 
         try {
 
@@ -341,7 +498,8 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
                         dnsRebindHosts.add(qname);
                         DNSRebindProtection.INSTANCE.sendNotification(this, qname);
                         logw("ServiseVPN DNS rebind attack detected " + rr);
-                    } else if ((destAddress.equals(META_ADDRESS) || destAddress.equals(LOOPBACK_ADDRESS))
+                    } else if ((destAddress.equals(META_ADDRESS) || destAddress.equals(LOOPBACK_ADDRESS)
+                            || destAddress.equals("::") || destAddress.equals(LOOPBACK_ADDRESS_IPv6))
                             && rr.Rcode == 0 && !rr.HInfo.contains("dnscrypt")) {
                         logw("ServiseVPN DNS rebind attack detected " + rr);
                         dnsRebindHosts.add(qname);
@@ -370,27 +528,17 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
                 rr.Resource != null ? rr.Resource.trim() : ""
         );
 
-        connectionDataRecords.remove(dnsRecord);
-        connectionDataRecords.put(dnsRecord, true);
-
-        if (connectionDataRecords.size() >= LINES_IN_DNS_QUERY_RAW_RECORDS) {
-            freeSpaceInConnectionRecords();
-        }
+        connectionDataRecords.add(dnsRecord);
     }
 
-    private void freeSpaceInConnectionRecords() {
-        List<ConnectionData> connectionDataList = getSortedConnectionDataByTime();
-        for (int i = 0; i < connectionDataList.size() / 3; i++) {
-            connectionDataRecords.remove(connectionDataList.get(i));
+    private void bindDomainIp(ResourceRecord rr) {
+        try {
+            domainIpBindings.get().bind(rr.QName, rr.AName, rr.Resource, rr.Rcode, rr.TTL);
+        } catch (Exception e) {
+            loge("ServiseVPN bindDomainIp exception", e);
         }
     }
 
-    private List<ConnectionData> getSortedConnectionDataByTime() {
-        List<ConnectionData> connectionDataList = new ArrayList<>(connectionDataRecords.keySet());
-        Collections.sort(connectionDataList, (o1, o2) -> (int) (o1.getTime() - o2.getTime()));
-        return connectionDataList;
-    }
-
     // Called from native code
     @Keep
     public boolean isDomainBlocked(String name) {
@@ -413,6 +561,10 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
     // Called from native code
     @Keep
     public boolean isRedirectToTor(int uid, String destAddress, int destPort) {
+        return isRedirectToTor(vpnRulesHolder.get().getVerdictTable(), uid, destAddress, destPort);
+    }
+
+    boolean isRedirectToTor(VpnVerdictTable table, int uid, String destAddress, int destPort) {
 
         if (destAddress == null) {
             return false;
@@ -426,40 +578,27 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
             return false;
         }
 
-        if (!destAddress.isEmpty()
-                && (VpnUtils.isIpInSubnet(destAddress, vpnPreferences.getTorVirtualAddressNetwork())
-                || VpnUtils.isIpInSubnet(destAddress, TOR_VIRTUAL_ADDR_NETWORK_IPV6))) {
+        if (table.isIpInTorVirtualNetwork(destAddress)) {
             return true;
         }
 
-        if (vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID) {
-            for (String address : VpnUtils.nonTorList) {
-                if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                    return false;
-                }
-            }
+        if ((vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID)
+                && table.isIpInLanRange(destAddress)) {
+            return false;
         }
 
-        if (vpnPreferences.getRouteAllThroughTor()
-                && vpnRulesHolder.get().ipsForTor.contains(destAddress)) {
-            return false;
-        } else if (vpnRulesHolder.get().ipsForTor.contains(destAddress)) {
-            return true;
+        if (table.isIpForTor(destAddress)) {
+            return !vpnPreferences.getRouteAllThroughTor();
         }
 
         if (uid == 1000 && destPort == SPECIAL_PORT_NTP) {
-            return !(vpnRulesHolder.get().uidSpecialAllowed.contains(SPECIAL_UID_NTP)
-                    || vpnRulesHolder.get().mapUidAllowed.containsKey(1000));
+            return !(table.isSpecialAllowed(SPECIAL_UID_NTP)
+                    || table.uidAllowed.contains(1000));
         }
 
-        List<Rule> listRule = commandHandler.getAppsList();
-
-        if (listRule != null) {
-            for (Rule rule : listRule) {
-                if (rule.uid == uid) {
-                    return rule.apply;
-                }
-            }
+        int rule = table.getTorRule(uid);
+        if (rule != VpnVerdictTable.RULE_NONE) {
+            return rule == VpnVerdictTable.RULE_TOR;
         }
 
         return vpnPreferences.getRouteAllThroughTor();
@@ -468,6 +607,10 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
     // Called from native code
     @Keep
     public boolean isRedirectToProxy(int uid, String destAddress, int destPort) {
+        return isRedirectToProxy(vpnRulesHolder.get().getVerdictTable(), uid, destAddress, destPort);
+    }
+
+    boolean isRedirectToProxy(VpnVerdictTable table, int uid, String destAddress, int destPort) {
 
         if (destAddress == null) {
             return false;
@@ -481,29 +624,21 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
             return false;
         }
 
-        if (vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID) {
-            for (String address : VpnUtils.nonTorList) {
-                if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                    return false;
-                }
-            }
+        if ((vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID)
+                && table.isIpInLanRange(destAddress)) {
+            return false;
         }
 
         if (uid == 1000 && destPort == SPECIAL_PORT_NTP) {
-            return !(vpnRulesHolder.get().uidSpecialAllowed.contains(SPECIAL_UID_NTP)
-                    || vpnRulesHolder.get().mapUidAllowed.containsKey(1000));
+            return !(table.isSpecialAllowed(SPECIAL_UID_NTP)
+                    || table.uidAllowed.contains(1000));
         }
 
         return !vpnPreferences.getSetBypassProxy().contains(String.valueOf(uid));
     }
 
     private boolean isIpInDNSRebindRange(String destAddress) {
-        for (String address : VpnUtils.dnsRebindList) {
-            if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                return true;
-            }
-        }
-        return false;
+        return VpnUtils.dnsRebindRanges.contains(destAddress);
     }
 
     // Called from native code
@@ -541,8 +676,8 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
 
     // Called from native code
     @Keep
-    public void accountUsage(Usage usage) {
-        //Log.i(LOG_TAG, usage.toString());
+    public void accountUsage(ByteBuffer records, int count) {
+        vpnUsageStore.get().addBatch(records, count);
     }
 
     @Override
@@ -836,58 +971,24 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
         }
     }
 
-    public ConcurrentHashMap<ConnectionData, Boolean> getDnsQueryRawRecords() {
+    public ConnectionDataRing getDnsQueryRawRecords() {
         return connectionDataRecords;
     }
 
     public void clearDnsQueryRawRecords() {
-        cachedExecutor.get().submit(() -> {
-            try {
-                lock.writeLock().lockInterruptibly();
-
-                if (!connectionDataRecords.isEmpty()) {
-                    connectionDataRecords.clear();
-                }
-
-            } catch (Exception e) {
-                loge("ServiceVPN clearDnsQueryRawRecords", e);
-            } finally {
-                if (lock.isWriteLockedByCurrentThread()) {
-                    lock.writeLock().unlock();
-                }
-            }
-        });
+        connectionDataRecords.clear();
     }
 
+    // Called for each new connection, the record is built later by the events thread
     void addUIDtoDNSQueryRawRecords(int uid, String destinationAddress, int destinationPort, String sourceAddres) {
 
         if (!vpnPreferences.getConnectionLogsEnabled()) {
             return;
         }
 
-        try {
-
-            if (uid != 0 || destinationPort != PLAINTEXT_DNS_PORT) {
-
-                PacketRecord packetRecord = new PacketRecord(
-                        System.currentTimeMillis(),
-                        uid,
-                        sourceAddres,
-                        destinationAddress
-                );
-
-                connectionDataRecords.remove(packetRecord);
-                connectionDataRecords.put(packetRecord, true);
-
-                if (connectionDataRecords.size() > LINES_IN_DNS_QUERY_RAW_RECORDS) {
-                    freeSpaceInConnectionRecords();
-                }
-            }
-
-        } catch (Exception e) {
-            loge("ServiceVPN addUIDtoDNSQueryRawRecords", e);
+        if (uid != 0 || destinationPort != PLAINTEXT_DNS_PORT) {
+            pendingPacketRecords.offer(System.currentTimeMillis(), uid, sourceAddres, destinationAddress);
         }
-
     }
 
     @Override
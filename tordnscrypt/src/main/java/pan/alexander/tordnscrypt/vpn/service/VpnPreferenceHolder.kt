@@ -99,4 +99,17 @@ class VpnPreferenceHolder @Inject constructor(
     val fixTTL = (modulesStatus.isFixTTL && modulesStatus.mode == OperationMode.ROOT_MODE
             && !modulesStatus.isUseModulesWithRoot)
     val connectionLogsEnabled = defaultPreferences.getBoolean(CONNECTION_LOGS, true)
+
+    val pcap = defaultPreferences.getBoolean(VPN_PCAP, false)
+    val pcapSnaplen = (defaultPreferences.getString(VPN_PCAP_SNAPLEN, "")
+        ?.toIntOrNull() ?: 128).coerceIn(64, 65535)
+    val pcapFileSize = (defaultPreferences.getString(VPN_PCAP_FILE_SIZE, "")
+        ?.toIntOrNull() ?: 4).coerceIn(1, 1024) * 1024 * 1024
+    val pcapUids = preferenceRepository.getStringSetPreference(VPN_PCAP_UIDS)
+        .mapNotNull { it.toIntOrNull() }
+        .toSet()
+
+    val dnsCache = defaultPreferences.getBoolean(VPN_DNS_CACHE, false)
+    val dnsCacheSize = (defaultPreferences.getString(VPN_DNS_CACHE_SIZE, "")
+        ?.toIntOrNull() ?: 512).coerceIn(16, 4096)
 }
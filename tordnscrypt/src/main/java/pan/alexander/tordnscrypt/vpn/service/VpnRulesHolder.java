@@ -31,6 +31,8 @@ import static pan.alexander.tordnscrypt.utils.Constants.DNS_OVER_TLS_PORT;
 import static pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS;
 import static pan.alexander.tordnscrypt.utils.Constants.NETWORK_STACK_DEFAULT_UID;
 import static pan.alexander.tordnscrypt.utils.Constants.PLAINTEXT_DNS_PORT;
+import static pan.alexander.tordnscrypt.utils.Constants.STANDARD_AP_INTERFACE_RANGE;
+import static pan.alexander.tordnscrypt.utils.Constants.STANDARD_USB_MODEM_INTERFACE_RANGE;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RESTARTING;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RUNNING;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STARTING;
@@ -47,6 +49,7 @@ import static pan.alexander.tordnscrypt.vpn.service.VpnBuilder.vpnDnsSet;
 
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -61,10 +64,10 @@ import javax.inject.Named;
 import dagger.Lazy;
 import pan.alexander.tordnscrypt.arp.ArpScanner;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.domain.tor_ips.DomainIpBindings;
 import pan.alexander.tordnscrypt.iptables.Tethering;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.settings.PathVars;
-import pan.alexander.tordnscrypt.utils.Constants;
 import pan.alexander.tordnscrypt.utils.connectivitycheck.ConnectivityCheckManager;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.vpn.Allowed;
@@ -81,6 +84,7 @@ public class VpnRulesHolder {
     private final PreferenceRepository preferenceRepository;
     private final PathVars pathVars;
     private final Lazy<ConnectivityCheckManager> connectivityCheckManager;
+    private final Lazy<DomainIpBindings> domainIpBindings;
 
     @SuppressLint("UseSparseArrays")
     final Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
@@ -92,6 +96,8 @@ public class VpnRulesHolder {
     final Set<String> ipsForTor = new HashSet<>();
     private final Set<Integer> uidLanAllowed = new HashSet<>();
     final Set<Integer> uidSpecialAllowed = new HashSet<>();
+    @SuppressLint("UseSparseArrays")
+    private final Map<Integer, Boolean> mapUidTorRule = new HashMap<>();
 
     private final Set<String> connectivityCheckIps = new HashSet<>();
 
@@ -99,16 +105,30 @@ public class VpnRulesHolder {
     public VpnRulesHolder(@Named(DEFAULT_PREFERENCES_NAME) SharedPreferences defaultPreferences,
                           PreferenceRepository preferenceRepository,
                           PathVars pathVars,
-                          Lazy<ConnectivityCheckManager> connectivityCheckManager
+                          Lazy<ConnectivityCheckManager> connectivityCheckManager,
+                          Lazy<DomainIpBindings> domainIpBindings
     ) {
         this.defaultPreferences = defaultPreferences;
         this.preferenceRepository = preferenceRepository;
         this.pathVars = pathVars;
         this.connectivityCheckManager = connectivityCheckManager;
+        this.domainIpBindings = domainIpBindings;
     }
 
     private final ModulesStatus modulesStatus = ModulesStatus.getInstance();
 
+    private volatile VpnVerdictTable verdictTable = VpnVerdictTable.EMPTY;
+
+    private final VpnVerdictTable.TetherRange apTetherRange =
+            new VpnVerdictTable.TetherRange(STANDARD_AP_INTERFACE_RANGE);
+    private final VpnVerdictTable.TetherRange usbTetherRange =
+            new VpnVerdictTable.TetherRange(STANDARD_USB_MODEM_INTERFACE_RANGE);
+    private final VpnVerdictTable.TetherRange ethernetTetherRange = new VpnVerdictTable.TetherRange();
+
+    VpnVerdictTable getVerdictTable() {
+        return verdictTable;
+    }
+
     public Allowed isAddressAllowed(ServiceVPN vpn, Packet packet) {
 
         if (packet.saddr == null || packet.sport == 0
@@ -117,59 +137,50 @@ public class VpnRulesHolder {
             return null;
         }
 
+        //The whole verdict is made with one snapshot of the rules
+        VpnVerdictTable table = verdictTable;
+
         boolean torIsRunning = modulesStatus.getTorState() == RUNNING
                 || modulesStatus.getTorState() == STARTING
                 || modulesStatus.getTorState() == RESTARTING;
 
-        String apAddresses = Constants.STANDARD_AP_INTERFACE_RANGE;
-        if (Tethering.wifiAPAddressesRange.contains(".")) {
-            apAddresses = Tethering.wifiAPAddressesRange
-                    .substring(0, Tethering.wifiAPAddressesRange.lastIndexOf("."));
-        }
-
-        String usbModemAddresses = Constants.STANDARD_USB_MODEM_INTERFACE_RANGE;
-        if (Tethering.usbModemAddressesRange.contains(".")) {
-            usbModemAddresses = Tethering.usbModemAddressesRange
-                    .substring(0, Tethering.usbModemAddressesRange.lastIndexOf("."));
-        }
-
         boolean fixTTLForPacket = modulesStatus.isFixTTL() && (modulesStatus.getMode() == ROOT_MODE)
                 && !modulesStatus.isUseModulesWithRoot()
-                && (Tethering.apIsOn && packet.saddr.contains(apAddresses)
-                || Tethering.usbTetherOn && packet.saddr.contains(usbModemAddresses)
-                || Tethering.ethernetOn && packet.saddr.contains(Tethering.addressLocalPC));
+                && (Tethering.apIsOn && apTetherRange.contains(Tethering.wifiAPAddressesRange, packet.saddr)
+                || Tethering.usbTetherOn && usbTetherRange.contains(Tethering.usbModemAddressesRange, packet.saddr)
+                || Tethering.ethernetOn && ethernetTetherRange.contains(Tethering.addressLocalPC, packet.saddr));
 
         if (packet.uid != vpn.vpnPreferences.getOwnUID()) {
             vpn.addUIDtoDNSQueryRawRecords(packet.uid, packet.daddr, packet.dport, packet.saddr);
         }
 
-        lock.readLock().lock();
-
         VpnPreferenceHolder vpnPreferences = vpn.vpnPreferences;
 
         boolean redirectToTor = false;
         if (torIsRunning) {
-            redirectToTor = vpn.isRedirectToTor(packet.uid, packet.daddr, packet.dport);
+            redirectToTor = vpn.isRedirectToTor(table, packet.uid, packet.daddr, packet.dport);
         }
 
         boolean redirectToProxy = false;
         if (vpnPreferences.getUseProxy()) {
-            redirectToProxy = vpn.isRedirectToProxy(packet.uid, packet.daddr, packet.dport);
+            redirectToProxy = vpn.isRedirectToProxy(table, packet.uid, packet.daddr, packet.dport);
         }
 
+        boolean ipv6 = packet.saddr.indexOf(':') >= 0 || packet.daddr.indexOf(':') >= 0;
+
         packet.allowed = false;
         // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
         if ((!vpn.canFilter) && isSupported(packet.protocol)) {
             packet.allowed = true;
         } else if (!isSupported(packet.protocol)) {
-            logw("Protocol not supported " + packet);
+            logPacket(vpnPreferences, Log.WARN, "Protocol not supported", packet);
         } else if (packet.dport == DNS_OVER_TLS_PORT
                 && vpnPreferences.getIgnoreSystemDNS()) {
-            logw("Block DNS over TLS " + packet);
+            logPacket(vpnPreferences, Log.WARN, "Block DNS over TLS", packet);
         } else if (vpnDnsSet.contains(packet.daddr)
                 && packet.dport != PLAINTEXT_DNS_PORT
                 && vpnPreferences.getIgnoreSystemDNS()) {
-            logw("Block DNS over HTTPS " + packet);
+            logPacket(vpnPreferences, Log.WARN, "Block DNS over HTTPS", packet);
         } else if ((packet.uid == vpnPreferences.getOwnUID()
                 || vpnPreferences.getCompatibilityMode()
                 && packet.uid == SPECIAL_UID_KERNEL
@@ -177,21 +188,21 @@ public class VpnRulesHolder {
             packet.allowed = true;
 
             if (!vpnPreferences.getCompatibilityMode()) {
-                logw("Allowing self " + packet);
+                logPacket(vpnPreferences, Log.WARN, "Allowing self", packet);
             }
         } else if (vpnPreferences.getArpSpoofingDetection()
                 && vpnPreferences.getBlockInternetWhenArpAttackDetected()
                 && (ArpScanner.getArpAttackDetected()
                 || ArpScanner.getDhcpGatewayAttackDetected())) {
             // MITM attack detected
-            logw("Block due to mitm attack " + packet);
+            logPacket(vpnPreferences, Log.WARN, "Block due to mitm attack", packet);
         } else if (packet.uid == NETWORK_STACK_DEFAULT_UID
-                && isIpInLanRange(packet.daddr)) {
+                && table.isIpInLanRange(packet.daddr)) {
             //Allow NetworkStack to connect to LAN to determine connection status
             packet.allowed = true;
         } else if (vpn.reloading) {
             // Reload service
-            logi("Block due to reloading " + packet);
+            logPacket(vpnPreferences, Log.INFO, "Block due to reloading", packet);
         } else if ((modulesStatus.getDnsCryptState() != STOPPED &&
                 vpnPreferences.getBlockIPv6DnsCrypt()
                 || modulesStatus.getDnsCryptState() == STOPPED &&
@@ -201,19 +212,19 @@ public class VpnRulesHolder {
                 //|| packet.dport == PLAINTEXT_DNS_PORT
                 //|| (torIsRunning && redirectToTor)
                 || (vpnPreferences.getUseProxy() && redirectToProxy))
-                && (packet.saddr.contains(":") || packet.daddr.contains(":"))) {
-            logi("Block ipv6 " + packet);
+                && ipv6) {
+            logPacket(vpnPreferences, Log.INFO, "Block ipv6", packet);
         } else if (vpnPreferences.getBlockHttp() && packet.dport == 80
-                && !VpnUtils.isIpInSubnet(packet.daddr, vpnPreferences.getTorVirtualAddressNetwork())
+                && !table.isIpInTorVirtualNetwork(packet.daddr)
                 && !packet.daddr.equals(vpnPreferences.getItpdRedirectAddress())
-                && !isIpInLanRange(packet.daddr)) {
-            logw("Block http " + packet);
+                && !table.isIpInLanRange(packet.daddr)) {
+            logPacket(vpnPreferences, Log.WARN, "Block http", packet);
         } else if (packet.uid <= 2000 &&
                 (!vpnPreferences.getRouteAllThroughTor()
                         || vpnPreferences.getTorTethering()
                         || fixTTLForPacket
                         || vpnPreferences.getCompatibilityMode()) &&
-                !mapUidKnown.containsKey(packet.uid)
+                !table.uidKnown.contains(packet.uid)
                 && (vpnPreferences.getFixTTL()
                 || !torIsRunning && !vpnPreferences.getUseProxy()
                 || packet.protocol == 6 && packet.dport == PLAINTEXT_DNS_PORT)) {
@@ -221,37 +232,33 @@ public class VpnRulesHolder {
             // Allow unknown system traffic
             packet.allowed = true;
             if (!fixTTLForPacket && !vpnPreferences.getCompatibilityMode()) {
-                logw("Allowing unknown system " + packet);
+                logPacket(vpnPreferences, Log.WARN, "Allowing unknown system", packet);
             }
         } else if (torIsRunning
                 && packet.protocol != 6
                 && packet.dport != PLAINTEXT_DNS_PORT
                 && redirectToTor) {
-            logw("Disallowing non tcp traffic to Tor " + packet);
+            logPacket(vpnPreferences, Log.WARN, "Disallowing non tcp traffic to Tor", packet);
         } else if (vpnPreferences.getUseProxy()
                 && packet.protocol != 6
                 && packet.dport != PLAINTEXT_DNS_PORT
                 && redirectToProxy) {
-            logw("Disallowing non tcp traffic to proxy " + packet);
+            logPacket(vpnPreferences, Log.WARN, "Disallowing non tcp traffic to proxy", packet);
         } else if (vpnPreferences.getFirewallEnabled()
-                && isIpInLanRange(packet.daddr)) {
-            packet.allowed = uidLanAllowed.contains(packet.uid);
-        } else if (isDestinationInSpecialRange(packet.uid, packet.daddr, packet.dport)) {
-            packet.allowed = isSpecialAllowed(packet.uid, packet.daddr, packet.dport);
+                && table.isIpInLanRange(packet.daddr)) {
+            packet.allowed = table.uidLanAllowed.contains(packet.uid);
+        } else if (isDestinationInSpecialRange(table, packet.uid, packet.daddr, packet.dport)) {
+            packet.allowed = isSpecialAllowed(table, packet.uid, packet.daddr, packet.dport);
         } else if (vpnPreferences.getFirewallEnabled()) {
 
-            if (mapUidAllowed.containsKey(packet.uid)) {
-                Boolean allow = mapUidAllowed.get(packet.uid);
-                if (allow != null) {
-                    packet.allowed = allow;
-                    //Log.i(LOG_TAG, "Packet " + packet.toString() + " is allowed " + allow);
-                }
+            if (table.uidAllowed.contains(packet.uid)) {
+                packet.allowed = true;
             } else if (packet.dport == PLAINTEXT_DNS_PORT
                     && packet.uid < 2000 && packet.uid != SPECIAL_UID_KERNEL) {
                 //Allow connection check for system apps
                 packet.allowed = true;
             } else {
-                logw("UID is not allowed or no rules for " + packet);
+                logPacket(vpnPreferences, Log.WARN, "UID is not allowed or no rules for", packet);
             }
         } else {
             packet.allowed = true;
@@ -259,33 +266,39 @@ public class VpnRulesHolder {
 
         Allowed allowed = null;
         if (packet.allowed) {
+            int forwardIndex;
             if (packet.uid == vpnPreferences.getOwnUID()
                     && (packet.dport != PLAINTEXT_DNS_PORT || vpnPreferences.getCompatibilityMode())
                     || vpnPreferences.getCompatibilityMode()
-                    && isPacketAllowedForCompatibilityMode(packet, fixTTLForPacket)) {
-                allowed = new Allowed();
-            } else if (mapForwardPort.containsKey(packet.dport)) {
-                Forward fwd = mapForwardPort.get(packet.dport);
-                if (fwd != null) {
-                    allowed = new Allowed(fwd.raddr, fwd.rport);
-                    packet.data = "> " + fwd.raddr + "/" + fwd.rport;
-                }
-            } else if (mapForwardAddress.containsKey(packet.daddr)) {
-                Forward fwd = mapForwardAddress.get(packet.daddr);
-                if (fwd != null) {
-                    allowed = new Allowed(fwd.raddr, fwd.rport);
-                    packet.data = "> " + fwd.raddr + "/" + fwd.rport;
-                }
+                    && isPacketAllowedForCompatibilityMode(vpnPreferences, packet, fixTTLForPacket)) {
+                allowed = VpnVerdictTable.ALLOWED_DIRECT;
+            } else if ((forwardIndex = table.getForwardPortIndex(packet.dport)) >= 0) {
+                allowed = table.getForwardPortAllowed(forwardIndex);
+                packet.data = table.getForwardPortData(forwardIndex);
+            } else if ((forwardIndex = table.getForwardAddressIndex(packet.daddr)) >= 0) {
+                allowed = table.getForwardAddressAllowed(forwardIndex);
+                packet.data = table.getForwardAddressData(forwardIndex);
             } else {
-                allowed = new Allowed();
+                allowed = VpnVerdictTable.ALLOWED_DIRECT;
             }
         }
 
-        lock.readLock().unlock();
-
         return allowed;
     }
 
+    //Verdicts are made for each new connection, so their messages are built only if they are logged
+    private static void logPacket(VpnPreferenceHolder vpnPreferences, int priority, String message, Packet packet) {
+        if (priority < vpnPreferences.getNativeLogLevel()) {
+            return;
+        }
+
+        if (priority >= Log.WARN) {
+            logw(message + " " + packet);
+        } else {
+            logi(message + " " + packet);
+        }
+    }
+
     private boolean isSupported(int protocol) {
         return (protocol == 1 /* ICMPv4 */ ||
                 protocol == 58 /* ICMPv6 */ ||
@@ -293,41 +306,33 @@ public class VpnRulesHolder {
                 protocol == 17 /* UDP */);
     }
 
-    private boolean isIpInLanRange(String destAddress) {
-        for (String address : VpnUtils.nonTorList) {
-            if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean isDestinationInSpecialRange(int uid, String destIp, int destPort) {
+    private boolean isDestinationInSpecialRange(VpnVerdictTable table, int uid, String destIp, int destPort) {
         return uid == 0 && destPort == PLAINTEXT_DNS_PORT
                 || uid == SPECIAL_UID_KERNEL
                 || destPort == SPECIAL_PORT_NTP
                 || destPort == SPECIAL_PORT_AGPS1
                 || destPort == SPECIAL_PORT_AGPS2
-                || connectivityCheckIps.contains(destIp);
+                || table.connectivityCheckIps.contains(destIp);
     }
 
-    private boolean isSpecialAllowed(int uid, String destIp, int destPort) {
+    private boolean isSpecialAllowed(VpnVerdictTable table, int uid, String destIp, int destPort) {
         if (uid == 0 && destPort == PLAINTEXT_DNS_PORT) {
             return true;
         } else if (uid == SPECIAL_UID_KERNEL) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_KERNEL);
+            return table.isSpecialAllowed(SPECIAL_UID_KERNEL);
         } else if (uid == 1000 && destPort == SPECIAL_PORT_NTP) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_NTP)
-                    || mapUidAllowed.containsKey(1000);
+            return table.isSpecialAllowed(SPECIAL_UID_NTP)
+                    || table.uidAllowed.contains(1000);
         } else if (destPort == SPECIAL_PORT_AGPS1 || destPort == SPECIAL_PORT_AGPS2) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_AGPS);
-        } else if (connectivityCheckIps.contains(destIp)) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_CONNECTIVITY_CHECK);
+            return table.isSpecialAllowed(SPECIAL_UID_AGPS);
+        } else if (table.connectivityCheckIps.contains(destIp)) {
+            return table.isSpecialAllowed(SPECIAL_UID_CONNECTIVITY_CHECK);
         }
         return false;
     }
 
-    private boolean isPacketAllowedForCompatibilityMode(Packet packet, boolean fixTTLForPacket) {
+    private boolean isPacketAllowedForCompatibilityMode(VpnPreferenceHolder vpnPreferences,
+                                                        Packet packet, boolean fixTTLForPacket) {
         ModuleState dnsCryptState = modulesStatus.getDnsCryptState();
         ModuleState torState = modulesStatus.getTorState();
         boolean dnsCryptReady = modulesStatus.isDnsCryptReady();
@@ -343,7 +348,7 @@ public class VpnRulesHolder {
                 || (torState == RUNNING
                 || torState == STARTING
                 || torState == RESTARTING) && !torReady))) {
-            logi("Packet will not be redirected due to compatibility mode " + packet);
+            logPacket(vpnPreferences, Log.INFO, "Packet will not be redirected due to compatibility mode", packet);
             return true;
         }
 
@@ -368,10 +373,14 @@ public class VpnRulesHolder {
         }
 
         mapUidKnown.clear();
+        mapUidTorRule.clear();
         for (Rule rule : listRule) {
             if (rule.uid >= 0) {
                 mapUidKnown.put(rule.uid, rule.uid);
             }
+            if (!mapUidTorRule.containsKey(rule.uid)) {
+                mapUidTorRule.put(rule.uid, rule.apply);
+            }
         }
 
         uidLanAllowed.clear();
@@ -381,20 +390,37 @@ public class VpnRulesHolder {
             }
         }
 
-        ipsForTor.clear();
-        boolean routeAllThroughTor = defaultPreferences.getBoolean(ALL_THROUGH_TOR, true);
-        if (routeAllThroughTor) {
-            ipsForTor.addAll(preferenceRepository.getStringSetPreference(IPS_FOR_CLEARNET));
-        } else {
-            ipsForTor.addAll(preferenceRepository.getStringSetPreference(IPS_TO_UNLOCK));
-        }
+        fillIpsForTor();
 
         connectivityCheckIps.clear();
         connectivityCheckIps.addAll(connectivityCheckManager.get().getConnectivityCheckIps());
 
+        compileVerdictTable();
+
         lock.writeLock().unlock();
     }
 
+    //Routes the IPs that DomainIpBindings has bound or expired since the rules were prepared
+    void updateBoundIps() {
+        lock.writeLock().lock();
+
+        if (verdictTable != VpnVerdictTable.EMPTY) {
+            fillIpsForTor();
+            compileVerdictTable();
+        }
+
+        lock.writeLock().unlock();
+    }
+
+    //Must be called under the write lock
+    private void fillIpsForTor() {
+        ipsForTor.clear();
+        boolean routeAllThroughTor = defaultPreferences.getBoolean(ALL_THROUGH_TOR, true);
+        String ipsKey = routeAllThroughTor ? IPS_FOR_CLEARNET : IPS_TO_UNLOCK;
+        ipsForTor.addAll(preferenceRepository.getStringSetPreference(ipsKey));
+        ipsForTor.addAll(domainIpBindings.get().getIps(ipsKey));
+    }
+
     void prepareForwarding() {
         lock.writeLock().lock();
         mapForwardPort.clear();
@@ -438,6 +464,8 @@ public class VpnRulesHolder {
             addForwardPortRule(6, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
         }
 
+        compileVerdictTable();
+
         lock.writeLock().unlock();
     }
 
@@ -472,8 +500,28 @@ public class VpnRulesHolder {
         ipsForTor.clear();
         uidLanAllowed.clear();
         uidSpecialAllowed.clear();
+        mapUidTorRule.clear();
         mapForwardPort.clear();
         mapForwardAddress.clear();
+        connectivityCheckIps.clear();
+        verdictTable = VpnVerdictTable.EMPTY;
         lock.writeLock().unlock();
     }
+
+    //Must be called under the write lock
+    private void compileVerdictTable() {
+        verdictTable = new VpnVerdictTable(
+                new VpnVerdictTable.UidSet(mapUidAllowed.keySet()),
+                new VpnVerdictTable.UidSet(mapUidKnown.keySet()),
+                new VpnVerdictTable.UidSet(uidLanAllowed),
+                new VpnVerdictTable.UidSet(uidSpecialAllowed),
+                mapUidTorRule,
+                VpnUtils.nonTorList,
+                pathVars.getTorVirtAdrNet(),
+                ipsForTor,
+                connectivityCheckIps,
+                mapForwardPort,
+                mapForwardAddress
+        );
+    }
 }
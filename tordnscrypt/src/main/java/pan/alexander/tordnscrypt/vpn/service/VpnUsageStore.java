@@ -0,0 +1,283 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+
+package pan.alexander.tordnscrypt.vpn.service;
+
+import static pan.alexander.tordnscrypt.utils.logger.Logger.loge;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
+import pan.alexander.tordnscrypt.vpn.Usage;
+
+/*
+ * Per uid traffic counters reported by the native engine, see jni/invizible/usage.c.
+ * Records are aggregated by uid, protocol and route into hourly buckets,
+ * buckets older than HOURS are dropped. The buckets are saved to a small binary file.
+ *
+ * Native record, native byte order:
+ * int32 uid, uint8 protocol, uint8 route, uint16 padding, uint32 sent packets,
+ * uint32 received packets, uint64 sent bytes, uint64 received bytes.
+ */
+@Singleton
+public class VpnUsageStore {
+
+    public static final int ROUTE_DIRECT = 0;
+    public static final int ROUTE_TOR = 1;
+    public static final int ROUTE_PROXY = 2;
+
+    private static final int RECORD_SIZE = 32;
+    private static final int HOURS = 48;
+    private static final int FILE_MAGIC = 0x55534731;
+    private static final String FILE_NAME = "vpn_usage.bin";
+    private static final long SAVE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Context context;
+    private final CachedExecutor cachedExecutor;
+
+    //Hour start -> key -> sent, received, sent packets, received packets
+    private final TreeMap<Long, Map<Long, long[]>> buckets = new TreeMap<>();
+    private final long[] sessionRouteBytes = new long[ROUTE_PROXY + 1];
+    private boolean loaded;
+    private boolean changed;
+    private long lastSaveTime;
+
+    @Inject
+    VpnUsageStore(Context context, CachedExecutor cachedExecutor) {
+        this.context = context;
+        this.cachedExecutor = cachedExecutor;
+    }
+
+    /*
+     * Called on the tunnel thread, the buffer is reused by native code after return.
+     */
+    void addBatch(ByteBuffer buffer, int count) {
+        if (buffer == null || buffer.capacity() < count * RECORD_SIZE) {
+            return;
+        }
+        buffer.order(ByteOrder.nativeOrder());
+
+        long now = System.currentTimeMillis();
+        boolean save;
+        synchronized (this) {
+            load();
+
+            Map<Long, long[]> bucket = getBucket(now);
+            for (int i = 0; i < count; i++) {
+                int offset = i * RECORD_SIZE;
+                int uid = buffer.getInt(offset);
+                int protocol = buffer.get(offset + 4) & 0xff;
+                int route = buffer.get(offset + 5) & 0xff;
+                long sentPackets = buffer.getInt(offset + 8) & 0xffffffffL;
+                long receivedPackets = buffer.getInt(offset + 12) & 0xffffffffL;
+                long sent = buffer.getLong(offset + 16);
+                long received = buffer.getLong(offset + 24);
+
+                long key = toKey(uid, protocol, route);
+                long[] counters = bucket.get(key);
+                if (counters == null) {
+                    counters = new long[4];
+                    bucket.put(key, counters);
+                }
+                counters[0] += sent;
+                counters[1] += received;
+                counters[2] += sentPackets;
+                counters[3] += receivedPackets;
+
+                if (route < sessionRouteBytes.length) {
+                    sessionRouteBytes[route] += sent + received;
+                }
+            }
+
+            changed |= count > 0;
+            save = changed && now - lastSaveTime > SAVE_INTERVAL_MS;
+        }
+
+        if (save) {
+            saveAsync();
+        }
+    }
+
+    /*
+     * Aggregated usage since the given time, one entry per uid, protocol and route.
+     * The time is rounded down to the hour.
+     */
+    public synchronized List<Usage> getUsage(long since) {
+        load();
+
+        Map<Long, Usage> result = new HashMap<>();
+        for (Map.Entry<Long, Map<Long, long[]>> bucket
+                : buckets.tailMap(getHourStart(since)).entrySet()) {
+            for (Map.Entry<Long, long[]> entry : bucket.getValue().entrySet()) {
+                Usage usage = result.get(entry.getKey());
+                if (usage == null) {
+                    usage = fromKey(entry.getKey());
+                    usage.Time = bucket.getKey();
+                    result.put(entry.getKey(), usage);
+                }
+                long[] counters = entry.getValue();
+                usage.Sent += counters[0];
+                usage.Received += counters[1];
+                usage.SentPackets += counters[2];
+                usage.ReceivedPackets += counters[3];
+            }
+        }
+
+        return new ArrayList<>(result.values());
+    }
+
+    /*
+     * Bytes sent and received through the route since the tunnel was started.
+     */
+    public synchronized long getSessionBytes(int route) {
+        return route >= 0 && route < sessionRouteBytes.length ? sessionRouteBytes[route] : 0;
+    }
+
+    synchronized void startSession() {
+        for (int i = 0; i < sessionRouteBytes.length; i++) {
+            sessionRouteBytes[i] = 0;
+        }
+    }
+
+    void saveAsync() {
+        cachedExecutor.submit(this::save);
+    }
+
+    private Map<Long, long[]> getBucket(long time) {
+        long hour = getHourStart(time);
+        Map<Long, long[]> bucket = buckets.get(hour);
+        if (bucket == null) {
+            bucket = new HashMap<>();
+            buckets.put(hour, bucket);
+            buckets.headMap(hour - TimeUnit.HOURS.toMillis(HOURS - 1)).clear();
+        }
+        return bucket;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.isFile()) {
+            return;
+        }
+
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FILE_MAGIC) {
+                return;
+            }
+            int bucketsCount = input.readInt();
+            for (int i = 0; i < bucketsCount; i++) {
+                long hour = input.readLong();
+                int entries = input.readInt();
+                Map<Long, long[]> bucket = new HashMap<>(entries * 2);
+                for (int j = 0; j < entries; j++) {
+                    long key = input.readLong();
+                    long[] counters = new long[4];
+                    for (int k = 0; k < counters.length; k++) {
+                        counters[k] = input.readLong();
+                    }
+                    bucket.put(key, counters);
+                }
+                buckets.put(hour, bucket);
+            }
+            buckets.headMap(getHourStart(System.currentTimeMillis())
+                    - TimeUnit.HOURS.toMillis(HOURS - 1)).clear();
+        } catch (Exception e) {
+            buckets.clear();
+            loge("VpnUsageStore load", e);
+        }
+    }
+
+    private void save() {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File temp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+
+        synchronized (this) {
+            if (!changed) {
+                return;
+            }
+            changed = false;
+            lastSaveTime = System.currentTimeMillis();
+
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                output.writeInt(FILE_MAGIC);
+                output.writeInt(buckets.size());
+                for (Map.Entry<Long, Map<Long, long[]>> bucket : buckets.entrySet()) {
+                    output.writeLong(bucket.getKey());
+                    output.writeInt(bucket.getValue().size());
+                    for (Map.Entry<Long, long[]> entry : bucket.getValue().entrySet()) {
+                        output.writeLong(entry.getKey());
+                        for (long counter : entry.getValue()) {
+                            output.writeLong(counter);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                loge("VpnUsageStore save", e);
+                return;
+            }
+
+            if (!temp.renameTo(file)) {
+                loge("VpnUsageStore unable to rename " + temp);
+            }
+        }
+    }
+
+    private static long getHourStart(long time) {
+        return time - time % TimeUnit.HOURS.toMillis(1);
+    }
+
+    private static long toKey(int uid, int protocol, int route) {
+        return ((long) uid << 16) | (protocol << 8) | route;
+    }
+
+    private static Usage fromKey(long key) {
+        Usage usage = new Usage();
+        usage.Uid = (int) (key >> 16);
+        usage.Protocol = (int) (key >> 8) & 0xff;
+        usage.Route = (int) key & 0xff;
+        return usage;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn.service;
+
+import static pan.alexander.tordnscrypt.utils.Constants.TOR_VIRTUAL_ADDR_NETWORK_IPV6;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import pan.alexander.tordnscrypt.vpn.Allowed;
+import pan.alexander.tordnscrypt.vpn.Forward;
+import pan.alexander.tordnscrypt.vpn.IpPrefixTrie;
+import pan.alexander.tordnscrypt.vpn.VpnUtils;
+
+/*
+ * Immutable snapshot of the VPN rules compiled from VpnRulesHolder.
+ * It is published with a single volatile write and read by the packet thread without locks,
+ * so nothing here may be modified after construction.
+ */
+final class VpnVerdictTable {
+
+    static final VpnVerdictTable EMPTY = new VpnVerdictTable(
+            new UidSet(Collections.emptyList()),
+            new UidSet(Collections.emptyList()),
+            new UidSet(Collections.emptyList()),
+            new UidSet(Collections.emptyList()),
+            Collections.emptyMap(),
+            Collections.emptyList(),
+            null,
+            Collections.emptySet(),
+            Collections.emptySet(),
+            Collections.emptyMap(),
+            Collections.emptyMap()
+    );
+
+    static final Allowed ALLOWED_DIRECT = new Allowed();
+
+    static final int RULE_NONE = -1;
+    static final int RULE_DIRECT = 0;
+    static final int RULE_TOR = 1;
+
+    private static final long INVALID_IP = -1;
+
+    final UidSet uidAllowed;
+    final UidSet uidKnown;
+    final UidSet uidLanAllowed;
+    final UidSet uidSpecialAllowed;
+
+    //Sorted uids of the applications rules and their Tor verdicts
+    private final int[] ruleUids;
+    private final boolean[] ruleApply;
+
+    final List<String> lanRangesList;
+    private final IpPrefixTrie lanRanges;
+    final List<String> torVirtualNetworks;
+    private final IpPrefixTrie torVirtualRanges;
+
+    final List<String> ipsForTorList;
+    private final IpPrefixTrie ipsForTor;
+    final Set<String> connectivityCheckIps;
+
+    private final int[] forwardPorts;
+    private final Allowed[] forwardPortAllowed;
+    private final String[] forwardPortData;
+    private final String[] forwardAddresses;
+    private final Allowed[] forwardAddressAllowed;
+    private final String[] forwardAddressData;
+
+    VpnVerdictTable(
+            UidSet uidAllowed,
+            UidSet uidKnown,
+            UidSet uidLanAllowed,
+            UidSet uidSpecialAllowed,
+            Map<Integer, Boolean> uidRules,
+            List<String> lanRanges,
+            String torVirtualAddressNetwork,
+            Set<String> ipsForTor,
+            Set<String> connectivityCheckIps,
+            Map<Integer, Forward> mapForwardPort,
+            Map<String, Forward> mapForwardAddress
+    ) {
+        this.uidAllowed = uidAllowed;
+        this.uidKnown = uidKnown;
+        this.uidLanAllowed = uidLanAllowed;
+        this.uidSpecialAllowed = uidSpecialAllowed;
+
+        List<Integer> uids = new ArrayList<>(uidRules.keySet());
+        Collections.sort(uids);
+        this.ruleUids = new int[uids.size()];
+        this.ruleApply = new boolean[uids.size()];
+        for (int i = 0; i < uids.size(); i++) {
+            Boolean apply = uidRules.get(uids.get(i));
+            ruleUids[i] = uids.get(i);
+            ruleApply[i] = apply != null && apply;
+        }
+
+        this.lanRangesList = Collections.unmodifiableList(new ArrayList<>(lanRanges));
+        this.lanRanges = lanRanges == VpnUtils.nonTorList ? VpnUtils.nonTorRanges : IpPrefixTrie.from(lanRanges);
+
+        List<String> torVirtualNetworks = new ArrayList<>();
+        torVirtualNetworks.add(TOR_VIRTUAL_ADDR_NETWORK_IPV6);
+        if (torVirtualAddressNetwork != null) {
+            torVirtualNetworks.add(torVirtualAddressNetwork);
+        }
+        this.torVirtualNetworks = Collections.unmodifiableList(torVirtualNetworks);
+        this.torVirtualRanges = IpPrefixTrie.from(torVirtualNetworks);
+
+        this.ipsForTorList = Collections.unmodifiableList(new ArrayList<>(ipsForTor));
+        this.ipsForTor = IpPrefixTrie.from(ipsForTor);
+        this.connectivityCheckIps = Collections.unmodifiableSet(new HashSet<>(connectivityCheckIps));
+
+        this.forwardPorts = new int[mapForwardPort.size()];
+        this.forwardPortAllowed = new Allowed[mapForwardPort.size()];
+        this.forwardPortData = new String[mapForwardPort.size()];
+        int i = 0;
+        for (Forward fwd : mapForwardPort.values()) {
+            forwardPorts[i] = fwd.dport;
+            forwardPortAllowed[i] = new Allowed(fwd.raddr, fwd.rport);
+            forwardPortData[i] = "> " + fwd.raddr + "/" + fwd.rport;
+            i++;
+        }
+
+        this.forwardAddresses = new String[mapForwardAddress.size()];
+        this.forwardAddressAllowed = new Allowed[mapForwardAddress.size()];
+        this.forwardAddressData = new String[mapForwardAddress.size()];
+        i = 0;
+        for (Forward fwd : mapForwardAddress.values()) {
+            forwardAddresses[i] = fwd.daddr;
+            forwardAddressAllowed[i] = new Allowed(fwd.raddr, fwd.rport);
+            forwardAddressData[i] = "> " + fwd.raddr + "/" + fwd.rport;
+            i++;
+        }
+    }
+
+    boolean isIpInLanRange(String address) {
+        return lanRanges.contains(address);
+    }
+
+    boolean isIpInTorVirtualNetwork(String address) {
+        return torVirtualRanges.contains(address);
+    }
+
+    boolean isIpForTor(String address) {
+        return ipsForTor.contains(address);
+    }
+
+    boolean isSpecialAllowed(int specialUid) {
+        return uidSpecialAllowed.contains(specialUid);
+    }
+
+    /*
+     * Returns RULE_TOR or RULE_DIRECT for the first application rule with this uid or RULE_NONE.
+     */
+    int getTorRule(int uid) {
+        int index = Arrays.binarySearch(ruleUids, uid);
+        if (index < 0) {
+            return RULE_NONE;
+        }
+        return ruleApply[index] ? RULE_TOR : RULE_DIRECT;
+    }
+
+    int getTorRulesCount() {
+        return ruleUids.length;
+    }
+
+    int getTorRuleUid(int index) {
+        return ruleUids[index];
+    }
+
+    boolean getTorRuleApply(int index) {
+        return ruleApply[index];
+    }
+
+    int getForwardPortIndex(int port) {
+        for (int i = 0; i < forwardPorts.length; i++) {
+            if (forwardPorts[i] == port) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    Allowed getForwardPortAllowed(int index) {
+        return forwardPortAllowed[index];
+    }
+
+    String getForwardPortData(int index) {
+        return forwardPortData[index];
+    }
+
+    int getForwardAddressIndex(String address) {
+        for (int i = 0; i < forwardAddresses.length; i++) {
+            if (forwardAddresses[i].equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    Allowed getForwardAddressAllowed(int index) {
+        return forwardAddressAllowed[index];
+    }
+
+    String getForwardAddressData(int index) {
+        return forwardAddressData[index];
+    }
+
+    /*
+     * Tethering range such as 192.168.43.0/24 or 192.168.0.100.
+     * Tethering ranges change without the rules being prepared again, so they are not a part
+     * of the table. The current range is passed on each check and parsed again only when it changes.
+     * As before, an interface range matches the /24 network of its address, such as 192.168.43.,
+     * and the standard range is used if the current one is not an IPv4 range.
+     */
+    static final class TetherRange {
+        //Null for a single address or CIDR range
+        private final String standardRange;
+        private volatile ParsedRange parsed;
+
+        TetherRange() {
+            this(null);
+        }
+
+        TetherRange(String standardRange) {
+            this.standardRange = standardRange;
+        }
+
+        boolean contains(String range, String address) {
+            if (range == null || address == null) {
+                return false;
+            }
+
+            ParsedRange current = parsed;
+            if (current == null || !current.range.equals(range)) {
+                current = new ParsedRange(range, standardRange);
+                parsed = current;
+            }
+
+            if (!current.valid) {
+                return false;
+            }
+
+            long ip = IpPrefixTrie.parseIPv4(address, 0, address.length());
+            return ip != INVALID_IP && ((int) ip & current.mask) == current.network;
+        }
+    }
+
+    private static final class ParsedRange {
+        private static final int INTERFACE_PREFIX = 24;
+
+        final String range;
+        final boolean valid;
+        final int network;
+        final int mask;
+
+        ParsedRange(String range, String standardRange) {
+            this.range = range;
+
+            int slash = range.indexOf('/');
+            String address = (slash >= 0 ? range.substring(0, slash) : range).trim();
+            int prefix = 32;
+            if (standardRange != null) {
+                prefix = INTERFACE_PREFIX;
+            } else if (slash >= 0) {
+                try {
+                    prefix = Integer.parseInt(range.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    prefix = -1;
+                }
+            }
+
+            long ip = IpPrefixTrie.parseIPv4(address, 0, address.length());
+            if (ip == INVALID_IP && standardRange != null) {
+                //Such as 192.168.43.
+                String standardAddress = standardRange + "0";
+                ip = IpPrefixTrie.parseIPv4(standardAddress, 0, standardAddress.length());
+            }
+            valid = ip != INVALID_IP && prefix >= 0 && prefix <= 32;
+            mask = !valid || prefix == 0 ? 0 : 0xFFFFFFFF << (32 - prefix);
+            network = valid ? (int) ip & mask : 0;
+        }
+    }
+
+    /*
+     * Immutable sorted array of uids. Application uids of secondary users are large
+     * and special uids are negative, so a sparse array is used instead of a bitset.
+     */
+    static final class UidSet {
+        private final int[] uids;
+
+        UidSet(Collection<Integer> uids) {
+            int[] values = new int[uids.size()];
+            int count = 0;
+            for (Integer uid : uids) {
+                if (uid != null) {
+                    values[count++] = uid;
+                }
+            }
+            Arrays.sort(values, 0, count);
+
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || values[unique - 1] != values[i]) {
+                    values[unique++] = values[i];
+                }
+            }
+            this.uids = unique == values.length ? values : Arrays.copyOf(values, unique);
+        }
+
+        int[] toArray() {
+            return uids.clone();
+        }
+
+        boolean contains(int uid) {
+            return Arrays.binarySearch(uids, uid) >= 0;
+        }
+    }
+}
@@ -22,6 +22,103 @@
 
 #include "invizible.h"
 
+// ServiceVPN learns about rebinding from the events ring later, so the answer is blocked here
+// Ranges are VpnUtils.dnsRebindList as NativeRedirectRules prefix entries, NULL if disabled
+static pthread_rwlock_t dns_rebind_lock = PTHREAD_RWLOCK_INITIALIZER;
+static jobject dns_rebind_buffer = NULL;
+static const struct redirect_prefix *dns_rebind_ranges = NULL;
+static int dns_rebind_count = 0;
+
+static const uint8_t meta_address6[16] = {0};
+static const uint8_t loopback_address6[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+static int is_dns_rebind_address(const char *qname, uint8_t version, const uint8_t *addr,
+                                 uint16_t rcode) {
+    size_t length = strlen(qname);
+    if ((length >= 6 && strcmp(qname + length - 6, ".onion") == 0) ||
+        (length >= 4 && strcmp(qname + length - 4, ".i2p") == 0))
+        return 0;
+
+    if (pthread_rwlock_rdlock(&dns_rebind_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_rdlock failed");
+        return 0;
+    }
+
+    int rebind = 0;
+    if (dns_rebind_ranges != NULL) {
+        if (is_in_prefixes(dns_rebind_ranges, dns_rebind_count, version, addr))
+            rebind = 1;
+        else if (rcode == 0 && version == 4) {
+            // Meta and loopback addresses
+            uint32_t a = ntohl(*((uint32_t *) addr));
+            rebind = (a == INADDR_ANY || a == INADDR_LOOPBACK);
+        } else if (rcode == 0)
+            rebind = (memcmp(addr, meta_address6, 16) == 0 ||
+                      memcmp(addr, loopback_address6, 16) == 0);
+    }
+
+    pthread_rwlock_unlock(&dns_rebind_lock);
+
+    return rebind;
+}
+
+static void release_dns_rebind_ranges(JNIEnv *env) {
+    if (dns_rebind_buffer != NULL)
+        (*env)->DeleteGlobalRef(env, dns_rebind_buffer);
+    dns_rebind_buffer = NULL;
+    dns_rebind_ranges = NULL;
+    dns_rebind_count = 0;
+}
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1dns_1rebind_1protection(
+        JNIEnv *env, jobject instance, jobject ranges) {
+
+    const struct redirect_prefix *entries = NULL;
+    jlong capacity = 0;
+    if (ranges != NULL) {
+        entries = (*env)->GetDirectBufferAddress(env, ranges);
+        capacity = (*env)->GetDirectBufferCapacity(env, ranges);
+        if (entries == NULL || capacity % sizeof(struct redirect_prefix) != 0) {
+            log_android(ANDROID_LOG_ERROR, "Invalid DNS rebind ranges size %lld",
+                        (long long) capacity);
+            entries = NULL;
+        }
+    }
+
+    jobject global = NULL;
+    if (entries != NULL)
+        global = (*env)->NewGlobalRef(env, ranges);
+
+    if (pthread_rwlock_wrlock(&dns_rebind_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+        if (global != NULL)
+            (*env)->DeleteGlobalRef(env, global);
+        return;
+    }
+
+    release_dns_rebind_ranges(env);
+
+    if (global != NULL) {
+        dns_rebind_buffer = global;
+        dns_rebind_ranges = entries;
+        dns_rebind_count = (int) (capacity / sizeof(struct redirect_prefix));
+    }
+
+    log_android(ANDROID_LOG_WARN, "DNS rebind ranges %d", dns_rebind_count);
+
+    pthread_rwlock_unlock(&dns_rebind_lock);
+}
+
+void clear_dns_rebind_ranges(JNIEnv *env) {
+    if (pthread_rwlock_wrlock(&dns_rebind_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+        return;
+    }
+    release_dns_rebind_ranges(env);
+    pthread_rwlock_unlock(&dns_rebind_lock);
+}
+
 int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char *qname) {
     *qname = 0;
 
@@ -79,6 +176,36 @@ int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char
     return (c ? off : ptr);
 }
 
+// The events ring is drained after the app could connect to the address,
+// so the addresses of the Tor unlock and clearnet hosts are routed natively
+// before the answer is forwarded, ServiceVPN adds them to the rules later
+static void bind_dns_answers(const char *qname, const uint8_t *data, size_t datalen,
+                             int32_t off, int acount) {
+    int qname_bound = is_bind_host(qname);
+    char name[DNS_QNAME_MAX + 1];
+    for (int a = 0; a < acount; a++) {
+        off = get_qname(data, datalen, (uint16_t) off, name);
+        if (off <= 0 || off + 10 > datalen)
+            return;
+
+        uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
+        uint16_t qclass = ntohs(*((uint16_t *) (data + off + 2)));
+        uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
+        uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
+        off += 10;
+        if (off + rdlength > datalen)
+            return;
+
+        if (qclass == DNS_QCLASS_IN &&
+            ((qtype == DNS_QTYPE_A && rdlength == sizeof(__be32)) ||
+             (qtype == DNS_QTYPE_AAAA && rdlength == sizeof(struct in6_addr))) &&
+            (qname_bound || (strcmp(name, qname) != 0 && is_bind_host(name))))
+            bind_ip((uint8_t) (qtype == DNS_QTYPE_A ? 4 : 6), data + off, ttl);
+
+        off += rdlength;
+    }
+}
+
 void parse_dns_response(const struct arguments *args, const struct ng_session *s,
                         const uint8_t *data, size_t *datalen) {
     if (*datalen < sizeof(struct dns_header) + 1) {
@@ -129,18 +256,19 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
 
         if (acount == 0 || rcode != 0) {
             dns_resolved(args, qname, name, SPACE_SYMBOL, SPACE_SYMBOL,
-                         SPACE_SYMBOL, rcode);
+                         SPACE_SYMBOL, rcode, 0);
             return;
         }
 
         short svcb = 0;
+        short rebind = 0;
         int32_t aoff = off;
         for (int a = 0; a < acount; a++) {
             off = get_qname(data, *datalen, (uint16_t) off, name);
             if (off > 0 && off + 10 <= *datalen) {
                 uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
                 uint16_t qclass = ntohs(*((uint16_t *) (data + off + 2)));
-                //uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
+                uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
                 uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
                 off += 10;
 
@@ -150,19 +278,23 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
 
                         char rd[INET6_ADDRSTRLEN + 1];
                         if (qtype == DNS_QTYPE_A) {
-                            if (off + sizeof(__be32) <= *datalen)
+                            if (off + sizeof(__be32) <= *datalen) {
                                 inet_ntop(AF_INET, data + off, rd, sizeof(rd));
-                            else
+                                if (is_dns_rebind_address(qname, 4, data + off, rcode))
+                                    rebind = 1;
+                            } else
                                 return;
                         } else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_AAAA) {
-                            if (off + sizeof(struct in6_addr) <= *datalen)
+                            if (off + sizeof(struct in6_addr) <= *datalen) {
                                 inet_ntop(AF_INET6, data + off, rd, sizeof(rd));
-                            else
+                                if (is_dns_rebind_address(qname, 6, data + off, rcode))
+                                    rebind = 1;
+                            } else
                                 return;
                         }
 
                         dns_resolved(args, qname, name, SPACE_SYMBOL, SPACE_SYMBOL,
-                                     rd, rcode);
+                                     rd, rcode, ttl);
                         log_android(ANDROID_LOG_DEBUG,
                                     "DNS answer %d qname %s qtype %d rcode %d data %s",
                                     a, name, qtype, rcode, rd);
@@ -170,7 +302,7 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                     } else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_CNAME) {
                         get_qname(data, *datalen, (uint16_t) off, cname);
                         dns_resolved(args, qname, name, cname, SPACE_SYMBOL,
-                                     SPACE_SYMBOL, rcode);
+                                     SPACE_SYMBOL, rcode, ttl);
                         log_android(ANDROID_LOG_DEBUG,
                                     "DNS answer %d qname %s cname %s qclass %d qtype %d rcode %d length %d",
                                     a, name, cname, qclass, qtype, rcode, rdlength);
@@ -180,7 +312,7 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                         if (rdlength > 1) {
                             hinfo = memcpy(hinfo, data + off + 1, (size_t) (rdlength - 1));
                             dns_resolved(args, qname, name, SPACE_SYMBOL, hinfo,
-                                         SPACE_SYMBOL, rcode);
+                                         SPACE_SYMBOL, rcode, ttl);
                             log_android(ANDROID_LOG_DEBUG,
                                         "DNS answer %d qname %s hinfo %s",
                                         a, name, hinfo);
@@ -212,7 +344,7 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
             }
         }
 
-        if (qcount > 0 && (svcb || is_domain_blocked(args, qname))) {
+        if (qcount > 0 && (svcb || rebind || is_domain_blocked(args, qname))) {
             dns->qr = 1;
             dns->aa = 0;
             dns->tc = 0;
@@ -266,7 +398,8 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                     name, 0, 0);
 
             log_packet(args, objPacket);*/
-        }
+        } else
+            bind_dns_answers(qname, data, *datalen, aoff, acount);
     } else if (acount > 0)
         log_android(ANDROID_LOG_WARN,
                     "DNS response qr %d opcode %d qcount %d acount %d",
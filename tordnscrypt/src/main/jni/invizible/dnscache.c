@@ -0,0 +1,490 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+
+#include "invizible.h"
+
+// Cache of DNS responses to A, AAAA and HTTPS queries from tun
+// Only a reply to a query forwarded by the same session is stored, with the same id, question
+// and resolver address, so a spoofed or unsolicited datagram to the session socket is not cached.
+// Responses are stored after parse_dns_response, so blocked domains are cached as blocked,
+// and answers from the cache pass parse_dns_response again for blocking and DNS events.
+// Positive responses live for the lowest TTL of their records, negative ones for the SOA minimum.
+// The cache is cleared when ServiceVPN restarts the native engine with new rules.
+
+struct dns_cache_entry {
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    time_t time;
+    time_t expires;
+    uint8_t *response;
+    size_t length;
+    int32_t qend; // offset after the question
+    struct dns_cache_entry *next; // bucket
+    struct dns_cache_entry *older;
+    struct dns_cache_entry *newer;
+};
+
+struct dns_cache_uid {
+    jint uid;
+    long hits;
+    long misses;
+};
+
+static pthread_mutex_t dns_cache_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct dns_cache_entry *dns_cache_buckets[DNS_CACHE_BUCKETS];
+static struct dns_cache_entry *dns_cache_oldest = NULL;
+static struct dns_cache_entry *dns_cache_newest = NULL;
+static int dns_cache_size = 0;
+static int dns_cache_count = 0;
+
+static struct dns_cache_uid dns_cache_uids[DNS_CACHE_UIDS];
+static int dns_cache_uids_count = 0;
+
+static inline int is_cached_qtype(uint16_t qtype) {
+    return (qtype == DNS_QTYPE_A || qtype == DNS_QTYPE_AAAA || qtype == DNS_QTYPE_HTTPS);
+}
+
+static uint32_t hash_dns_cache(const char *qname, uint16_t qtype) {
+    uint32_t hash = 2166136261U;
+    for (const char *c = qname; *c; c++) {
+        hash ^= (uint8_t) *c;
+        hash *= 16777619U;
+    }
+    hash ^= qtype;
+    hash *= 16777619U;
+    return hash & (DNS_CACHE_BUCKETS - 1);
+}
+
+// Offset after the name at off, -1 if the name is invalid
+static int32_t skip_name(const uint8_t *data, size_t datalen, int32_t off) {
+    while (off < datalen) {
+        uint8_t len = *(data + off);
+        if ((len & 0xC0) == 0xC0)
+            return (off + 2 <= datalen ? off + 2 : -1);
+        else if (len & 0xC0)
+            return -1;
+        off += 1 + len;
+        if (len == 0)
+            return off;
+    }
+    return -1;
+}
+
+// Offset after the single question, the lowercase qname and the qtype are returned
+static int32_t get_question(const uint8_t *data, size_t datalen, char *qname, uint16_t *qtype) {
+    if (datalen < sizeof(struct dns_header) + 1)
+        return -1;
+
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (dns->opcode != 0 || dns->tc || ntohs(dns->q_count) != 1)
+        return -1;
+
+    int32_t off = get_qname(data, datalen, sizeof(struct dns_header), qname);
+    if (off <= 0 || off + 4 > datalen)
+        return -1;
+
+    *qtype = ntohs(*((uint16_t *) (data + off)));
+    uint16_t qclass = ntohs(*((uint16_t *) (data + off + 2)));
+    if (qclass != DNS_QCLASS_IN || !is_cached_qtype(*qtype))
+        return -1;
+
+    for (char *c = qname; *c; c++)
+        *c = (char) tolower(*c);
+
+    return off + 4;
+}
+
+// Time to live of the response, it is adjusted by elapsed when elapsed is not zero
+static int64_t walk_records(uint8_t *data, size_t datalen, int32_t off, time_t elapsed) {
+    const struct dns_header *dns = (const struct dns_header *) data;
+    int acount = ntohs(dns->ans_count);
+    int records = acount + ntohs(dns->auth_count) + ntohs(dns->add_count);
+    int negative = (acount == 0 || dns->rcode != 0);
+
+    int64_t ttl = -1;
+    for (int r = 0; r < records; r++) {
+        off = skip_name(data, datalen, off);
+        if (off < 0 || off + 10 > datalen)
+            return -1;
+
+        uint16_t type = ntohs(*((uint16_t *) (data + off)));
+        uint32_t *rttl = (uint32_t *) (data + off + 4);
+        uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
+        off += 10;
+        if (off + rdlength > datalen)
+            return -1;
+
+        if (type != DNS_QTYPE_OPT) {
+            uint32_t value = ntohl(*rttl);
+            if (elapsed)
+                *rttl = htonl(value > elapsed ? (uint32_t) (value - elapsed) : 0);
+
+            // https://tools.ietf.org/html/rfc2308#section-5
+            if (negative && type == DNS_QTYPE_SOA && r >= acount) {
+                int32_t soff = skip_name(data, datalen, off);
+                soff = (soff < 0 ? -1 : skip_name(data, datalen, soff));
+                if (soff >= 0 && soff + 20 <= off + rdlength) {
+                    uint32_t minimum = ntohl(*((uint32_t *) (data + soff + 16)));
+                    if (minimum < value)
+                        value = minimum;
+                }
+            }
+
+            if ((!negative && r < acount) || (negative && type == DNS_QTYPE_SOA))
+                if (ttl < 0 || value < ttl)
+                    ttl = value;
+        }
+
+        off += rdlength;
+    }
+
+    if (ttl < 0 && negative)
+        ttl = DNS_CACHE_NEGATIVE_TTL;
+    if (ttl > DNS_CACHE_MAX_TTL)
+        ttl = DNS_CACHE_MAX_TTL;
+    return ttl;
+}
+
+static struct dns_cache_uid *get_dns_cache_uid(jint uid) {
+    for (int i = 0; i < dns_cache_uids_count; i++)
+        if (dns_cache_uids[i].uid == uid)
+            return &dns_cache_uids[i];
+
+    if (dns_cache_uids_count >= DNS_CACHE_UIDS)
+        return NULL;
+
+    struct dns_cache_uid *u = &dns_cache_uids[dns_cache_uids_count++];
+    u->uid = uid;
+    u->hits = 0;
+    u->misses = 0;
+    return u;
+}
+
+static struct dns_cache_entry **find_dns_cache(const char *qname, uint16_t qtype) {
+    struct dns_cache_entry **e = &dns_cache_buckets[hash_dns_cache(qname, qtype)];
+    while (*e != NULL && ((*e)->qtype != qtype || strcmp((*e)->qname, qname) != 0))
+        e = &(*e)->next;
+    return e;
+}
+
+static void unlink_dns_cache(struct dns_cache_entry *entry) {
+    if (entry->older == NULL)
+        dns_cache_oldest = entry->newer;
+    else
+        entry->older->newer = entry->newer;
+    if (entry->newer == NULL)
+        dns_cache_newest = entry->older;
+    else
+        entry->newer->older = entry->older;
+    entry->older = NULL;
+    entry->newer = NULL;
+}
+
+static void link_dns_cache(struct dns_cache_entry *entry) {
+    entry->older = dns_cache_newest;
+    entry->newer = NULL;
+    if (dns_cache_newest == NULL)
+        dns_cache_oldest = entry;
+    else
+        dns_cache_newest->newer = entry;
+    dns_cache_newest = entry;
+}
+
+static void remove_dns_cache(struct dns_cache_entry **e) {
+    struct dns_cache_entry *entry = *e;
+    *e = entry->next;
+    unlink_dns_cache(entry);
+    dns_cache_count--;
+
+    ng_free(entry->response, __FILE__, __LINE__);
+    ng_free(entry, __FILE__, __LINE__);
+}
+
+static void clear_dns_cache_locked() {
+    if (dns_cache_count || dns_cache_uids_count)
+        log_android(ANDROID_LOG_WARN, "DNS cache cleared entries %d", dns_cache_count);
+
+    for (int i = 0; i < dns_cache_uids_count; i++)
+        log_android(ANDROID_LOG_INFO, "DNS cache uid %d hits %ld misses %ld",
+                    dns_cache_uids[i].uid, dns_cache_uids[i].hits, dns_cache_uids[i].misses);
+    dns_cache_uids_count = 0;
+
+    for (int i = 0; i < DNS_CACHE_BUCKETS; i++)
+        while (dns_cache_buckets[i] != NULL)
+            remove_dns_cache(&dns_cache_buckets[i]);
+}
+
+static int is_same_peer(const struct sockaddr_storage *expected, const struct sockaddr *peer) {
+    if (expected->ss_family != peer->sa_family)
+        return 0;
+
+    if (peer->sa_family == AF_INET) {
+        const struct sockaddr_in *e = (const struct sockaddr_in *) expected;
+        const struct sockaddr_in *p = (const struct sockaddr_in *) peer;
+        return (e->sin_port == p->sin_port && e->sin_addr.s_addr == p->sin_addr.s_addr);
+    } else if (peer->sa_family == AF_INET6) {
+        const struct sockaddr_in6 *e = (const struct sockaddr_in6 *) expected;
+        const struct sockaddr_in6 *p = (const struct sockaddr_in6 *) peer;
+        return (e->sin6_port == p->sin6_port &&
+                memcmp(&e->sin6_addr, &p->sin6_addr, sizeof(struct in6_addr)) == 0);
+    }
+
+    return 0;
+}
+
+void add_dns_query(struct udp_session *cur, const uint8_t *data, size_t datalen,
+                   const struct sockaddr *peer) {
+    if (!dns_cache_size)
+        return;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    if (get_question(data, datalen, qname, &qtype) < 0 ||
+        ((const struct dns_header *) data)->qr != 0)
+        return;
+
+    int count = 0;
+    for (struct dns_query *q = cur->dns_queries; q != NULL; q = q->next)
+        count++;
+    if (count >= DNS_QUERIES_PENDING)
+        return;
+
+    struct dns_query *query = ng_malloc(sizeof(struct dns_query), "dns query");
+    query->id = ((const struct dns_header *) data)->id;
+    query->qtype = qtype;
+    strcpy(query->qname, qname);
+    memset(&query->peer, 0, sizeof(struct sockaddr_storage));
+    memcpy(&query->peer, peer, peer->sa_family == AF_INET
+                               ? sizeof(struct sockaddr_in) : sizeof(struct sockaddr_in6));
+    query->next = cur->dns_queries;
+    cur->dns_queries = query;
+}
+
+// Removes the query answered by the reply, returns 0 if the reply answers no pending query
+int take_dns_query(struct udp_session *cur, const uint8_t *data, size_t datalen,
+                   const struct sockaddr *peer) {
+    if (cur->dns_queries == NULL)
+        return 0;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    if (get_question(data, datalen, qname, &qtype) < 0 ||
+        ((const struct dns_header *) data)->qr != 1)
+        return 0;
+
+    uint16_t id = ((const struct dns_header *) data)->id;
+    for (struct dns_query **q = &cur->dns_queries; *q != NULL; q = &(*q)->next) {
+        struct dns_query *query = *q;
+        if (query->id == id && query->qtype == qtype && strcmp(query->qname, qname) == 0 &&
+            is_same_peer(&query->peer, peer)) {
+            *q = query->next;
+            ng_free(query, __FILE__, __LINE__);
+            return 1;
+        }
+    }
+
+    log_android(ANDROID_LOG_WARN, "DNS cache ignore unsolicited reply qname %s qtype %d",
+                qname, qtype);
+    return 0;
+}
+
+void clear_dns_queries(struct udp_session *cur) {
+    struct dns_query *q = cur->dns_queries;
+    while (q != NULL) {
+        struct dns_query *p = q;
+        q = q->next;
+        ng_free(p, __FILE__, __LINE__);
+    }
+    cur->dns_queries = NULL;
+}
+
+void put_dns_cache(const uint8_t *data, size_t datalen) {
+    if (!dns_cache_size)
+        return;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    int32_t off = get_question(data, datalen, qname, &qtype);
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (off < 0 || dns->qr != 1 || (dns->rcode != 0 && dns->rcode != 3))
+        return;
+
+    int64_t ttl = walk_records((uint8_t *) data, datalen, off, 0);
+    if (ttl <= 0)
+        return;
+
+    if (pthread_mutex_lock(&dns_cache_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        return;
+    }
+
+    if (dns_cache_size) {
+        struct dns_cache_entry **e = find_dns_cache(qname, qtype);
+        if (*e != NULL)
+            remove_dns_cache(e);
+
+        while (dns_cache_count >= dns_cache_size && dns_cache_oldest != NULL) {
+            struct dns_cache_entry *oldest = dns_cache_oldest;
+            remove_dns_cache(find_dns_cache(oldest->qname, oldest->qtype));
+        }
+
+        struct dns_cache_entry *entry = ng_malloc(sizeof(struct dns_cache_entry), "dns cache");
+        strcpy(entry->qname, qname);
+        entry->qtype = qtype;
+        entry->time = time(NULL);
+        entry->expires = entry->time + ttl;
+        entry->response = ng_malloc(datalen, "dns cache response");
+        memcpy(entry->response, data, datalen);
+        entry->length = datalen;
+        entry->qend = off;
+
+        e = &dns_cache_buckets[hash_dns_cache(qname, qtype)];
+        entry->next = *e;
+        *e = entry;
+        link_dns_cache(entry);
+        dns_cache_count++;
+
+        log_android(ANDROID_LOG_DEBUG, "DNS cache put qname %s qtype %d rcode %d ttl %lld",
+                    qname, qtype, dns->rcode, (long long) ttl);
+    }
+
+    pthread_mutex_unlock(&dns_cache_lock);
+}
+
+int answer_dns_cache(const struct arguments *args,
+                     const uint8_t *pkt, const uint8_t *payload,
+                     const uint8_t *data, size_t datalen, int uid) {
+    if (!dns_cache_size)
+        return 0;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    int32_t qend = get_question(data, datalen, qname, &qtype);
+    if (qend < 0 || ((const struct dns_header *) data)->qr != 0)
+        return 0;
+
+    if (pthread_mutex_lock(&dns_cache_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        return 0;
+    }
+
+    uint8_t *response = NULL;
+    size_t length = 0;
+    int32_t rqend = 0;
+    time_t now = time(NULL);
+
+    struct dns_cache_entry **e = find_dns_cache(qname, qtype);
+    if (*e != NULL && (*e)->expires <= now) {
+        remove_dns_cache(e);
+    } else if (*e != NULL) {
+        struct dns_cache_entry *entry = *e;
+        unlink_dns_cache(entry);
+        link_dns_cache(entry);
+
+        response = ng_malloc(entry->length, "dns cache answer");
+        memcpy(response, entry->response, entry->length);
+        length = entry->length;
+        rqend = entry->qend;
+
+        if (walk_records(response, length, rqend, now - entry->time) < 0) {
+            ng_free(response, __FILE__, __LINE__);
+            response = NULL;
+        }
+    }
+
+    struct dns_cache_uid *u = get_dns_cache_uid(uid);
+    if (u != NULL) {
+        if (response == NULL)
+            u->misses++;
+        else
+            u->hits++;
+    }
+
+    pthread_mutex_unlock(&dns_cache_lock);
+
+    if (response == NULL)
+        return 0;
+
+    // Same question with the same name case and the id of the query
+    ((struct dns_header *) response)->id = ((const struct dns_header *) data)->id;
+    if (rqend == qend)
+        memcpy(response + sizeof(struct dns_header), data + sizeof(struct dns_header),
+               qend - sizeof(struct dns_header));
+
+    const uint8_t version = (*pkt) >> 4;
+    const struct iphdr *ip4 = (struct iphdr *) pkt;
+    const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
+    const struct udphdr *udphdr = (struct udphdr *) payload;
+
+    struct ng_session s;
+    memset(&s, 0, sizeof(struct ng_session));
+    s.protocol = IPPROTO_UDP;
+    s.udp.uid = uid;
+    s.udp.version = version;
+    if (version == 4) {
+        s.udp.saddr.ip4 = (__be32) ip4->saddr;
+        s.udp.daddr.ip4 = (__be32) ip4->daddr;
+    } else {
+        memcpy(&s.udp.saddr.ip6, &ip6->ip6_src, 16);
+        memcpy(&s.udp.daddr.ip6, &ip6->ip6_dst, 16);
+    }
+    s.udp.source = udphdr->source;
+    s.udp.dest = udphdr->dest;
+
+    log_android(ANDROID_LOG_INFO, "DNS cache answer qname %s qtype %d uid %d", qname, qtype, uid);
+
+    // The same blocking and DNS events as for a reply from the resolver
+    parse_dns_response(args, &s, response, &length);
+
+    int res = write_udp(args, &s.udp, response, length) >= 0;
+    forget_tun_session(&s.udp);
+    ng_free(response, __FILE__, __LINE__);
+    return res;
+}
+
+void clear_dns_cache() {
+    if (pthread_mutex_lock(&dns_cache_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        return;
+    }
+    clear_dns_cache_locked();
+    pthread_mutex_unlock(&dns_cache_lock);
+}
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1dns_1cache(
+        JNIEnv *env, jobject instance, jint size) {
+    if (pthread_mutex_lock(&dns_cache_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        return;
+    }
+
+    clear_dns_cache_locked();
+
+    if (size < 0)
+        size = 0;
+    else if (size > DNS_CACHE_SIZE_MAX)
+        size = DNS_CACHE_SIZE_MAX;
+    dns_cache_size = size;
+
+    log_android(ANDROID_LOG_WARN, "DNS cache size %d", dns_cache_size);
+
+    pthread_mutex_unlock(&dns_cache_lock);
+}
@@ -0,0 +1,120 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+
+#include "invizible.h"
+
+// Resolved DNS records for ServiceVPN
+// Records are copied to a ring by the tunnel thread and drained by the events thread of ServiceVPN,
+// so the tunnel thread does not wait for the JVM. Layout is read by NativeEvents.java.
+
+struct event_slot {
+    int32_t type;
+    int32_t rcode;
+    int64_t time;
+    int32_t ttl;
+    char qname[DNS_QNAME_MAX + 1];
+    char aname[DNS_QNAME_MAX + 1];
+    char cname[DNS_QNAME_MAX + 1];
+    char hinfo[EVENTS_HINFO_MAX + 1];
+    char resource[INET6_ADDRSTRLEN + 1];
+};
+
+// Serialized slot, strings are prefixed with their length
+#define EVENT_RECORD_MAX (sizeof(struct event_slot) + 5 * sizeof(uint16_t))
+
+static struct event_slot events_ring[EVENTS_RING_SIZE];
+static atomic_uint events_head = 0;
+static atomic_uint events_tail = 0;
+static atomic_uint events_dropped = 0;
+
+static inline void copy_event_string(char *to, const char *from, size_t size) {
+    strncpy(to, from != NULL ? from : "", size - 1);
+    to[size - 1] = 0;
+}
+
+// The tunnel thread is the only producer
+void dns_resolved(const struct arguments *args,
+                  const char *qname, const char *aname, const char *cname,
+                  const char *hinfo, const char *resource, int rcode, uint32_t ttl) {
+    uint32_t head = atomic_load_explicit(&events_head, memory_order_relaxed);
+    uint32_t tail = atomic_load_explicit(&events_tail, memory_order_acquire);
+    if (head - tail >= EVENTS_RING_SIZE) {
+        atomic_fetch_add_explicit(&events_dropped, 1, memory_order_relaxed);
+        return;
+    }
+
+    struct event_slot *slot = &events_ring[head & (EVENTS_RING_SIZE - 1)];
+    slot->type = EVENT_DNS_RESOLVED;
+    slot->rcode = rcode;
+    slot->time = time(NULL) * 1000LL;
+    slot->ttl = (int32_t) (ttl > INT32_MAX ? INT32_MAX : ttl);
+    copy_event_string(slot->qname, qname, sizeof(slot->qname));
+    copy_event_string(slot->aname, aname, sizeof(slot->aname));
+    copy_event_string(slot->cname, cname, sizeof(slot->cname));
+    copy_event_string(slot->hinfo, hinfo, sizeof(slot->hinfo));
+    copy_event_string(slot->resource, resource, sizeof(slot->resource));
+
+    atomic_store_explicit(&events_head, head + 1, memory_order_release);
+}
+
+static size_t put_event_string(uint8_t *buffer, size_t off, const char *value) {
+    uint16_t length = (uint16_t) strlen(value);
+    memcpy(buffer + off, &length, sizeof(uint16_t));
+    memcpy(buffer + off + sizeof(uint16_t), value, length);
+    return off + sizeof(uint16_t) + length;
+}
+
+JNIEXPORT jint JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1read_1events(
+        JNIEnv *env, jobject instance, jobject buffer_) {
+    uint8_t *buffer = (*env)->GetDirectBufferAddress(env, buffer_);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer_);
+    if (buffer == NULL || capacity < (jlong) EVENT_RECORD_MAX) {
+        log_android(ANDROID_LOG_ERROR, "Invalid events buffer size %lld", (long long) capacity);
+        return -1;
+    }
+
+    uint32_t dropped = atomic_exchange(&events_dropped, 0);
+    if (dropped > 0)
+        log_android(ANDROID_LOG_WARN, "Events dropped %u", dropped);
+
+    size_t off = 0;
+    uint32_t tail = atomic_load_explicit(&events_tail, memory_order_relaxed);
+    uint32_t head = atomic_load_explicit(&events_head, memory_order_acquire);
+    while (tail != head && off + EVENT_RECORD_MAX <= capacity) {
+        const struct event_slot *slot = &events_ring[tail & (EVENTS_RING_SIZE - 1)];
+
+        memcpy(buffer + off, &slot->type, sizeof(int32_t));
+        memcpy(buffer + off + 4, &slot->rcode, sizeof(int32_t));
+        memcpy(buffer + off + 8, &slot->time, sizeof(int64_t));
+        memcpy(buffer + off + 16, &slot->ttl, sizeof(int32_t));
+        off += 20;
+        off = put_event_string(buffer, off, slot->qname);
+        off = put_event_string(buffer, off, slot->aname);
+        off = put_event_string(buffer, off, slot->cname);
+        off = put_event_string(buffer, off, slot->hinfo);
+        off = put_event_string(buffer, off, slot->resource);
+
+        tail++;
+    }
+    atomic_store_explicit(&events_tail, tail, memory_order_release);
+
+    return (jint) off;
+}
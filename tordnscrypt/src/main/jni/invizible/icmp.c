@@ -89,10 +89,12 @@ void write_connection_unreach(const struct arguments *args,
     }
 
     write_icmp(args, &sicmp, (uint8_t *) &icmp, 8);
+    forget_tun_session(&sicmp);
 }
 
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev) {
     struct ng_session *s = (struct ng_session *) ev->data.ptr;
+    touch_session(args->ctx, s);
 
     // Check socket error
     if (ev->events & EPOLLERR) {
@@ -202,16 +204,13 @@ jboolean handle_icmp(const struct arguments *args,
     }
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !((cur->protocol == IPPROTO_ICMP || cur->protocol == IPPROTO_ICMPV6) &&
-             !cur->icmp.stop && cur->icmp.version == version &&
-                   cur->icmp.id == icmp->icmp_id &&
-             (version == 4 ? cur->icmp.saddr.ip4 == ip4->saddr &&
-                             cur->icmp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->icmp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->icmp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, IPPROTO_ICMP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            icmp->icmp_id, 0);
+    if (cur != NULL)
+        touch_session(args->ctx, cur);
 
     // Create new session if needed
     if (cur == NULL) {
@@ -254,8 +253,7 @@ jboolean handle_icmp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add icmp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->ctx, s);
 
         cur = s;
     }
@@ -388,12 +386,10 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                 args->tun, dest, source, datalen,
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write_tun(args, buffer, len, cur->uid, IPPROTO_ICMP, cur, 0, 0);
 
-    ng_free(buffer, __FILE__, __LINE__);
-
-    if (res != len) {
-        log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
+    if (res < 0) {
+        log_android(ANDROID_LOG_ERROR, "ICMP write failed");
         return -1;
     }
 
@@ -44,15 +44,10 @@ bool can_filter = true;
 
 extern int max_tun_msg;
 
-extern int uid_cache_size;
-extern struct uid_cache_entry *uid_cache;
-
 // JNI
 
 jclass clsPacket;
 jclass clsAllowed;
-jclass clsRR;
-jclass clsUsage;
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     log_android(ANDROID_LOG_INFO, "JNI load");
@@ -71,14 +66,6 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     clsAllowed = jniGlobalRef(env, jniFindClass(env, allowed));
     ng_add_alloc(clsAllowed, "clsAllowed");
 
-    const char *rr = "pan/alexander/tordnscrypt/vpn/ResourceRecord";
-    clsRR = jniGlobalRef(env, jniFindClass(env, rr));
-    ng_add_alloc(clsRR, "clsRR");
-
-    const char *usage = "pan/alexander/tordnscrypt/vpn/Usage";
-    clsUsage = jniGlobalRef(env, jniFindClass(env, usage));
-    ng_add_alloc(clsUsage, "clsUsage");
-
     // Raise file number limit to maximum
     struct rlimit rlim;
     if (getrlimit(RLIMIT_NOFILE, &rlim))
@@ -104,12 +91,8 @@ void JNI_OnUnload(JavaVM *vm, void *reserved) {
     else {
         (*env)->DeleteGlobalRef(env, clsPacket);
         (*env)->DeleteGlobalRef(env, clsAllowed);
-        (*env)->DeleteGlobalRef(env, clsRR);
-        (*env)->DeleteGlobalRef(env, clsUsage);
         ng_delete_alloc(clsPacket, __FILE__, __LINE__);
         ng_delete_alloc(clsAllowed, __FILE__, __LINE__);
-        ng_delete_alloc(clsRR, __FILE__, __LINE__);
-        ng_delete_alloc(clsUsage, __FILE__, __LINE__);
     }
 }
 
@@ -177,10 +160,10 @@ Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1run(
     compatibility_mode = compatibility;
     can_filter = filter;
 
-    // Set blocking
+    // Set non-blocking, tun is read until EAGAIN, see tun.c
     int flags = fcntl(tun, F_GETFL, 0);
-    if (flags < 0 || fcntl(tun, F_SETFL, flags & ~O_NONBLOCK) < 0)
-        log_android(ANDROID_LOG_ERROR, "fcntl tun ~O_NONBLOCK error %d: %s",
+    if (flags < 0 || fcntl(tun, F_SETFL, flags | O_NONBLOCK) < 0)
+        log_android(ANDROID_LOG_ERROR, "fcntl tun O_NONBLOCK error %d: %s",
                     errno, strerror(errno));
 
     // Get arguments
@@ -294,10 +277,12 @@ Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1done(
         if (close(ctx->pipefds[i]))
             log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
 
-    if (uid_cache != NULL)
-        ng_free(uid_cache, __FILE__, __LINE__);
-    uid_cache_size = 0;
-    uid_cache = NULL;
+    clear_uid_cache();
+
+    clear_pcap();
+    clear_dns_cache();
+    clear_redirect_rules(env);
+    clear_dns_rebind_ranges(env);
 
     ng_free(ctx, __FILE__, __LINE__);
 }
@@ -505,97 +490,6 @@ void log_packet(const struct arguments *args, jobject jpacket) {
 #endif
 }
 
-static jmethodID midDnsResolved = NULL;
-static jmethodID midInitRR = NULL;
-jfieldID fidQTime = NULL;
-jfieldID fidQName = NULL;
-jfieldID fidAName = NULL;
-jfieldID fidCName = NULL;
-jfieldID fidHInfo = NULL;
-jfieldID fidResource = NULL;
-jfieldID fidRcode = NULL;
-
-void dns_resolved(const struct arguments *args,
-                  const char *qname, const char *aname, const char *cname,
-                  const char *hinfo, const char *resource, int rcode) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-    ng_add_alloc(clsService, "clsService");
-
-    const char *signature = "(Lpan/alexander/tordnscrypt/vpn/ResourceRecord;)V";
-    if (midDnsResolved == NULL)
-        midDnsResolved = jniGetMethodID(args->env, clsService, "dnsResolved", signature);
-
-    const char *rr = "pan/alexander/tordnscrypt/vpn/ResourceRecord";
-    if (midInitRR == NULL)
-        midInitRR = jniGetMethodID(args->env, clsRR, "<init>", "()V");
-
-    jobject jrr = jniNewObject(args->env, clsRR, midInitRR, rr);
-    ng_add_alloc(jrr, "jrr");
-
-    if (fidQTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidQTime = jniGetFieldID(args->env, clsRR, "Time", "J");
-        fidQName = jniGetFieldID(args->env, clsRR, "QName", string);
-        fidAName = jniGetFieldID(args->env, clsRR, "AName", string);
-        fidCName = jniGetFieldID(args->env, clsRR, "CName", string);
-        fidHInfo = jniGetFieldID(args->env, clsRR, "HInfo", string);
-        fidResource = jniGetFieldID(args->env, clsRR, "Resource", string);
-        fidRcode = jniGetFieldID(args->env, clsRR, "Rcode", "I");
-    }
-
-    jlong jtime = time(NULL) * 1000LL;
-    jstring jqname = (*args->env)->NewStringUTF(args->env, qname);
-    jstring janame = (*args->env)->NewStringUTF(args->env, aname);
-    jstring jcname = (*args->env)->NewStringUTF(args->env, cname);
-    jstring jhinfo = (*args->env)->NewStringUTF(args->env, hinfo);
-    jstring jresource = (*args->env)->NewStringUTF(args->env, resource);
-    ng_add_alloc(jqname, "jqname");
-    ng_add_alloc(janame, "janame");
-    ng_add_alloc(jcname, "jcname");
-    ng_add_alloc(jhinfo, "jhinfo");
-    ng_add_alloc(jresource, "jresource");
-
-    (*args->env)->SetLongField(args->env, jrr, fidQTime, jtime);
-    (*args->env)->SetObjectField(args->env, jrr, fidQName, jqname);
-    (*args->env)->SetObjectField(args->env, jrr, fidAName, janame);
-    (*args->env)->SetObjectField(args->env, jrr, fidCName, jcname);
-    (*args->env)->SetObjectField(args->env, jrr, fidHInfo, jhinfo);
-    (*args->env)->SetObjectField(args->env, jrr, fidResource, jresource);
-    (*args->env)->SetIntField(args->env, jrr, fidRcode, rcode);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, jrr);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, jresource);
-    (*args->env)->DeleteLocalRef(args->env, janame);
-    (*args->env)->DeleteLocalRef(args->env, jqname);
-    (*args->env)->DeleteLocalRef(args->env, jcname);
-    (*args->env)->DeleteLocalRef(args->env, jhinfo);
-    (*args->env)->DeleteLocalRef(args->env, jrr);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jresource, __FILE__, __LINE__);
-    ng_delete_alloc(janame, __FILE__, __LINE__);
-    ng_delete_alloc(jqname, __FILE__, __LINE__);
-    ng_delete_alloc(jcname, __FILE__, __LINE__);
-    ng_delete_alloc(jhinfo, __FILE__, __LINE__);
-    ng_delete_alloc(jrr, __FILE__, __LINE__);
-    ng_delete_alloc(clsService, __FILE__, __LINE__);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
-}
-
 static jmethodID midIsDomainBlocked = NULL;
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name) {
@@ -639,6 +533,10 @@ static jmethodID midIsRedirectToTor = NULL;
 
 jboolean is_redirect_to_tor(const struct arguments *args, const int uid, const char *daddr,
                             const int dport) {
+    int decision = get_redirect_decision(0, uid, daddr, dport);
+    if (decision >= 0)
+        return (jboolean) (decision > 0);
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -679,6 +577,10 @@ static jmethodID midIsRedirectToProxy = NULL;
 
 jboolean is_redirect_to_proxy(const struct arguments *args, const int uid, const char *daddr,
                               const int dport) {
+    int decision = get_redirect_decision(1, uid, daddr, dport);
+    if (decision >= 0)
+        return (jboolean) (decision > 0);
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -935,83 +837,6 @@ jobject create_packet(const struct arguments *args,
     return jpacket;
 }
 
-jmethodID midAccountUsage = NULL;
-jmethodID midInitUsage = NULL;
-jfieldID fidUsageTime = NULL;
-jfieldID fidUsageVersion = NULL;
-jfieldID fidUsageProtocol = NULL;
-jfieldID fidUsageDAddr = NULL;
-jfieldID fidUsageDPort = NULL;
-jfieldID fidUsageUid = NULL;
-jfieldID fidUsageSent = NULL;
-jfieldID fidUsageReceived = NULL;
-
-void account_usage(const struct arguments *args, jint version, jint protocol,
-                   const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-    ng_add_alloc(clsService, "clsService");
-
-    const char *signature = "(Lpan/alexander/tordnscrypt/vpn/Usage;)V";
-    if (midAccountUsage == NULL)
-        midAccountUsage = jniGetMethodID(args->env, clsService, "accountUsage", signature);
-
-    const char *usage = "pan/alexander/tordnscrypt/vpn/Usage";
-    if (midInitUsage == NULL)
-        midInitUsage = jniGetMethodID(args->env, clsUsage, "<init>", "()V");
-
-    jobject jusage = jniNewObject(args->env, clsUsage, midInitUsage, usage);
-    ng_add_alloc(jusage, "jusage");
-
-    if (fidUsageTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidUsageTime = jniGetFieldID(args->env, clsUsage, "Time", "J");
-        fidUsageVersion = jniGetFieldID(args->env, clsUsage, "Version", "I");
-        fidUsageProtocol = jniGetFieldID(args->env, clsUsage, "Protocol", "I");
-        fidUsageDAddr = jniGetFieldID(args->env, clsUsage, "DAddr", string);
-        fidUsageDPort = jniGetFieldID(args->env, clsUsage, "DPort", "I");
-        fidUsageUid = jniGetFieldID(args->env, clsUsage, "Uid", "I");
-        fidUsageSent = jniGetFieldID(args->env, clsUsage, "Sent", "J");
-        fidUsageReceived = jniGetFieldID(args->env, clsUsage, "Received", "J");
-    }
-
-    jlong jtime = time(NULL) * 1000LL;
-    jstring jdaddr = (*args->env)->NewStringUTF(args->env, daddr);
-    ng_add_alloc(jdaddr, "jdaddr");
-
-    (*args->env)->SetLongField(args->env, jusage, fidUsageTime, jtime);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageVersion, version);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageProtocol, protocol);
-    (*args->env)->SetObjectField(args->env, jusage, fidUsageDAddr, jdaddr);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageDPort, dport);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageUid, uid);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageSent, sent);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageReceived, received);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jusage);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, jdaddr);
-    (*args->env)->DeleteLocalRef(args->env, jusage);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jdaddr, __FILE__, __LINE__);
-    ng_delete_alloc(jusage, __FILE__, __LINE__);
-    ng_delete_alloc(clsService, __FILE__, __LINE__);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
-}
-
 struct alloc_record {
     const char *tag;
     time_t time;
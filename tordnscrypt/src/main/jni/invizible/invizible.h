@@ -26,6 +26,8 @@
 #include <pthread.h>
 #include <setjmp.h>
 #include <errno.h>
+#include <limits.h>
+#include <stdatomic.h>
 #include <fcntl.h>
 #include <dirent.h>
 #include <poll.h>
@@ -60,7 +62,10 @@
 #define EPOLL_EVENTS 20
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
-#define TUN_YIELD 10 // packets
+#define TUN_BATCH 32 // packets read per wakeup
+#define TUN_QUEUE 64 // packets written per flush
+#define TUN_WRITE_RETRY 3
+#define TUN_WRITE_TIMEOUT 100 // milliseconds
 
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
@@ -78,6 +83,9 @@
 #define TCP_IDLE_TIMEOUT 3600 // seconds ~net.inet.tcp.keepidle
 #define TCP_CLOSE_TIMEOUT 20 // seconds
 #define TCP_KEEP_TIMEOUT 300 // seconds
+
+#define SESSION_INDEX_SIZE 1024 // buckets, power of two
+#define SESSION_WHEEL_SIZE 256 // one second slots, power of two
 // https://en.wikipedia.org/wiki/Maximum_segment_lifetime
 
 #define SESSION_LIMIT 40 // percent
@@ -86,6 +94,12 @@
 #define SEND_BUF_DEFAULT 163840 // bytes
 
 #define UID_MAX_AGE 30000 // milliseconds
+#define UID_CACHE_BUCKETS 256 // per proc file, power of two
+#define UID_READ_BUFFER_SIZE 16384 // bytes
+
+#define USAGE_TABLE_SIZE 512 // records, power of two
+#define USAGE_TABLE_LIMIT (USAGE_TABLE_SIZE * 3 / 4) // records
+#define USAGE_FLUSH_INTERVAL 5 // seconds
 
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
@@ -102,6 +116,21 @@ struct context {
     int stopping;
     int sdk;
     struct ng_session *ng_session;
+
+    // 5-tuple index of ng_session
+    struct ng_session *session_index[SESSION_INDEX_SIZE];
+
+    // Sessions by the time of the next check, the slot is the time modulo wheel size
+    struct ng_session *session_wheel[SESSION_WHEEL_SIZE];
+    time_t wheel_time;
+
+    // Sessions touched since the last events loop iteration
+    struct ng_session *session_changed;
+
+    int icmp_sessions;
+    int udp_sessions;
+    int tcp_sessions;
+    int scheduled_sessions;
 };
 
 struct arguments {
@@ -113,6 +142,16 @@ struct arguments {
     struct context *ctx;
 };
 
+struct tun_packet {
+    uint8_t *buffer;
+    size_t length;
+    jint uid;
+    uint8_t protocol;
+    const void *session; // tcp/udp/icmp session failed if the write fails, NULL if gone
+    int pure_ack;
+    uint32_t ack;
+};
+
 struct allowed {
     char raddr[INET6_ADDRSTRLEN + 1];
     uint16_t rport; // host notation
@@ -174,6 +213,8 @@ struct udp_session {
     __be16 dest; // network notation
 
     uint8_t state;
+
+    struct dns_query *dns_queries; // forwarded queries that wait for a cacheable reply
 };
 
 struct tcp_session {
@@ -212,6 +253,7 @@ struct tcp_session {
 
     uint8_t state;
     uint8_t socks5;
+    uint8_t route;
     struct segment *forward;
 };
 
@@ -225,19 +267,117 @@ struct ng_session {
     jint socket;
     struct epoll_event ev;
     struct ng_session *next;
+    struct ng_session *prev;
+
+    struct ng_session *index_next;
+    struct ng_session **index_pprev;
+    struct ng_session *wheel_next;
+    struct ng_session **wheel_pprev;
+    struct ng_session *changed_next;
+    struct ng_session **changed_pprev;
+    time_t due;
+    uint8_t counted;
 };
 
 struct uid_cache_entry {
-    uint8_t version;
-    uint8_t protocol;
     uint8_t saddr[16];
     uint16_t sport;
     uint8_t daddr[16];
     uint16_t dport;
     jint uid;
+    int next;
     long time;
 };
 
+struct uid_cache_table {
+    const char *fn;
+    int version;
+    int protocol;
+    uint32_t tick;
+    int size;
+    int used;
+    int buckets[UID_CACHE_BUCKETS];
+    struct uid_cache_entry *entries;
+};
+
+// Redirect rules, see NativeRedirectRules.java
+
+#define REDIRECT_RULES_MAGIC 0x52524e49
+#define REDIRECT_RULES_VERSION 3
+
+#define REDIRECT_FLAG_FIX_TTL 1
+#define REDIRECT_FLAG_COMPATIBILITY_MODE (1 << 1)
+#define REDIRECT_FLAG_BYPASS_LAN (1 << 2)
+#define REDIRECT_FLAG_ROUTE_ALL_THROUGH_TOR (1 << 3)
+#define REDIRECT_FLAG_USE_PROXY (1 << 4)
+#define REDIRECT_FLAG_NTP_ALLOWED (1 << 5)
+
+#define REDIRECT_ACTION_TOR_RULE 1
+#define REDIRECT_ACTION_TOR (1 << 1)
+#define REDIRECT_ACTION_BYPASS_PROXY (1 << 2)
+
+struct redirect_header {
+    int32_t magic;
+    int32_t version;
+    int32_t flags;
+    int32_t own_uid;
+    int32_t network_stack_uid; // Constants.NETWORK_STACK_DEFAULT_UID, always bypasses LAN
+    int32_t ntp_uid; // Process.SYSTEM_UID, whose ntp_port connections follow REDIRECT_FLAG_NTP_ALLOWED
+    int32_t ntp_port; // ApplicationData.SPECIAL_PORT_NTP
+    uint8_t itpd_addr[4];
+    int32_t uids;
+    int32_t tor_virtual;
+    int32_t lan;
+    int32_t tor_hosts;
+    int32_t tor_nets;
+    int32_t bind_hosts;
+    int32_t bind_wildcards;
+    int32_t bind_names_size;
+};
+
+struct redirect_uid {
+    int32_t uid;
+    int32_t action;
+};
+
+struct redirect_prefix {
+    uint8_t version;
+    uint8_t prefix;
+    uint8_t padding[2];
+    uint8_t addr[16];
+};
+
+// IPs from DNS answers for the Tor unlock or clearnet hosts,
+// routed until ServiceVPN adds them to the rules, see DomainIpBindings.kt
+
+#define BOUND_IPS_MAX 256
+#define BOUND_IP_TTL_MIN 300
+#define BOUND_IP_TTL_MAX (24 * 60 * 60)
+#define BOUND_IP_TTL_DEFAULT 1800
+
+struct bound_ip {
+    uint8_t version;
+    uint8_t addr[16];
+    time_t expires;
+};
+
+// Usage records, see VpnUsageStore.java
+
+#define USAGE_ROUTE_DIRECT 0
+#define USAGE_ROUTE_TOR 1
+#define USAGE_ROUTE_PROXY 2
+
+struct usage_record {
+    int32_t uid;
+    uint8_t protocol;
+    uint8_t route;
+    uint16_t used;
+    uint32_t sent_packets;
+    uint32_t received_packets;
+    uint64_t sent;
+    uint64_t received;
+};
+
 // IPv6
 
 struct ip6_hdr_pseudo {
@@ -255,12 +395,41 @@ typedef uint16_t guint16_t;
 typedef uint32_t guint32_t;
 typedef int32_t gint32_t;
 
+typedef struct pcap_hdr_s {
+    guint32_t magic_number;
+    guint16_t version_major;
+    guint16_t version_minor;
+    gint32_t thiszone;
+    guint32_t sigfigs;
+    guint32_t snaplen;
+    guint32_t network;
+} __packed pcap_hdr_s;
+
+typedef struct pcaprec_hdr_s {
+    guint32_t ts_sec;
+    guint32_t ts_usec;
+    guint32_t incl_len;
+    guint32_t orig_len;
+} __packed pcaprec_hdr_s;
+
 #define LINKTYPE_RAW 101
 
+#define PCAP_RING_SIZE 1024 // records, power of two
+#define PCAP_UIDS_MAX 64
+#define PCAP_WRITE_INTERVAL 100 // milliseconds
+
+// Events
+
+#define EVENTS_RING_SIZE 512 // records, power of two
+#define EVENTS_HINFO_MAX 127
+#define EVENT_DNS_RESOLVED 1
+
 // DNS
 
 #define DNS_QCLASS_IN 1
 #define DNS_QTYPE_A 1 // IPv4
+#define DNS_QTYPE_SOA 6
+#define DNS_QTYPE_OPT 41
 #define DNS_QTYPE_AAAA 28 // IPv6
 #define DNS_QTYPE_CNAME 5 //CNAME
 #define DNS_QTYPE_HINFO 13//HINFO
@@ -270,6 +439,13 @@ typedef int32_t gint32_t;
 #define DNS_QNAME_MAX 255
 #define DNS_TTL (10 * 60) // seconds
 
+#define DNS_CACHE_BUCKETS 1024
+#define DNS_CACHE_SIZE_MAX 4096 // entries
+#define DNS_CACHE_UIDS 64
+#define DNS_CACHE_NEGATIVE_TTL 60 // seconds
+#define DNS_CACHE_MAX_TTL 3600 // seconds
+#define DNS_QUERIES_PENDING 8 // per UDP session
+
 struct dns_header {
     uint16_t id; // identification number
 # if __BYTE_ORDER == __LITTLE_ENDIAN
@@ -311,6 +487,14 @@ typedef struct dns_rr {
     __be16 rdlength;
 } __packed dns_rr;
 
+struct dns_query {
+    uint16_t id; // network notation
+    uint16_t qtype;
+    char qname[DNS_QNAME_MAX + 1];
+    struct sockaddr_storage peer; // resolver the query was sent to
+    struct dns_query *next;
+};
+
 // DHCP
 
 #define DHCP_OPTION_MAGIC_NUMBER (0x63825363)
@@ -352,6 +536,16 @@ void check_allowed(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+void add_session(struct context *ctx, struct ng_session *s);
+
+void remove_session(struct context *ctx, struct ng_session *s);
+
+void touch_session(struct context *ctx, struct ng_session *s);
+
+struct ng_session *find_session(const struct context *ctx, uint8_t protocol, int version,
+                                const void *saddr, const void *daddr,
+                                __be16 sport, __be16 dport);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -381,6 +575,23 @@ int check_tun(const struct arguments *args,
               const int epoll_fd,
               int sessions, int maxsessions);
 
+void init_tun_batch();
+
+void clear_tun_batch(const struct arguments *args);
+
+int read_tun_batch(const struct arguments *args);
+
+uint8_t *get_tun_packet(int index, size_t *length);
+
+void begin_tun_batch();
+
+void flush_tun_batch(const struct arguments *args);
+
+ssize_t write_tun(const struct arguments *args, uint8_t *buffer, size_t length, jint uid,
+                  uint8_t protocol, const void *session, int pure_ack, uint32_t ack);
+
+void forget_tun_session(const void *session);
+
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev);
@@ -390,6 +601,22 @@ int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char
 void parse_dns_response(const struct arguments *args, const struct ng_session *session,
                         const uint8_t *data, size_t *datalen);
 
+void add_dns_query(struct udp_session *cur, const uint8_t *data, size_t datalen,
+                   const struct sockaddr *peer);
+
+int take_dns_query(struct udp_session *cur, const uint8_t *data, size_t datalen,
+                   const struct sockaddr *peer);
+
+void clear_dns_queries(struct udp_session *cur);
+
+void put_dns_cache(const uint8_t *data, size_t datalen);
+
+int answer_dns_cache(const struct arguments *args,
+                     const uint8_t *pkt, const uint8_t *payload,
+                     const uint8_t *data, size_t datalen, int uid);
+
+void clear_dns_cache();
+
 uint32_t get_send_window(const struct tcp_session *cur);
 
 uint32_t get_receive_buffer(const struct ng_session *cur);
@@ -433,6 +660,8 @@ int check_dhcp(const struct arguments *args, const struct udp_session *u,
 
 void clear_tcp_data(struct tcp_session *cur);
 
+void clear_udp_data(struct udp_session *cur);
+
 jboolean handle_tcp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
                     const uint8_t *payload,
@@ -450,7 +679,7 @@ int open_udp_socket(const struct arguments *args,
                     const struct udp_session *cur, const struct allowed *redirect);
 
 int open_tcp_socket(const struct arguments *args,
-                    const struct tcp_session *cur, struct allowed *redirect);
+                    struct tcp_session *cur, struct allowed *redirect);
 
 int32_t get_local_port(const int sock);
 
@@ -495,6 +724,10 @@ jint get_uid_sub(const int version, const int protocol,
                  const char *source, const char *dest,
                  long now);
 
+void next_uid_tick();
+
+void clear_uid_cache();
+
 jint restore_uid(const struct arguments *args,
                  const int version,
                  const int protocol,
@@ -530,7 +763,7 @@ void log_android(int prio, const char *fmt, ...);
 void log_packet(const struct arguments *args, jobject jpacket);
 
 void dns_resolved(const struct arguments *args, const char *qname, const char *aname,
-        const char *cname, const char *hinfo, const char *resource, int rcode);
+        const char *cname, const char *hinfo, const char *resource, int rcode, uint32_t ttl);
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name);
 
@@ -538,6 +771,19 @@ jboolean is_redirect_to_tor(const struct arguments *args, const int uid, const c
 
 jboolean is_redirect_to_proxy(const struct arguments *args, const int uid, const char *daddr, const int port);
 
+int get_redirect_decision(int proxy, int uid, const char *daddr, int dport);
+
+void clear_redirect_rules(JNIEnv *env);
+
+int is_bind_host(const char *name);
+
+void bind_ip(uint8_t version, const uint8_t *addr, uint32_t ttl);
+
+int is_in_prefixes(const struct redirect_prefix *entries, int count, uint8_t version,
+                   const uint8_t *addr);
+
+void clear_dns_rebind_ranges(JNIEnv *env);
+
 jint get_uid_q(const struct arguments *args,
                jint version,
                jint protocol,
@@ -560,8 +806,20 @@ jobject create_packet(const struct arguments *args,
                       jint uid,
                       jboolean allowed);
 
-void account_usage(const struct arguments *args, jint version, jint protocol,
-                   const char *daddr, jint dport, jint uid, jlong sent, jlong received);
+void account_usage(const struct arguments *args, jint uid, uint8_t protocol, uint8_t route,
+                   uint32_t sent, uint32_t received);
+
+void flush_usage(const struct arguments *args);
+
+int is_pcap_enabled();
+
+int is_pcap_filtered();
+
+void write_pcap(const void *ptr, size_t len, jint uid);
+
+void clear_pcap();
+
+int get_usage_timeout(time_t now);
 
 int compare_u32(uint32_t seq1, uint32_t seq2);
 
@@ -60,45 +60,48 @@ int check_tun(const struct arguments *args,
 
     // Check tun read
     if (ev->events & EPOLLIN) {
-        uint8_t *buffer = ng_malloc(get_mtu(), "tun read");
-        ssize_t length = read(args->tun, buffer, get_mtu());
-        if (length < 0) {
-            ng_free(buffer, __FILE__, __LINE__);
+        int count = read_tun_batch(args);
+        if (count < 0)
+            return -1;
 
-            log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
-                        args->tun, errno, strerror(errno));
-            if (errno == EINTR || errno == EAGAIN)
-                // Retry later
-                return 0;
-            else {
-                report_exit(args, "tun %d read error %d: %s",
-                            args->tun, errno, strerror(errno));
-                return -1;
-            }
-        } else if (length > 0) {
+        for (int i = 0; i < count && !args->ctx->stopping; i++) {
+            size_t length;
+            uint8_t *buffer = get_tun_packet(i, &length);
 
-            if (length > max_tun_msg) {
-                max_tun_msg = length;
+            if ((int) length > max_tun_msg) {
+                max_tun_msg = (int) length;
                 log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
             }
 
             // Handle IP from tun
-            handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
-
-            ng_free(buffer, __FILE__, __LINE__);
-        } else {
-            // tun eof
-            ng_free(buffer, __FILE__, __LINE__);
-
-            log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
-            report_exit(args, "tun %d empty read", args->tun);
-            return -1;
+            next_uid_tick();
+            handle_ip(args, buffer, length, epoll_fd, sessions, maxsessions);
         }
     }
 
     return 0;
 }
 
+// Uid of the session the packet belongs to, -1 if there is none yet
+static jint get_packet_uid(const struct arguments *args, int version, uint8_t protocol,
+                           const void *saddr, uint16_t sport,
+                           const void *daddr, uint16_t dport) {
+    struct ng_session *s;
+    if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
+        s = find_session(args->ctx, IPPROTO_ICMP, version, saddr, daddr, htons(sport), 0);
+    else
+        s = find_session(args->ctx, protocol, version, saddr, daddr, htons(sport), htons(dport));
+
+    if (s == NULL)
+        return -1;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.uid;
+    else if (s->protocol == IPPROTO_TCP)
+        return s->tcp.uid;
+    else
+        return s->icmp.uid;
+}
+
 // https://en.wikipedia.org/wiki/IPv6_packet#Extension_headers
 // http://www.iana.org/assignments/protocol-numbers/protocol-numbers.xhtml
 int is_lower_layer(int protocol) {
@@ -295,6 +298,7 @@ void handle_ip(const struct arguments *args,
 
             if (uid < 0 && args->ctx->sdk < 21) {
                 usleep(100000);
+                next_uid_tick();
                 uid = get_uid(version, protocol, saddr, sport, daddr, dport);
             }
 
@@ -321,6 +325,13 @@ void handle_ip(const struct arguments *args,
                 "Packet v%d %s/%u > %s/%u proto %d flags %s uid %d",
                 version, source, sport, dest, dport, protocol, flags, uid);
 
+    // Capture packet from tun
+    if (is_pcap_enabled())
+        write_pcap(pkt, length, uid >= 0 || !is_pcap_filtered()
+                                ? uid
+                                : get_packet_uid(args, version, protocol,
+                                                 saddr, sport, daddr, dport));
+
     // Check if allowed
     int allowed = 0;
     struct allowed *redirect = NULL;
@@ -407,138 +418,301 @@ jint get_uid(const int version, const int protocol,
     return uid;
 }
 
-int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
+// Socket tables parsed from /proc/net, one per file
+// A table parsed after a packet was read already contains the socket that sent it,
+// so a miss is final until the next packet is read from tun
+static struct uid_cache_table uid_tables[] = {
+        {"/proc/net/tcp", 4, IPPROTO_TCP},
+        {"/proc/net/tcp6", 6, IPPROTO_TCP},
+        {"/proc/net/udp", 4, IPPROTO_UDP},
+        {"/proc/net/udp6", 6, IPPROTO_UDP},
+        {"/proc/net/icmp", 4, IPPROTO_ICMP},
+        {"/proc/net/icmp6", 6, IPPROTO_ICMPV6}
+};
+
+#define UID_TABLES_COUNT (sizeof(uid_tables) / sizeof(struct uid_cache_table))
+
+static uint32_t uid_tick = 1;
+static char uid_read_buffer[UID_READ_BUFFER_SIZE + 1];
+
+void next_uid_tick() {
+    uid_tick++;
+}
 
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now) {
-    // NETLINK is not available on Android due to SELinux policies :-(
-    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
-    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+void clear_uid_cache() {
+    for (int t = 0; t < UID_TABLES_COUNT; t++) {
+        struct uid_cache_table *table = &uid_tables[t];
+        if (table->entries != NULL)
+            ng_free(table->entries, __FILE__, __LINE__);
+        table->entries = NULL;
+        table->size = 0;
+        table->used = 0;
+        table->tick = 0;
+        memset(table->buckets, 0, sizeof(table->buckets));
+    }
+}
+
+static inline int get_uid_bucket(uint16_t sport) {
+    return (int) ((sport ^ (sport >> 8)) & (UID_CACHE_BUCKETS - 1));
+}
+
+static struct uid_cache_table *get_uid_table(const int version, const int protocol) {
+    for (int t = 0; t < UID_TABLES_COUNT; t++)
+        if (uid_tables[t].version == version && uid_tables[t].protocol == protocol)
+            return &uid_tables[t];
+    return NULL;
+}
 
+static jint find_uid(const struct uid_cache_table *table,
+                     const void *saddr, const uint16_t sport,
+                     const void *daddr, const uint16_t dport,
+                     long now) {
     static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
 
-    int ws = (version == 4 ? 1 : 4);
+    size_t len = (size_t) (table->version == 4 ? 4 : 16);
 
-    // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, (size_t) (ws * 4)) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, (size_t) (ws * 4)) == 0)) {
-
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
-
-            return uid_cache[i].uid;
+    // Exact match wins over listening and unconnected sockets
+    jint uid = -1;
+    for (int i = table->buckets[get_uid_bucket(sport)]; i;) {
+        const struct uid_cache_entry *entry = &table->entries[i - 1];
+        i = entry->next;
+
+        if (entry->sport != sport || now - entry->time > UID_MAX_AGE)
+            continue;
+
+        int sexact = (memcmp(entry->saddr, saddr, len) == 0);
+        int dexact = (memcmp(entry->daddr, daddr, len) == 0);
+        if (entry->dport == dport && sexact && dexact)
+            return entry->uid;
+
+        if ((entry->dport == dport || entry->dport == 0) &&
+            (sexact || memcmp(entry->saddr, zero, len) == 0) &&
+            (dexact || memcmp(entry->daddr, zero, len) == 0))
+            uid = entry->uid;
+    }
+
+    return uid;
+}
+
+static const char *parse_proc_address(const char *p, int ws, uint8_t *addr, uint16_t *port) {
+    for (int w = 0; w < ws; w++) {
+        uint32_t word = 0;
+        for (int i = 0; i < 8; i++, p++) {
+            uint8_t nibble = char2nible(*p);
+            if (nibble > 15)
+                return NULL;
+            word = (word << 4) | nibble;
         }
+        // Words are printed in host order
+        memcpy(addr + w * 4, &word, 4);
+    }
+
+    if (*p++ != ':')
+        return NULL;
 
-    // Get proc file name
-    char *fn = NULL;
-    if (protocol == IPPROTO_ICMP && version == 4)
-        fn = "/proc/net/icmp";
-    else if (protocol == IPPROTO_ICMPV6 && version == 6)
-        fn = "/proc/net/icmp6";
-    else if (protocol == IPPROTO_TCP)
-        fn = (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
-    else if (protocol == IPPROTO_UDP)
-        fn = (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
+    uint32_t value = 0;
+    int digits = 0;
+    for (uint8_t nibble; (nibble = char2nible(*p)) <= 15; p++, digits++)
+        value = (value << 4) | nibble;
+    if (digits == 0 || digits > 4)
+        return NULL;
+
+    *port = (uint16_t) value;
+    return p;
+}
+
+static const char *skip_proc_fields(const char *p, int count) {
+    for (int i = 0; i < count; i++) {
+        while (*p == ' ')
+            p++;
+        if (*p == 0)
+            return NULL;
+        while (*p != ' ' && *p != 0)
+            p++;
+    }
+    while (*p == ' ')
+        p++;
+    return p;
+}
+
+// sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid ...
+static int parse_proc_line(const char *line, int ws, struct uid_cache_entry *entry) {
+    const char *p = skip_proc_fields(line, 1);
+    if (p != NULL)
+        p = parse_proc_address(p, ws, entry->saddr, &entry->sport);
+    if (p != NULL && *p == ' ')
+        p = parse_proc_address(skip_proc_fields(p, 0), ws, entry->daddr, &entry->dport);
+    else
+        p = NULL;
+    if (p != NULL && *p == ' ')
+        p = skip_proc_fields(p, 4);
     else
+        p = NULL;
+    if (p == NULL || *p < '0' || *p > '9')
         return -1;
 
-    // Open proc file
-    FILE *fd = fopen(fn, "re");
-    if (fd == NULL) {
-        log_android(ANDROID_LOG_ERROR, "fopen %s error %d: %s", fn, errno, strerror(errno));
-        return -2;
+    jint uid = 0;
+    for (; *p >= '0' && *p <= '9'; p++)
+        uid = uid * 10 + (*p - '0');
+    entry->uid = uid;
+
+    return 0;
+}
+
+static void link_uid_entry(struct uid_cache_table *table, int index) {
+    int bucket = get_uid_bucket(table->entries[index].sport);
+    table->entries[index].next = table->buckets[bucket];
+    table->buckets[bucket] = index + 1;
+}
+
+static int add_uid_line(struct uid_cache_table *table, const char *line, long now) {
+    struct uid_cache_entry parsed;
+    memset(&parsed, 0, sizeof(parsed));
+
+    int ws = (table->version == 4 ? 1 : 4);
+    if (parse_proc_line(line, ws, &parsed) < 0)
+        return -1;
+
+    // Refresh known socket
+    for (int i = table->buckets[get_uid_bucket(parsed.sport)]; i;) {
+        struct uid_cache_entry *entry = &table->entries[i - 1];
+        i = entry->next;
+
+        if (entry->sport == parsed.sport && entry->dport == parsed.dport &&
+            memcmp(entry->saddr, parsed.saddr, (size_t) (ws * 4)) == 0 &&
+            memcmp(entry->daddr, parsed.daddr, (size_t) (ws * 4)) == 0) {
+            entry->uid = parsed.uid;
+            entry->time = now;
+            return 0;
+        }
     }
 
-    jint uid = -1;
+    // Add new socket
+    if (table->used == table->size) {
+        int size = (table->size == 0 ? UID_CACHE_BUCKETS : table->size * 2);
+        if (table->size == 0)
+            table->entries = ng_malloc(sizeof(struct uid_cache_entry) * size, "uid_cache init");
+        else
+            table->entries = ng_realloc(table->entries,
+                                        sizeof(struct uid_cache_entry) * size,
+                                        "uid_cache extend");
+        table->size = size;
+    }
 
-    char line[250];
-    int fields;
+    parsed.time = now;
+    table->entries[table->used] = parsed;
+    link_uid_entry(table, table->used);
+    table->used++;
 
-    char shex[16 * 2 + 1];
-    uint8_t _saddr[16];
-    int _sport;
+    return 0;
+}
 
-    char dhex[16 * 2 + 1];
-    uint8_t _daddr[16];
-    int _dport;
+// Drops sockets not seen for UID_MAX_AGE and rebuilds the buckets
+static void expire_uid_table(struct uid_cache_table *table, long now) {
+    memset(table->buckets, 0, sizeof(table->buckets));
+
+    int used = 0;
+    for (int i = 0; i < table->used; i++)
+        if (now - table->entries[i].time <= UID_MAX_AGE) {
+            if (used != i)
+                table->entries[used] = table->entries[i];
+            link_uid_entry(table, used);
+            used++;
+        }
 
-    jint _uid;
+    table->used = used;
+}
 
-    // Scan proc file
+static int parse_uid_table(struct uid_cache_table *table, long now) {
+    int fd = open(table->fn, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        log_android(ANDROID_LOG_ERROR, "open %s error %d: %s", table->fn, errno, strerror(errno));
+        return -1;
+    }
+
+    int result = 0;
     int l = 0;
-    *line = 0;
-    int c = 0;
-    const char *fmt = (version == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
-                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
-    while (fgets(line, sizeof(line), fd) != NULL) {
-        if (!l++)
-            continue;
+    size_t len = 0;
+    while (result == 0) {
+        ssize_t length = read(fd, uid_read_buffer + len, UID_READ_BUFFER_SIZE - len);
+        if (length < 0) {
+            if (errno == EINTR)
+                continue;
+            log_android(ANDROID_LOG_ERROR, "read %s error %d: %s",
+                        table->fn, errno, strerror(errno));
+            result = -1;
+            break;
+        }
+
+        len += (size_t) length;
+        uid_read_buffer[len] = 0;
+
+        // Complete lines, the last one at the end of file
+        char *line = uid_read_buffer;
+        char *eol;
+        while (result == 0 &&
+               ((eol = strchr(line, '\n')) != NULL || (length == 0 && *line != 0))) {
+            if (eol != NULL)
+                *eol = 0;
 
-        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
-        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
-            hex2bytes(shex, _saddr);
-            hex2bytes(dhex, _daddr);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
-
-            if (_sport == sport &&
-                (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
-                uid = _uid;
-
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                    break;
-
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = ng_malloc(sizeof(struct uid_cache_entry), "uid_cache init");
-                else
-                    uid_cache = ng_realloc(uid_cache,
-                                           sizeof(struct uid_cache_entry) *
-                                           (uid_cache_size + 1), "uid_cache extend");
-                c = uid_cache_size;
-                uid_cache_size++;
+            if (l++ && add_uid_line(table, line, now) < 0) {
+                log_android(ANDROID_LOG_ERROR, "Invalid line %s: %s", table->fn, line);
+                result = -1;
             }
 
-            uid_cache[c].version = (uint8_t) version;
-            uid_cache[c].protocol = (uint8_t) protocol;
-            memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-            uid_cache[c].sport = (uint16_t) _sport;
-            memcpy(uid_cache[c].daddr, _daddr, (size_t) (ws * 4));
-            uid_cache[c].dport = (uint16_t) _dport;
-            uid_cache[c].uid = _uid;
-            uid_cache[c].time = now;
-        } else {
-            log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
-            return -2;
+            line = (eol == NULL ? uid_read_buffer + len : eol + 1);
+        }
+
+        len -= (size_t) (line - uid_read_buffer);
+        memmove(uid_read_buffer, line, len);
+
+        if (length == 0)
+            break;
+
+        if (result == 0 && len == UID_READ_BUFFER_SIZE) {
+            log_android(ANDROID_LOG_ERROR, "Line too long %s", table->fn);
+            result = -1;
         }
     }
 
-    if (fclose(fd))
-        log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
+    if (close(fd))
+        log_android(ANDROID_LOG_ERROR, "close %s error %d: %s", table->fn, errno, strerror(errno));
 
-    return uid;
+    expire_uid_table(table, now);
+
+    return result;
+}
+
+jint get_uid_sub(const int version, const int protocol,
+                 const void *saddr, const uint16_t sport,
+                 const void *daddr, const uint16_t dport,
+                 const char *source, const char *dest,
+                 long now) {
+    // NETLINK is not available on Android due to SELinux policies :-(
+    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
+    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+
+    struct uid_cache_table *table = get_uid_table(version, protocol);
+    if (table == NULL)
+        return -1;
+
+    // Check cache
+    jint uid = find_uid(table, saddr, sport, daddr, dport, now);
+    if (uid != -1) {
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
+                    version, protocol, source, sport, dest, dport, uid);
+        return uid;
+    }
+
+    // Already parsed after the packet was read
+    if (table->tick == uid_tick)
+        return -1;
+    table->tick = uid_tick;
+
+    if (parse_uid_table(table, now) < 0)
+        return -2;
+
+    return find_uid(table, saddr, sport, daddr, dport, now);
 }
 
 jint restore_uid(const struct arguments *args,
@@ -594,17 +768,8 @@ jint restore_uid(const struct arguments *args,
             return uid;
         }
 
-        while (cur != NULL &&
-               !((cur->protocol == IPPROTO_ICMP || cur->protocol == IPPROTO_ICMPV6) &&
-                 cur->icmp.uid >= 0 &&
-                 !cur->icmp.stop && cur->icmp.version == version &&
-                 cur->icmp.id == icmp->icmp_id &&
-                 (version == 4 ? cur->icmp.saddr.ip4 == *((int32_t *) saddr) &&
-                                 cur->icmp.daddr.ip4 == *((int32_t *) daddr)
-                               : memcmp(&cur->icmp.saddr.ip6, saddr, 16) == 0 &&
-                                 memcmp(&cur->icmp.daddr.ip6, daddr, 16) == 0)))
-            cur = cur->next;
-        if (cur != NULL) {
+        cur = find_session(args->ctx, IPPROTO_ICMP, version, saddr, daddr, icmp->icmp_id, 0);
+        if (cur != NULL && cur->icmp.uid >= 0) {
             uid = cur->icmp.uid;
         }
     } else {
@@ -0,0 +1,334 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+
+#include "invizible.h"
+
+// Packet capture to a rotating pcap file
+// Packets are copied to a ring by the tunnel thread and written to the file by a writer thread
+
+struct pcap_slot {
+    atomic_uint ready;
+    pcaprec_hdr_s header;
+    uint8_t data[];
+};
+
+static pthread_rwlock_t pcap_lock = PTHREAD_RWLOCK_INITIALIZER;
+static atomic_int pcap_enabled = 0;
+static uint8_t *pcap_ring = NULL;
+static size_t pcap_slot_size = 0;
+static uint32_t pcap_snaplen = 0;
+static atomic_uint pcap_head = 0;
+static atomic_uint pcap_tail = 0;
+static atomic_uint pcap_dropped = 0;
+static int pcap_uids[PCAP_UIDS_MAX];
+static int pcap_uids_count = 0;
+
+static pthread_t pcap_thread;
+static atomic_int pcap_stopping = 0;
+static FILE *pcap_file = NULL;
+static char pcap_name[PATH_MAX];
+static long pcap_file_size = 0;
+static long pcap_max_size = 0;
+
+static inline struct pcap_slot *get_pcap_slot(uint8_t *ring, uint32_t index) {
+    return (struct pcap_slot *) (ring + (index & (PCAP_RING_SIZE - 1)) * pcap_slot_size);
+}
+
+static int compare_uid(const void *a, const void *b) {
+    int first = *(const int *) a;
+    int second = *(const int *) b;
+    return (first > second) - (first < second);
+}
+
+static int is_pcap_uid(jint uid) {
+    if (pcap_uids_count == 0)
+        return 1;
+
+    int lo = 0;
+    int hi = pcap_uids_count - 1;
+    while (lo <= hi) {
+        int mid = (lo + hi) / 2;
+        if (pcap_uids[mid] == uid)
+            return 1;
+        else if (pcap_uids[mid] < uid)
+            lo = mid + 1;
+        else
+            hi = mid - 1;
+    }
+    return 0;
+}
+
+int is_pcap_enabled() {
+    return atomic_load_explicit(&pcap_enabled, memory_order_relaxed);
+}
+
+int is_pcap_filtered() {
+    return pcap_uids_count > 0;
+}
+
+void write_pcap(const void *ptr, size_t len, jint uid) {
+    if (!is_pcap_enabled())
+        return;
+
+    // Capture is being stopped
+    if (pthread_rwlock_tryrdlock(&pcap_lock))
+        return;
+
+    if (pcap_ring != NULL && is_pcap_uid(uid)) {
+        uint32_t head = atomic_load_explicit(&pcap_head, memory_order_relaxed);
+        int reserved = 0;
+        do {
+            uint32_t tail = atomic_load_explicit(&pcap_tail, memory_order_acquire);
+            if (head - tail >= PCAP_RING_SIZE)
+                break;
+            reserved = atomic_compare_exchange_weak_explicit(
+                    &pcap_head, &head, head + 1, memory_order_relaxed, memory_order_relaxed);
+        } while (!reserved);
+
+        if (reserved) {
+            struct timespec ts;
+            clock_gettime(CLOCK_REALTIME, &ts);
+
+            struct pcap_slot *slot = get_pcap_slot(pcap_ring, head);
+            size_t plen = (len < pcap_snaplen ? len : pcap_snaplen);
+            slot->header.ts_sec = (guint32_t) ts.tv_sec;
+            slot->header.ts_usec = (guint32_t) (ts.tv_nsec / 1000);
+            slot->header.incl_len = (guint32_t) plen;
+            slot->header.orig_len = (guint32_t) len;
+            memcpy(slot->data, ptr, plen);
+            atomic_store_explicit(&slot->ready, 1, memory_order_release);
+        } else
+            atomic_fetch_add_explicit(&pcap_dropped, 1, memory_order_relaxed);
+    }
+
+    pthread_rwlock_unlock(&pcap_lock);
+}
+
+static int write_pcap_header() {
+    pcap_hdr_s pcap_hdr;
+    pcap_hdr.magic_number = 0xa1b2c3d4;
+    pcap_hdr.version_major = 2;
+    pcap_hdr.version_minor = 4;
+    pcap_hdr.thiszone = 0;
+    pcap_hdr.sigfigs = 0;
+    pcap_hdr.snaplen = pcap_snaplen;
+    pcap_hdr.network = LINKTYPE_RAW;
+
+    if (fwrite(&pcap_hdr, sizeof(pcap_hdr), 1, pcap_file) != 1) {
+        log_android(ANDROID_LOG_ERROR, "PCAP fwrite header error %d: %s", errno, strerror(errno));
+        return -1;
+    }
+
+    pcap_file_size = sizeof(pcap_hdr);
+    return 0;
+}
+
+static int open_pcap_file() {
+    pcap_file = fopen(pcap_name, "ab+e");
+    if (pcap_file == NULL) {
+        log_android(ANDROID_LOG_ERROR, "PCAP fopen %s error %d: %s",
+                    pcap_name, errno, strerror(errno));
+        return -1;
+    }
+
+    pcap_file_size = ftell(pcap_file);
+    if (pcap_file_size == 0)
+        return write_pcap_header();
+
+    return 0;
+}
+
+static void close_pcap_file() {
+    if (pcap_file != NULL && fclose(pcap_file))
+        log_android(ANDROID_LOG_ERROR, "PCAP fclose error %d: %s", errno, strerror(errno));
+    pcap_file = NULL;
+}
+
+// Keeps one previous file with the .1 suffix
+static int rotate_pcap_file() {
+    close_pcap_file();
+
+    char previous[PATH_MAX + 2];
+    snprintf(previous, sizeof(previous), "%s.1", pcap_name);
+    if (rename(pcap_name, previous))
+        log_android(ANDROID_LOG_ERROR, "PCAP rename %s error %d: %s",
+                    pcap_name, errno, strerror(errno));
+
+    return open_pcap_file();
+}
+
+static int drain_pcap_ring(uint8_t *ring) {
+    int count = 0;
+    uint32_t tail = atomic_load_explicit(&pcap_tail, memory_order_relaxed);
+    while (1) {
+        struct pcap_slot *slot = get_pcap_slot(ring, tail);
+        if (!atomic_load_explicit(&slot->ready, memory_order_acquire))
+            break;
+
+        if (pcap_file != NULL) {
+            long rlen = (long) (sizeof(pcaprec_hdr_s) + slot->header.incl_len);
+            if (pcap_file_size + rlen > pcap_max_size &&
+                pcap_file_size > (long) sizeof(pcap_hdr_s) &&
+                rotate_pcap_file() < 0)
+                close_pcap_file();
+
+            if (pcap_file != NULL) {
+                if (fwrite(&slot->header, sizeof(pcaprec_hdr_s), 1, pcap_file) != 1 ||
+                    fwrite(slot->data, slot->header.incl_len, 1, pcap_file) != 1) {
+                    log_android(ANDROID_LOG_ERROR, "PCAP fwrite error %d: %s",
+                                errno, strerror(errno));
+                    close_pcap_file();
+                } else
+                    pcap_file_size += rlen;
+            }
+        }
+
+        atomic_store_explicit(&slot->ready, 0, memory_order_relaxed);
+        tail++;
+        atomic_store_explicit(&pcap_tail, tail, memory_order_release);
+        count++;
+    }
+    return count;
+}
+
+static void *pcap_writer(void *data) {
+    uint8_t *ring = data;
+    log_android(ANDROID_LOG_WARN, "PCAP writer started %s", pcap_name);
+
+    while (!atomic_load(&pcap_stopping)) {
+        if (drain_pcap_ring(ring) > 0 && pcap_file != NULL)
+            fflush(pcap_file);
+
+        uint32_t dropped = atomic_exchange(&pcap_dropped, 0);
+        if (dropped > 0)
+            log_android(ANDROID_LOG_WARN, "PCAP dropped %u packets", dropped);
+
+        usleep(PCAP_WRITE_INTERVAL * 1000);
+    }
+
+    drain_pcap_ring(ring);
+    close_pcap_file();
+
+    log_android(ANDROID_LOG_WARN, "PCAP writer stopped");
+    return NULL;
+}
+
+static void stop_pcap() {
+    if (pthread_rwlock_wrlock(&pcap_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+        return;
+    }
+
+    int enabled = atomic_exchange(&pcap_enabled, 0);
+    uint8_t *ring = pcap_ring;
+    pcap_ring = NULL;
+
+    pthread_rwlock_unlock(&pcap_lock);
+
+    if (!enabled)
+        return;
+
+    // No producer can reach the ring anymore, let the writer drain it
+    atomic_store(&pcap_stopping, 1);
+    if (pthread_join(pcap_thread, NULL))
+        log_android(ANDROID_LOG_ERROR, "PCAP pthread_join failed");
+
+    ng_free(ring, __FILE__, __LINE__);
+
+    log_android(ANDROID_LOG_WARN, "PCAP stopped");
+}
+
+static int start_pcap(const char *name, int snaplen, int file_size,
+                      const int *uids, int uids_count) {
+    strncpy(pcap_name, name, sizeof(pcap_name) - 1);
+    pcap_name[sizeof(pcap_name) - 1] = 0;
+    pcap_snaplen = (uint32_t) (snaplen > 0 && snaplen < get_mtu() ? snaplen : get_mtu());
+    pcap_max_size = file_size;
+
+    pcap_uids_count = 0;
+    for (int i = 0; i < uids_count && pcap_uids_count < PCAP_UIDS_MAX; i++)
+        pcap_uids[pcap_uids_count++] = uids[i];
+    qsort(pcap_uids, (size_t) pcap_uids_count, sizeof(int), compare_uid);
+
+    if (open_pcap_file() < 0) {
+        close_pcap_file();
+        return -1;
+    }
+
+    pcap_slot_size = (sizeof(struct pcap_slot) + pcap_snaplen + 7) & ~((size_t) 7);
+    uint8_t *ring = ng_malloc(PCAP_RING_SIZE * pcap_slot_size, "pcap ring");
+    memset(ring, 0, PCAP_RING_SIZE * pcap_slot_size);
+    atomic_store(&pcap_head, 0);
+    atomic_store(&pcap_tail, 0);
+    atomic_store(&pcap_dropped, 0);
+    atomic_store(&pcap_stopping, 0);
+    pcap_ring = ring;
+
+    if (pthread_create(&pcap_thread, NULL, pcap_writer, ring)) {
+        log_android(ANDROID_LOG_ERROR, "PCAP pthread_create failed");
+        pcap_ring = NULL;
+        ng_free(ring, __FILE__, __LINE__);
+        close_pcap_file();
+        return -1;
+    }
+
+    atomic_store(&pcap_enabled, 1);
+    return 0;
+}
+
+void clear_pcap() {
+    stop_pcap();
+}
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1pcap(
+        JNIEnv *env, jobject instance,
+        jstring name_, jint snaplen, jint file_size, jintArray uids_) {
+
+    stop_pcap();
+
+    if (name_ == NULL)
+        return;
+
+    const char *name = (*env)->GetStringUTFChars(env, name_, 0);
+    ng_add_alloc(name, "name");
+
+    jint *uids = NULL;
+    jsize uids_count = 0;
+    if (uids_ != NULL) {
+        uids_count = (*env)->GetArrayLength(env, uids_);
+        uids = (*env)->GetIntArrayElements(env, uids_, NULL);
+    }
+
+    if (pthread_rwlock_wrlock(&pcap_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+    else {
+        if (start_pcap(name, snaplen, file_size, uids, uids_count) == 0)
+            log_android(ANDROID_LOG_WARN, "PCAP file %s snaplen %d size %d uids %d",
+                        name, pcap_snaplen, file_size, pcap_uids_count);
+        pthread_rwlock_unlock(&pcap_lock);
+    }
+
+    if (uids != NULL)
+        (*env)->ReleaseIntArrayElements(env, uids_, uids, JNI_ABORT);
+
+    (*env)->ReleaseStringUTFChars(env, name_, name);
+    ng_delete_alloc(name, __FILE__, __LINE__);
+}
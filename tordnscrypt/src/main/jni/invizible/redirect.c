@@ -0,0 +1,440 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Tor and proxy redirect rules snapshot shared with ServiceVPN
+// Layout is written by NativeRedirectRules.java, keep both in sync
+
+static pthread_rwlock_t redirect_lock = PTHREAD_RWLOCK_INITIALIZER;
+static jobject redirect_buffer = NULL;
+static const struct redirect_header *redirect_rules = NULL;
+static const struct redirect_uid *redirect_uids = NULL;
+static const struct redirect_prefix *redirect_tor_virtual = NULL;
+static const struct redirect_prefix *redirect_lan = NULL;
+static const struct redirect_prefix *redirect_tor_hosts = NULL;
+static const struct redirect_prefix *redirect_tor_nets = NULL;
+static const int32_t *redirect_bind_offsets = NULL;
+static const char *redirect_bind_names = NULL;
+
+// Guarded by redirect_lock, the tunnel thread is the only writer
+static struct bound_ip bound_ips[BOUND_IPS_MAX];
+static int bound_ips_count = 0;
+static int bound_ips_next = 0;
+
+static const uint8_t loopback_address[4] = {127, 0, 0, 1};
+
+static void release_redirect_rules(JNIEnv *env) {
+    if (redirect_buffer != NULL)
+        (*env)->DeleteGlobalRef(env, redirect_buffer);
+    redirect_buffer = NULL;
+    redirect_rules = NULL;
+    redirect_uids = NULL;
+    redirect_tor_virtual = NULL;
+    redirect_lan = NULL;
+    redirect_tor_hosts = NULL;
+    redirect_tor_nets = NULL;
+    redirect_bind_offsets = NULL;
+    redirect_bind_names = NULL;
+}
+
+static void clear_bound_ips() {
+    bound_ips_count = 0;
+    bound_ips_next = 0;
+}
+
+// Bind host names follow the prefix entries, exact hosts first, then wildcard domains
+static const int32_t *get_bind_offsets(const struct redirect_header *header) {
+    const struct redirect_uid *uids = (const struct redirect_uid *) (header + 1);
+    const struct redirect_prefix *prefixes = (const struct redirect_prefix *) (uids + header->uids);
+    return (const int32_t *) (prefixes + header->tor_virtual + header->lan +
+                              header->tor_hosts + header->tor_nets);
+}
+
+// Offsets must point into the names and the last name must be terminated
+static int is_valid_bind_names(const struct redirect_header *header) {
+    int count = header->bind_hosts + header->bind_wildcards;
+    if (count == 0)
+        return 1;
+    if (header->bind_names_size <= 0)
+        return 0;
+
+    const int32_t *offsets = get_bind_offsets(header);
+    const char *names = (const char *) (offsets + count);
+    if (names[header->bind_names_size - 1] != 0)
+        return 0;
+    for (int i = 0; i < count; i++)
+        if (offsets[i] < 0 || offsets[i] >= header->bind_names_size)
+            return 0;
+    return 1;
+}
+
+// Bound IPs are kept while the hosts and their meaning stay the same
+static int is_same_bind_hosts(const struct redirect_header *header) {
+    if (redirect_rules == NULL || header == NULL)
+        return 0;
+
+    const struct redirect_header *current = redirect_rules;
+    if ((current->flags & REDIRECT_FLAG_ROUTE_ALL_THROUGH_TOR) !=
+        (header->flags & REDIRECT_FLAG_ROUTE_ALL_THROUGH_TOR) ||
+        current->bind_hosts != header->bind_hosts ||
+        current->bind_wildcards != header->bind_wildcards ||
+        current->bind_names_size != header->bind_names_size)
+        return 0;
+
+    int count = header->bind_hosts + header->bind_wildcards;
+    const int32_t *offsets = get_bind_offsets(header);
+    return memcmp(redirect_bind_offsets, offsets,
+                  count * sizeof(int32_t) + (size_t) header->bind_names_size) == 0;
+}
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1set_1redirect_1rules(
+        JNIEnv *env, jobject instance, jobject buffer) {
+
+    const struct redirect_header *header = NULL;
+    jlong capacity = 0;
+    if (buffer != NULL) {
+        header = (*env)->GetDirectBufferAddress(env, buffer);
+        capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    }
+
+    if (header != NULL) {
+        size_t expected = sizeof(struct redirect_header);
+        if (capacity >= (jlong) expected &&
+            header->magic == REDIRECT_RULES_MAGIC &&
+            header->version == REDIRECT_RULES_VERSION &&
+            header->uids >= 0 && header->tor_virtual >= 0 && header->lan >= 0 &&
+            header->tor_hosts >= 0 && header->tor_nets >= 0 &&
+            header->bind_hosts >= 0 && header->bind_wildcards >= 0 &&
+            header->bind_names_size >= 0) {
+            expected += header->uids * sizeof(struct redirect_uid) +
+                        (size_t) (header->tor_virtual + header->lan +
+                                  header->tor_hosts + header->tor_nets) *
+                        sizeof(struct redirect_prefix) +
+                        (size_t) (header->bind_hosts + header->bind_wildcards) * sizeof(int32_t) +
+                        (size_t) header->bind_names_size;
+        } else
+            expected = 0;
+
+        if (expected == 0 || capacity < (jlong) expected || !is_valid_bind_names(header)) {
+            log_android(ANDROID_LOG_ERROR, "Invalid redirect rules size %lld", (long long) capacity);
+            header = NULL;
+        }
+    }
+
+    jobject global = NULL;
+    if (header != NULL)
+        global = (*env)->NewGlobalRef(env, buffer);
+
+    if (pthread_rwlock_wrlock(&redirect_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+        if (global != NULL)
+            (*env)->DeleteGlobalRef(env, global);
+        return;
+    }
+
+    if (!is_same_bind_hosts(global != NULL ? header : NULL))
+        clear_bound_ips();
+
+    release_redirect_rules(env);
+
+    if (global != NULL) {
+        redirect_buffer = global;
+        redirect_rules = header;
+        redirect_uids = (const struct redirect_uid *) (header + 1);
+        redirect_tor_virtual = (const struct redirect_prefix *) (redirect_uids + header->uids);
+        redirect_lan = redirect_tor_virtual + header->tor_virtual;
+        redirect_tor_hosts = redirect_lan + header->lan;
+        redirect_tor_nets = redirect_tor_hosts + header->tor_hosts;
+        redirect_bind_offsets = get_bind_offsets(header);
+        redirect_bind_names = (const char *) (redirect_bind_offsets +
+                                              header->bind_hosts + header->bind_wildcards);
+
+        log_android(ANDROID_LOG_WARN,
+                    "Redirect rules uids %d tor hosts %d tor networks %d bind hosts %d",
+                    header->uids, header->tor_hosts, header->tor_nets,
+                    header->bind_hosts + header->bind_wildcards);
+    } else
+        log_android(ANDROID_LOG_WARN, "Redirect rules cleared");
+
+    pthread_rwlock_unlock(&redirect_lock);
+}
+
+void clear_redirect_rules(JNIEnv *env) {
+    if (pthread_rwlock_wrlock(&redirect_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+        return;
+    }
+    release_redirect_rules(env);
+    clear_bound_ips();
+    pthread_rwlock_unlock(&redirect_lock);
+}
+
+static int prefix_match(const struct redirect_prefix *entry, uint8_t version,
+                        const uint8_t *addr) {
+    if (entry->version != version)
+        return 0;
+
+    int bytes = entry->prefix / 8;
+    int bits = entry->prefix % 8;
+    if (bytes > 0 && memcmp(entry->addr, addr, (size_t) bytes) != 0)
+        return 0;
+    if (bits == 0)
+        return 1;
+
+    uint8_t mask = (uint8_t) (0xFF << (8 - bits));
+    return (entry->addr[bytes] & mask) == (addr[bytes] & mask);
+}
+
+int is_in_prefixes(const struct redirect_prefix *entries, int count, uint8_t version,
+                   const uint8_t *addr) {
+    for (int i = 0; i < count; i++)
+        if (prefix_match(&entries[i], version, addr))
+            return 1;
+    return 0;
+}
+
+static int is_tor_host(uint8_t version, const uint8_t *addr) {
+    struct redirect_prefix key;
+    memset(&key, 0, sizeof(key));
+    key.version = version;
+    key.prefix = (uint8_t) (version == 4 ? 32 : 128);
+    memcpy(key.addr, addr, version == 4 ? 4 : 16);
+
+    int lo = 0;
+    int hi = redirect_rules->tor_hosts - 1;
+    while (lo <= hi) {
+        int mid = (lo + hi) / 2;
+        int cmp = memcmp(&redirect_tor_hosts[mid], &key, sizeof(key));
+        if (cmp == 0)
+            return 1;
+        else if (cmp < 0)
+            lo = mid + 1;
+        else
+            hi = mid - 1;
+    }
+    return 0;
+}
+
+// IPv4-mapped IPv6 addresses like ::ffff:10.1.2.3 are checked as IPv4, as in IpPrefixTrie.java
+static uint8_t normalize_mapped_ipv4(uint8_t *addr) {
+    if (!IN6_IS_ADDR_V4MAPPED((const struct in6_addr *) addr))
+        return 6;
+    memmove(addr, addr + 12, 4);
+    return 4;
+}
+
+static int is_bound_ip(uint8_t version, const uint8_t *addr) {
+    if (bound_ips_count == 0)
+        return 0;
+
+    time_t now = time(NULL);
+    size_t length = version == 4 ? 4 : 16;
+    for (int i = 0; i < bound_ips_count; i++)
+        if (bound_ips[i].version == version && bound_ips[i].expires > now &&
+            memcmp(bound_ips[i].addr, addr, length) == 0)
+            return 1;
+    return 0;
+}
+
+static int find_bind_name(const int32_t *offsets, int count, const char *name) {
+    int lo = 0;
+    int hi = count - 1;
+    while (lo <= hi) {
+        int mid = (lo + hi) / 2;
+        int cmp = strcmp(redirect_bind_names + offsets[mid], name);
+        if (cmp == 0)
+            return 1;
+        else if (cmp < 0)
+            lo = mid + 1;
+        else
+            hi = mid - 1;
+    }
+    return 0;
+}
+
+// Same matching as DomainIpBindings.kt, *.example.com matches example.com and its subdomains
+int is_bind_host(const char *name) {
+    char domain[DNS_QNAME_MAX + 1];
+    size_t length = strlen(name);
+    if (length == 0 || length > DNS_QNAME_MAX)
+        return 0;
+    for (size_t i = 0; i <= length; i++)
+        domain[i] = (char) tolower((unsigned char) name[i]);
+    if (domain[length - 1] == '.')
+        domain[length - 1] = 0;
+
+    if (pthread_rwlock_rdlock(&redirect_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_rdlock failed");
+        return 0;
+    }
+
+    int found = 0;
+    if (redirect_rules != NULL) {
+        const int32_t *wildcards = redirect_bind_offsets + redirect_rules->bind_hosts;
+        int wildcards_count = redirect_rules->bind_wildcards;
+        found = find_bind_name(redirect_bind_offsets, redirect_rules->bind_hosts, domain);
+
+        const char *suffix = wildcards_count > 0 ? domain : NULL;
+        while (!found && suffix != NULL) {
+            found = find_bind_name(wildcards, wildcards_count, suffix);
+            suffix = strchr(suffix, '.');
+            if (suffix != NULL)
+                suffix++;
+        }
+    }
+
+    pthread_rwlock_unlock(&redirect_lock);
+
+    return found;
+}
+
+// Routes the IP like the Tor hosts from the rules until it expires or the hosts change
+void bind_ip(uint8_t version, const uint8_t *addr, uint32_t ttl) {
+    if (ttl == 0)
+        ttl = BOUND_IP_TTL_DEFAULT;
+    else if (ttl < BOUND_IP_TTL_MIN)
+        ttl = BOUND_IP_TTL_MIN;
+    else if (ttl > BOUND_IP_TTL_MAX)
+        ttl = BOUND_IP_TTL_MAX;
+    time_t expires = time(NULL) + ttl;
+    uint8_t normalized[16];
+    if (version == 6) {
+        memcpy(normalized, addr, sizeof(normalized));
+        version = normalize_mapped_ipv4(normalized);
+        addr = normalized;
+    }
+    size_t length = version == 4 ? 4 : 16;
+
+    if (pthread_rwlock_wrlock(&redirect_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+        return;
+    }
+
+    int i = 0;
+    while (i < bound_ips_count &&
+           !(bound_ips[i].version == version && memcmp(bound_ips[i].addr, addr, length) == 0))
+        i++;
+
+    if (i == bound_ips_count) {
+        // The oldest entry is replaced when the table is full
+        i = bound_ips_next;
+        bound_ips_next = (bound_ips_next + 1) % BOUND_IPS_MAX;
+        if (bound_ips_count < BOUND_IPS_MAX)
+            bound_ips_count++;
+        memset(&bound_ips[i], 0, sizeof(struct bound_ip));
+        bound_ips[i].version = version;
+        memcpy(bound_ips[i].addr, addr, length);
+    }
+    if (bound_ips[i].expires < expires)
+        bound_ips[i].expires = expires;
+
+    pthread_rwlock_unlock(&redirect_lock);
+}
+
+static int32_t get_uid_action(int uid) {
+    int lo = 0;
+    int hi = redirect_rules->uids - 1;
+    while (lo <= hi) {
+        int mid = (lo + hi) / 2;
+        if (redirect_uids[mid].uid == uid)
+            return redirect_uids[mid].action;
+        else if (redirect_uids[mid].uid < uid)
+            lo = mid + 1;
+        else
+            hi = mid - 1;
+    }
+    return -1;
+}
+
+static int decide_redirect(int proxy, int uid, uint8_t version, const uint8_t *addr, int dport) {
+    int32_t flags = redirect_rules->flags;
+
+    if (uid == redirect_rules->own_uid)
+        return 0;
+
+    if (version == 4 &&
+        (memcmp(addr, redirect_rules->itpd_addr, 4) == 0 ||
+         memcmp(addr, loopback_address, 4) == 0))
+        return 0;
+
+    if (proxy) {
+        if ((flags & REDIRECT_FLAG_FIX_TTL) && !(flags & REDIRECT_FLAG_USE_PROXY))
+            return 0;
+    } else if (flags & REDIRECT_FLAG_FIX_TTL)
+        return 0;
+
+    if ((flags & REDIRECT_FLAG_COMPATIBILITY_MODE) && uid == -1)
+        return 0;
+
+    if (!proxy &&
+        is_in_prefixes(redirect_tor_virtual, redirect_rules->tor_virtual, version, addr))
+        return 1;
+
+    if (((flags & REDIRECT_FLAG_BYPASS_LAN) || uid == redirect_rules->network_stack_uid) &&
+        is_in_prefixes(redirect_lan, redirect_rules->lan, version, addr))
+        return 0;
+
+    if (!proxy &&
+        (is_tor_host(version, addr) || is_bound_ip(version, addr) ||
+         is_in_prefixes(redirect_tor_nets, redirect_rules->tor_nets, version, addr)))
+        return (flags & REDIRECT_FLAG_ROUTE_ALL_THROUGH_TOR) ? 0 : 1;
+
+    if (uid == redirect_rules->ntp_uid && dport == redirect_rules->ntp_port)
+        return (flags & REDIRECT_FLAG_NTP_ALLOWED) ? 0 : 1;
+
+    int32_t action = get_uid_action(uid);
+
+    if (proxy)
+        return (action >= 0 && (action & REDIRECT_ACTION_BYPASS_PROXY)) ? 0 : 1;
+
+    if (action >= 0 && (action & REDIRECT_ACTION_TOR_RULE))
+        return (action & REDIRECT_ACTION_TOR) ? 1 : 0;
+
+    return (flags & REDIRECT_FLAG_ROUTE_ALL_THROUGH_TOR) ? 1 : 0;
+}
+
+// Returns 1 to redirect, 0 to connect directly or -1 if the rules are not loaded
+int get_redirect_decision(int proxy, int uid, const char *daddr, int dport) {
+    if (daddr == NULL)
+        return 0;
+
+    uint8_t addr[16];
+    uint8_t version;
+    if (inet_pton(AF_INET, daddr, addr) == 1)
+        version = 4;
+    else if (inet_pton(AF_INET6, daddr, addr) == 1)
+        version = normalize_mapped_ipv4(addr);
+    else
+        return -1;
+
+    if (pthread_rwlock_rdlock(&redirect_lock)) {
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_rdlock failed");
+        return -1;
+    }
+
+    int decision = -1;
+    if (redirect_rules != NULL)
+        decision = decide_redirect(proxy, uid, version, addr, dport);
+
+    pthread_rwlock_unlock(&redirect_lock);
+
+    return decision;
+}
@@ -21,6 +21,227 @@
 
 #include "invizible.h"
 
+static int is_icmp_protocol(uint8_t protocol) {
+    return protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6;
+}
+
+static uint32_t hash_bytes(uint32_t hash, const void *data, size_t length) {
+    const uint8_t *bytes = (const uint8_t *) data;
+    for (size_t i = 0; i < length; i++) {
+        hash ^= bytes[i];
+        hash *= 16777619u;
+    }
+    return hash;
+}
+
+// ICMP sessions use the echo id as the source port
+static uint32_t get_session_bucket(uint8_t protocol, int version,
+                                   const void *saddr, const void *daddr,
+                                   __be16 sport, __be16 dport) {
+    uint8_t key[2] = {(uint8_t) (is_icmp_protocol(protocol) ? IPPROTO_ICMP : protocol),
+                      (uint8_t) version};
+    size_t length = (version == 4 ? 4 : 16);
+
+    uint32_t hash = hash_bytes(2166136261u, key, sizeof(key));
+    hash = hash_bytes(hash, saddr, length);
+    hash = hash_bytes(hash, daddr, length);
+    hash = hash_bytes(hash, &sport, sizeof(sport));
+    hash = hash_bytes(hash, &dport, sizeof(dport));
+
+    return hash & (SESSION_INDEX_SIZE - 1);
+}
+
+static uint32_t get_bucket(const struct ng_session *s) {
+    if (is_icmp_protocol(s->protocol))
+        return get_session_bucket(s->protocol, s->icmp.version,
+                                  &s->icmp.saddr, &s->icmp.daddr, s->icmp.id, 0);
+    else if (s->protocol == IPPROTO_UDP)
+        return get_session_bucket(s->protocol, s->udp.version,
+                                  &s->udp.saddr, &s->udp.daddr, s->udp.source, s->udp.dest);
+    else
+        return get_session_bucket(s->protocol, s->tcp.version,
+                                  &s->tcp.saddr, &s->tcp.daddr, s->tcp.source, s->tcp.dest);
+}
+
+static int is_session_match(const struct ng_session *s, uint8_t protocol, int version,
+                            const void *saddr, const void *daddr,
+                            __be16 sport, __be16 dport) {
+    size_t length = (version == 4 ? 4 : 16);
+
+    if (is_icmp_protocol(protocol))
+        return is_icmp_protocol(s->protocol) &&
+               !s->icmp.stop && s->icmp.version == version && s->icmp.id == sport &&
+               memcmp(&s->icmp.saddr, saddr, length) == 0 &&
+               memcmp(&s->icmp.daddr, daddr, length) == 0;
+    else if (protocol == IPPROTO_UDP)
+        return s->protocol == IPPROTO_UDP &&
+               s->udp.version == version && s->udp.source == sport && s->udp.dest == dport &&
+               memcmp(&s->udp.saddr, saddr, length) == 0 &&
+               memcmp(&s->udp.daddr, daddr, length) == 0;
+    else
+        return s->protocol == IPPROTO_TCP &&
+               s->tcp.version == version && s->tcp.source == sport && s->tcp.dest == dport &&
+               memcmp(&s->tcp.saddr, saddr, length) == 0 &&
+               memcmp(&s->tcp.daddr, daddr, length) == 0;
+}
+
+struct ng_session *find_session(const struct context *ctx, uint8_t protocol, int version,
+                                const void *saddr, const void *daddr,
+                                __be16 sport, __be16 dport) {
+    struct ng_session *s =
+            ctx->session_index[get_session_bucket(protocol, version, saddr, daddr, sport, dport)];
+    while (s != NULL && !is_session_match(s, protocol, version, saddr, daddr, sport, dport))
+        s = s->index_next;
+    return s;
+}
+
+static int is_session_active(const struct ng_session *s) {
+    if (is_icmp_protocol(s->protocol))
+        return !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.state == UDP_ACTIVE;
+    else if (s->protocol == IPPROTO_TCP)
+        return s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE;
+    return 0;
+}
+
+static void count_session(struct context *ctx, const struct ng_session *s, int delta) {
+    if (is_icmp_protocol(s->protocol))
+        ctx->icmp_sessions += delta;
+    else if (s->protocol == IPPROTO_UDP)
+        ctx->udp_sessions += delta;
+    else if (s->protocol == IPPROTO_TCP)
+        ctx->tcp_sessions += delta;
+}
+
+static void update_session_count(struct context *ctx, struct ng_session *s) {
+    uint8_t active = (uint8_t) is_session_active(s);
+    if (active != s->counted) {
+        count_session(ctx, s, active ? 1 : -1);
+        s->counted = active;
+    }
+}
+
+// Time of the next check_*_session call that can change the session, 0 if it is due now
+static time_t get_session_due(const struct ng_session *s, int sessions, int maxsessions) {
+    if (is_icmp_protocol(s->protocol)) {
+        if (s->icmp.stop)
+            return 0;
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+
+    } else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE)
+            return s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+        if (s->udp.state == UDP_FINISHING || s->udp.sent || s->udp.received)
+            return 0;
+        return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+
+    } else if (s->protocol == IPPROTO_TCP) {
+        if (s->tcp.state == TCP_CLOSING || (s->tcp.state == TCP_CLOSE && (s->tcp.sent || s->tcp.received)))
+            return 0;
+        if (s->tcp.state == TCP_CLOSE)
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+        return s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+    }
+
+    return 0;
+}
+
+static void link_wheel(struct context *ctx, struct ng_session *s) {
+    struct ng_session **slot = &ctx->session_wheel[s->due & (SESSION_WHEEL_SIZE - 1)];
+    s->wheel_next = *slot;
+    if (*slot != NULL)
+        (*slot)->wheel_pprev = &s->wheel_next;
+    s->wheel_pprev = slot;
+    *slot = s;
+}
+
+static void unlink_wheel(struct ng_session *s) {
+    if (s->wheel_pprev == NULL)
+        return;
+    *s->wheel_pprev = s->wheel_next;
+    if (s->wheel_next != NULL)
+        s->wheel_next->wheel_pprev = s->wheel_pprev;
+    s->wheel_next = NULL;
+    s->wheel_pprev = NULL;
+}
+
+static void schedule_session(struct context *ctx, struct ng_session *s,
+                             int sessions, int maxsessions, time_t min_time) {
+    unlink_wheel(s);
+    s->due = get_session_due(s, sessions, maxsessions);
+    if (s->due < min_time)
+        s->due = min_time;
+    link_wheel(ctx, s);
+}
+
+void touch_session(struct context *ctx, struct ng_session *s) {
+    if (s->changed_pprev != NULL)
+        return;
+    s->changed_next = ctx->session_changed;
+    if (ctx->session_changed != NULL)
+        ctx->session_changed->changed_pprev = &s->changed_next;
+    s->changed_pprev = &ctx->session_changed;
+    ctx->session_changed = s;
+}
+
+static void touch_all_sessions(struct context *ctx) {
+    struct ng_session *s = ctx->ng_session;
+    while (s != NULL) {
+        touch_session(ctx, s);
+        s = s->next;
+    }
+}
+
+void add_session(struct context *ctx, struct ng_session *s) {
+    s->prev = NULL;
+    s->next = ctx->ng_session;
+    if (ctx->ng_session != NULL)
+        ctx->ng_session->prev = s;
+    ctx->ng_session = s;
+
+    struct ng_session **bucket = &ctx->session_index[get_bucket(s)];
+    s->index_next = *bucket;
+    if (*bucket != NULL)
+        (*bucket)->index_pprev = &s->index_next;
+    s->index_pprev = bucket;
+    *bucket = s;
+
+    s->wheel_next = NULL;
+    s->wheel_pprev = NULL;
+    s->changed_next = NULL;
+    s->changed_pprev = NULL;
+    s->due = 0;
+    s->counted = 0;
+
+    touch_session(ctx, s);
+}
+
+// Unlinks the session, the caller frees it
+void remove_session(struct context *ctx, struct ng_session *s) {
+    if (s->prev == NULL)
+        ctx->ng_session = s->next;
+    else
+        s->prev->next = s->next;
+    if (s->next != NULL)
+        s->next->prev = s->prev;
+
+    *s->index_pprev = s->index_next;
+    if (s->index_next != NULL)
+        s->index_next->index_pprev = s->index_pprev;
+
+    unlink_wheel(s);
+
+    if (s->changed_pprev != NULL) {
+        *s->changed_pprev = s->changed_next;
+        if (s->changed_next != NULL)
+            s->changed_next->changed_pprev = s->changed_pprev;
+    }
+
+    if (s->counted)
+        count_session(ctx, s, -1);
+}
+
 void clear(struct context *ctx) {
     struct ng_session *s = ctx->ng_session;
     while (s != NULL) {
@@ -29,11 +250,119 @@ void clear(struct context *ctx) {
                         s->socket, errno, strerror(errno));
         if (s->protocol == IPPROTO_TCP)
             clear_tcp_data(&s->tcp);
+        else if (s->protocol == IPPROTO_UDP)
+            clear_udp_data(&s->udp);
         struct ng_session *p = s;
         s = s->next;
         ng_free(p, __FILE__, __LINE__);
     }
     ctx->ng_session = NULL;
+
+    memset(ctx->session_index, 0, sizeof(ctx->session_index));
+    memset(ctx->session_wheel, 0, sizeof(ctx->session_wheel));
+    ctx->session_changed = NULL;
+    ctx->icmp_sessions = 0;
+    ctx->udp_sessions = 0;
+    ctx->tcp_sessions = 0;
+    ctx->scheduled_sessions = 0;
+}
+
+// Updates epoll events, counters and check times of the sessions changed since the last call
+static int monitor_changed_sessions(const struct arguments *args, int epoll_fd,
+                                    int sessions, int maxsessions) {
+    struct context *ctx = args->ctx;
+    int recheck = 0;
+    time_t now = time(NULL);
+    if (now < ctx->wheel_time)
+        now = ctx->wheel_time;
+
+    struct ng_session *s = ctx->session_changed;
+    ctx->session_changed = NULL;
+    while (s != NULL) {
+        struct ng_session *next = s->changed_next;
+        s->changed_next = NULL;
+        s->changed_pprev = NULL;
+
+        // Sessions waiting for the send window or buffer stay changed until the next iteration
+        if (s->protocol == IPPROTO_TCP && s->socket >= 0 &&
+            monitor_tcp_session(args, s, epoll_fd)) {
+            recheck = 1;
+            touch_session(ctx, s);
+        }
+
+        update_session_count(ctx, s);
+        schedule_session(ctx, s, sessions, maxsessions, now);
+
+        s = next;
+    }
+
+    return recheck;
+}
+
+static void check_due_sessions(const struct arguments *args, time_t now,
+                               int sessions, int maxsessions) {
+    struct context *ctx = args->ctx;
+
+    // Visit every slot once if the clock was changed
+    time_t from = ctx->wheel_time;
+    if (from > now) {
+        from = now - SESSION_WHEEL_SIZE + 1;
+        touch_all_sessions(ctx);
+    } else if (now - from >= SESSION_WHEEL_SIZE)
+        from = now - SESSION_WHEEL_SIZE + 1;
+
+    for (time_t t = from; t <= now; t++) {
+        struct ng_session **slot = &ctx->session_wheel[t & (SESSION_WHEEL_SIZE - 1)];
+        struct ng_session *s = *slot;
+        *slot = NULL;
+
+        while (s != NULL) {
+            struct ng_session *next = s->wheel_next;
+            s->wheel_next = NULL;
+            s->wheel_pprev = NULL;
+
+            if (s->due > now) {
+                // Later round of the wheel
+                link_wheel(ctx, s);
+                s = next;
+                continue;
+            }
+
+            int del = 0;
+            if (is_icmp_protocol(s->protocol))
+                del = check_icmp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_UDP)
+                del = check_udp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_TCP)
+                del = check_tcp_session(args, s, sessions, maxsessions);
+
+            if (del) {
+                remove_session(ctx, s);
+                if (s->protocol == IPPROTO_TCP)
+                    clear_tcp_data(&s->tcp);
+                else if (s->protocol == IPPROTO_UDP)
+                    clear_udp_data(&s->udp);
+                ng_free(s, __FILE__, __LINE__);
+            } else {
+                update_session_count(ctx, s);
+                schedule_session(ctx, s, sessions, maxsessions, now + 1);
+                if (s->protocol == IPPROTO_TCP)
+                    touch_session(ctx, s);
+            }
+
+            s = next;
+        }
+    }
+
+    ctx->wheel_time = now;
+}
+
+// Seconds until the next occupied wheel slot
+static int get_wheel_timeout(const struct context *ctx, time_t now) {
+    for (int i = 1; i <= SESSION_WHEEL_SIZE; i++)
+        if (ctx->session_wheel[(now + i) & (SESSION_WHEEL_SIZE - 1)] != NULL)
+            return i;
+    return EPOLL_TIMEOUT;
 }
 
 void *handle_events(void *a) {
@@ -53,9 +382,16 @@ void *handle_events(void *a) {
                     rlim.rlim_cur, rlim.rlim_max, maxsessions);
     }
 
+    init_tun_batch();
+
     // Terminate existing sessions not allowed anymore
     check_allowed(args);
 
+    // Schedule existing sessions
+    args->ctx->wheel_time = time(NULL);
+    args->ctx->scheduled_sessions = 0;
+    touch_all_sessions(args->ctx);
+
     // Open epoll file
     int epoll_fd = epoll_create(1);
     if (epoll_fd < 0) {
@@ -94,27 +430,21 @@ void *handle_events(void *a) {
         int recheck = 0;
         int timeout = EPOLL_TIMEOUT;
 
+        // Timeouts get shorter with more sessions, so the planned checks can be too late
+        struct context *ctx = args->ctx;
+        int sessions = ctx->icmp_sessions + ctx->udp_sessions + ctx->tcp_sessions;
+        if (sessions > ctx->scheduled_sessions + maxsessions / 10) {
+            touch_all_sessions(ctx);
+            ctx->scheduled_sessions = sessions;
+        } else if (sessions < ctx->scheduled_sessions)
+            ctx->scheduled_sessions = sessions;
+
         // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
-        while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
-            }
-            s = s->next;
-        }
-        int sessions = isessions + usessions + tsessions;
+        recheck = monitor_changed_sessions(args, epoll_fd, sessions, maxsessions);
+        int isessions = ctx->icmp_sessions;
+        int usessions = ctx->udp_sessions;
+        int tsessions = ctx->tcp_sessions;
+        sessions = isessions + usessions + tsessions;
 
         // Check sessions
         long long ms = get_ms();
@@ -122,52 +452,17 @@ void *handle_events(void *a) {
             last_check = ms;
 
             time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
-                int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
-
-                if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
-
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    ng_free(c, __FILE__, __LINE__);
-                } else {
-                    sl = s;
-                    s = s->next;
-                }
+            check_due_sessions(args, now, sessions, maxsessions);
+            timeout = get_wheel_timeout(ctx, now);
+
+            // Pass traffic counters to Java
+            int usage_timeout = get_usage_timeout(now);
+            if (usage_timeout == 0) {
+                flush_usage(args);
+                usage_timeout = get_usage_timeout(now);
             }
+            if (usage_timeout < timeout)
+                timeout = usage_timeout;
         } else {
             recheck = 1;
             log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
@@ -205,6 +500,9 @@ void *handle_events(void *a) {
 
             int error = 0;
 
+            // Packets to tun are written after all events are handled
+            begin_tun_batch();
+
             for (int i = 0; i < ready; i++) {
                 if (ev[i].data.ptr == &ev_pipe) {
                     // Check pipe
@@ -224,13 +522,8 @@ void *handle_events(void *a) {
                                 (ev[i].events & EPOLLERR) != 0,
                                 (ev[i].events & EPOLLHUP) != 0);
 
-                    int count = 0;
-                    while (count < TUN_YIELD && !error && !args->ctx->stopping &&
-                           is_readable(args->tun)) {
-                        count++;
-                        if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
-                            error = 1;
-                    }
+                    if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
+                        error = 1;
 
                 } else {
                     // Check downstream
@@ -264,6 +557,8 @@ void *handle_events(void *a) {
                     break;
             }
 
+            flush_tun_batch(args);
+
             if (pthread_mutex_unlock(&args->ctx->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
@@ -272,15 +567,20 @@ void *handle_events(void *a) {
         }
     }
 
+    // Pass the remaining traffic counters
+    flush_usage(args);
+
+    clear_tun_batch(args);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
                     "epoll close error %d: %s", errno, strerror(errno));
 
+    log_android(ANDROID_LOG_WARN, "Stopped events tun=%d", args->tun);
+
     // Cleanup
     ng_free(args, __FILE__, __LINE__);
-
-    log_android(ANDROID_LOG_WARN, "Stopped events tun=%d", args->tun);
     return NULL;
 }
 
@@ -288,7 +588,6 @@ void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    struct ng_session *l = NULL;
     struct ng_session *s = args->ctx->ng_session;
     while (s != NULL) {
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
@@ -306,6 +605,7 @@ void check_allowed(const struct arguments *args) {
                         source, 0, dest, 0, "", s->icmp.uid, 0);
                 if (is_address_allowed(args, objPacket) == NULL) {
                     s->icmp.stop = 1;
+                    touch_session(args->ctx, s);
                     log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
                                 s->socket, s->icmp.uid);
                 }
@@ -326,19 +626,16 @@ void check_allowed(const struct arguments *args) {
                         source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
                 if (is_address_allowed(args, objPacket) == NULL) {
                     s->udp.state = UDP_FINISHING;
+                    touch_session(args->ctx, s);
                     log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
                                 s->socket, s->udp.uid);
                 }
             } else if (s->udp.state == UDP_BLOCKED) {
                 log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
 
-                if (l == NULL)
-                    args->ctx->ng_session = s->next;
-                else
-                    l->next = s->next;
-
                 struct ng_session *c = s;
                 s = s->next;
+                remove_session(args->ctx, c);
                 ng_free(c, __FILE__, __LINE__);
                 continue;
             }
@@ -358,6 +655,7 @@ void check_allowed(const struct arguments *args) {
                         source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid, 0);
                 if (is_address_allowed(args, objPacket) == NULL) {
                     write_rst(args, &s->tcp);
+                    touch_session(args->ctx, s);
                     log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
                                 s->socket, s->tcp.uid);
                 }
@@ -365,7 +663,6 @@ void check_allowed(const struct arguments *args) {
 
         }
 
-        l = s;
         s = s->next;
     }
 }
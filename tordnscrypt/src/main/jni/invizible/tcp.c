@@ -110,8 +110,6 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
 
     if ((s->tcp.state == TCP_CLOSING || s->tcp.state == TCP_CLOSE) &&
         (s->tcp.sent || s->tcp.received)) {
-        account_usage(args, s->tcp.version, IPPROTO_TCP,
-                      dest, ntohs(s->tcp.dest), s->tcp.uid, s->tcp.sent, s->tcp.received);
         s->tcp.sent = 0;
         s->tcp.received = 0;
     }
@@ -247,6 +245,7 @@ void check_tcp_socket(const struct arguments *args,
                       const struct epoll_event *ev,
                       const int epoll_fd) {
     struct ng_session *s = (struct ng_session *) ev->data.ptr;
+    touch_session(args->ctx, s);
 
     int oldstate = s->tcp.state;
     uint32_t oldlocal = s->tcp.local_seq;
@@ -301,12 +300,12 @@ void check_tcp_socket(const struct arguments *args,
 
                     bool redirect_to_tor = false;
                     if (*tor_socks5_addr && tor_socks5_port) {
-                        redirect_to_tor = is_redirect_to_tor(args, s->tcp.uid, dest, s->tcp.dest);
+                        redirect_to_tor = is_redirect_to_tor(args, s->tcp.uid, dest, ntohs(s->tcp.dest));
                     }
 
                     bool redirect_to_proxy = false;
                     if (*proxy_socks5_addr && proxy_socks5_port) {
-                        redirect_to_proxy = is_redirect_to_proxy(args, s->tcp.uid, dest, s->tcp.dest);
+                        redirect_to_proxy = is_redirect_to_proxy(args, s->tcp.uid, dest, ntohs(s->tcp.dest));
                     }
 
                     if (redirect_to_tor || redirect_to_proxy) {
@@ -408,7 +407,7 @@ void check_tcp_socket(const struct arguments *args,
                 bool redirect_to_tor = false;
 
                 if (*tor_socks5_addr && tor_socks5_port) {
-                    redirect_to_tor = is_redirect_to_tor(args, s->tcp.uid, dest, s->tcp.dest);
+                    redirect_to_tor = is_redirect_to_tor(args, s->tcp.uid, dest, ntohs(s->tcp.dest));
                 }
 
                 if (*proxy_socks5_addr && proxy_socks5_port && !redirect_to_tor) {
@@ -515,6 +514,8 @@ void check_tcp_socket(const struct arguments *args,
                         buffer_size -= sent;
                         s->tcp.sent += sent;
                         s->tcp.forward->sent += sent;
+                        account_usage(args, s->tcp.uid, IPPROTO_TCP, s->tcp.route,
+                                      (uint32_t) sent, 0);
 
                         if (s->tcp.forward->len == s->tcp.forward->sent) {
                             s->tcp.remote_seq = s->tcp.forward->seq + s->tcp.forward->sent;
@@ -611,6 +612,8 @@ void check_tcp_socket(const struct arguments *args,
                         // Socket read data
                         log_android(ANDROID_LOG_DEBUG, "%s recv bytes %d", session, bytes);
                         s->tcp.received += bytes;
+                        account_usage(args, s->tcp.uid, IPPROTO_TCP, s->tcp.route,
+                                      0, (uint32_t) bytes);
 
                         // Process DNS response
                         if (ntohs(s->tcp.dest) == 53 && bytes > 2) {
@@ -651,16 +654,13 @@ jboolean handle_tcp(const struct arguments *args,
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_TCP &&
-             cur->tcp.version == version &&
-             cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-             (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                             cur->tcp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, IPPROTO_TCP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            tcphdr->source, tcphdr->dest);
+    if (cur != NULL)
+        touch_session(args->ctx, cur);
 
     // Prepare logging
     char source[INET6_ADDRSTRLEN + 1];
@@ -770,6 +770,7 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.dest = tcphdr->dest;
             s->tcp.state = TCP_LISTEN;
             s->tcp.socks5 = SOCKS5_NONE;
+            s->tcp.route = USAGE_ROUTE_DIRECT;
             s->tcp.forward = NULL;
             s->next = NULL;
 
@@ -791,6 +792,7 @@ jboolean handle_tcp(const struct arguments *args,
                 write_rst(args, &s->tcp);
                 write_connection_unreach(args, s, EHOSTDOWN);
 
+                forget_tun_session(&s->tcp);
                 ng_free(s, __FILE__, __LINE__);
                 return 0;
             }
@@ -816,8 +818,7 @@ jboolean handle_tcp(const struct arguments *args,
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args->ctx, s);
         } else {
             log_android(ANDROID_LOG_WARN, "%s unknown session", packet);
 
@@ -1056,7 +1057,7 @@ void queue_tcp(const struct arguments *args,
 }
 
 int open_tcp_socket(const struct arguments *args,
-                    const struct tcp_session *cur, struct allowed *redirect) {
+                    struct tcp_session *cur, struct allowed *redirect) {
     int sock;
     int version;
     if (redirect == NULL) {
@@ -1106,17 +1107,18 @@ int open_tcp_socket(const struct arguments *args,
 
         bool redirect_to_tor = false;
         if (*tor_socks5_addr && tor_socks5_port) {
-            redirect_to_tor = is_redirect_to_tor(args, cur->uid, dest, cur->dest);
+            redirect_to_tor = is_redirect_to_tor(args, cur->uid, dest, ntohs(cur->dest));
         }
 
         bool redirect_to_proxy = false;
         if (*proxy_socks5_addr && proxy_socks5_port) {
-            redirect_to_proxy = is_redirect_to_proxy(args,  cur->uid, dest, cur->dest);
+            redirect_to_proxy = is_redirect_to_proxy(args,  cur->uid, dest, ntohs(cur->dest));
         }
 
         if (redirect_to_tor) {
             log_android(ANDROID_LOG_INFO, "TCP%d SOCKS5 to %s/%u",
                         version, tor_socks5_addr, tor_socks5_port);
+            cur->route = USAGE_ROUTE_TOR;
 
             if (version == 4) {
                 addr4.sin_family = AF_INET;
@@ -1134,6 +1136,7 @@ int open_tcp_socket(const struct arguments *args,
         } else if (redirect_to_proxy) {
             log_android(ANDROID_LOG_INFO, "TCP%d SOCKS5 to %s/%u",
                         version, proxy_socks5_addr, proxy_socks5_port);
+            cur->route = USAGE_ROUTE_PROXY;
 
             if (version == 4) {
                 addr4.sin_family = AF_INET;
@@ -1358,23 +1361,18 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                 ntohl(tcp->ack_seq) - cur->remote_start,
                 datalen);
 
-    ssize_t res = write(args->tun, buffer, len);
+    // Pure ACKs can be superseded by a later ACK of the same batch
+    int pure_ack = (ack && !syn && !fin && !rst && !datalen);
+    ssize_t res = write_tun(args, buffer, len, cur->uid,
+                            IPPROTO_TCP, cur, pure_ack, cur->remote_seq);
 
     if (res < 0) {
-        log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d error %d: %s",
-                    (tcp->syn ? " SYN" : ""),
-                    (tcp->ack ? " ACK" : ""),
-                    (tcp->fin ? " FIN" : ""),
-                    (tcp->rst ? " RST" : ""),
-                    datalen,
-                    errno, strerror((errno)));
-    }
-
-
-    ng_free(buffer, __FILE__, __LINE__);
-
-    if (res != len) {
-        log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
+        log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d failed",
+                    (syn ? " SYN" : ""),
+                    (ack ? " ACK" : ""),
+                    (fin ? " FIN" : ""),
+                    (rst ? " RST" : ""),
+                    datalen);
         return -1;
     }
 
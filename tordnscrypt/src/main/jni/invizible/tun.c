@@ -0,0 +1,207 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+
+#include "invizible.h"
+
+// Batched tun reads and writes of the events loop
+// The tun is non-blocking, all packets are read until EAGAIN into a preallocated pool.
+// Packets to tun are queued while the events of one epoll wakeup are handled
+// and written at once before the lock is released, superseded pure ACKs are dropped.
+// A failed queued write fails its session the same way a failed direct write does.
+
+static uint8_t *tun_pool = NULL; // TUN_BATCH packets of get_mtu() bytes
+static size_t tun_pool_length[TUN_BATCH];
+
+static struct tun_packet tun_queue[TUN_QUEUE];
+static int tun_queued = 0;
+static int tun_batching = 0;
+
+static long tun_writes = 0;
+static long tun_coalesced = 0;
+
+void init_tun_batch() {
+    if (tun_pool == NULL)
+        tun_pool = ng_malloc((size_t) TUN_BATCH * get_mtu(), "tun pool");
+    tun_queued = 0;
+    tun_batching = 0;
+    tun_writes = 0;
+    tun_coalesced = 0;
+}
+
+void clear_tun_batch(const struct arguments *args) {
+    flush_tun_batch(args);
+
+    log_android(ANDROID_LOG_WARN, "Tun writes %ld coalesced ACKs %ld", tun_writes, tun_coalesced);
+
+    if (tun_pool != NULL) {
+        ng_free(tun_pool, __FILE__, __LINE__);
+        tun_pool = NULL;
+    }
+}
+
+int read_tun_batch(const struct arguments *args) {
+    int count = 0;
+    while (count < TUN_BATCH) {
+        uint8_t *buffer = tun_pool + (size_t) count * get_mtu();
+        ssize_t length = read(args->tun, buffer, get_mtu());
+        if (length < 0) {
+            if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR)
+                // Retry on the next wakeup
+                break;
+
+            log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
+                        args->tun, errno, strerror(errno));
+            report_exit(args, "tun %d read error %d: %s",
+                        args->tun, errno, strerror(errno));
+            return -1;
+        } else if (length == 0) {
+            log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
+            report_exit(args, "tun %d empty read", args->tun);
+            return -1;
+        }
+
+        tun_pool_length[count++] = (size_t) length;
+    }
+
+    log_android(ANDROID_LOG_DEBUG, "tun %d read %d packets", args->tun, count);
+    return count;
+}
+
+uint8_t *get_tun_packet(int index, size_t *length) {
+    *length = tun_pool_length[index];
+    return tun_pool + (size_t) index * get_mtu();
+}
+
+static ssize_t send_tun(const struct arguments *args, const struct tun_packet *packet) {
+    ssize_t res;
+    int retry = 0;
+    while ((res = write(args->tun, packet->buffer, packet->length)) < 0 &&
+           (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR) &&
+           retry++ < TUN_WRITE_RETRY) {
+        // The tun is non-blocking because of the batched reads
+        struct pollfd p;
+        p.fd = args->tun;
+        p.events = POLLOUT;
+        p.revents = 0;
+        poll(&p, 1, TUN_WRITE_TIMEOUT);
+    }
+
+    if (res < 0)
+        log_android(ANDROID_LOG_ERROR, "tun %d write error %d: %s",
+                    args->tun, errno, strerror(errno));
+    else {
+        tun_writes++;
+
+        // Capture packet to tun
+        if (res == packet->length && is_pcap_enabled())
+            write_pcap(packet->buffer, packet->length, packet->uid);
+    }
+
+    if (res != packet->length) {
+        log_android(ANDROID_LOG_ERROR, "tun write %d/%d", res, packet->length);
+        return -1;
+    }
+
+    return res;
+}
+
+void begin_tun_batch() {
+    tun_batching = 1;
+}
+
+static void fail_tun_session(const struct tun_packet *packet) {
+    if (packet->session == NULL)
+        return;
+
+    // Sessions are only passed as const to the write functions
+    if (packet->protocol == IPPROTO_TCP) {
+        struct tcp_session *tcp = (struct tcp_session *) packet->session;
+        if (tcp->state != TCP_CLOSE)
+            tcp->state = TCP_CLOSING;
+    } else if (packet->protocol == IPPROTO_UDP)
+        ((struct udp_session *) packet->session)->state = UDP_FINISHING;
+    else if (packet->protocol == IPPROTO_ICMP || packet->protocol == IPPROTO_ICMPV6)
+        ((struct icmp_session *) packet->session)->stop = 1;
+}
+
+void flush_tun_batch(const struct arguments *args) {
+    if (tun_queued)
+        log_android(ANDROID_LOG_DEBUG, "tun %d flush %d packets", args->tun, tun_queued);
+
+    for (int i = 0; i < tun_queued; i++)
+        if (tun_queue[i].buffer != NULL) {
+            if (send_tun(args, &tun_queue[i]) < 0)
+                fail_tun_session(&tun_queue[i]);
+            ng_free(tun_queue[i].buffer, __FILE__, __LINE__);
+            tun_queue[i].buffer = NULL;
+        }
+
+    tun_queued = 0;
+    tun_batching = 0;
+}
+
+void forget_tun_session(const void *session) {
+    // The session is freed before the flush, its queued packets are still written
+    for (int i = 0; i < tun_queued; i++)
+        if (tun_queue[i].session == session)
+            tun_queue[i].session = NULL;
+}
+
+ssize_t write_tun(const struct arguments *args, uint8_t *buffer, size_t length, jint uid,
+                  uint8_t protocol, const void *session, int pure_ack, uint32_t ack) {
+    struct tun_packet packet;
+    packet.buffer = buffer;
+    packet.length = length;
+    packet.uid = uid;
+    packet.protocol = protocol;
+    packet.session = session;
+    packet.pure_ack = pure_ack;
+    packet.ack = ack;
+
+    if (!tun_batching) {
+        ssize_t res = send_tun(args, &packet);
+        ng_free(buffer, __FILE__, __LINE__);
+        return res;
+    }
+
+    // A pure ACK makes a queued pure ACK of the same session with a lower number redundant,
+    // duplicate ACKs are kept, the app could rely on them for fast retransmit
+    if (pure_ack)
+        for (int i = tun_queued - 1; i >= 0; i--)
+            if (tun_queue[i].buffer != NULL && tun_queue[i].pure_ack &&
+                tun_queue[i].session == session) {
+                if (compare_u32(ack, tun_queue[i].ack) > 0) {
+                    ng_free(tun_queue[i].buffer, __FILE__, __LINE__);
+                    tun_queue[i].buffer = NULL;
+                    tun_coalesced++;
+                }
+                break;
+            }
+
+    if (tun_queued >= TUN_QUEUE) {
+        flush_tun_batch(args);
+        tun_batching = 1;
+    }
+
+    tun_queue[tun_queued++] = packet;
+
+    // Queued, a write error is reported to the session by the flush
+    return (ssize_t) length;
+}
@@ -26,6 +26,10 @@
 extern int own_uid;
 extern int tor_dns_port;
 
+void clear_udp_data(struct udp_session *cur) {
+    clear_dns_queries(cur);
+}
+
 int get_udp_timeout(const struct udp_session *u, int sessions, int maxsessions) {
     int timeout = (ntohs(u->dest) == 53 ? UDP_TIMEOUT_53 : UDP_TIMEOUT_ANY);
 
@@ -67,14 +71,13 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
             log_android(ANDROID_LOG_ERROR, "UDP close %d error %d: %s",
                         s->socket, errno, strerror(errno));
         s->socket = -1;
+        clear_udp_data(&s->udp);
 
         s->udp.time = time(NULL);
         s->udp.state = UDP_CLOSED;
     }
 
     if (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received)) {
-        account_usage(args, s->udp.version, IPPROTO_UDP,
-                      dest, ntohs(s->udp.dest), s->udp.uid, s->udp.sent, s->udp.received);
         s->udp.sent = 0;
         s->udp.received = 0;
     }
@@ -89,6 +92,7 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
 
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev) {
     struct ng_session *s = (struct ng_session *) ev->data.ptr;
+    touch_session(args->ctx, s);
 
     // Check socket error
     if (ev->events & EPOLLERR) {
@@ -110,7 +114,10 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
             s->udp.time = time(NULL);
 
             uint8_t *buffer = ng_malloc(s->udp.mss, "udp recv");
-            ssize_t bytes = recv(s->socket, buffer, s->udp.mss, 0);
+            struct sockaddr_storage from;
+            socklen_t fromlen = sizeof(from);
+            ssize_t bytes = recvfrom(s->socket, buffer, s->udp.mss, 0,
+                                     (struct sockaddr *) &from, &fromlen);
             if (bytes < 0) {
                 // Socket error
                 log_android(ANDROID_LOG_WARN, "UDP recv error %d: %s",
@@ -133,10 +140,17 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
                             bytes, dest, ntohs(s->udp.dest));
 
                 s->udp.received += bytes;
+                account_usage(args, s->udp.uid, IPPROTO_UDP, USAGE_ROUTE_DIRECT,
+                              0, (uint32_t) bytes);
 
                 // Process DNS response
-                if (ntohs(s->udp.dest) == 53)
+                if (ntohs(s->udp.dest) == 53) {
+                    int pending = take_dns_query(&s->udp, buffer, (size_t) bytes,
+                                                 (const struct sockaddr *) &from);
                     parse_dns_response(args, s, buffer, (size_t *) &bytes);
+                    if (pending)
+                        put_dns_cache(buffer, (size_t) bytes);
+                }
 
                 // Forward to tun
                 if (write_udp(args, &s->udp, buffer, (size_t) bytes) < 0)
@@ -171,16 +185,11 @@ int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint
     }*/
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->source, udphdr->dest);
 
     return (cur != NULL);
 }
@@ -227,12 +236,12 @@ void block_udp(const struct arguments *args,
     s->udp.source = udphdr->source;
     s->udp.dest = udphdr->dest;
     s->udp.state = UDP_BLOCKED;
+    s->udp.dns_queries = NULL;
     s->socket = -1;
 
     write_connection_unreach(args, s, EHOSTDOWN);
 
-    s->next = args->ctx->ng_session;
-    args->ctx->ng_session = s;
+    add_session(args->ctx, s);
 }
 
 jboolean handle_udp(const struct arguments *args,
@@ -249,16 +258,13 @@ jboolean handle_udp(const struct arguments *args,
     const size_t datalen = length - (data - pkt);
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->source, udphdr->dest);
+    if (cur != NULL)
+        touch_session(args->ctx, cur);
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -289,6 +295,11 @@ jboolean handle_udp(const struct arguments *args,
         return 0;
     }
 
+    // Answer repeated queries without a round trip to DNSCrypt or Tor
+    if (ntohs(udphdr->dest) == 53 && redirect != NULL &&
+        answer_dns_cache(args, pkt, payload, data, datalen, uid))
+        return 1;
+
     // Create new session if needed
     if (cur == NULL) {
         log_android(ANDROID_LOG_INFO, "UDP new session from %s/%u to %s/%u",
@@ -328,6 +339,7 @@ jboolean handle_udp(const struct arguments *args,
         s->udp.source = udphdr->source;
         s->udp.dest = udphdr->dest;
         s->udp.state = UDP_ACTIVE;
+        s->udp.dns_queries = NULL;
         s->next = NULL;
 
         // Open UDP socket
@@ -346,8 +358,7 @@ jboolean handle_udp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add udp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->ctx, s);
 
         cur = s;
     }
@@ -445,8 +456,16 @@ jboolean handle_udp(const struct arguments *args,
             cur->udp.state = UDP_FINISHING;
             return 0;
         }
-    } else
+    } else {
         cur->udp.sent += datalen;
+        account_usage(args, cur->udp.uid, IPPROTO_UDP, USAGE_ROUTE_DIRECT,
+                      datalen, 0);
+
+        if (ntohs(udphdr->dest) == 53 && redirect != NULL)
+            add_dns_query(&cur->udp, data, datalen,
+                          (rversion == 4 ? (const struct sockaddr *) &addr4
+                                         : (const struct sockaddr *) &addr6));
+    }
 
     return 1;
 }
@@ -607,17 +626,10 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                 "UDP sending to tun %d from %s/%u to %s/%u data %u",
                 args->tun, dest, ntohs(cur->dest), source, ntohs(cur->source), len);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write_tun(args, buffer, len, cur->uid, IPPROTO_UDP, cur, 0, 0);
 
     if (res < 0) {
-        log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
-    }
-
-
-    ng_free(buffer, __FILE__, __LINE__);
-
-    if (res != len) {
-        log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
+        log_android(ANDROID_LOG_WARN, "UDP write failed");
         return -1;
     }
 
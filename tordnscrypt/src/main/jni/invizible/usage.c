@@ -0,0 +1,137 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+
+#include "invizible.h"
+
+// Traffic counters by uid, protocol and route
+// Records are passed to ServiceVPN.accountUsage, layout is read by VpnUsageStore.java
+
+static struct usage_record usage_table[USAGE_TABLE_SIZE];
+static struct usage_record usage_batch[USAGE_TABLE_SIZE];
+static int usage_count = 0;
+static time_t usage_flush_time = 0;
+
+static jmethodID midAccountUsage = NULL;
+
+static inline int get_usage_slot(jint uid, uint8_t protocol, uint8_t route) {
+    uint32_t hash = (uint32_t) uid * 2654435761U;
+    hash ^= ((uint32_t) protocol << 8 | route) * 40503U;
+    return (int) (hash & (USAGE_TABLE_SIZE - 1));
+}
+
+static struct usage_record *get_usage_record(jint uid, uint8_t protocol, uint8_t route) {
+    int slot = get_usage_slot(uid, protocol, route);
+    while (usage_table[slot].used) {
+        struct usage_record *record = &usage_table[slot];
+        if (record->uid == uid && record->protocol == protocol && record->route == route)
+            return record;
+        slot = (slot + 1) & (USAGE_TABLE_SIZE - 1);
+    }
+
+    if (usage_count >= USAGE_TABLE_LIMIT)
+        return NULL;
+
+    struct usage_record *record = &usage_table[slot];
+    record->used = 1;
+    record->uid = uid;
+    record->protocol = protocol;
+    record->route = route;
+    usage_count++;
+
+    return record;
+}
+
+void account_usage(const struct arguments *args, jint uid, uint8_t protocol, uint8_t route,
+                   uint32_t sent, uint32_t received) {
+    struct usage_record *record = get_usage_record(uid, protocol, route);
+    if (record == NULL) {
+        // Table is full, pass it to Java before the next interval
+        flush_usage(args);
+        record = get_usage_record(uid, protocol, route);
+    }
+
+    if (sent) {
+        record->sent += sent;
+        record->sent_packets++;
+    }
+    if (received) {
+        record->received += received;
+        record->received_packets++;
+    }
+}
+
+void flush_usage(const struct arguments *args) {
+    usage_flush_time = time(NULL);
+    if (usage_count == 0)
+        return;
+
+#ifdef PROFILE_JNI
+    float mselapsed;
+    struct timeval start, end;
+    gettimeofday(&start, NULL);
+#endif
+
+    int count = 0;
+    for (int i = 0; i < USAGE_TABLE_SIZE; i++)
+        if (usage_table[i].used)
+            usage_batch[count++] = usage_table[i];
+
+    memset(usage_table, 0, sizeof(usage_table));
+    usage_count = 0;
+
+    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+    ng_add_alloc(clsService, "clsService");
+
+    const char *signature = "(Ljava/nio/ByteBuffer;I)V";
+    if (midAccountUsage == NULL)
+        midAccountUsage = jniGetMethodID(args->env, clsService, "accountUsage", signature);
+
+    // Java copies the records before returning, so the batch can be reused
+    jobject jbuffer = (*args->env)->NewDirectByteBuffer(
+            args->env, usage_batch, (jlong) (count * sizeof(struct usage_record)));
+    ng_add_alloc(jbuffer, "jbuffer");
+
+    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jbuffer, count);
+    jniCheckException(args->env);
+
+    (*args->env)->DeleteLocalRef(args->env, jbuffer);
+    (*args->env)->DeleteLocalRef(args->env, clsService);
+    ng_delete_alloc(jbuffer, __FILE__, __LINE__);
+    ng_delete_alloc(clsService, __FILE__, __LINE__);
+
+#ifdef PROFILE_JNI
+    gettimeofday(&end, NULL);
+    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
+                (end.tv_usec - start.tv_usec) / 1000.0;
+    if (mselapsed > PROFILE_JNI)
+        log_android(ANDROID_LOG_WARN, "flush_usage %f", mselapsed);
+#endif
+}
+
+// Seconds until the pending records are due, EPOLL_TIMEOUT if there are none
+int get_usage_timeout(time_t now) {
+    if (usage_count == 0)
+        return EPOLL_TIMEOUT;
+
+    time_t timeout = usage_flush_time + USAGE_FLUSH_INTERVAL - now;
+    if (timeout < 0)
+        return 0;
+    return (int) (timeout < EPOLL_TIMEOUT ? timeout : EPOLL_TIMEOUT);
+}
@@ -0,0 +1,506 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "replay.h"
+
+// JNI environment for running the engine without a JVM.
+// Objects are reference counted structs, field IDs are field indexes + 1,
+// ServiceVPN methods are answered from the policy table and counted.
+
+#define HOST_FIELDS_MAX 11
+
+struct host_object;
+
+struct host_class {
+    const char *name;
+    const char *const *fields; // name and signature pairs
+    int fields_count;
+    struct host_object *object;
+};
+
+struct host_object {
+    const struct host_class *cls;
+    int refs; // < 0 for objects that are never freed
+    char *string;
+    void *address;
+    jlong capacity;
+    jvalue values[HOST_FIELDS_MAX];
+};
+
+typedef jvalue (*host_handler)(struct host_object *self, va_list args);
+
+struct host_method {
+    const struct host_class *cls;
+    const char *name;
+    const char *signature;
+    host_handler handler;
+    long calls;
+};
+
+#define STRING "Ljava/lang/String;"
+
+// Keep the order of the fields in sync with the indexes below
+static const char *const packet_fields[] = {
+        "time", "J", "version", "I", "protocol", "I", "flags", STRING,
+        "saddr", STRING, "sport", "I", "daddr", STRING, "dport", "I",
+        "data", STRING, "uid", "I", "allowed", "Z"
+};
+#define PACKET_VERSION 1
+#define PACKET_PROTOCOL 2
+#define PACKET_DPORT 7
+#define PACKET_UID 9
+
+static const char *const allowed_fields[] = {"raddr", STRING, "rport", "I"};
+#define ALLOWED_RADDR 0
+#define ALLOWED_RPORT 1
+
+static struct host_object class_objects[6];
+
+static struct host_class classes[] = {
+        {"pan/alexander/tordnscrypt/vpn/service/ServiceVPN", NULL, 0, &class_objects[0]},
+        {"pan/alexander/tordnscrypt/vpn/Packet", packet_fields,
+                sizeof(packet_fields) / sizeof(char *) / 2, &class_objects[1]},
+        {"pan/alexander/tordnscrypt/vpn/Allowed", allowed_fields,
+                sizeof(allowed_fields) / sizeof(char *) / 2, &class_objects[2]},
+        {"java/lang/String", NULL, 0, &class_objects[3]},
+        {"java/nio/ByteBuffer", NULL, 0, &class_objects[4]},
+        {"android/os/Build$VERSION", NULL, 0, &class_objects[5]}
+};
+
+#define CLASS_SERVICE (&classes[0])
+#define CLASS_PACKET (&classes[1])
+#define CLASS_ALLOWED (&classes[2])
+#define CLASS_STRING (&classes[3])
+#define CLASS_BYTE_BUFFER (&classes[4])
+#define CLASS_VERSION (&classes[5])
+
+static struct host_object service = {CLASS_SERVICE, -1};
+
+static long objects_created = 0;
+static long objects_live = 0;
+static int native_exit_reported = 0;
+
+static long events_dns = 0;
+
+static uint64_t usage_sent[3];
+static uint64_t usage_received[3];
+
+static struct host_object *new_object(const struct host_class *cls) {
+    struct host_object *object = __real_malloc(sizeof(struct host_object));
+    memset(object, 0, sizeof(struct host_object));
+    object->cls = cls;
+    object->refs = 1;
+    objects_created++;
+    objects_live++;
+    return object;
+}
+
+static void retain(struct host_object *object) {
+    if (object != NULL && object->refs > 0)
+        object->refs++;
+}
+
+static void release(struct host_object *object) {
+    if (object == NULL || object->refs < 0 || --object->refs > 0)
+        return;
+
+    for (int i = 0; i < object->cls->fields_count; i++)
+        if (object->cls->fields[i * 2 + 1][0] == 'L')
+            release((struct host_object *) object->values[i].l);
+
+    __real_free(object->string); // strdup
+    __real_free(object);
+    objects_live--;
+}
+
+static struct host_object *new_string(const char *value) {
+    if (value == NULL)
+        return NULL;
+    struct host_object *object = new_object(CLASS_STRING);
+    object->string = strdup(value);
+    return object;
+}
+
+// ServiceVPN methods
+
+static jvalue handle_void(struct host_object *self, va_list args) {
+    jvalue result = {.j = 0};
+    return result;
+}
+
+static jvalue handle_true(struct host_object *self, va_list args) {
+    jvalue result = {.z = JNI_TRUE};
+    return result;
+}
+
+static jvalue handle_false(struct host_object *self, va_list args) {
+    jvalue result = {.z = JNI_FALSE};
+    return result;
+}
+
+static jvalue handle_native_exit(struct host_object *self, va_list args) {
+    struct host_object *reason = va_arg(args, struct host_object *);
+    fprintf(stderr, "Native exit: %s\n", reason == NULL ? "" : reason->string);
+    native_exit_reported = 1;
+    return handle_void(self, args);
+}
+
+static jvalue handle_is_domain_blocked(struct host_object *self, va_list args) {
+    struct host_object *name = va_arg(args, struct host_object *);
+    jvalue result = {.z = (jboolean) policy_is_domain_blocked(name->string)};
+    return result;
+}
+
+static jvalue handle_get_uid_q(struct host_object *self, va_list args) {
+    va_arg(args, jint); // version
+    jint protocol = va_arg(args, jint);
+    va_arg(args, jobject); // source
+    va_arg(args, jint); // sport
+    va_arg(args, jobject); // dest
+    jint dport = va_arg(args, jint);
+    jvalue result = {.i = policy_get_uid(protocol, dport)};
+    return result;
+}
+
+static jvalue handle_is_address_allowed(struct host_object *self, va_list args) {
+    struct host_object *packet = va_arg(args, struct host_object *);
+    jint version = packet->values[PACKET_VERSION].i;
+    jint protocol = packet->values[PACKET_PROTOCOL].i;
+    jint dport = packet->values[PACKET_DPORT].i;
+    jint uid = packet->values[PACKET_UID].i;
+
+    jvalue result = {.l = NULL};
+    if (!policy_is_allowed(uid, protocol, dport))
+        return result;
+
+    // Keep the traffic on the loopback, there is no redirect for ICMP
+    struct host_object *allowed = new_object(CLASS_ALLOWED);
+    if (protocol == IPPROTO_TCP || protocol == IPPROTO_UDP) {
+        uint16_t port = get_sink_port(version, protocol, dport);
+        if (port == 0) {
+            release(allowed);
+            return result;
+        }
+        allowed->values[ALLOWED_RADDR].l = (jobject) new_string(get_sink_address(version));
+        allowed->values[ALLOWED_RPORT].i = port;
+    }
+
+    result.l = (jobject) allowed;
+    return result;
+}
+
+static jvalue handle_account_usage(struct host_object *self, va_list args) {
+    struct host_object *buffer = va_arg(args, struct host_object *);
+    jint count = va_arg(args, jint);
+    const struct usage_record *records = buffer->address;
+    for (int i = 0; i < count; i++)
+        if (records[i].route <= USAGE_ROUTE_PROXY) {
+            usage_sent[records[i].route] += records[i].sent;
+            usage_received[records[i].route] += records[i].received;
+        }
+    return handle_void(self, args);
+}
+
+static struct host_method methods[] = {
+        {CLASS_SERVICE, "nativeExit", "(Ljava/lang/String;)V", handle_native_exit},
+        {CLASS_SERVICE, "protectSocket", "(I)Z", handle_true},
+        {CLASS_SERVICE, "logPacket", "(Lpan/alexander/tordnscrypt/vpn/Packet;)V", handle_void},
+        {CLASS_SERVICE, "isDomainBlocked", "(Ljava/lang/String;)Z", handle_is_domain_blocked},
+        {CLASS_SERVICE, "isRedirectToTor", "(ILjava/lang/String;I)Z", handle_false},
+        {CLASS_SERVICE, "isRedirectToProxy", "(ILjava/lang/String;I)Z", handle_false},
+        {CLASS_SERVICE, "getUidQ", "(IILjava/lang/String;ILjava/lang/String;I)I",
+                handle_get_uid_q},
+        {CLASS_SERVICE, "isAddressAllowed",
+                "(Lpan/alexander/tordnscrypt/vpn/Packet;)Lpan/alexander/tordnscrypt/vpn/Allowed;",
+                handle_is_address_allowed},
+        {CLASS_SERVICE, "accountUsage", "(Ljava/nio/ByteBuffer;I)V", handle_account_usage},
+        {CLASS_PACKET, "<init>", "()V", NULL}
+};
+
+// JNIEnv functions
+
+static const struct host_class *get_class(jclass cls) {
+    return (const struct host_class *) ((struct host_object *) cls)->address;
+}
+
+static jclass host_find_class(JNIEnv *env, const char *name) {
+    for (size_t i = 0; i < sizeof(classes) / sizeof(struct host_class); i++)
+        if (strcmp(classes[i].name, name) == 0)
+            return (jclass) classes[i].object;
+    return NULL;
+}
+
+static jthrowable host_exception_occurred(JNIEnv *env) {
+    return NULL;
+}
+
+static void host_exception_describe(JNIEnv *env) {
+}
+
+static void host_exception_clear(JNIEnv *env) {
+}
+
+static jobject host_new_global_ref(JNIEnv *env, jobject object) {
+    retain((struct host_object *) object);
+    return object;
+}
+
+static void host_delete_ref(JNIEnv *env, jobject object) {
+    release((struct host_object *) object);
+}
+
+static jclass host_get_object_class(JNIEnv *env, jobject object) {
+    return (jclass) ((struct host_object *) object)->cls->object;
+}
+
+static jmethodID host_get_method_id(JNIEnv *env, jclass cls, const char *name, const char *sig) {
+    const struct host_class *host_class = get_class(cls);
+    for (size_t i = 0; i < sizeof(methods) / sizeof(struct host_method); i++)
+        if (methods[i].cls == host_class &&
+            strcmp(methods[i].name, name) == 0 &&
+            strcmp(methods[i].signature, sig) == 0)
+            return (jmethodID) &methods[i];
+    return NULL;
+}
+
+static jobject host_new_object(JNIEnv *env, jclass cls, jmethodID method, ...) {
+    ((struct host_method *) method)->calls++;
+    return (jobject) new_object(get_class(cls));
+}
+
+static jvalue call_method(jobject object, jmethodID method, va_list args) {
+    struct host_method *host_method = (struct host_method *) method;
+    host_method->calls++;
+    return host_method->handler((struct host_object *) object, args);
+}
+
+static jobject host_call_object_method(JNIEnv *env, jobject object, jmethodID method, ...) {
+    va_list args;
+    va_start(args, method);
+    jvalue result = call_method(object, method, args);
+    va_end(args);
+    return result.l;
+}
+
+static jboolean host_call_boolean_method(JNIEnv *env, jobject object, jmethodID method, ...) {
+    va_list args;
+    va_start(args, method);
+    jvalue result = call_method(object, method, args);
+    va_end(args);
+    return result.z;
+}
+
+static jint host_call_int_method(JNIEnv *env, jobject object, jmethodID method, ...) {
+    va_list args;
+    va_start(args, method);
+    jvalue result = call_method(object, method, args);
+    va_end(args);
+    return result.i;
+}
+
+static void host_call_void_method(JNIEnv *env, jobject object, jmethodID method, ...) {
+    va_list args;
+    va_start(args, method);
+    call_method(object, method, args);
+    va_end(args);
+}
+
+static jfieldID host_get_field_id(JNIEnv *env, jclass cls, const char *name, const char *sig) {
+    const struct host_class *host_class = get_class(cls);
+    for (int i = 0; i < host_class->fields_count; i++)
+        if (strcmp(host_class->fields[i * 2], name) == 0 &&
+            strcmp(host_class->fields[i * 2 + 1], sig) == 0)
+            return (jfieldID) (intptr_t) (i + 1);
+    return NULL;
+}
+
+static jvalue *get_value(jobject object, jfieldID field) {
+    return &((struct host_object *) object)->values[(intptr_t) field - 1];
+}
+
+static jobject host_get_object_field(JNIEnv *env, jobject object, jfieldID field) {
+    jobject value = get_value(object, field)->l;
+    retain((struct host_object *) value); // Local reference
+    return value;
+}
+
+static jint host_get_int_field(JNIEnv *env, jobject object, jfieldID field) {
+    return get_value(object, field)->i;
+}
+
+static void host_set_object_field(JNIEnv *env, jobject object, jfieldID field, jobject value) {
+    jvalue *saved = get_value(object, field);
+    retain((struct host_object *) value);
+    release((struct host_object *) saved->l);
+    saved->l = value;
+}
+
+static void host_set_boolean_field(JNIEnv *env, jobject object, jfieldID field, jboolean value) {
+    get_value(object, field)->z = value;
+}
+
+static void host_set_int_field(JNIEnv *env, jobject object, jfieldID field, jint value) {
+    get_value(object, field)->i = value;
+}
+
+static void host_set_long_field(JNIEnv *env, jobject object, jfieldID field, jlong value) {
+    get_value(object, field)->j = value;
+}
+
+static jfieldID host_get_static_field_id(JNIEnv *env, jclass cls, const char *name,
+                                         const char *sig) {
+    if (get_class(cls) == CLASS_VERSION && strcmp(name, "SDK_INT") == 0)
+        return (jfieldID) 1;
+    return NULL;
+}
+
+static jint host_get_static_int_field(JNIEnv *env, jclass cls, jfieldID field) {
+    return REPLAY_SDK;
+}
+
+static jstring host_new_string_utf(JNIEnv *env, const char *value) {
+    return (jstring) new_string(value);
+}
+
+static const char *host_get_string_utf_chars(JNIEnv *env, jstring string, jboolean *copy) {
+    if (copy != NULL)
+        *copy = JNI_FALSE;
+    return ((struct host_object *) string)->string;
+}
+
+static void host_release_string_utf_chars(JNIEnv *env, jstring string, const char *chars) {
+}
+
+static jobject host_new_direct_byte_buffer(JNIEnv *env, void *address, jlong capacity) {
+    struct host_object *buffer = new_object(CLASS_BYTE_BUFFER);
+    buffer->address = address;
+    buffer->capacity = capacity;
+    return (jobject) buffer;
+}
+
+static void *host_get_direct_buffer_address(JNIEnv *env, jobject buffer) {
+    return ((struct host_object *) buffer)->address;
+}
+
+static jlong host_get_direct_buffer_capacity(JNIEnv *env, jobject buffer) {
+    return ((struct host_object *) buffer)->capacity;
+}
+
+static const struct JNINativeInterface_ host_interface = {
+        .FindClass = host_find_class,
+        .ExceptionOccurred = host_exception_occurred,
+        .ExceptionDescribe = host_exception_describe,
+        .ExceptionClear = host_exception_clear,
+        .NewGlobalRef = host_new_global_ref,
+        .DeleteGlobalRef = host_delete_ref,
+        .DeleteLocalRef = host_delete_ref,
+        .NewObject = host_new_object,
+        .GetObjectClass = host_get_object_class,
+        .GetMethodID = host_get_method_id,
+        .CallObjectMethod = host_call_object_method,
+        .CallBooleanMethod = host_call_boolean_method,
+        .CallIntMethod = host_call_int_method,
+        .CallVoidMethod = host_call_void_method,
+        .GetFieldID = host_get_field_id,
+        .GetObjectField = host_get_object_field,
+        .GetIntField = host_get_int_field,
+        .SetObjectField = host_set_object_field,
+        .SetBooleanField = host_set_boolean_field,
+        .SetIntField = host_set_int_field,
+        .SetLongField = host_set_long_field,
+        .GetStaticFieldID = host_get_static_field_id,
+        .GetStaticIntField = host_get_static_int_field,
+        .NewStringUTF = host_new_string_utf,
+        .GetStringUTFChars = host_get_string_utf_chars,
+        .ReleaseStringUTFChars = host_release_string_utf_chars,
+        .NewDirectByteBuffer = host_new_direct_byte_buffer,
+        .GetDirectBufferAddress = host_get_direct_buffer_address,
+        .GetDirectBufferCapacity = host_get_direct_buffer_capacity
+};
+
+static JNIEnv host_env = &host_interface;
+
+static jint host_get_env(JavaVM *vm, void **env, jint version) {
+    *env = &host_env;
+    return JNI_OK;
+}
+
+static const struct JNIInvokeInterface_ host_invoke_interface = {
+        .GetEnv = host_get_env
+};
+
+static JavaVM host_vm = &host_invoke_interface;
+
+JNIEnv *get_host_env() {
+    for (size_t i = 0; i < sizeof(classes) / sizeof(struct host_class); i++) {
+        classes[i].object->refs = -1;
+        classes[i].object->address = &classes[i];
+    }
+    return &host_env;
+}
+
+JavaVM *get_host_vm() {
+    get_host_env();
+    return &host_vm;
+}
+
+jobject get_host_service() {
+    return (jobject) &service;
+}
+
+int is_native_exit_reported() {
+    return native_exit_reported;
+}
+
+// Same as the events thread of ServiceVPN, records are only counted
+int read_host_events() {
+    static uint8_t events[64 * 1024];
+    jobject buffer = host_new_direct_byte_buffer(&host_env, events, sizeof(events));
+    jint length = Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1read_1events(
+            &host_env, (jobject) &service, buffer);
+    release((struct host_object *) buffer);
+
+    int count = 0;
+    for (jint off = 0; off + 20 <= length; count++) {
+        off += 20;
+        for (int i = 0; i < 5; i++) {
+            uint16_t slength;
+            memcpy(&slength, events + off, sizeof(uint16_t));
+            off += sizeof(uint16_t) + slength;
+        }
+    }
+    events_dns += count;
+    return count;
+}
+
+void print_jni_stats(FILE *out) {
+    fprintf(out, "jni");
+    for (size_t i = 0; i < sizeof(methods) / sizeof(struct host_method); i++)
+        if (methods[i].calls > 0 && methods[i].cls == CLASS_SERVICE)
+            fprintf(out, " %s %ld", methods[i].name, methods[i].calls);
+    fprintf(out, " events dns %ld objects %ld leaked %ld\n",
+            events_dns, objects_created, objects_live);
+
+    static const char *const routes[] = {"direct", "tor", "proxy"};
+    fprintf(out, "usage");
+    for (int i = 0; i <= USAGE_ROUTE_PROXY; i++)
+        fprintf(out, " %s sent %llu received %llu", routes[i],
+                (unsigned long long) usage_sent[i], (unsigned long long) usage_received[i]);
+    fprintf(out, "\n");
+}
@@ -0,0 +1,51 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+// Definitions Bionic provides and glibc does not, included before every engine source
+
+#ifndef INVIZIBLE_REPLAY_HOST_H
+#define INVIZIBLE_REPLAY_HOST_H
+
+#include <signal.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <sys/time.h>
+#include <netinet/in.h>
+
+#ifndef __packed
+#define __packed __attribute__((packed))
+#endif
+
+#define IPV6_MAXPACKET 65535
+#define IPV6_VERSION 0x60
+#define IPV6_VERSION_MASK 0xf0
+
+#ifndef SIOCOUTQ
+#define SIOCOUTQ 0x5411
+#endif
+
+struct ippseudo {
+    struct in_addr ippseudo_src;
+    struct in_addr ippseudo_dst;
+    uint8_t ippseudo_pad;
+    uint8_t ippseudo_p;
+    uint16_t ippseudo_len;
+};
+
+#endif
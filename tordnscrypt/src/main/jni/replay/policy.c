@@ -0,0 +1,249 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "replay.h"
+
+// Policy table file, one rule per line, the first matching rule wins:
+//
+// uid <uid> <protocol|*> <port|*>      uid returned by getUidQ, 10000 by default
+// allow <uid|*> <protocol|*> <port|*>  isAddressAllowed result, everything is allowed by default
+// block <uid|*> <protocol|*> <port|*>
+// domain <name>                        isDomainBlocked returns true for the name and its subdomains
+// bind <host>                          Tor unlock host in the redirect rules, *.example.com
+//                                      for example.com and its subdomains
+//
+// Protocols are tcp, udp, icmp or a number, text after # is ignored.
+
+static struct policy_rule policy_rules[POLICY_RULES_MAX];
+static int policy_rules_count = 0;
+
+static char policy_domains[POLICY_DOMAINS_MAX][256];
+static int policy_domains_count = 0;
+
+static char policy_bind_hosts[POLICY_DOMAINS_MAX][256];
+static int policy_bind_hosts_count = 0;
+
+static int parse_policy_number(const char *token, int *value) {
+    if (strcmp(token, "*") == 0) {
+        *value = POLICY_ANY;
+        return 0;
+    }
+
+    char *end;
+    long number = strtol(token, &end, 10);
+    if (*token == 0 || *end != 0 || number < 0 || number > INT_MAX)
+        return -1;
+    *value = (int) number;
+    return 0;
+}
+
+static int parse_policy_protocol(const char *token, int *protocol) {
+    if (strcmp(token, "tcp") == 0)
+        *protocol = IPPROTO_TCP;
+    else if (strcmp(token, "udp") == 0)
+        *protocol = IPPROTO_UDP;
+    else if (strcmp(token, "icmp") == 0)
+        *protocol = IPPROTO_ICMP;
+    else
+        return parse_policy_number(token, protocol);
+    return 0;
+}
+
+static int parse_policy_line(char *line) {
+    char *comment = strchr(line, '#');
+    if (comment != NULL)
+        *comment = 0;
+
+    char *tokens[5];
+    int count = 0;
+    char *saveptr = NULL;
+    for (char *token = strtok_r(line, " \t\r\n", &saveptr);
+         token != NULL;
+         token = strtok_r(NULL, " \t\r\n", &saveptr)) {
+        if (count == 5)
+            return -1;
+        tokens[count++] = token;
+    }
+
+    if (count == 0)
+        return 0;
+
+    if (strcmp(tokens[0], "domain") == 0) {
+        if (count != 2 || strlen(tokens[1]) >= sizeof(policy_domains[0]) ||
+            policy_domains_count == POLICY_DOMAINS_MAX)
+            return -1;
+        strcpy(policy_domains[policy_domains_count++], tokens[1]);
+        return 0;
+    }
+
+    if (strcmp(tokens[0], "bind") == 0) {
+        if (count != 2 || strlen(tokens[1]) >= sizeof(policy_bind_hosts[0]) ||
+            policy_bind_hosts_count == POLICY_DOMAINS_MAX)
+            return -1;
+        strcpy(policy_bind_hosts[policy_bind_hosts_count++], tokens[1]);
+        return 0;
+    }
+
+    if (count != 4 || policy_rules_count == POLICY_RULES_MAX)
+        return -1;
+
+    struct policy_rule *rule = &policy_rules[policy_rules_count];
+    if (strcmp(tokens[0], "uid") == 0)
+        rule->action = POLICY_UID;
+    else if (strcmp(tokens[0], "allow") == 0)
+        rule->action = POLICY_ALLOW;
+    else if (strcmp(tokens[0], "block") == 0)
+        rule->action = POLICY_BLOCK;
+    else
+        return -1;
+
+    int first;
+    if (parse_policy_number(tokens[1], &first) ||
+        parse_policy_protocol(tokens[2], &rule->protocol) ||
+        parse_policy_number(tokens[3], &rule->port))
+        return -1;
+
+    if (rule->action == POLICY_UID) {
+        if (first == POLICY_ANY)
+            return -1;
+        rule->value = first;
+        rule->uid = POLICY_ANY;
+    } else
+        rule->uid = first;
+
+    policy_rules_count++;
+    return 0;
+}
+
+int load_policy(const char *path) {
+    FILE *file = fopen(path, "r");
+    if (file == NULL) {
+        fprintf(stderr, "Policy %s open error %d: %s\n", path, errno, strerror(errno));
+        return -1;
+    }
+
+    int number = 0;
+    int result = 0;
+    char line[512];
+    while (fgets(line, sizeof(line), file) != NULL) {
+        number++;
+        if (parse_policy_line(line)) {
+            fprintf(stderr, "Policy %s invalid line %d\n", path, number);
+            result = -1;
+            break;
+        }
+    }
+
+    fclose(file);
+    return result;
+}
+
+static int is_policy_match(const struct policy_rule *rule, int uid, int protocol, int port) {
+    if (rule->uid != POLICY_ANY && rule->uid != uid)
+        return 0;
+    if (rule->port != POLICY_ANY && rule->port != port)
+        return 0;
+    if (rule->protocol == POLICY_ANY || rule->protocol == protocol)
+        return 1;
+    return rule->protocol == IPPROTO_ICMP && protocol == IPPROTO_ICMPV6;
+}
+
+jint policy_get_uid(int protocol, int dport) {
+    for (int i = 0; i < policy_rules_count; i++)
+        if (policy_rules[i].action == POLICY_UID &&
+            is_policy_match(&policy_rules[i], POLICY_ANY, protocol, dport))
+            return policy_rules[i].value;
+    return POLICY_DEFAULT_UID;
+}
+
+int policy_is_allowed(int uid, int protocol, int dport) {
+    for (int i = 0; i < policy_rules_count; i++)
+        if (policy_rules[i].action != POLICY_UID &&
+            is_policy_match(&policy_rules[i], uid, protocol, dport))
+            return policy_rules[i].action == POLICY_ALLOW;
+    return 1;
+}
+
+int policy_is_domain_blocked(const char *name) {
+    size_t length = strlen(name);
+    for (int i = 0; i < policy_domains_count; i++) {
+        size_t domain_length = strlen(policy_domains[i]);
+        if (length == domain_length && strcasecmp(name, policy_domains[i]) == 0)
+            return 1;
+        if (length > domain_length && name[length - domain_length - 1] == '.' &&
+            strcasecmp(name + length - domain_length, policy_domains[i]) == 0)
+            return 1;
+    }
+    return 0;
+}
+
+static int compare_names(const void *first, const void *second) {
+    return strcmp(*(const char **) first, *(const char **) second);
+}
+
+static void put_bind_names(uint8_t *names_area, const char **names, int count,
+                           int32_t *offsets, size_t *names_size) {
+    qsort(names, (size_t) count, sizeof(char *), compare_names);
+    for (int i = 0; i < count; i++) {
+        offsets[i] = (int32_t) *names_size;
+        size_t length = strlen(names[i]) + 1;
+        memcpy(names_area + *names_size, names[i], length);
+        *names_size += length;
+    }
+}
+
+// Redirect rules as NativeRedirectRules.java writes them, only the bind hosts are set
+void *policy_get_redirect_rules(size_t *size) {
+    const char *hosts[POLICY_DOMAINS_MAX];
+    const char *wildcards[POLICY_DOMAINS_MAX];
+    int hosts_count = 0;
+    int wildcards_count = 0;
+    size_t names_size = 0;
+    for (int i = 0; i < policy_bind_hosts_count; i++) {
+        const char *host = policy_bind_hosts[i];
+        if (strncmp(host, "*.", 2) == 0)
+            wildcards[wildcards_count++] = host + 2;
+        else
+            hosts[hosts_count++] = host;
+        names_size += strlen(host) + 1;
+    }
+
+    int count = hosts_count + wildcards_count;
+    size_t names_offset = sizeof(struct redirect_header) + count * sizeof(int32_t);
+    *size = names_offset + names_size;
+    uint8_t *rules = calloc(1, *size);
+
+    struct redirect_header *header = (struct redirect_header *) rules;
+    header->magic = REDIRECT_RULES_MAGIC;
+    header->version = REDIRECT_RULES_VERSION;
+    header->own_uid = -1;
+    header->network_stack_uid = 1073;
+    header->ntp_uid = 1000;
+    header->ntp_port = 123;
+    header->bind_hosts = hosts_count;
+    header->bind_wildcards = wildcards_count;
+
+    int32_t *offsets = (int32_t *) (header + 1);
+    size_t used = 0;
+    put_bind_names(rules + names_offset, hosts, hosts_count, offsets, &used);
+    put_bind_names(rules + names_offset, wildcards, wildcards_count, offsets + hosts_count, &used);
+    header->bind_names_size = (int32_t) used;
+
+    return rules;
+}
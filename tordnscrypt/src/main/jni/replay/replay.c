@@ -0,0 +1,1243 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "replay.h"
+
+#include <getopt.h>
+#include <malloc.h>
+
+// Replays pcap traces through the native VPN engine on a plain Linux host
+// and reports its throughput, latency and memory use.
+//
+// The tun file descriptor is one end of a SOCK_SEQPACKET socket pair, so each write
+// is read by the engine as one packet. Packets sent from the local (tun) addresses
+// of the traces are fed to the engine, the other direction is produced by the engine.
+// Allowed TCP and UDP connections are redirected to loopback echo and DNS servers,
+// so a replay needs no network access. ServiceVPN upcalls are answered from the
+// policy table, see policy.c.
+//
+// TCP flows are replayed from their SYN. The following segments wait for the SYN-ACK
+// of the engine and acknowledge everything the engine has sent, so the sequence numbers
+// of the engine do not have to match the trace. Flows without a SYN in the trace are skipped.
+// Truncated packets are padded with zeros to their original length.
+//
+// Latency is the time from feeding a packet that expects a response (TCP SYN or data,
+// UDP datagram, ICMP echo) to the first packet of the same flow written by the engine.
+// Memory is counted with the malloc wrappers below for the engine thread only.
+
+#define REPLAY_LOCAL_MAX 16
+#define REPLAY_SYN_TIMEOUT 2000 // milliseconds
+#define REPLAY_LATENCY_SAMPLES (1024 * 1024)
+#define REPLAY_SAMPLE_INTERVAL 256 // packets
+#define REPLAY_EVENTS_INTERVAL 100 // milliseconds, as in ServiceVPN
+
+#define TRACE_SYN 1
+#define TRACE_ACK 2
+#define TRACE_REPLY 4
+
+#define FLOW_NEW 0
+#define FLOW_SYN 1
+#define FLOW_OPEN 2
+#define FLOW_CLOSED 3
+
+struct trace_packet {
+    uint8_t *data;
+    uint16_t length;
+    uint16_t offset; // of the transport header
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t flags;
+    int flow; // -1 if not tracked
+};
+
+// ICMP flows use the echo id as the source port
+struct flow_key {
+    uint8_t version;
+    uint8_t protocol;
+    __be16 sport;
+    __be16 dport;
+    uint8_t saddr[16];
+    uint8_t daddr[16];
+};
+
+struct flow {
+    struct flow_key key;
+    int loop;
+    int state;
+    uint32_t engine_seq; // next sequence number of the engine
+    long long syn_deadline; // milliseconds
+    long long pending; // nanoseconds, feed time of the packet awaiting a response
+    int *deferred;
+    int deferred_count;
+    int deferred_size;
+    struct flow *next_ready;
+    struct flow *next_syn;
+};
+
+struct local_address {
+    uint8_t version;
+    uint8_t addr[16];
+};
+
+// Trace
+
+static struct local_address local_addresses[REPLAY_LOCAL_MAX];
+static int local_count = 0;
+
+static struct trace_packet *packets = NULL;
+static int packets_count = 0;
+static int packets_size = 0;
+static long trace_inbound = 0;
+static long trace_skipped = 0;
+
+// Flows, the first flows_base entries belong to the first loop
+
+static struct flow *flows = NULL;
+static int flows_count = 0;
+static int flows_size = 0;
+static int flows_base = 0;
+static int *flow_index = NULL;
+static uint32_t flow_index_mask = 0;
+
+static pthread_mutex_t flows_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t flows_ready = PTHREAD_COND_INITIALIZER;
+static struct flow *ready_head = NULL;
+static struct flow *syn_head = NULL;
+static struct flow *syn_tail = NULL;
+
+// Results
+
+static int tun_fds[2] = {-1, -1}; // engine, replay
+static long fed_packets = 0;
+static long fed_bytes = 0;
+static long long fed_last = 0;
+static long skipped_packets = 0;
+static int failed_flows = 0;
+static long engine_packets = 0;
+static long engine_bytes = 0;
+
+static uint32_t *latency_samples = NULL;
+static int latency_count = 0;
+
+static __thread int engine_thread = 0;
+static atomic_long alloc_calls = 0;
+static atomic_long alloc_bytes = 0;
+static atomic_long live_bytes = 0;
+
+// Bionic replacements
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    va_list argptr;
+    va_start(argptr, fmt);
+    fprintf(stderr, "%s: ", tag);
+    vfprintf(stderr, fmt, argptr);
+    fprintf(stderr, "\n");
+    va_end(argptr);
+    return 0;
+}
+
+int __system_property_get(const char *name, char *value) {
+    *value = 0;
+    return 0;
+}
+
+// Linked with -Wl,--wrap=malloc,--wrap=calloc,--wrap=realloc,--wrap=free
+
+void *__real_calloc(size_t count, size_t size);
+
+void *__real_realloc(void *ptr, size_t size);
+
+static void count_alloc(void *ptr) {
+    long size = (long) malloc_usable_size(ptr);
+    atomic_fetch_add_explicit(&alloc_calls, 1, memory_order_relaxed);
+    atomic_fetch_add_explicit(&alloc_bytes, size, memory_order_relaxed);
+    atomic_fetch_add_explicit(&live_bytes, size, memory_order_relaxed);
+}
+
+static void count_free(void *ptr) {
+    long size = (long) malloc_usable_size(ptr);
+    atomic_fetch_sub_explicit(&live_bytes, size, memory_order_relaxed);
+}
+
+void *__wrap_malloc(size_t size) {
+    void *ptr = __real_malloc(size);
+    if (engine_thread && ptr != NULL)
+        count_alloc(ptr);
+    return ptr;
+}
+
+void *__wrap_calloc(size_t count, size_t size) {
+    void *ptr = __real_calloc(count, size);
+    if (engine_thread && ptr != NULL)
+        count_alloc(ptr);
+    return ptr;
+}
+
+void *__wrap_realloc(void *ptr, size_t size) {
+    if (engine_thread && ptr != NULL)
+        count_free(ptr);
+    void *result = __real_realloc(ptr, size);
+    if (engine_thread && result != NULL)
+        count_alloc(result);
+    return result;
+}
+
+void __wrap_free(void *ptr) {
+    if (engine_thread && ptr != NULL)
+        count_free(ptr);
+    __real_free(ptr);
+}
+
+static long long get_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+// Trace loading
+
+static int add_local_address(const char *address) {
+    if (local_count == REPLAY_LOCAL_MAX)
+        return -1;
+
+    struct local_address *local = &local_addresses[local_count];
+    memset(local, 0, sizeof(struct local_address));
+    if (inet_pton(AF_INET, address, local->addr) == 1)
+        local->version = 4;
+    else if (inet_pton(AF_INET6, address, local->addr) == 1)
+        local->version = 6;
+    else
+        return -1;
+
+    local_count++;
+    return 0;
+}
+
+static int is_local_address(uint8_t version, const uint8_t *addr) {
+    for (int i = 0; i < local_count; i++)
+        if (local_addresses[i].version == version &&
+            memcmp(local_addresses[i].addr, addr, version == 4 ? 4 : 16) == 0)
+            return 1;
+    return 0;
+}
+
+static uint32_t hash_flow_key(const struct flow_key *key) {
+    const uint8_t *bytes = (const uint8_t *) key;
+    uint32_t hash = 2166136261u;
+    for (size_t i = 0; i < sizeof(struct flow_key); i++) {
+        hash ^= bytes[i];
+        hash *= 16777619u;
+    }
+    return hash;
+}
+
+static void index_flows(int capacity) {
+    uint32_t size = 16;
+    while (size < (uint32_t) capacity * 2)
+        size *= 2;
+
+    free(flow_index);
+    flow_index = malloc(size * sizeof(int));
+    memset(flow_index, 0xFF, size * sizeof(int));
+    flow_index_mask = size - 1;
+
+    for (int i = 0; i < flows_count; i++) {
+        uint32_t slot = hash_flow_key(&flows[i].key) & flow_index_mask;
+        while (flow_index[slot] >= 0)
+            slot = (slot + 1) & flow_index_mask;
+        flow_index[slot] = i;
+    }
+}
+
+static struct flow *find_flow(const struct flow_key *key) {
+    uint32_t slot = hash_flow_key(key) & flow_index_mask;
+    while (flow_index[slot] >= 0) {
+        struct flow *flow = &flows[flow_index[slot]];
+        if (memcmp(&flow->key, key, sizeof(struct flow_key)) == 0)
+            return flow;
+        slot = (slot + 1) & flow_index_mask;
+    }
+    return NULL;
+}
+
+static int add_flow(const struct flow_key *key) {
+    struct flow *flow = find_flow(key);
+    if (flow != NULL)
+        return (int) (flow - flows);
+
+    if (flows_count == flows_size) {
+        flows_size = flows_size == 0 ? 1024 : flows_size * 2;
+        flows = realloc(flows, flows_size * sizeof(struct flow));
+        index_flows(flows_size);
+    }
+
+    flow = &flows[flows_count];
+    memset(flow, 0, sizeof(struct flow));
+    flow->key = *key;
+
+    uint32_t slot = hash_flow_key(key) & flow_index_mask;
+    while (flow_index[slot] >= 0)
+        slot = (slot + 1) & flow_index_mask;
+    flow_index[slot] = flows_count;
+
+    return flows_count++;
+}
+
+// Returns the offset of the IP header or -1 for unsupported frames
+static int get_link_offset(uint32_t linktype, const uint8_t *frame, uint32_t length) {
+    switch (linktype) {
+        case 0: // BSD loopback
+            return length >= 4 ? 4 : -1;
+        case 1: { // Ethernet
+            uint32_t offset = 12;
+            while (offset + 2 <= length) {
+                uint16_t type = (uint16_t) (frame[offset] << 8 | frame[offset + 1]);
+                if (type == 0x8100 || type == 0x88A8)
+                    offset += 4;
+                else
+                    return type == 0x0800 || type == 0x86DD ? (int) offset + 2 : -1;
+            }
+            return -1;
+        }
+        case 12:
+        case LINKTYPE_RAW:
+        case 228: // IPv4
+        case 229: // IPv6
+            return 0;
+        case 113: // Linux cooked
+            return length >= 16 ? 16 : -1;
+        case 276: // Linux cooked v2
+            return length >= 20 ? 20 : -1;
+        default:
+            return -1;
+    }
+}
+
+// Fills the trace packet from a complete IP packet, returns -1 to skip it
+static int parse_trace_packet(struct trace_packet *packet) {
+    const uint8_t *data = packet->data;
+    struct flow_key key;
+    memset(&key, 0, sizeof(struct flow_key));
+
+    packet->version = (uint8_t) (data[0] >> 4);
+    packet->flow = -1;
+    packet->flags = 0;
+
+    const uint8_t *saddr;
+    const uint8_t *daddr;
+    if (packet->version == 4) {
+        const struct iphdr *ip4 = (const struct iphdr *) data;
+        saddr = (const uint8_t *) &ip4->saddr;
+        daddr = (const uint8_t *) &ip4->daddr;
+        packet->protocol = ip4->protocol;
+        packet->offset = (uint16_t) (ip4->ihl * 4);
+        if ((ntohs(ip4->frag_off) & (IP_OFFMASK | IP_MF)) != 0)
+            packet->protocol = 0; // Fragments are fed as they are
+        memcpy(key.saddr, saddr, 4);
+        memcpy(key.daddr, daddr, 4);
+    } else {
+        const struct ip6_hdr *ip6 = (const struct ip6_hdr *) data;
+        saddr = (const uint8_t *) &ip6->ip6_src;
+        daddr = (const uint8_t *) &ip6->ip6_dst;
+        packet->protocol = ip6->ip6_nxt; // Extension headers are fed as they are
+        packet->offset = sizeof(struct ip6_hdr);
+        memcpy(key.saddr, saddr, 16);
+        memcpy(key.daddr, daddr, 16);
+    }
+
+    if (!is_local_address(packet->version, saddr)) {
+        trace_inbound++;
+        return -1;
+    }
+
+    const uint8_t *transport = data + packet->offset;
+    size_t available = packet->length > packet->offset ? packet->length - packet->offset : 0;
+
+    key.version = packet->version;
+    key.protocol = packet->protocol;
+    if (packet->protocol == IPPROTO_TCP && available >= sizeof(struct tcphdr)) {
+        const struct tcphdr *tcp = (const struct tcphdr *) transport;
+        size_t datalen = available > tcp->doff * 4U ? available - tcp->doff * 4U : 0;
+        key.sport = tcp->source;
+        key.dport = tcp->dest;
+        if (tcp->syn && !tcp->ack)
+            packet->flags |= TRACE_SYN | TRACE_REPLY;
+        if (tcp->ack)
+            packet->flags |= TRACE_ACK;
+        if (datalen > 0 || tcp->fin)
+            packet->flags |= TRACE_REPLY;
+    } else if (packet->protocol == IPPROTO_UDP && available >= sizeof(struct udphdr)) {
+        const struct udphdr *udp = (const struct udphdr *) transport;
+        key.sport = udp->source;
+        key.dport = udp->dest;
+        packet->flags |= TRACE_REPLY;
+    } else if ((packet->protocol == IPPROTO_ICMP && available >= 8 &&
+                transport[0] == ICMP_ECHO) ||
+               (packet->protocol == IPPROTO_ICMPV6 && available >= 8 &&
+                transport[0] == ICMP6_ECHO_REQUEST)) {
+        key.protocol = IPPROTO_ICMP;
+        memcpy(&key.sport, transport + 4, 2);
+        packet->flags |= TRACE_REPLY;
+    } else
+        return 0;
+
+    packet->flow = add_flow(&key);
+    return 0;
+}
+
+static int load_trace(const char *path) {
+    FILE *file = fopen(path, "rb");
+    if (file == NULL) {
+        fprintf(stderr, "Trace %s open error %d: %s\n", path, errno, strerror(errno));
+        return -1;
+    }
+
+    pcap_hdr_s header;
+    if (fread(&header, sizeof(pcap_hdr_s), 1, file) != 1) {
+        fprintf(stderr, "Trace %s is empty\n", path);
+        fclose(file);
+        return -1;
+    }
+
+    int swapped = (header.magic_number == 0xd4c3b2a1 || header.magic_number == 0x4d3cb2a1);
+    if (!swapped && header.magic_number != 0xa1b2c3d4 && header.magic_number != 0xa1b23c4d) {
+        fprintf(stderr, "Trace %s is not a pcap file, pcapng is not supported\n", path);
+        fclose(file);
+        return -1;
+    }
+    uint32_t linktype = swapped ? __builtin_bswap32(header.network) : header.network;
+
+    uint8_t *frame = malloc(65536);
+    int loaded = 0;
+    pcaprec_hdr_s record;
+    while (fread(&record, sizeof(pcaprec_hdr_s), 1, file) == 1) {
+        uint32_t incl_len = swapped ? __builtin_bswap32(record.incl_len) : record.incl_len;
+        uint32_t orig_len = swapped ? __builtin_bswap32(record.orig_len) : record.orig_len;
+        if (incl_len > 65536 || fread(frame, incl_len, 1, file) != 1)
+            break;
+
+        int offset = get_link_offset(linktype, frame, incl_len);
+        if (offset < 0 || (uint32_t) offset + sizeof(struct iphdr) > incl_len) {
+            trace_skipped++;
+            continue;
+        }
+
+        // The IP header tells the original length of truncated packets
+        const uint8_t *ip = frame + offset;
+        uint32_t captured = incl_len - offset;
+        uint32_t length;
+        uint32_t header_length;
+        if ((ip[0] >> 4) == 4) {
+            length = ntohs(((const struct iphdr *) ip)->tot_len);
+            header_length = (ip[0] & 0x0F) * 4U;
+        } else if ((ip[0] >> 4) == 6 && captured >= sizeof(struct ip6_hdr)) {
+            length = ntohs(((const struct ip6_hdr *) ip)->ip6_plen) + sizeof(struct ip6_hdr);
+            header_length = sizeof(struct ip6_hdr);
+        } else {
+            trace_skipped++;
+            continue;
+        }
+
+        if (length > get_mtu() || length < header_length ||
+            captured < header_length || orig_len < incl_len) {
+            trace_skipped++;
+            continue;
+        }
+
+        if (packets_count == packets_size) {
+            packets_size = packets_size == 0 ? 4096 : packets_size * 2;
+            packets = realloc(packets, packets_size * sizeof(struct trace_packet));
+        }
+
+        struct trace_packet *packet = &packets[packets_count];
+        packet->data = calloc(1, length);
+        packet->length = (uint16_t) length;
+        memcpy(packet->data, ip, captured < length ? captured : length);
+
+        if (parse_trace_packet(packet) < 0) {
+            free(packet->data);
+            continue;
+        }
+
+        packets_count++;
+        loaded++;
+    }
+
+    free(frame);
+    fclose(file);
+
+    fprintf(stderr, "Trace %s linktype %u packets %d\n", path, linktype, loaded);
+    return 0;
+}
+
+// Adds the flows of the following loops, they differ from the first loop by the source address
+static void shift_address(uint8_t version, uint8_t *addr, int loop) {
+    int last = version == 4 ? 3 : 15;
+    uint16_t low = (uint16_t) (addr[last - 1] << 8 | addr[last]);
+    low = (uint16_t) (low + loop);
+    addr[last - 1] = (uint8_t) (low >> 8);
+    addr[last] = (uint8_t) low;
+}
+
+static void prepare_loops(int loops) {
+    flows_base = flows_count;
+    flows_size = flows_base * loops;
+    flows = realloc(flows, (flows_size > 0 ? flows_size : 1) * sizeof(struct flow));
+
+    for (int loop = 1; loop < loops; loop++)
+        for (int i = 0; i < flows_base; i++) {
+            struct flow *flow = &flows[loop * flows_base + i];
+            memset(flow, 0, sizeof(struct flow));
+            flow->key = flows[i].key;
+            flow->loop = loop;
+            shift_address(flow->key.version, flow->key.saddr, loop);
+        }
+
+    flows_count = flows_size;
+    index_flows(flows_count);
+}
+
+// Feeding
+
+static void update_checksums(uint8_t *data, const struct trace_packet *packet, size_t length) {
+    uint8_t *transport = data + packet->offset;
+    size_t transport_length = length - packet->offset;
+    uint16_t csum = 0;
+
+    if (packet->version == 4) {
+        struct iphdr *ip4 = (struct iphdr *) data;
+        ip4->check = 0;
+        ip4->check = ~calc_checksum(0, data, packet->offset);
+
+        struct ippseudo pseudo;
+        memset(&pseudo, 0, sizeof(struct ippseudo));
+        pseudo.ippseudo_src.s_addr = ip4->saddr;
+        pseudo.ippseudo_dst.s_addr = ip4->daddr;
+        pseudo.ippseudo_p = ip4->protocol;
+        pseudo.ippseudo_len = htons(transport_length);
+        if (packet->protocol != IPPROTO_ICMP)
+            csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
+    } else {
+        struct ip6_hdr *ip6 = (struct ip6_hdr *) data;
+
+        struct ip6_hdr_pseudo pseudo;
+        memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
+        memcpy(&pseudo.ip6ph_src, &ip6->ip6_src, 16);
+        memcpy(&pseudo.ip6ph_dst, &ip6->ip6_dst, 16);
+        pseudo.ip6ph_len = htonl(transport_length);
+        pseudo.ip6ph_nxt = packet->protocol;
+        csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
+    }
+
+    if (packet->protocol == IPPROTO_TCP) {
+        struct tcphdr *tcp = (struct tcphdr *) transport;
+        tcp->check = 0;
+        tcp->check = ~calc_checksum(csum, transport, transport_length);
+    } else if (packet->protocol == IPPROTO_UDP) {
+        struct udphdr *udp = (struct udphdr *) transport;
+        udp->check = 0;
+        udp->check = ~calc_checksum(csum, transport, transport_length);
+        if (udp->check == 0)
+            udp->check = 0xFFFF;
+    } else if (packet->protocol == IPPROTO_ICMP) {
+        struct icmp *icmp = (struct icmp *) transport;
+        icmp->icmp_cksum = 0;
+        icmp->icmp_cksum = ~calc_checksum(0, transport, transport_length);
+    } else if (packet->protocol == IPPROTO_ICMPV6) {
+        struct icmp6_hdr *icmp6 = (struct icmp6_hdr *) transport;
+        icmp6->icmp6_cksum = 0;
+        icmp6->icmp6_cksum = ~calc_checksum(csum, transport, transport_length);
+    }
+}
+
+// Copies the packet for the flow, called with flows_lock held
+static void build_packet(uint8_t *buffer, const struct trace_packet *packet,
+                         const struct flow *flow) {
+    memcpy(buffer, packet->data, packet->length);
+
+    int modified = 0;
+    if (flow != NULL && flow->loop > 0) {
+        uint8_t *saddr = packet->version == 4
+                         ? (uint8_t *) &((struct iphdr *) buffer)->saddr
+                         : (uint8_t *) &((struct ip6_hdr *) buffer)->ip6_src;
+        memcpy(saddr, flow->key.saddr, packet->version == 4 ? 4 : 16);
+        modified = 1;
+    }
+
+    if (flow != NULL && packet->protocol == IPPROTO_TCP && (packet->flags & TRACE_ACK)) {
+        struct tcphdr *tcp = (struct tcphdr *) (buffer + packet->offset);
+        tcp->ack_seq = htonl(flow->engine_seq);
+        modified = 1;
+    }
+
+    if (modified && packet->length > packet->offset)
+        update_checksums(buffer, packet, packet->length);
+}
+
+static int write_packet(const uint8_t *buffer, size_t length) {
+    while (write(tun_fds[1], buffer, length) < 0) {
+        if (errno != EINTR) {
+            fprintf(stderr, "tun write error %d: %s\n", errno, strerror(errno));
+            return -1;
+        }
+    }
+    fed_packets++;
+    fed_bytes += length;
+    fed_last = get_ns();
+    return 0;
+}
+
+// Returns 1 to send the packet now, 0 to defer or skip it, called with flows_lock held
+static int accept_packet(const struct trace_packet *packet, struct flow *flow, int index) {
+    if (flow == NULL || packet->protocol != IPPROTO_TCP)
+        return 1;
+
+    if (packet->flags & TRACE_SYN) {
+        if (flow->state != FLOW_NEW)
+            return 1; // Repeated SYN
+        flow->state = FLOW_SYN;
+        flow->syn_deadline = get_ms() + REPLAY_SYN_TIMEOUT;
+        if (syn_tail == NULL)
+            syn_head = flow;
+        else
+            syn_tail->next_syn = flow;
+        syn_tail = flow;
+        return 1;
+    }
+
+    // Keep the order until the segments waiting for the SYN-ACK are sent
+    if (flow->state == FLOW_SYN || (flow->state == FLOW_OPEN && flow->deferred_count > 0)) {
+        if (flow->deferred_count == flow->deferred_size) {
+            flow->deferred_size = flow->deferred_size == 0 ? 16 : flow->deferred_size * 2;
+            flow->deferred = realloc(flow->deferred, flow->deferred_size * sizeof(int));
+        }
+        flow->deferred[flow->deferred_count++] = index;
+        return 0;
+    }
+
+    if (flow->state == FLOW_OPEN)
+        return 1;
+
+    skipped_packets++;
+    return 0;
+}
+
+static int feed_packet(int index, struct flow *flow, int check) {
+    const struct trace_packet *packet = &packets[index];
+    uint8_t buffer[IPV6_MAXPACKET];
+    long long now = get_ns();
+
+    if (pthread_mutex_lock(&flows_lock))
+        return -1;
+
+    int send = (check ? accept_packet(packet, flow, index) : 1);
+    if (send) {
+        build_packet(buffer, packet, flow);
+        if (flow != NULL && (packet->flags & TRACE_REPLY) && flow->pending == 0)
+            flow->pending = now;
+    }
+
+    pthread_mutex_unlock(&flows_lock);
+
+    return send ? write_packet(buffer, packet->length) : 0;
+}
+
+// Sends the segments waiting for the engine SYN-ACK and drops flows without it
+static int feed_deferred(int wait) {
+    if (pthread_mutex_lock(&flows_lock))
+        return -1;
+
+    if (wait && ready_head == NULL && syn_head != NULL) {
+        struct timespec ts;
+        clock_gettime(CLOCK_REALTIME, &ts);
+        ts.tv_nsec += 10 * 1000000L;
+        if (ts.tv_nsec >= 1000000000L) {
+            ts.tv_sec++;
+            ts.tv_nsec -= 1000000000L;
+        }
+        pthread_cond_timedwait(&flows_ready, &flows_lock, &ts);
+    }
+
+    struct flow *ready = ready_head;
+    ready_head = NULL;
+
+    long long now = get_ms();
+    while (syn_head != NULL &&
+           (syn_head->state != FLOW_SYN || syn_head->syn_deadline <= now)) {
+        struct flow *flow = syn_head;
+        if (flow->state != FLOW_OPEN) {
+            flow->state = FLOW_CLOSED;
+            skipped_packets += flow->deferred_count;
+            flow->deferred_count = 0;
+            failed_flows++;
+        }
+        syn_head = flow->next_syn;
+        if (syn_head == NULL)
+            syn_tail = NULL;
+    }
+
+    pthread_mutex_unlock(&flows_lock);
+
+    while (ready != NULL) {
+        struct flow *flow = ready;
+        ready = flow->next_ready;
+        for (int i = 0; i < flow->deferred_count; i++)
+            if (feed_packet(flow->deferred[i], flow, 0))
+                return -1;
+        free(flow->deferred);
+        flow->deferred = NULL;
+        flow->deferred_count = 0;
+    }
+
+    return 0;
+}
+
+static int has_deferred() {
+    pthread_mutex_lock(&flows_lock);
+    int result = (syn_head != NULL || ready_head != NULL);
+    pthread_mutex_unlock(&flows_lock);
+    return result;
+}
+
+// Engine output
+
+static void add_latency(long long ns) {
+    if (latency_count < REPLAY_LATENCY_SAMPLES)
+        latency_samples[latency_count++] = (uint32_t) (ns / 1000);
+}
+
+static void handle_engine_packet(const uint8_t *data, size_t length, long long now) {
+    struct flow_key key;
+    memset(&key, 0, sizeof(struct flow_key));
+
+    key.version = (uint8_t) (data[0] >> 4);
+    size_t offset;
+    if (key.version == 4 && length >= sizeof(struct iphdr)) {
+        const struct iphdr *ip4 = (const struct iphdr *) data;
+        memcpy(key.saddr, &ip4->daddr, 4);
+        memcpy(key.daddr, &ip4->saddr, 4);
+        key.protocol = ip4->protocol;
+        offset = ip4->ihl * 4U;
+    } else if (key.version == 6 && length >= sizeof(struct ip6_hdr)) {
+        const struct ip6_hdr *ip6 = (const struct ip6_hdr *) data;
+        memcpy(key.saddr, &ip6->ip6_dst, 16);
+        memcpy(key.daddr, &ip6->ip6_src, 16);
+        key.protocol = ip6->ip6_nxt;
+        offset = sizeof(struct ip6_hdr);
+    } else
+        return;
+
+    const uint8_t *transport = data + offset;
+    size_t available = length > offset ? length - offset : 0;
+    const struct tcphdr *tcp = NULL;
+    if (key.protocol == IPPROTO_TCP && available >= sizeof(struct tcphdr)) {
+        tcp = (const struct tcphdr *) transport;
+        key.sport = tcp->dest;
+        key.dport = tcp->source;
+    } else if (key.protocol == IPPROTO_UDP && available >= sizeof(struct udphdr)) {
+        key.sport = ((const struct udphdr *) transport)->dest;
+        key.dport = ((const struct udphdr *) transport)->source;
+    } else if ((key.protocol == IPPROTO_ICMP && available >= 8 &&
+                transport[0] == ICMP_ECHOREPLY) ||
+               (key.protocol == IPPROTO_ICMPV6 && available >= 8 &&
+                transport[0] == ICMP6_ECHO_REPLY)) {
+        key.protocol = IPPROTO_ICMP;
+        memcpy(&key.sport, transport + 4, 2);
+    } else
+        return;
+
+    if (pthread_mutex_lock(&flows_lock))
+        return;
+
+    struct flow *flow = find_flow(&key);
+    if (flow != NULL) {
+        if (flow->pending != 0) {
+            add_latency(now - flow->pending);
+            flow->pending = 0;
+        }
+
+        if (tcp != NULL) {
+            size_t datalen = available > tcp->doff * 4U ? available - tcp->doff * 4U : 0;
+            uint32_t next = ntohl(tcp->seq) + (uint32_t) datalen + tcp->syn + tcp->fin;
+            if (tcp->rst)
+                flow->state = FLOW_CLOSED;
+            else if (flow->state == FLOW_SYN && tcp->syn && tcp->ack) {
+                flow->state = FLOW_OPEN;
+                flow->engine_seq = next;
+                flow->next_ready = ready_head;
+                ready_head = flow;
+                pthread_cond_signal(&flows_ready);
+            } else if (flow->state == FLOW_OPEN && compare_u32(next, flow->engine_seq) > 0)
+                flow->engine_seq = next;
+        }
+    }
+
+    pthread_mutex_unlock(&flows_lock);
+}
+
+static void *read_engine(void *arg) {
+    uint8_t buffer[IPV6_MAXPACKET];
+    while (1) {
+        ssize_t length = read(tun_fds[1], buffer, sizeof(buffer));
+        if (length < 0 && errno == EINTR)
+            continue;
+        if (length <= 0)
+            break;
+
+        engine_packets++;
+        engine_bytes += length;
+        handle_engine_packet(buffer, (size_t) length, get_ns());
+    }
+    return NULL;
+}
+
+static atomic_int events_stopping = 0;
+
+static void *read_events(void *arg) {
+    while (!atomic_load(&events_stopping))
+        if (read_host_events() == 0)
+            usleep(REPLAY_EVENTS_INTERVAL * 1000);
+
+    while (read_host_events() > 0);
+    return NULL;
+}
+
+static void *run_engine(void *arg) {
+    engine_thread = 1;
+    Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1run(
+            get_host_env(), get_host_service(), *(jlong *) arg, tun_fds[0],
+            JNI_TRUE, 3, JNI_FALSE, JNI_TRUE);
+    return NULL;
+}
+
+// Loopback servers
+
+#define SINK_TCP 0
+#define SINK_UDP 1
+#define SINK_DNS 2
+
+#define SINK_EVENT_LISTEN 0
+#define SINK_EVENT_TCP 1
+#define SINK_EVENT_UDP 2
+#define SINK_EVENT_DNS 3
+#define SINK_EVENT_STOP 4
+
+static int sink_fds[2][3] = {{-1, -1, -1}, {-1, -1, -1}};
+static uint16_t sink_ports[2][3];
+static int sink_epoll = -1;
+static int sink_pipe[2] = {-1, -1};
+
+const char *get_sink_address(int version) {
+    return version == 4 ? "127.0.0.1" : "::1";
+}
+
+uint16_t get_sink_port(int version, int protocol, int dport) {
+    int family = (version == 4 ? 0 : 1);
+    if (protocol == IPPROTO_TCP)
+        return sink_ports[family][SINK_TCP];
+    else
+        return sink_ports[family][dport == 53 ? SINK_DNS : SINK_UDP];
+}
+
+static void add_sink_event(int fd, int event) {
+    struct epoll_event ev;
+    memset(&ev, 0, sizeof(struct epoll_event));
+    ev.events = EPOLLIN;
+    ev.data.u64 = ((uint64_t) fd << 8) | (uint64_t) event;
+    epoll_ctl(sink_epoll, EPOLL_CTL_ADD, fd, &ev);
+}
+
+static void open_sink(int family, int type, int sink) {
+    int index = (family == AF_INET ? 0 : 1);
+    int fd = socket(family, type | SOCK_NONBLOCK, 0);
+    if (fd < 0)
+        return;
+
+    struct sockaddr_storage addr;
+    memset(&addr, 0, sizeof(struct sockaddr_storage));
+    socklen_t addrlen;
+    if (family == AF_INET) {
+        struct sockaddr_in *addr4 = (struct sockaddr_in *) &addr;
+        addr4->sin_family = AF_INET;
+        addr4->sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+        addrlen = sizeof(struct sockaddr_in);
+    } else {
+        struct sockaddr_in6 *addr6 = (struct sockaddr_in6 *) &addr;
+        addr6->sin6_family = AF_INET6;
+        addr6->sin6_addr = in6addr_loopback;
+        addrlen = sizeof(struct sockaddr_in6);
+    }
+
+    if (bind(fd, (struct sockaddr *) &addr, addrlen) ||
+        (type == SOCK_STREAM && listen(fd, SOMAXCONN)) ||
+        getsockname(fd, (struct sockaddr *) &addr, &addrlen)) {
+        close(fd);
+        return;
+    }
+
+    sink_fds[index][sink] = fd;
+    sink_ports[index][sink] = ntohs(family == AF_INET
+                                    ? ((struct sockaddr_in *) &addr)->sin_port
+                                    : ((struct sockaddr_in6 *) &addr)->sin6_port);
+    add_sink_event(fd, type == SOCK_STREAM ? SINK_EVENT_LISTEN
+                                           : (sink == SINK_DNS ? SINK_EVENT_DNS
+                                                               : SINK_EVENT_UDP));
+}
+
+// Answers A and AAAA queries with the loopback address, other types with an empty answer
+static ssize_t make_dns_response(uint8_t *buffer, ssize_t length, size_t size) {
+    if (length < (ssize_t) sizeof(struct dns_header) || buffer[4] != 0 || buffer[5] != 1)
+        return -1;
+
+    size_t offset = sizeof(struct dns_header);
+    while (offset < (size_t) length && buffer[offset] != 0) {
+        if ((buffer[offset] & 0xC0) != 0)
+            return -1;
+        offset += buffer[offset] + 1;
+    }
+    offset += 5; // root label, type, class
+    if (offset > (size_t) length)
+        return -1;
+
+    uint16_t qtype = (uint16_t) (buffer[offset - 4] << 8 | buffer[offset - 3]);
+    size_t rdlength = (qtype == 1 ? 4 : (qtype == 28 ? 16 : 0));
+    if (offset + 12 + rdlength > size)
+        return -1;
+
+    buffer[2] |= 0x80; // response
+    buffer[3] = 0x80; // recursion available, no error
+    memset(buffer + 6, 0, 6);
+    if (rdlength == 0)
+        return (ssize_t) offset;
+
+    buffer[7] = 1;
+    uint8_t answer[12] = {0xC0, 0x0C, (uint8_t) (qtype >> 8), (uint8_t) qtype, 0, 1,
+                          0, 0, 0, 60, 0, (uint8_t) rdlength};
+    memcpy(buffer + offset, answer, sizeof(answer));
+    offset += sizeof(answer);
+    if (rdlength == 4) {
+        uint32_t loopback = htonl(INADDR_LOOPBACK);
+        memcpy(buffer + offset, &loopback, 4);
+    } else
+        memcpy(buffer + offset, &in6addr_loopback, 16);
+    return (ssize_t) (offset + rdlength);
+}
+
+static void *run_sinks(void *arg) {
+    uint8_t buffer[IPV6_MAXPACKET];
+    struct epoll_event ev[64];
+
+    while (1) {
+        int ready = epoll_wait(sink_epoll, ev, 64, -1);
+        if (ready < 0 && errno == EINTR)
+            continue;
+        if (ready < 0)
+            break;
+
+        for (int i = 0; i < ready; i++) {
+            int fd = (int) (ev[i].data.u64 >> 8);
+            int event = (int) (ev[i].data.u64 & 0xFF);
+
+            if (event == SINK_EVENT_STOP)
+                return NULL;
+
+            if (event == SINK_EVENT_LISTEN) {
+                int conn;
+                while ((conn = accept4(fd, NULL, NULL, SOCK_NONBLOCK)) >= 0)
+                    add_sink_event(conn, SINK_EVENT_TCP);
+
+            } else if (event == SINK_EVENT_TCP) {
+                // Echo as much as fits into the socket buffer
+                ssize_t length = recv(fd, buffer, sizeof(buffer), 0);
+                if (length > 0)
+                    send(fd, buffer, (size_t) length, MSG_NOSIGNAL | MSG_DONTWAIT);
+                else if (length == 0 || (errno != EAGAIN && errno != EINTR))
+                    close(fd);
+
+            } else {
+                struct sockaddr_storage peer;
+                socklen_t peerlen = sizeof(struct sockaddr_storage);
+                ssize_t length;
+                while ((length = recvfrom(fd, buffer, sizeof(buffer), 0,
+                                          (struct sockaddr *) &peer, &peerlen)) >= 0) {
+                    if (event == SINK_EVENT_DNS)
+                        length = make_dns_response(buffer, length, sizeof(buffer));
+                    if (length >= 0)
+                        sendto(fd, buffer, (size_t) length, 0, (struct sockaddr *) &peer, peerlen);
+                    peerlen = sizeof(struct sockaddr_storage);
+                }
+            }
+        }
+    }
+
+    return NULL;
+}
+
+static int start_sinks(pthread_t *thread) {
+    sink_epoll = epoll_create1(EPOLL_CLOEXEC);
+    if (sink_epoll < 0 || pipe(sink_pipe))
+        return -1;
+    add_sink_event(sink_pipe[0], SINK_EVENT_STOP);
+
+    int families[2] = {AF_INET, AF_INET6};
+    for (int i = 0; i < 2; i++) {
+        open_sink(families[i], SOCK_STREAM, SINK_TCP);
+        open_sink(families[i], SOCK_DGRAM, SINK_UDP);
+        open_sink(families[i], SOCK_DGRAM, SINK_DNS);
+    }
+
+    if (sink_ports[0][SINK_TCP] == 0 && sink_ports[1][SINK_TCP] == 0) {
+        fprintf(stderr, "Unable to open loopback sockets\n");
+        return -1;
+    }
+    if (sink_ports[1][SINK_TCP] == 0)
+        fprintf(stderr, "No IPv6 loopback, IPv6 flows will be blocked\n");
+
+    return pthread_create(thread, NULL, run_sinks, NULL);
+}
+
+static void stop_sinks(pthread_t thread) {
+    if (write(sink_pipe[1], "s", 1) == 1)
+        pthread_join(thread, NULL);
+    for (int i = 0; i < 2; i++)
+        for (int j = 0; j < 3; j++)
+            if (sink_fds[i][j] >= 0)
+                close(sink_fds[i][j]);
+    close(sink_pipe[0]);
+    close(sink_pipe[1]);
+    close(sink_epoll);
+}
+
+// Report
+
+static int compare_samples(const void *a, const void *b) {
+    uint32_t first = *(const uint32_t *) a;
+    uint32_t second = *(const uint32_t *) b;
+    return first < second ? -1 : (first > second ? 1 : 0);
+}
+
+static uint32_t get_percentile(double percentile) {
+    if (latency_count == 0)
+        return 0;
+    return latency_samples[(int) ((latency_count - 1) * percentile)];
+}
+
+static void usage(const char *name) {
+    fprintf(stderr,
+            "Usage: %s [options] trace.pcap...\n"
+            "  -p file     policy table, see policy.c\n"
+            "  -a address  local (tun) address, repeat for more addresses,\n"
+            "              10.1.10.1 and fd00:1:fd00:1:fd00:1:fd00:1 by default\n"
+            "  -n loops    replay the traces this many times with new flows (1)\n"
+            "  -r rate     packets per second, 0 for as fast as possible (0)\n"
+            "  -w ms       wait for the engine after the last packet (500)\n"
+            "  -l level    native log level, 2 verbose to 6 error (6)\n"
+            "  -c size     DNS cache entries, 0 to disable (0)\n",
+            name);
+}
+
+int main(int argc, char *argv[]) {
+    int loops = 1;
+    long rate = 0;
+    int wait_ms = 500;
+    int level = ANDROID_LOG_ERROR;
+    int dns_cache = 0;
+
+    int option;
+    while ((option = getopt(argc, argv, "p:a:n:r:w:l:c:h")) != -1) {
+        switch (option) {
+            case 'p':
+                if (load_policy(optarg))
+                    return 1;
+                break;
+            case 'a':
+                if (add_local_address(optarg)) {
+                    fprintf(stderr, "Invalid local address %s\n", optarg);
+                    return 1;
+                }
+                break;
+            case 'n':
+                loops = atoi(optarg);
+                break;
+            case 'r':
+                rate = atol(optarg);
+                break;
+            case 'w':
+                wait_ms = atoi(optarg);
+                break;
+            case 'l':
+                level = atoi(optarg);
+                break;
+            case 'c':
+                dns_cache = atoi(optarg);
+                break;
+            default:
+                usage(argv[0]);
+                return option == 'h' ? 0 : 1;
+        }
+    }
+
+    if (optind >= argc || loops < 1 || loops > 65535 || rate < 0 || wait_ms < 0) {
+        usage(argv[0]);
+        return 1;
+    }
+
+    if (local_count == 0) {
+        add_local_address("10.1.10.1");
+        add_local_address("fd00:1:fd00:1:fd00:1:fd00:1");
+    }
+
+    signal(SIGPIPE, SIG_IGN);
+
+    index_flows(0);
+    for (int i = optind; i < argc; i++)
+        if (load_trace(argv[i]))
+            return 1;
+
+    if (packets_count == 0) {
+        fprintf(stderr, "No packets from the local addresses\n");
+        return 1;
+    }
+
+    prepare_loops(loops);
+    latency_samples = malloc(REPLAY_LATENCY_SAMPLES * sizeof(uint32_t));
+
+    pthread_t sinks_thread;
+    if (start_sinks(&sinks_thread))
+        return 1;
+
+    if (socketpair(AF_UNIX, SOCK_SEQPACKET, 0, tun_fds)) {
+        fprintf(stderr, "socketpair error %d: %s\n", errno, strerror(errno));
+        return 1;
+    }
+
+    JNIEnv *env = get_host_env();
+    jobject service = get_host_service();
+    JNI_OnLoad(get_host_vm(), NULL);
+
+    jlong context = Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1init(
+            env, service, REPLAY_SDK);
+    Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1start(
+            env, service, context, level);
+    Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1dns_1cache(
+            env, service, dns_cache);
+
+    size_t rules_size;
+    void *rules = policy_get_redirect_rules(&rules_size);
+    jobject rules_buffer = (*env)->NewDirectByteBuffer(env, rules, (jlong) rules_size);
+    Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1set_1redirect_1rules(
+            env, service, rules_buffer);
+    (*env)->DeleteLocalRef(env, rules_buffer);
+
+    pthread_t reader_thread;
+    pthread_t events_thread;
+    pthread_t engine;
+    pthread_create(&reader_thread, NULL, read_engine, NULL);
+    pthread_create(&events_thread, NULL, read_events, NULL);
+    pthread_create(&engine, NULL, run_engine, &context);
+    usleep(50 * 1000);
+
+    struct context *ctx = (struct context *) context;
+    long baseline_bytes = atomic_load(&live_bytes);
+    long baseline_allocs = atomic_load(&alloc_calls);
+    long baseline_allocated = atomic_load(&alloc_bytes);
+    int peak_sessions = 0;
+    long peak_bytes = baseline_bytes;
+
+    // Feed
+    long long start = get_ns();
+    int error = 0;
+    long count = 0;
+    for (int loop = 0; loop < loops && !error; loop++)
+        for (int i = 0; i < packets_count && !error; i++) {
+            if (rate > 0) {
+                long long due = start + count * 1000000000LL / rate;
+                long long now = get_ns();
+                if (due > now) {
+                    struct timespec ts = {(time_t) ((due - now) / 1000000000LL),
+                                          (long) ((due - now) % 1000000000LL)};
+                    nanosleep(&ts, NULL);
+                }
+            }
+
+            struct flow *flow = packets[i].flow < 0
+                                ? NULL : &flows[loop * flows_base + packets[i].flow];
+            error = (feed_packet(i, flow, 1) || feed_deferred(0));
+
+            if (++count % REPLAY_SAMPLE_INTERVAL == 0) {
+                int sessions = ctx->icmp_sessions + ctx->udp_sessions + ctx->tcp_sessions;
+                if (sessions > peak_sessions) {
+                    peak_sessions = sessions;
+                    peak_bytes = atomic_load(&live_bytes);
+                }
+            }
+        }
+
+    while (!error && has_deferred())
+        error = feed_deferred(1);
+    double elapsed = (fed_last - start) / 1e9;
+
+    usleep(wait_ms * 1000);
+
+    int sessions = ctx->icmp_sessions + ctx->udp_sessions + ctx->tcp_sessions;
+    if (sessions >= peak_sessions) {
+        peak_sessions = sessions;
+        peak_bytes = atomic_load(&live_bytes);
+    }
+    long allocs = atomic_load(&alloc_calls) - baseline_allocs;
+    long allocated = atomic_load(&alloc_bytes) - baseline_allocated;
+
+    // Stop
+    Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1stop(env, service, context);
+    pthread_join(engine, NULL);
+    atomic_store(&events_stopping, 1);
+    pthread_join(events_thread, NULL);
+    close(tun_fds[0]);
+    pthread_join(reader_thread, NULL);
+    close(tun_fds[1]);
+    Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1done(env, service, context);
+    free(rules);
+    stop_sinks(sinks_thread);
+
+    qsort(latency_samples, (size_t) latency_count, sizeof(uint32_t), compare_samples);
+
+    int opened = 0;
+    for (int i = 0; i < flows_count; i++)
+        if (flows[i].state != FLOW_NEW || flows[i].key.protocol != IPPROTO_TCP)
+            opened++;
+
+    printf("trace packets %d inbound %ld skipped %ld flows %d loops %d\n",
+           packets_count, trace_inbound, trace_skipped, flows_base, loops);
+    printf("fed packets %ld bytes %ld skipped %ld flows %d failed %d\n",
+           fed_packets, fed_bytes, skipped_packets, opened, failed_flows);
+    printf("engine packets %ld bytes %ld\n", engine_packets, engine_bytes);
+    printf("elapsed %.3f s throughput %.0f packets/s %.2f Mbit/s\n",
+           elapsed, fed_packets / elapsed, fed_bytes * 8 / elapsed / 1e6);
+    printf("latency us samples %d p50 %u p90 %u p99 %u max %u\n",
+           latency_count, get_percentile(0.5), get_percentile(0.9),
+           get_percentile(0.99), get_percentile(1));
+    printf("memory allocs %ld per packet %.2f allocated per flow %ld"
+           " peak sessions %d resident per session %ld\n",
+           allocs, fed_packets > 0 ? (double) allocs / fed_packets : 0,
+           opened > 0 ? allocated / opened : 0,
+           peak_sessions, peak_sessions > 0 ? (peak_bytes - baseline_bytes) / peak_sessions : 0);
+    print_jni_stats(stdout);
+
+    return error || is_native_exit_reported() ? 2 : 0;
+}
@@ -0,0 +1,119 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#ifndef INVIZIBLE_REPLAY_H
+#define INVIZIBLE_REPLAY_H
+
+#include "invizible.h"
+
+// Offline replay harness of the native VPN engine, see replay.c
+
+#define REPLAY_SDK 29 // uids are requested with getUidQ
+
+// Policy table answering the ServiceVPN upcalls
+
+#define POLICY_ANY -1
+#define POLICY_DEFAULT_UID 10000
+#define POLICY_RULES_MAX 256
+#define POLICY_DOMAINS_MAX 256
+
+#define POLICY_UID 0
+#define POLICY_ALLOW 1
+#define POLICY_BLOCK 2
+
+struct policy_rule {
+    int action;
+    int value; // uid for POLICY_UID rules
+    int uid;
+    int protocol;
+    int port;
+};
+
+int load_policy(const char *path);
+
+jint policy_get_uid(int protocol, int dport);
+
+int policy_is_allowed(int uid, int protocol, int dport);
+
+int policy_is_domain_blocked(const char *name);
+
+void *policy_get_redirect_rules(size_t *size);
+
+// Loopback servers the allowed connections are redirected to
+
+const char *get_sink_address(int version);
+
+uint16_t get_sink_port(int version, int protocol, int dport);
+
+// JNI environment without a JVM
+
+JNIEnv *get_host_env();
+
+JavaVM *get_host_vm();
+
+jobject get_host_service();
+
+int is_native_exit_reported();
+
+int read_host_events();
+
+void print_jni_stats(FILE *out);
+
+// ServiceVPN native methods, see invizible.c
+
+JNIEXPORT jlong JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1init(
+        JNIEnv *env, jobject instance, jint sdk);
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1start(
+        JNIEnv *env, jobject instance, jlong context, jint loglevel_);
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1run(
+        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode,
+        jboolean compatibility, jboolean filter);
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1set_1redirect_1rules(
+        JNIEnv *env, jobject instance, jobject buffer);
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1dns_1cache(
+        JNIEnv *env, jobject instance, jint size);
+
+JNIEXPORT jint JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1read_1events(
+        JNIEnv *env, jobject instance, jobject buffer_);
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1stop(
+        JNIEnv *env, jobject instance, jlong context);
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1done(
+        JNIEnv *env, jobject instance, jlong context);
+
+// Allocations of the host itself are not counted, see the malloc wrappers in replay.c
+
+void *__real_malloc(size_t size);
+
+void __real_free(void *ptr);
+
+#endif
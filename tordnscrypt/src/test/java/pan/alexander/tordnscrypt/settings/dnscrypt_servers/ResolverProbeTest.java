@@ -0,0 +1,341 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_servers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import pan.alexander.tordnscrypt.utils.dns.Record;
+
+//Probes local UDP, HTTP and SOCKS5 stubs, nothing leaves the loopback interface
+public class ResolverProbeTest {
+
+    private static final int TIMEOUT_MS = 2000;
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final String PROVIDER_NAME = "2.dnscrypt-cert.example.com";
+    private static final String DOH_HOST = "doh.example.com";
+    private static final String DOH_PATH = "/dns-query";
+    //TEST-NET-1, a probe through the proxy must never connect it
+    private static final String UNREACHABLE_HOST = "192.0.2.1";
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Closeable> stubs = new ArrayList<>();
+
+    @After
+    public void stopStubs() throws IOException {
+        executor.shutdownNow();
+        for (Closeable stub : stubs) {
+            stub.close();
+        }
+    }
+
+    @Test
+    public void dnsCryptServerIsProbedOverUdp() throws Exception {
+        DatagramSocket server = startUdpStub();
+        Future<String> question = serve(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            server.receive(packet);
+            byte[] query = Arrays.copyOf(packet.getData(), packet.getLength());
+            byte[] response = answer(query);
+            server.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            return readQuestion(query);
+        });
+
+        new ResolverProbe(null, TIMEOUT_MS).probe(dnsCryptStamp(LOOPBACK, server.getLocalPort()));
+
+        assertEquals(PROVIDER_NAME + " " + Record.TYPE_TXT, get(question));
+    }
+
+    @Test
+    public void dnsCryptProbeFailsOnUnsolicitedResponse() throws Exception {
+        DatagramSocket server = startUdpStub();
+        serve(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            server.receive(packet);
+            byte[] response = answer(Arrays.copyOf(packet.getData(), packet.getLength()));
+            response[0] ^= 0xff;
+            server.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            return null;
+        });
+
+        assertProbeFails(new ResolverProbe(null, TIMEOUT_MS), dnsCryptStamp(LOOPBACK, server.getLocalPort()));
+    }
+
+    @Test
+    public void dnsCryptServerIsProbedOverTcpThroughProxy() throws Exception {
+        ServerSocket proxy = startTcpStub();
+        Future<List<String>> requests = serve(() -> {
+            try (Socket socket = proxy.accept()) {
+                String target = acceptSocksConnect(socket);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                byte[] response = answer(query);
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+                return Arrays.asList(target, readQuestion(query));
+            }
+        });
+
+        new ResolverProbe(proxyAddress(proxy), TIMEOUT_MS).probe(dnsCryptStamp(UNREACHABLE_HOST, 443));
+
+        assertEquals(
+                Arrays.asList(UNREACHABLE_HOST + ":443", PROVIDER_NAME + " " + Record.TYPE_TXT),
+                get(requests)
+        );
+    }
+
+    @Test
+    public void dohServerIsProbedByAddressFromStamp() throws Exception {
+        ServerSocket server = startTcpStub();
+        Future<List<String>> request = serve(() -> {
+            try (Socket socket = server.accept()) {
+                return serveDoh(socket, "200 OK");
+            }
+        });
+
+        new ResolverProbe(null, TIMEOUT_MS, false)
+                .probe(dohStamp(LOOPBACK, server.getLocalPort(), DOH_HOST));
+
+        assertEquals(Arrays.asList(
+                "POST " + DOH_PATH + " HTTP/1.1",
+                "Host: " + DOH_HOST,
+                DOH_HOST + " " + Record.TYPE_A
+        ), get(request));
+    }
+
+    @Test
+    public void dohProbeFailsOnHttpError() throws Exception {
+        ServerSocket server = startTcpStub();
+        serve(() -> {
+            try (Socket socket = server.accept()) {
+                return serveDoh(socket, "502 Bad Gateway");
+            }
+        });
+
+        assertProbeFails(new ResolverProbe(null, TIMEOUT_MS, false),
+                dohStamp(LOOPBACK, server.getLocalPort(), DOH_HOST));
+    }
+
+    @Test
+    public void dohHostNameIsNotResolvedWithoutProxy() throws Exception {
+        try {
+            new ResolverProbe(null, TIMEOUT_MS, false).probe(dohStamp("", 443, DOH_HOST));
+            fail("A DoH server without an address is probed directly");
+        } catch (UnknownHostException ignored) {
+        }
+    }
+
+    @Test
+    public void dohHostNameIsResolvedByProxy() throws Exception {
+        ServerSocket proxy = startTcpStub();
+        Future<List<String>> requests = serve(() -> {
+            try (Socket socket = proxy.accept()) {
+                List<String> lines = new ArrayList<>();
+                lines.add(acceptSocksConnect(socket));
+                lines.addAll(serveDoh(socket, "200 OK"));
+                return lines;
+            }
+        });
+
+        new ResolverProbe(proxyAddress(proxy), TIMEOUT_MS, false)
+                .probe(dohStamp("", 443, DOH_HOST + ":8443"));
+
+        assertEquals(Arrays.asList(
+                DOH_HOST + ":8443",
+                "POST " + DOH_PATH + " HTTP/1.1",
+                "Host: " + DOH_HOST + ":8443",
+                DOH_HOST + " " + Record.TYPE_A
+        ), get(requests));
+    }
+
+    @Test
+    public void onlyLiteralAddressesAreParsed() throws Exception {
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, ResolverProbe.parseAddress("1.2.3.4").getAddress());
+        assertEquals(InetAddress.getByName("2001:db8::1"), ResolverProbe.parseAddress("2001:db8::1"));
+        assertEquals(InetAddress.getByName("::1"), ResolverProbe.parseAddress("::1"));
+        assertEquals(InetAddress.getByName("::"), ResolverProbe.parseAddress("::"));
+        assertEquals(InetAddress.getByName("1:2:3:4:5:6:7:8"), ResolverProbe.parseAddress("1:2:3:4:5:6:7:8"));
+        assertEquals(InetAddress.getByName("64:ff9b::192.0.2.1"), ResolverProbe.parseAddress("64:ff9b::192.0.2.1"));
+
+        for (String host : new String[]{"", DOH_HOST, "256.1.1.1", "1.2.3", "1.2.3.4.5", "1..2.3",
+                "1:2:3:4:5:6:7:8:9", "1::2::3", "1:2:3:4:5:6:7::8", "12345::1", "::g", "fe80::1%wlan0"}) {
+            assertNull(host, ResolverProbe.parseAddress(host));
+        }
+    }
+
+    private DatagramSocket startUdpStub() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName(LOOPBACK));
+        socket.setSoTimeout(TIMEOUT_MS);
+        stubs.add(socket);
+        return socket;
+    }
+
+    private ServerSocket startTcpStub() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(LOOPBACK));
+        socket.setSoTimeout(TIMEOUT_MS);
+        stubs.add(socket);
+        return socket;
+    }
+
+    private <T> Future<T> serve(Callable<T> stub) {
+        return executor.submit(stub);
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void assertProbeFails(ResolverProbe probe, DnsStamp stamp) {
+        try {
+            probe.probe(stamp);
+            fail("Probe of a wrong response succeeded");
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static InetSocketAddress proxyAddress(ServerSocket proxy) {
+        return new InetSocketAddress(proxy.getInetAddress(), proxy.getLocalPort());
+    }
+
+    private static DnsStamp dnsCryptStamp(String host, int port) {
+        return new DnsStamp(DnsStamp.PROTOCOL_DNSCRYPT, host, port, PROVIDER_NAME, "", "");
+    }
+
+    private static DnsStamp dohStamp(String host, int port, String hostName) {
+        return new DnsStamp(DnsStamp.PROTOCOL_DOH, host, port, "", hostName, DOH_PATH);
+    }
+
+    //Accepts a SOCKS5 CONNECT and returns the requested domain and port
+    private static String acceptSocksConnect(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        byte[] greeting = new byte[3];
+        in.readFully(greeting);
+        assertArrayEquals(new byte[]{5, 1, 0}, greeting);
+        out.write(new byte[]{5, 0});
+
+        byte[] request = new byte[4];
+        in.readFully(request);
+        //The host must be passed as a domain name, so the proxy resolves it
+        assertArrayEquals(new byte[]{5, 1, 0, 3}, request);
+        byte[] name = new byte[in.readUnsignedByte()];
+        in.readFully(name);
+        int port = in.readUnsignedShort();
+        out.write(new byte[]{5, 0, 0, 1, 127, 0, 0, 1, 0, 0});
+        out.flush();
+
+        return new String(name, StandardCharsets.US_ASCII) + ":" + port;
+    }
+
+    //Answers a DoH POST and returns the request line, the Host header and the question
+    private static List<String> serveDoh(Socket socket, String status) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        String requestLine = readLine(in);
+        String host = null;
+        int contentLength = 0;
+        String header;
+        while (!(header = readLine(in)).isEmpty()) {
+            if (header.startsWith("Host:")) {
+                host = header;
+            } else if (header.startsWith("Content-Length:")) {
+                contentLength = Integer.parseInt(header.substring("Content-Length:".length()).trim());
+            }
+        }
+        byte[] query = new byte[contentLength];
+        in.readFully(query);
+
+        byte[] response = answer(query);
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/dns-message\r\n"
+                + "Content-Length: " + response.length + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(response);
+        out.flush();
+
+        return Arrays.asList(requestLine, host, readQuestion(query));
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.readUnsignedByte()) != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
+    //The query with the response flag is enough for the probe
+    private static byte[] answer(byte[] query) {
+        byte[] response = query.clone();
+        response[2] |= 0x80;
+        return response;
+    }
+
+    //The name and type of the first question
+    private static String readQuestion(byte[] query) {
+        StringBuilder name = new StringBuilder();
+        int position = 12;
+        int length;
+        while ((length = query[position++]) > 0) {
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(query, position, length, StandardCharsets.US_ASCII));
+            position += length;
+        }
+        int type = (query[position] & 0xff) << 8 | query[position + 1] & 0xff;
+        return name + " " + type;
+    }
+}
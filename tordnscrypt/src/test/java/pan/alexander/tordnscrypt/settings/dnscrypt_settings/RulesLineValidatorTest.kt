@@ -0,0 +1,116 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_settings
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.File
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.nio.file.Files
+import java.util.Random
+
+//The patterns that were used by ImportRules before RulesLineValidator, as they were
+private val blackListHostRulesRegex = Regex("^[a-zA-Z\\d-.=_*\\[\\]?,]+$")
+private val blacklistIPRulesRegex = Regex("^(?:[0-9*]{1,3}\\.){1,3}[0-9*]{1,3}(?:/\\d+)*$")
+private val cloakingRulesRegex = Regex("^[a-zA-Z\\d-.=_*]+[ \\t]+[a-zA-Z\\d-.=_*]+$")
+private val forwardingRulesRegex =
+    Regex("^[a-zA-Z\\d-._]+[ \\t]+(?:[0-9*]{1,3}\\.){3}[0-9*]{1,3}(?:, ?(?:[0-9*]{1,3}\\.){3}[0-9*]{1,3})*$")
+private val whiteListHostRulesRegex = Regex("^[a-zA-Z\\d-.=_*\\[\\]?]+$")
+private val hostFileRegex = Regex("^(?:0.0.0.0|127.0.0.1)[ \\t]+[a-zA-Z\\d-._]+$")
+
+private const val FUZZ_LINES = 200_000
+private const val IMPORT_LINES = 20_000
+
+class RulesLineValidatorTest {
+
+    private val validators = listOf(
+        Triple("blacklist hosts", blackListHostRulesRegex, RulesLineValidator::isBlackListHostRule),
+        Triple("whitelist hosts", whiteListHostRulesRegex, RulesLineValidator::isWhiteListHostRule),
+        Triple("blacklist ips", blacklistIPRulesRegex, RulesLineValidator::isBlackListIPRule),
+        Triple("cloaking", cloakingRulesRegex, RulesLineValidator::isCloakingRule),
+        Triple("forwarding", forwardingRulesRegex, RulesLineValidator::isForwardingRule),
+        Triple("hosts file", hostFileRegex, RulesLineValidator::isHostFileLine)
+    )
+
+    @Test
+    fun validatorsAcceptTheSameLinesAsRegexes() {
+        val lines = generateLines(Random(1), FUZZ_LINES)
+
+        for ((name, regex, validator) in validators) {
+            for (line in lines) {
+                assertEquals("$name \"$line\"", regex.matches(line), validator(line))
+            }
+        }
+    }
+
+    //ExternalRulesSorter should keep each valid rule once, as the regex and hashes did
+    @Test
+    fun blackListImportKeepsUniqueRules() {
+        val lines = generateBlackList(Random(2), IMPORT_LINES)
+        val tempDir = Files.createTempDirectory("rules_import").toFile()
+
+        try {
+            val expected = lines.filter {
+                !it.startsWith("#") && blackListHostRulesRegex.matches(it)
+            }.toSet().size
+            assertEquals(expected, importWithValidator(lines, tempDir))
+        } finally {
+            tempDir.deleteRecursively()
+        }
+    }
+
+    private fun importWithValidator(lines: List<String>, tempDir: File): Int {
+        ExternalRulesSorter(tempDir).use { sorter ->
+            for (line in lines) {
+                if (!line.startsWith("#") && RulesLineValidator.isBlackListHostRule(line)) {
+                    sorter.add(line)
+                }
+            }
+            return sorter.mergeTo(PrintWriter(StringWriter()))
+        }
+    }
+
+    private fun generateBlackList(random: Random, count: Int): List<String> =
+        List(count) {
+            when (random.nextInt(20)) {
+                0 -> "# comment ${random.nextInt(1000)}"
+                1 -> "bad host ${random.nextInt(1000)}.com"
+                else -> "ads${random.nextInt(count / 2)}.tracker${random.nextInt(50)}.com"
+            }
+        }
+
+    //Lines built from the characters and fragments that are significant for the patterns
+    private fun generateLines(random: Random, count: Int): List<String> {
+        val fragments = listOf(
+            "a", "Z", "0", "1", "9", "25", "255", "*", ".", "-", "_", "=", "[", "]", "?", ",",
+            ", ", " ", "\t", "/", "/24", "#", "!", "0.0.0.0", "127.0.0.1", "1.2.3.4", "*.*.*.*",
+            "example.com", "1234", ":", "@", "0x0x0x0", "127-0-0-1"
+        )
+        return List(count) {
+            val builder = StringBuilder()
+            repeat(random.nextInt(8)) {
+                builder.append(fragments[random.nextInt(fragments.size)])
+            }
+            //ImportRules trims lines before validation
+            builder.toString().trim()
+        }
+    }
+}